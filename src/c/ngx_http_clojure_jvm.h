@@ -59,6 +59,7 @@ typedef jint (*jni_createvm_pt)(JavaVM **pvm, void **penv, void *args);
 #define NGX_HTTP_CLOJURE_SOCKET_ERR_OUTOFMEMORY -26
 #define NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN -27
 #define NGX_HTTP_CLOJURE_SOCKET_ERR_BIND   -28
+#define NGX_HTTP_CLOJURE_SOCKET_ERR_SSL   -29
 
 
 #define NGX_HTTP_CLOJURE_CHANNEL_EVENT_CLOSE 0
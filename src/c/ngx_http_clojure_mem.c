@@ -180,6 +180,8 @@ static void nji_ngx_http_clojure_hijack_read_handler(ngx_http_request_t *r);
 
 static void nji_ngx_http_clojure_hijack_write_handler(ngx_http_request_t *r);
 
+static void nji_ngx_http_clojure_hijack_fire_channel_event(jint type, jlong flag, ngx_http_clojure_module_ctx_t *ctx);
+
 ngx_int_t ngx_http_clojure_prepare_server_header(ngx_http_request_t *r) {
 	ngx_table_elt_t *h = r->headers_out.server;
 	if (h == NULL) {
@@ -745,6 +747,13 @@ static void ngx_http_clojure_hijack_writer(ngx_http_request_t *r) {
 		return;
 	}
 
+	if (ctx->event_handler_flag & NGX_HTTP_CLOJURE_EVENT_HANDLER_FLAG_DRAIN) {
+		r->write_event_handler = ngx_http_request_empty_handler;
+		/*the listener may send more or even finalize the request so r must not be touched after it*/
+		nji_ngx_http_clojure_hijack_fire_channel_event(NGX_HTTP_CLOJURE_CHANNEL_EVENT_WRITE, NGX_HTTP_CLOJURE_SOCKET_OK, ctx);
+		return;
+	}
+
 	if (ctx->event_handler_flag) {
 		if (ctx->event_handler_flag & NGX_HTTP_CLOJURE_EVENT_HANDLER_FLAG_READ) {
 			r->read_event_handler = nji_ngx_http_clojure_hijack_read_handler;
@@ -2023,6 +2032,7 @@ static jlong JNICALL jni_ngx_http_clojure_websocket_upgrade(JNIEnv *env, jclass
  * 0
  * NGX_HTTP_CLOJURE_EVENT_HANDLER_FLAG_READ  1
  * NGX_HTTP_CLOJURE_EVENT_HANDLER_FLAG_WRITE 2
+ * NGX_HTTP_CLOJURE_EVENT_HANDLER_FLAG_DRAIN 8
  */
 static void JNICALL jni_ngx_http_hijack_turn_on_event_handler(JNIEnv *env, jclass cls, jlong req, jint flag) {
 	ngx_http_request_t *r = (ngx_http_request_t *)(uintptr_t)req;
@@ -2332,6 +2342,17 @@ static jlong JNICALL jni_ngx_http_hijack_send(JNIEnv *env, jclass cls, jlong req
 	return rc;
 }
 
+/*
+ * returns 1 if some output has not been sent to the client yet, 0 if all has been sent
+ */
+static jlong JNICALL jni_ngx_http_hijack_buffered(JNIEnv *env, jclass cls, jlong req) {
+	ngx_http_request_t *r = (ngx_http_request_t *)(uintptr_t)req;
+	if (r->pool == NULL) {
+		return NGX_ERROR;
+	}
+	return (r->buffered || r->postponed || (r == r->main && r->connection->buffered)) ? 1 : 0;
+}
+
 static jlong JNICALL jni_ngx_http_hijack_send_chain(JNIEnv *env, jclass cls, jlong req, jlong chain,  jint flag) {
 	ngx_int_t rc = ngx_http_clojure_hijack_send_chain((ngx_http_request_t *)(uintptr_t)req, (ngx_chain_t *)(uintptr_t)chain, flag);
 	if (rc != NGX_OK) {
@@ -2588,6 +2609,244 @@ static jlong JNICALL jni_ngx_http_filter_continue_next(JNIEnv *env, jclass cls,
 	}
 }
 
+static ngx_buf_t *ngx_http_clojure_body_filter_slice_buf(ngx_http_request_t *r, ngx_http_clojure_module_ctx_t *ctx) {
+	ngx_chain_t *cl;
+	ngx_buf_t *b;
+
+	for (cl = ctx->body_slices; cl; cl = cl->next) {
+		b = cl->buf;
+		/*it has been consumed by the java body filter or sent by the next filters*/
+		if (b->pos == b->last) {
+			b->pos = b->last = b->start;
+			b->last_buf = b->last_in_chain = b->flush = 0;
+			return b;
+		}
+	}
+
+	b = ngx_create_temp_buf(r->pool, NGX_HTTP_CLOJURE_BODY_SLICE_SIZE);
+	if (b == NULL) {
+		return NULL;
+	}
+	cl = ngx_alloc_chain_link(r->pool);
+	if (cl == NULL) {
+		return NULL;
+	}
+	cl->buf = b;
+	cl->next = ctx->body_slices;
+	ctx->body_slices = cl;
+	return b;
+}
+
+/*
+ * Takes links kept in ctx->body_pending to give them to the java body filter.
+ * Links in ctx->body_pending are copies made by this module so the java side never holds links of the caller.
+ * Java body filters only see buffers in memory, so a file buffer, e.g. from the static module, is read into
+ * a temp buffer one slice at a time. It stops after a slice and the rest of the file buffer is left in ctx->body_pending.
+ */
+ngx_int_t ngx_http_clojure_body_filter_take(ngx_http_request_t *r, ngx_http_clojure_module_ctx_t *ctx, ngx_chain_t **in) {
+	ngx_chain_t *cl, **ll;
+	ngx_buf_t *b, *nb;
+	ssize_t n;
+	size_t size;
+
+	ll = in;
+	while ((cl = ctx->body_pending) != NULL) {
+		b = cl->buf;
+		if (!b->in_file || ngx_buf_in_memory(b)) {
+			ctx->body_pending = cl->next;
+			*ll = cl;
+			ll = &cl->next;
+			continue;
+		}
+
+		size = (size_t) ngx_min(b->file_last - b->file_pos, NGX_HTTP_CLOJURE_BODY_SLICE_SIZE);
+		nb = size ? ngx_http_clojure_body_filter_slice_buf(r, ctx) : ngx_calloc_buf(r->pool);
+		if (nb == NULL) {
+			return NGX_ERROR;
+		}
+		if (size) {
+			n = ngx_read_file(b->file, nb->pos, size, b->file_pos);
+			if (n != (ssize_t) size) {
+				ngx_log_error(NGX_LOG_ERR, r->connection->log, 0, "read %z bytes from file for body filter, expected %uz", n, size);
+				return NGX_ERROR;
+			}
+			nb->last = nb->pos + n;
+			b->file_pos += n;
+		}
+
+		if (b->file_pos == b->file_last) {
+			nb->last_buf = b->last_buf;
+			nb->last_in_chain = b->last_in_chain;
+			nb->flush = b->flush;
+			ctx->body_pending = cl->next;
+		}
+
+		*ll = ngx_alloc_chain_link(r->pool);
+		if (*ll == NULL) {
+			return NGX_ERROR;
+		}
+		(*ll)->buf = nb;
+		ll = &(*ll)->next;
+		break;
+	}
+	*ll = NULL;
+	return NGX_OK;
+}
+
+/*
+ * Fills (link, pos, size, flags) of links of the chain into a java long array.
+ * Returns the number of links filled.
+ */
+static jlong JNICALL jni_ngx_http_clojure_mem_get_chain_info(JNIEnv *env, jclass cls, jlong chain, jobject obj, jlong offset, jlong len) {
+	ngx_chain_t *cl = (ngx_chain_t *)(uintptr_t)chain;
+	jlong *info = (jlong *)ngx_http_clojure_abs_off_addr(obj, offset);
+	ngx_buf_t *b;
+	jlong n = 0;
+	jlong flags;
+
+	for (; cl && n + 4 <= len; cl = cl->next, n += 4) {
+		b = cl->buf;
+		flags = 0;
+		info[n] = (uintptr_t)cl;
+		if (ngx_buf_in_memory(b)) {
+			info[n + 1] = (uintptr_t)b->pos;
+			info[n + 2] = b->last - b->pos;
+			if (b->temporary) {
+				flags |= NGX_HTTP_CLOJURE_CHUNK_WRITABLE;
+			}
+		}else {
+			info[n + 1] = 0;
+			info[n + 2] = 0;
+		}
+		if (b->last_buf || b->last_in_chain) {
+			flags |= NGX_HTTP_CLOJURE_CHUNK_LAST;
+		}
+		if (b->flush) {
+			flags |= NGX_HTTP_CLOJURE_CHUNK_FLUSH;
+		}
+		info[n + 3] = flags;
+	}
+	return n >> 2;
+}
+
+/*
+ * Appends output of the java body filter to ctx->body_out.
+ * If src is given and len < 0 the buffer of src is passed on as it is,
+ * otherwise the buffer of src is marked as consumed and the data in obj (if any) is copied into a new temp buffer.
+ */
+static jlong JNICALL jni_ngx_http_clojure_mem_body_filter_emit(JNIEnv *env, jclass cls, jlong req, jlong src, jobject obj, jlong offset, jlong len, jint flag) {
+	ngx_http_request_t *r = (ngx_http_request_t *)(uintptr_t)req;
+	ngx_chain_t *scl = (ngx_chain_t *)(uintptr_t)src;
+	ngx_http_clojure_module_ctx_t *ctx;
+	ngx_chain_t *cl;
+	ngx_buf_t *b;
+
+	ngx_http_clojure_get_ctx(r, ctx);
+
+	if (ctx == NULL) {
+		return NGX_ERROR;
+	}
+
+	if (scl != NULL) {
+		b = scl->buf;
+		if (len < 0) {
+			goto append;
+		}
+		b->pos = b->last;
+		if (b->in_file) {
+			b->file_pos = b->file_last;
+		}
+	}
+
+	if (len <= 0 && flag == 0) {
+		return NGX_OK;
+	}
+
+	if (len > 0) {
+		b = ngx_create_temp_buf(r->pool, (size_t)len);
+		if (b == NULL) {
+			return NGX_ERROR;
+		}
+		ngx_memcpy(b->pos, ngx_http_clojure_abs_off_addr(obj, offset), (size_t)len);
+		b->last = b->pos + len;
+	}else {
+		b = ngx_calloc_buf(r->pool);
+		if (b == NULL) {
+			return NGX_ERROR;
+		}
+	}
+
+	if (flag & NGX_CLOJURE_BUF_LAST_FLAG) {
+		if (r == r->main) {
+			b->last_buf = 1;
+		}
+		b->last_in_chain = 1;
+	}
+
+	if (flag & NGX_CLOJURE_BUF_FLUSH_FLAG) {
+		b->flush = 1;
+	}
+
+append:
+	cl = ngx_alloc_chain_link(r->pool);
+	if (cl == NULL) {
+		return NGX_ERROR;
+	}
+	cl->buf = b;
+	cl->next = NULL;
+	*ctx->body_out_last = cl;
+	ctx->body_out_last = &cl->next;
+	return NGX_OK;
+}
+
+static jlong JNICALL jni_ngx_http_clojure_mem_body_filter_send(JNIEnv *env, jclass cls, jlong req) {
+	ngx_http_request_t *r = (ngx_http_request_t *)(uintptr_t)req;
+	ngx_http_clojure_module_ctx_t *ctx;
+	ngx_chain_t *out;
+
+	ngx_http_clojure_get_ctx(r, ctx);
+
+	if (ctx == NULL || ctx->body_out == NULL) {
+		return NGX_OK;
+	}
+
+	out = ctx->body_out;
+	ctx->body_out = NULL;
+	ctx->body_out_last = &ctx->body_out;
+	return ngx_http_clojure_filter_continue_next_body_filter(r, out);
+}
+
+/*
+ * Returns the chain kept while the java body filter was suspended.
+ * If there's nothing left the suspended state is cleared and the write event is posted
+ * so that ngx_http_writer or the content handler can go on.
+ */
+static jlong JNICALL jni_ngx_http_clojure_mem_body_filter_pending(JNIEnv *env, jclass cls, jlong req) {
+	ngx_http_request_t *r = (ngx_http_request_t *)(uintptr_t)req;
+	ngx_http_clojure_module_ctx_t *ctx;
+	ngx_chain_t *in;
+
+	ngx_http_clojure_get_ctx(r, ctx);
+
+	if (ctx == NULL) {
+		return 0;
+	}
+
+	if (ctx->body_pending != NULL) {
+		if (ngx_http_clojure_body_filter_take(r, ctx, &in) != NGX_OK) {
+			return NGX_ERROR;
+		}
+		return (uintptr_t)in;
+	}
+
+	if (ctx->body_filter_busy) {
+		ctx->body_filter_busy = 0;
+		r->connection->buffered &= ~NGX_HTTP_CLOJURE_BODY_BUFFERED;
+		ngx_post_event(r->connection->write, &ngx_posted_events);
+	}
+	return 0;
+}
+
 static jlong JNICALL jni_ngx_http_clojure_mem_init_ngx_buf(JNIEnv *env, jclass cls, jlong buf, jobject obj, jlong offset, jlong len, jint last_buf) {
 	ngx_buf_t *b = (ngx_buf_t *)(uintptr_t)buf;
 
@@ -3403,6 +3662,45 @@ static int ngx_http_clojure_handle_post_event(jlong r) {
 }
 
 
+typedef struct {
+	ngx_event_t event;
+	jlong data;
+} ngx_http_clojure_timer_ctx_t;
+
+static void ngx_http_clojure_timer_handler(ngx_event_t *e) {
+	ngx_http_clojure_timer_ctx_t *ctx = e->data;
+	jlong data = ctx->data;
+	ngx_int_t rc;
+	ngx_free(ctx);
+	log_debug1(ngx_http_clojure_global_cycle->log, "ngx clojure: ngx clojure timer event %" PRIu64, data);
+	/*when the worker is exiting cancelable timers will be fired early (e->timedout == 0),
+	 *we still run the task so that the saved posted event data will be released
+	 *and suspended coroutines can finish their work*/
+	rc = ngx_http_clojure_handle_post_event(data);
+	if (rc != NGX_OK) {
+		ngx_log_error(NGX_LOG_ERR, ngx_http_clojure_global_cycle->log, 0,
+				"ngx clojure: ngx_http_clojure_handle_post_event failed by timer, data=%" PRIu64 ", rc=%d", data, rc);
+	}
+}
+
+/*must be called by the nginx main thread because nginx timers are not thread safe*/
+static jlong JNICALL jni_ngx_http_clojure_mem_add_timer(JNIEnv *env, jclass cls, jlong delay, jlong data) {
+	ngx_http_clojure_timer_ctx_t *ctx = ngx_calloc(sizeof(ngx_http_clojure_timer_ctx_t), ngx_http_clojure_global_cycle->log);
+	if (ctx == NULL) {
+		return NGX_ERROR;
+	}
+	ctx->data = data;
+	ctx->event.data = ctx;
+	ctx->event.handler = ngx_http_clojure_timer_handler;
+	ctx->event.log = ngx_http_clojure_global_cycle->log;
+#if nginx_version >= 1007005
+	/*don't prevent the worker from gracefully shutting down*/
+	ctx->event.cancelable = 1;
+#endif
+	ngx_add_timer(&ctx->event, (ngx_msec_t)delay);
+	return NGX_OK;
+}
+
 static void ngx_http_clojure_jvm_worker_post_event_handler(ngx_event_t *e) {
 	jlong rp;
 	ngx_int_t rc;
@@ -3537,6 +3835,10 @@ int ngx_http_clojure_init_memory_util(ngx_http_core_srv_conf_t *cscf, ngx_http_c
 			{"ngx_http_finalize_request", "(JJ)V", jni_ngx_http_finalize_request},
 			{"ngx_http_filter_finalize_request", "(JJ)V", jni_ngx_http_filter_finalize_request},
 			{"ngx_http_filter_continue_next", "(JJ)J",  jni_ngx_http_filter_continue_next},
+			{"ngx_http_clojure_mem_get_chain_info", "(JLjava/lang/Object;JJ)J", jni_ngx_http_clojure_mem_get_chain_info},
+			{"ngx_http_clojure_mem_body_filter_emit", "(JJLjava/lang/Object;JJI)J", jni_ngx_http_clojure_mem_body_filter_emit},
+			{"ngx_http_clojure_mem_body_filter_send", "(J)J", jni_ngx_http_clojure_mem_body_filter_send},
+			{"ngx_http_clojure_mem_body_filter_pending", "(J)J", jni_ngx_http_clojure_mem_body_filter_pending},
 			{"ngx_http_clojure_mem_init_ngx_buf", "(JLjava/lang/Object;JJI)J", jni_ngx_http_clojure_mem_init_ngx_buf}, //jlong buf, jlong obj, jlong offset, jlong len, jint last_buf
 			{"ngx_http_clojure_mem_build_temp_chain", "(JJLjava/lang/Object;JJ)J", jni_ngx_http_clojure_mem_build_temp_chain},
 			{"ngx_http_clojure_mem_build_file_chain", "(JJLjava/lang/Object;JJ)J", jni_ngx_http_clojure_mem_build_file_chain} ,
@@ -3560,10 +3862,12 @@ int ngx_http_clojure_init_memory_util(ngx_http_core_srv_conf_t *cscf, ngx_http_c
 			{"ngx_http_clojure_mem_post_event", "(JLjava/lang/Object;J)J", jni_ngx_http_clojure_mem_post_event},
 			{"ngx_http_clojure_mem_broadcast_event", "(JLjava/lang/Object;JJ)J", jni_ngx_http_clojure_mem_broadcast_event},
 			{"ngx_http_clojure_mem_read_raw_pipe", "(JLjava/lang/Object;JJ)J", jni_ngx_http_clojure_mem_read_raw_pipe},
+			{"ngx_http_clojure_mem_add_timer", "(JJ)J", jni_ngx_http_clojure_mem_add_timer},
 			{"ngx_http_hijack_send", "(JLjava/lang/Object;JJI)J", jni_ngx_http_hijack_send},
 			{"ngx_http_hijack_send_header", "(JI)J", jni_ngx_http_hijack_send_header},
 			{"ngx_http_hijack_send_header", "(JLjava/lang/Object;JJI)J", jni_ngx_http_hijack_send_header_by_buf},
 			{"ngx_http_hijack_send_chain", "(JJI)J", jni_ngx_http_hijack_send_chain},
+			{"ngx_http_hijack_buffered", "(J)J", jni_ngx_http_hijack_buffered},
 			{"ngx_http_hijack_set_async_timeout", "(JJ)V", jni_ngx_http_hijack_set_async_timeout},
 			{"ngx_http_clojure_add_listener", "(JLnginx/clojure/ChannelListener;Ljava/lang/Object;I)J", ngx_http_clojure_add_listener},
 			{"ngx_http_clojure_websocket_upgrade", "(J)J", jni_ngx_http_clojure_websocket_upgrade},
@@ -158,17 +158,30 @@ typedef struct {
 	unsigned wait_for_header_filter : 1;
 	unsigned pending_body_filter : 1;
 	unsigned ignore_next_response : 1;
+	/*a java body filter is suspended, the rest of the body is kept in body_pending until it finishes*/
+	unsigned body_filter_busy : 1;
 #define NGX_HTTP_CLOJURE_EVENT_HANDLER_FLAG_READ 1
 #define NGX_HTTP_CLOJURE_EVENT_HANDLER_FLAG_WRITE 2
 #define NGX_HTTP_CLOJURE_EVENT_HANDLER_FLAG_NOKEEPALIVE 4
-	/*1 READ, 2 WRITE, 4 NOKEEPALIVE*/
-	unsigned event_handler_flag : 3;
+/*fire a write event once the buffered output has been sent, used by streaming response bodies*/
+#define NGX_HTTP_CLOJURE_EVENT_HANDLER_FLAG_DRAIN 8
+	/*1 READ, 2 WRITE, 4 NOKEEPALIVE, 8 DRAIN*/
+	unsigned event_handler_flag : 4;
 	ngx_http_clojure_websocket_ctx_t *wsctx;
 	ngx_chain_t *wchain; /*buffer for write*/
 	/*for filter under thread pool mode or coroutine mode*/
 	ngx_chain_t *pending;
 	ngx_http_clojure_listener_node_t *listeners;
 	ngx_http_request_t *r;
+	/*ngx_http_clojure_pipe_t which this hijacked request is spliced by*/
+	void *pipe;
+	/*output of the java body filter which has not been sent to the next body filter*/
+	ngx_chain_t *body_out;
+	ngx_chain_t **body_out_last;
+	/*links owned by this module which have not been given to the java body filter*/
+	ngx_chain_t *body_pending;
+	/*temp buffers which slices of file buffers are read into, they are reused once consumed*/
+	ngx_chain_t *body_slices;
 } ngx_http_clojure_module_ctx_t;
 
 #define ngx_http_clojure_init_ctx(ctx, p) \
@@ -184,7 +197,25 @@ typedef struct {
 		ctx->ignore_next_response = 0; \
 		ctx->event_handler_flag = 0; \
 		ctx->wsctx = 0; \
-		ctx->listeners = 0;
+		ctx->listeners = 0; \
+		ctx->pipe = 0; \
+		ctx->body_filter_busy = 0; \
+		ctx->body_out = ctx->body_pending = ctx->body_slices = NULL; \
+		ctx->body_out_last = &ctx->body_out;
+
+/*
+ * flag of r->connection->buffered while a java body filter has kept some of the body, like NGX_HTTP_GZIP_BUFFERED.
+ * all 4 bits of r->buffered are used by nginx filters, so it is an unused bit of NGX_HTTP_LOWLEVEL_BUFFERED
+ */
+#define NGX_HTTP_CLOJURE_BODY_BUFFERED 0x80
+
+/*max size of a slice of a file buffer which is read into memory for the java body filter*/
+#define NGX_HTTP_CLOJURE_BODY_SLICE_SIZE 32768
+
+/*flags of chunks given to java body filters*/
+#define NGX_HTTP_CLOJURE_CHUNK_LAST 1
+#define NGX_HTTP_CLOJURE_CHUNK_FLUSH 2
+#define NGX_HTTP_CLOJURE_CHUNK_WRITABLE 4
 
 
 #define NGX_HTTP_CLOJURE_GET_HEADER_FLAG_HEADERS_OUT 1
@@ -519,6 +550,8 @@ ngx_int_t ngx_http_clojure_hijack_send_header(ngx_http_request_t *r, ngx_int_t f
 
 ngx_int_t ngx_http_clojure_filter_continue_next_body_filter(ngx_http_request_t *r, ngx_chain_t *in);
 
+ngx_int_t ngx_http_clojure_body_filter_take(ngx_http_request_t *r, ngx_http_clojure_module_ctx_t *ctx, ngx_chain_t **in);
+
 ngx_int_t ngx_http_clojure_prepare_server_header(ngx_http_request_t *r);
 
 ngx_int_t ngx_http_clojure_websocket_upgrade(ngx_http_request_t * r);
@@ -1443,6 +1443,13 @@ static ngx_int_t ngx_http_clojure_header_filter(ngx_http_request_t *r) {
 
     ngx_http_clojure_init_handler_script(lcf, NGX_HTTP_HEADER_FILTER_PHASE, header_filter);
 
+	if (lcf->enable_body_filter && (lcf->body_filter_code.len != 0 || lcf->body_filter_name.len != 0)) {
+		/*java body filters may change the length of the response body*/
+		ngx_http_clear_content_length(r);
+		ngx_http_clear_accept_ranges(r);
+		r->filter_need_in_memory = 1;
+	}
+
 	if (!lcf->enable_header_filter || (lcf->header_filter_code.len == 0 && lcf->header_filter_name.len == 0)) {
 		if (ctx != NULL && ctx->phase == ~NGX_HTTP_HEADER_FILTER_PHASE) {
 			ctx->phase = -1;
@@ -1490,12 +1497,88 @@ static ngx_int_t ngx_http_clojure_header_filter(ngx_http_request_t *r) {
 }
 
 static ngx_int_t ngx_http_clojure_body_filter(ngx_http_request_t *r,  ngx_chain_t *chain) {
-	/*JAVA body filter has not implemented*/
-	ngx_http_clojure_module_ctx_t *ctx  = ngx_http_get_module_ctx(r, ngx_http_clojure_module);
+	ngx_int_t rc;
+	ngx_chain_t *in;
+	ngx_http_clojure_loc_conf_t  *lcf;
+	ngx_http_clojure_module_ctx_t *ctx;
+	ngx_int_t  src_phase;
+
+	ngx_http_clojure_get_ctx(r, ctx);
 	if (ctx && ctx->ignore_next_response) {
 		return NGX_OK;
 	}
-	return ngx_http_clojure_filter_continue_next_body_filter(r, chain);
+
+	lcf = ngx_http_get_module_loc_conf(r, ngx_http_clojure_module);
+
+	ngx_http_clojure_init_handler_script(lcf, NGX_HTTP_BODY_FILTER_PHASE, body_filter);
+
+	if (!lcf->enable_body_filter || (lcf->body_filter_code.len == 0 && lcf->body_filter_name.len == 0)) {
+		return ngx_http_clojure_filter_continue_next_body_filter(r, chain);
+	}
+
+	if (ctx == NULL) {
+		ctx = ngx_palloc(r->pool, sizeof(ngx_http_clojure_module_ctx_t));
+		if (ctx == NULL) {
+			ngx_log_error(NGX_LOG_ERR, r->connection->log, 0, "OutOfMemory of create ngx_http_clojure_module_ctx_t");
+			return NGX_ERROR;
+		}
+		ngx_http_clojure_init_ctx(ctx, -1);
+		ngx_http_set_ctx(r, ctx, ngx_http_clojure_module);
+	}
+
+	if (ctx->body_filter_busy) {
+		/*the java body filter is suspended, keep the rest until it is resumed*/
+		if (chain != NULL && ngx_chain_add_copy(r->pool, &ctx->body_pending, chain) != NGX_OK) {
+			return NGX_ERROR;
+		}
+		return NGX_OK;
+	}
+
+	if (chain == NULL && ctx->body_pending == NULL) {
+		return ngx_http_clojure_filter_continue_next_body_filter(r, chain);
+	}
+
+	/*links of the caller may be reused once we return, so the java side is only given copies owned by this module*/
+	if (chain != NULL && ngx_chain_add_copy(r->pool, &ctx->body_pending, chain) != NGX_OK) {
+		return NGX_ERROR;
+	}
+
+	if (ngx_http_clojure_body_filter_take(r, ctx, &in) != NGX_OK) {
+		return NGX_ERROR;
+	}
+
+	src_phase = ctx->phase;
+	ctx->phase = NGX_HTTP_BODY_FILTER_PHASE;
+	rc = ngx_http_clojure_eval(lcf->body_filter_id, r, in);
+	ctx->phase = src_phase;
+
+	ngx_log_debug2(NGX_LOG_DEBUG_HTTP, ngx_http_clojure_global_cycle->log, 0, "ngx clojure body filter request: %" PRIu64 ", rc: %d", (jlong)(uintptr_t)r, rc);
+
+	if (rc == NGX_DONE) {
+		/*suspended, it will send the rest by itself when resumed*/
+		ctx->body_filter_busy = 1;
+		r->connection->buffered |= NGX_HTTP_CLOJURE_BODY_BUFFERED;
+		return NGX_OK;
+	}
+
+	if (rc == NGX_ERROR) {
+		return rc;
+	}
+
+	if (ctx->body_pending != NULL) {
+		/*
+		 * the rest of a file buffer, the next slice is read when the output has been sent
+		 * or at once by the posted write event
+		 */
+		r->connection->buffered |= NGX_HTTP_CLOJURE_BODY_BUFFERED;
+		if (rc != NGX_AGAIN) {
+			ngx_post_event(r->connection->write, &ngx_posted_events);
+		}
+		return NGX_AGAIN;
+	}
+
+	r->connection->buffered &= ~NGX_HTTP_CLOJURE_BODY_BUFFERED;
+	return rc;
 }
 
 
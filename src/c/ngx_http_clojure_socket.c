@@ -5,6 +5,7 @@
 #include <ngx_config.h>
 #include "ngx_http_clojure_socket.h"
 #include "ngx_http_clojure_jvm.h"
+#include "ngx_http_clojure_mem.h"
 
 
 /*static JavaVM *jvm = NULL;*/
@@ -14,6 +15,7 @@ static jmethodID nc_socket_handler_read_mid;
 static jmethodID nc_socket_handler_write_mid;
 static jmethodID nc_socket_handler_connect_mid;
 static jmethodID nc_socket_handler_release_mid;
+static jmethodID nc_pipe_close_mid;
 static int ngx_http_clojure_init_socket_flag = NGX_HTTP_CLOJURE_JVM_ERR;
 
 static void ngx_http_clojure_socket_upstream_handler(ngx_event_t *ev);
@@ -26,6 +28,14 @@ static void ngx_http_clojure_socket_upstream_finalize(ngx_http_clojure_socket_up
 static void ngx_http_clojure_socket_upstream_connect_inner(ngx_http_clojure_socket_upstream_t *u);
 static void ngx_http_clojure_socket_upstream_close_connection(ngx_http_clojure_socket_upstream_t *u);
 
+#if (NGX_HTTP_SSL)
+#define ngx_http_clojure_socket_upstream_is_ssl(u) ((u)->peer.connection->ssl != NULL)
+static ngx_ssl_t *ngx_http_clojure_socket_ssl = NULL;
+static void ngx_http_clojure_socket_upstream_ssl_handshake_handler(ngx_connection_t *c);
+#else
+#define ngx_http_clojure_socket_upstream_is_ssl(u) 0
+#endif
+
 
 static ngx_int_t ngx_http_clojure_socket_upstream_test_connect(ngx_connection_t *c) {
 	int err;
@@ -98,6 +108,13 @@ static void ngx_http_clojure_socket_upstream_close_connection(ngx_http_clojure_s
                        "close clojure_socket_upstream connection: %d",
                        u->peer.connection->fd);
 
+#if (NGX_HTTP_SSL)
+        if (u->peer.connection->ssl) {
+            u->peer.connection->ssl->no_wait_shutdown = 1;
+            (void) ngx_ssl_shutdown(u->peer.connection);
+        }
+#endif
+
         if (u->peer.connection->pool) {
             ngx_destroy_pool(u->peer.connection->pool);
         }
@@ -113,6 +130,10 @@ static void ngx_http_clojure_socket_upstream_finalize(ngx_http_clojure_socket_up
 	ngx_log_debug1(NGX_LOG_DEBUG_HTTP, u->pool->log, 0,
 	                   "finalize clojure_socket_upstream: %i", sc);
 
+	if (u->pipe) {
+		ngx_http_clojure_pipe_close(u->pipe, sc);
+	}
+
 	if (u->socket_upstream_finalize) {
 		u->socket_upstream_finalize(u, sc);
 	}
@@ -261,6 +282,13 @@ static void ngx_http_clojure_socket_upstream_write_handler(ngx_event_t *ev) {
 
 int ngx_http_clojure_socket_upstream_available(ngx_http_clojure_socket_upstream_t *u) {
 
+#if (NGX_HTTP_SSL)
+	/*raw bytes are encrypted so only decrypted bytes buffered by OpenSSL can be counted*/
+	if (ngx_http_clojure_socket_upstream_is_ssl(u)) {
+		return SSL_pending(u->peer.connection->ssl->connection);
+	}
+#endif
+
 #if defined(_WIN32) || defined(WIN32)
 	u_long ba = 0;
 	ioctlsocket(u->peer.connection->fd, FIONREAD, &ba);
@@ -271,6 +299,35 @@ int ngx_http_clojure_socket_upstream_available(ngx_http_clojure_socket_upstream_
 	return ba;
 }
 
+int ngx_http_clojure_socket_upstream_check_idle(ngx_http_clojure_socket_upstream_t *u) {
+	ngx_connection_t  *c = u->peer.connection;
+	char buf[1];
+	ngx_int_t n;
+
+	if (c == NULL || c->fd == (ngx_socket_t) -1 || c->read->eof || c->read->error || c->write->error) {
+		return NGX_HTTP_CLOJURE_SOCKET_ERR_RESET;
+	}
+
+	/*an idle connection must not be killed by the timeout of its last read or write*/
+	if (c->read->timer_set) {
+		ngx_del_timer(c->read);
+	}
+	if (c->write->timer_set) {
+		ngx_del_timer(c->write);
+	}
+
+	/*the same way as ngx_http_upstream_keepalive_close_handler does*/
+	n = recv(c->fd, buf, 1, MSG_PEEK);
+	if (n == -1 && ngx_socket_errno == NGX_EAGAIN) {
+		return NGX_HTTP_CLOJURE_SOCKET_OK;
+	}
+	if (n == 0) {
+		return NGX_HTTP_CLOJURE_SOCKET_ERR_RESET;
+	}
+	/*unread data or error*/
+	return NGX_HTTP_CLOJURE_SOCKET_ERR_READ;
+}
+
 int ngx_http_clojure_socket_upstream_set_tcp_nodelay(ngx_http_clojure_socket_upstream_t *u, int tcp_nodelay) {
 	if (u->tcp_nodelay == tcp_nodelay) {
 		return NGX_HTTP_CLOJURE_SOCKET_OK;
@@ -308,7 +365,8 @@ int ngx_http_clojure_socket_upstream_set_so_keepalive(ngx_http_clojure_socket_up
 
 
 void ngx_http_clojure_socket_upstream_connect_by_url(ngx_http_clojure_socket_upstream_t *u, ngx_url_t *url) {
-	/*TODO:  host name resolve by event driven*/
+	/*host names from java side have been resolved by NginxClojureResolver without blocking,
+	 * ngx_parse_url here will only resolve them synchronously when it is called by native code directly*/
 	if (url->addrs == NULL) {
 		if (ngx_parse_url(u->pool, url) != NGX_OK ) {
 			ngx_http_clojure_socket_upstream_connect_handler(u, NGX_HTTP_CLOJURE_SOCKET_ERR_RESOLVE);
@@ -345,6 +403,15 @@ static void ngx_http_clojure_socket_upstream_connect_inner(ngx_http_clojure_sock
 	pc->rcvbuf = u->buffer_size ? u->buffer_size : ngx_pagesize;
 	pc->data = u;
 	pc->name = &u->resolved->host;
+#if (nginx_version >= 1009013)
+	pc->type = u->udp ? SOCK_DGRAM : SOCK_STREAM;
+#else
+	if (u->udp) {
+		ngx_log_error(NGX_LOG_ERR, u->pool->log, 0, "clojure_socket_upstream udp needs nginx 1.9.13+");
+		ngx_http_clojure_socket_upstream_connect_handler(u, NGX_HTTP_CLOJURE_SOCKET_ERR_CONNECT);
+		return;
+	}
+#endif
 
 	u->connect_event_sent = 0;
 	rc = ngx_event_connect_peer(pc);
@@ -360,14 +427,16 @@ static void ngx_http_clojure_socket_upstream_connect_inner(ngx_http_clojure_sock
 	c = u->peer.connection;
 	c->data = u;
 
-	if (c->tcp_nodelay != NGX_TCP_NODELAY_DISABLED && u->tcp_nodelay) {
+	if (u->udp) {
+		/*TCP options are meaningless for datagrams*/
+	} else if (c->tcp_nodelay != NGX_TCP_NODELAY_DISABLED && u->tcp_nodelay) {
 		int tcp_nodelay = u->tcp_nodelay;
 		if (setsockopt(u->peer.connection->fd, IPPROTO_TCP, TCP_NODELAY, (const void *) &tcp_nodelay, sizeof(int)) == -1) {
 			u->tcp_nodelay = 0;
 		}
 	}
 
-	if (u->so_keepalive) {
+	if (u->so_keepalive && !u->udp) {
 		int so_keepalive = u->so_keepalive;
 		if (setsockopt(u->peer.connection->fd, SOL_SOCKET, SO_KEEPALIVE, (const void *) &so_keepalive, sizeof(int)) == -1) {
 			u->so_keepalive = 0;
@@ -435,6 +504,278 @@ int ngx_http_clojure_socket_upstream_write(ngx_http_clojure_socket_upstream_t *u
 	return rc;
 }
 
+#if (NGX_HTTP_SSL)
+
+int ngx_http_clojure_socket_upstream_ssl_init_context(ngx_str_t *trusted_certificate) {
+	ngx_ssl_t *ssl;
+
+	if (ngx_http_clojure_socket_ssl != NULL) {
+		return NGX_HTTP_CLOJURE_SOCKET_OK;
+	}
+
+	ssl = ngx_pcalloc(ngx_http_clojure_global_cycle->pool, sizeof(ngx_ssl_t));
+	if (ssl == NULL) {
+		return NGX_HTTP_CLOJURE_SOCKET_ERR_OUTOFMEMORY;
+	}
+	ssl->log = ngx_http_clojure_global_cycle->log;
+
+	if (ngx_ssl_create(ssl, NGX_SSL_TLSv1|NGX_SSL_TLSv1_1|NGX_SSL_TLSv1_2
+#ifdef NGX_SSL_TLSv1_3
+			|NGX_SSL_TLSv1_3
+#endif
+			, NULL) != NGX_OK) {
+		return NGX_HTTP_CLOJURE_SOCKET_ERR_SSL;
+	}
+
+	if (trusted_certificate != NULL && trusted_certificate->len) {
+		if (SSL_CTX_load_verify_locations(ssl->ctx, (char *) trusted_certificate->data, NULL) == 0) {
+			ngx_ssl_error(NGX_LOG_ERR, ssl->log, 0, "clojure_socket_upstream SSL_CTX_load_verify_locations(\"%s\") failed", trusted_certificate->data);
+			SSL_CTX_free(ssl->ctx);
+			return NGX_HTTP_CLOJURE_SOCKET_ERR_SSL;
+		}
+	} else if (SSL_CTX_set_default_verify_paths(ssl->ctx) == 0) {
+		ngx_ssl_error(NGX_LOG_WARN, ssl->log, 0, "clojure_socket_upstream SSL_CTX_set_default_verify_paths() failed");
+	}
+
+	/*peer certificate is checked after handshake so that we can give a clear error*/
+	SSL_CTX_set_verify(ssl->ctx, SSL_VERIFY_NONE, NULL);
+
+	ngx_http_clojure_socket_ssl = ssl;
+	return NGX_HTTP_CLOJURE_SOCKET_OK;
+}
+
+static ngx_int_t ngx_http_clojure_socket_upstream_ssl_handshake_done(ngx_http_clojure_socket_upstream_t *u) {
+	ngx_connection_t  *c = u->peer.connection;
+	long vr;
+
+	c->read->handler = c->write->handler = ngx_http_clojure_socket_upstream_handler;
+
+	if (!c->ssl->handshaked) {
+		return NGX_HTTP_CLOJURE_SOCKET_ERR_SSL;
+	}
+
+	if (u->ssl_verify) {
+		vr = SSL_get_verify_result(c->ssl->connection);
+		if (vr != X509_V_OK) {
+			ngx_log_error(NGX_LOG_ERR, c->log, 0, "clojure_socket_upstream SSL certificate verify error: (%l:%s)",
+					vr, X509_verify_cert_error_string(vr));
+			return NGX_HTTP_CLOJURE_SOCKET_ERR_SSL;
+		}
+#if (nginx_version >= 1007000)
+		if (u->ssl_name.len && ngx_ssl_check_host(c, &u->ssl_name) != NGX_OK) {
+			ngx_log_error(NGX_LOG_ERR, c->log, 0, "clojure_socket_upstream SSL certificate does not match \"%V\"", &u->ssl_name);
+			return NGX_HTTP_CLOJURE_SOCKET_ERR_SSL;
+		}
+#endif
+	}
+	return NGX_HTTP_CLOJURE_SOCKET_OK;
+}
+
+static void ngx_http_clojure_socket_upstream_ssl_handshake_handler(ngx_connection_t *c) {
+	ngx_http_clojure_socket_upstream_t *u = c->data;
+	ngx_int_t sc;
+
+	if (c->write->timer_set) {
+		ngx_del_timer(c->write);
+	}
+
+	if (c->read->timedout || c->write->timedout) {
+		c->read->handler = c->write->handler = ngx_http_clojure_socket_upstream_handler;
+		sc = NGX_HTTP_CLOJURE_SOCKET_ERR_CONNECT_TIMEOUT;
+	} else {
+		sc = ngx_http_clojure_socket_upstream_ssl_handshake_done(u);
+	}
+
+	u->connect_event_handler(u, sc);
+}
+
+int ngx_http_clojure_socket_upstream_ssl_handshake(ngx_http_clojure_socket_upstream_t *u, ngx_str_t *name, int verify, ngx_ssl_session_t *session) {
+	ngx_connection_t  *c = u->peer.connection;
+	ngx_int_t rc;
+
+	if (c == NULL || ngx_http_clojure_socket_ssl == NULL) {
+		return NGX_HTTP_CLOJURE_SOCKET_ERR_SSL;
+	}
+
+	if (c->ssl) {
+		return c->ssl->handshaked ? NGX_HTTP_CLOJURE_SOCKET_OK : NGX_HTTP_CLOJURE_SOCKET_ERR_SSL;
+	}
+
+	if (ngx_ssl_create_connection(ngx_http_clojure_socket_ssl, c, NGX_SSL_CLIENT) != NGX_OK) {
+		return NGX_HTTP_CLOJURE_SOCKET_ERR_SSL;
+	}
+
+	u->ssl_verify = verify ? 1 : 0;
+	u->ssl_name = *name;
+
+#ifdef SSL_CTRL_SET_TLSEXT_HOSTNAME
+	if (name->len && SSL_set_tlsext_host_name(c->ssl->connection, (char *) name->data) == 0) {
+		ngx_ssl_error(NGX_LOG_WARN, c->log, 0, "clojure_socket_upstream SSL_set_tlsext_host_name(\"%s\") failed", name->data);
+	}
+#endif
+
+	if (session != NULL && ngx_ssl_set_session(c, session) != NGX_OK) {
+		return NGX_HTTP_CLOJURE_SOCKET_ERR_SSL;
+	}
+
+	rc = ngx_ssl_handshake(c);
+
+	if (rc == NGX_AGAIN) {
+		if (!c->write->timer_set && u->connect_timeout > 0) {
+			ngx_add_timer(c->write, u->connect_timeout);
+		}
+		c->ssl->handler = ngx_http_clojure_socket_upstream_ssl_handshake_handler;
+		return NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN;
+	}
+
+	if (rc != NGX_OK) {
+		c->read->handler = c->write->handler = ngx_http_clojure_socket_upstream_handler;
+		return NGX_HTTP_CLOJURE_SOCKET_ERR_SSL;
+	}
+
+	return ngx_http_clojure_socket_upstream_ssl_handshake_done(u);
+}
+
+#endif
+
+#if !(defined(_WIN32) || defined(WIN32))
+
+int ngx_http_clojure_socket_upstream_readv(ngx_http_clojure_socket_upstream_t *u, struct iovec *iovs, int n) {
+	ngx_connection_t  *c = u->peer.connection;
+	ssize_t rc;
+	ngx_err_t err;
+
+	for (;;) {
+		rc = readv(c->fd, iovs, n);
+		if (rc > 0) {
+			return (int)rc;
+		}
+		if (rc == 0) {
+			c->read->ready = 0;
+			c->read->eof = 1;
+			return 0;
+		}
+		err = ngx_socket_errno;
+		if (err == NGX_EINTR) {
+			continue;
+		}
+		if (err == NGX_EAGAIN) {
+			c->read->ready = 0;
+			if (u->read_timeout > 0) {
+				ngx_add_timer(c->read, u->read_timeout);
+			}
+			return NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN;
+		}
+		c->read->error = 1;
+		ngx_log_error(NGX_LOG_ERR, c->log, err, "clojure_socket_upstream readv() failed");
+		return NGX_HTTP_CLOJURE_SOCKET_ERR_READ;
+	}
+}
+
+int ngx_http_clojure_socket_upstream_writev(ngx_http_clojure_socket_upstream_t *u, struct iovec *iovs, int n) {
+	ngx_connection_t  *c = u->peer.connection;
+	ssize_t rc;
+	ngx_err_t err;
+
+	for (;;) {
+		rc = writev(c->fd, iovs, n);
+		if (rc > 0) {
+			c->sent += rc;
+			return (int)rc;
+		}
+		err = rc == 0 ? NGX_EAGAIN : ngx_socket_errno;
+		if (err == NGX_EINTR) {
+			continue;
+		}
+		if (err == NGX_EAGAIN) {
+			c->write->ready = 0;
+			/*see comments in ngx_http_clojure_socket_upstream_write*/
+			if (!c->write->active) {
+				(void)ngx_handle_write_event(c->write, 0);
+			}
+			if (u->write_timeout > 0) {
+				ngx_add_timer(c->write, u->write_timeout);
+			}
+			return NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN;
+		}
+		c->write->error = 1;
+		ngx_log_error(NGX_LOG_ERR, c->log, err, "clojure_socket_upstream writev() failed");
+		return NGX_HTTP_CLOJURE_SOCKET_ERR_WRITE;
+	}
+}
+
+int ngx_http_clojure_socket_upstream_sendmmsg(ngx_http_clojure_socket_upstream_t *u, struct iovec *iovs, int n) {
+	ngx_connection_t  *c = u->peer.connection;
+	ngx_err_t err;
+	int i;
+#if (NGX_LINUX) && defined(__GLIBC__) && (__GLIBC__ > 2 || (__GLIBC__ == 2 && __GLIBC_MINOR__ >= 14))
+	struct mmsghdr msgs[NGX_HTTP_CLOJURE_SOCKET_MAX_IOVS];
+	int rc;
+
+	if (n > NGX_HTTP_CLOJURE_SOCKET_MAX_IOVS) {
+		n = NGX_HTTP_CLOJURE_SOCKET_MAX_IOVS;
+	}
+	ngx_memzero(msgs, n * sizeof(struct mmsghdr));
+	for (i = 0; i < n; i++) {
+		msgs[i].msg_hdr.msg_iov = &iovs[i];
+		msgs[i].msg_hdr.msg_iovlen = 1;
+	}
+
+	for (;;) {
+		rc = sendmmsg(c->fd, msgs, (unsigned int)n, 0);
+		if (rc > 0) {
+			for (i = 0; i < rc; i++) {
+				c->sent += msgs[i].msg_len;
+			}
+			return rc;
+		}
+		err = rc == 0 ? NGX_EAGAIN : ngx_socket_errno;
+		if (err != NGX_EINTR) {
+			break;
+		}
+	}
+#else
+	ssize_t rc;
+
+	for (i = 0; i < n; i++) {
+		rc = send(c->fd, iovs[i].iov_base, iovs[i].iov_len, 0);
+		if (rc >= 0) {
+			c->sent += rc;
+			continue;
+		}
+		err = ngx_socket_errno;
+		if (err == NGX_EINTR) {
+			i--;
+			continue;
+		}
+		if (i > 0) {
+			return i;
+		}
+		break;
+	}
+	if (i == n) {
+		return n;
+	}
+#endif
+
+	if (err == NGX_EAGAIN) {
+		c->write->ready = 0;
+		/*see comments in ngx_http_clojure_socket_upstream_write*/
+		if (!c->write->active) {
+			(void)ngx_handle_write_event(c->write, 0);
+		}
+		if (u->write_timeout > 0) {
+			ngx_add_timer(c->write, u->write_timeout);
+		}
+		return NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN;
+	}
+	/*ECONNREFUSED here is only a delayed ICMP port unreachable of a previous datagram*/
+	ngx_log_error(err == NGX_ECONNREFUSED ? NGX_LOG_INFO : NGX_LOG_ERR, c->log, err, "clojure_socket_upstream sendmmsg() failed");
+	return NGX_HTTP_CLOJURE_SOCKET_ERR_WRITE;
+}
+
+#endif
+
 void ngx_http_clojure_socket_upstream_close(ngx_http_clojure_socket_upstream_t *u) {
 	ngx_http_clojure_socket_upstream_finalize(u, NGX_HTTP_CLOJURE_SOCKET_OK);
 }
@@ -459,6 +800,323 @@ int ngx_http_clojure_socket_upstream_shutdown(ngx_http_clojure_socket_upstream_t
 	return NGX_HTTP_CLOJURE_SOCKET_OK;
 }
 
+static void ngx_http_clojure_pipe_cleanup(void *data) {
+	ngx_http_clojure_pipe_t *p = data;
+	p->request_gone = 1;
+	ngx_http_clojure_pipe_close(p, NGX_HTTP_CLOJURE_SOCKET_ERR_RESET);
+}
+
+int ngx_http_clojure_pipe_create(ngx_http_request_t *r, ngx_http_clojure_socket_upstream_t *u, size_t buffer_size, ngx_http_clojure_pipe_t **pp) {
+	ngx_http_clojure_module_ctx_t *ctx;
+	ngx_http_clojure_pipe_t *p;
+	u_char *buf;
+
+	if (r->pool == NULL) {
+		return NGX_HTTP_CLOJURE_SOCKET_ERR_RESET;
+	}
+
+	if (u->peer.connection == NULL || !u->connect_event_sent || u->udp) {
+		return NGX_HTTP_CLOJURE_SOCKET_ERR_CONNECT;
+	}
+
+	ngx_http_clojure_get_ctx(r, ctx);
+
+	if (ctx == NULL || ctx->pipe || u->pipe) {
+		return NGX_HTTP_CLOJURE_SOCKET_ERR;
+	}
+
+	if (buffer_size == 0) {
+		buffer_size = ngx_pagesize;
+	}
+
+	/*allocated from heap because it may outlive either the request pool or the socket pool*/
+	p = ngx_calloc(sizeof(ngx_http_clojure_pipe_t) + 2 * buffer_size, ngx_http_clojure_global_cycle->log);
+	if (p == NULL) {
+		return NGX_HTTP_CLOJURE_SOCKET_ERR_OUTOFMEMORY;
+	}
+
+	p->cln = ngx_pool_cleanup_add(r->pool, 0);
+	if (p->cln == NULL) {
+		ngx_free(p);
+		return NGX_HTTP_CLOJURE_SOCKET_ERR_OUTOFMEMORY;
+	}
+	p->cln->handler = ngx_http_clojure_pipe_cleanup;
+	p->cln->data = p;
+
+	buf = (u_char *)(p + 1);
+	p->up.start = p->up.pos = p->up.last = buf;
+	p->up.end = buf + buffer_size;
+	p->up.temporary = 1;
+	buf += buffer_size;
+	p->down.start = p->down.pos = p->down.last = buf;
+	p->down.end = buf + buffer_size;
+	p->down.temporary = 1;
+
+	p->r = r;
+	p->u = u;
+	*pp = p;
+	return NGX_HTTP_CLOJURE_SOCKET_OK;
+}
+
+static void ngx_http_clojure_pipe_finalize(ngx_http_clojure_pipe_t *p, ngx_int_t sc) {
+	ngx_http_request_t *r = p->r;
+	ngx_http_clojure_socket_upstream_t *u = p->u;
+	ngx_http_clojure_module_ctx_t *ctx;
+	ngx_connection_t *c;
+
+	if (p->done) {
+		return;
+	}
+
+	p->done = 1;
+
+	ngx_log_debug3(NGX_LOG_DEBUG_HTTP, ngx_http_clojure_global_cycle->log, 0,
+			"finalize clojure pipe: %i, up %O, down %O", sc, p->up_bytes, p->down_bytes);
+
+	u->read_event_handler = p->u_read_event_handler;
+	u->write_event_handler = p->u_write_event_handler;
+	u->pipe = NULL;
+	c = u->peer.connection;
+	if (c) {
+		if (c->read->timer_set) {
+			ngx_del_timer(c->read);
+		}
+		if (c->write->timer_set) {
+			ngx_del_timer(c->write);
+		}
+	}
+
+	if (!p->request_gone) {
+		p->cln->handler = NULL;
+		ngx_http_clojure_get_ctx(r, ctx);
+		if (ctx) {
+			ctx->pipe = NULL;
+		}
+		c = r->connection;
+		if (c->read->timer_set) {
+			ngx_del_timer(c->read);
+		}
+		if (c->write->timer_set) {
+			ngx_del_timer(c->write);
+		}
+		r->read_event_handler = ngx_http_block_reading;
+		r->write_event_handler = ngx_http_request_empty_handler;
+	}
+
+	if (p->close_handler) {
+		p->close_handler(p, sc);
+	}
+
+	ngx_free(p);
+}
+
+void ngx_http_clojure_pipe_close(ngx_http_clojure_pipe_t *p, ngx_int_t sc) {
+	ngx_http_clojure_pipe_finalize(p, sc);
+}
+
+static void ngx_http_clojure_pipe_set_timer(ngx_event_t *ev, ngx_msec_t timeout) {
+	if (ev->active && !ev->ready && timeout) {
+		ngx_add_timer(ev, timeout);
+	} else if (ev->timer_set) {
+		ngx_del_timer(ev);
+	}
+}
+
+/*moves bytes in one direction, it is the same way as ngx_http_upstream_process_upgraded
+ *return NGX_DONE if the pipe has been finalized*/
+static ngx_int_t ngx_http_clojure_pipe_process(ngx_http_clojure_pipe_t *p, ngx_uint_t from_upstream, ngx_uint_t do_write) {
+	ngx_http_request_t *r = p->r;
+	ngx_http_clojure_socket_upstream_t *u = p->u;
+	ngx_connection_t *c, *uc, *src, *dst;
+	ngx_http_core_loc_conf_t *clcf;
+	ngx_buf_t *b;
+	off_t *total;
+	size_t size;
+	ssize_t n;
+
+	c = r->connection;
+	uc = u->peer.connection;
+
+	if (from_upstream) {
+		src = uc;
+		dst = c;
+		b = &p->down;
+		total = &p->down_bytes;
+	} else {
+		src = c;
+		dst = uc;
+		b = &p->up;
+		total = &p->up_bytes;
+	}
+
+	for ( ;; ) {
+
+		if (do_write) {
+			size = b->last - b->pos;
+
+			if (size && dst->write->ready) {
+
+				if (dst == c && (r->buffered || c->buffered)) {
+					/*output left by the hijacked channel must go first*/
+					if (ngx_http_output_filter(r, NULL) == NGX_ERROR) {
+						ngx_http_clojure_pipe_finalize(p, NGX_HTTP_CLOJURE_SOCKET_ERR_WRITE);
+						return NGX_DONE;
+					}
+					if (r->buffered || c->buffered) {
+						break;
+					}
+				}
+
+				n = dst->send(dst, b->pos, size);
+
+				if (n == NGX_ERROR) {
+					ngx_http_clojure_pipe_finalize(p, NGX_HTTP_CLOJURE_SOCKET_ERR_WRITE);
+					return NGX_DONE;
+				}
+
+				if (n > 0) {
+					b->pos += n;
+					*total += n;
+					if (b->pos == b->last) {
+						b->pos = b->start;
+						b->last = b->start;
+					}
+				}
+			}
+		}
+
+		size = b->end - b->last;
+
+		if (size && src->read->ready) {
+
+			n = src->recv(src, b->last, size);
+
+			if (n == NGX_AGAIN || n == 0) {
+				break;
+			}
+
+			if (n > 0) {
+				do_write = 1;
+				b->last += n;
+				continue;
+			}
+
+			if (n == NGX_ERROR) {
+				ngx_http_clojure_pipe_finalize(p, NGX_HTTP_CLOJURE_SOCKET_ERR_READ);
+				return NGX_DONE;
+			}
+		}
+
+		break;
+	}
+
+	if ((uc->read->eof && p->down.pos == p->down.last)
+			|| (c->read->eof && p->up.pos == p->up.last)) {
+		ngx_http_clojure_pipe_finalize(p, NGX_HTTP_CLOJURE_SOCKET_OK);
+		return NGX_DONE;
+	}
+
+	clcf = ngx_http_get_module_loc_conf(r, ngx_http_core_module);
+
+	if (ngx_handle_write_event(uc->write, u->send_lowat) != NGX_OK
+			|| ngx_handle_read_event(uc->read, 0) != NGX_OK
+			|| ngx_handle_write_event(c->write, clcf->send_lowat) != NGX_OK
+			|| ngx_handle_read_event(c->read, 0) != NGX_OK) {
+		ngx_http_clojure_pipe_finalize(p, NGX_HTTP_CLOJURE_SOCKET_ERR);
+		return NGX_DONE;
+	}
+
+	/*the read/write timeouts of the socket upstream are used as idle timeouts of both sides*/
+	ngx_http_clojure_pipe_set_timer(uc->write, u->write_timeout);
+	ngx_http_clojure_pipe_set_timer(uc->read, u->read_timeout);
+	ngx_http_clojure_pipe_set_timer(c->write, u->write_timeout);
+	ngx_http_clojure_pipe_set_timer(c->read, u->read_timeout);
+
+	return NGX_OK;
+}
+
+static void ngx_http_clojure_pipe_client_read_handler(ngx_http_request_t *r) {
+	ngx_http_clojure_module_ctx_t *ctx;
+
+	ngx_http_clojure_get_ctx(r, ctx);
+
+	if (ctx == NULL || ctx->pipe == NULL) {
+		return;
+	}
+
+	if (r->connection->read->timedout) {
+		ngx_http_clojure_pipe_finalize(ctx->pipe, NGX_HTTP_CLOJURE_SOCKET_ERR_READ_TIMEOUT);
+		return;
+	}
+
+	ngx_http_clojure_pipe_process(ctx->pipe, 0, 0);
+}
+
+static void ngx_http_clojure_pipe_client_write_handler(ngx_http_request_t *r) {
+	ngx_http_clojure_module_ctx_t *ctx;
+
+	ngx_http_clojure_get_ctx(r, ctx);
+
+	if (ctx == NULL || ctx->pipe == NULL) {
+		return;
+	}
+
+	if (r->connection->write->timedout) {
+		ngx_http_clojure_pipe_finalize(ctx->pipe, NGX_HTTP_CLOJURE_SOCKET_ERR_WRITE_TIMEOUT);
+		return;
+	}
+
+	ngx_http_clojure_pipe_process(ctx->pipe, 1, 1);
+}
+
+static void ngx_http_clojure_pipe_upstream_read_handler(ngx_http_clojure_socket_upstream_t *u, ngx_int_t sc) {
+	if (sc != NGX_HTTP_CLOJURE_SOCKET_OK) {
+		ngx_http_clojure_pipe_finalize(u->pipe, sc);
+		return;
+	}
+	ngx_http_clojure_pipe_process(u->pipe, 1, 0);
+}
+
+static void ngx_http_clojure_pipe_upstream_write_handler(ngx_http_clojure_socket_upstream_t *u, ngx_int_t sc) {
+	if (sc != NGX_HTTP_CLOJURE_SOCKET_OK) {
+		ngx_http_clojure_pipe_finalize(u->pipe, sc);
+		return;
+	}
+	ngx_http_clojure_pipe_process(u->pipe, 0, 1);
+}
+
+void ngx_http_clojure_pipe_start(ngx_http_clojure_pipe_t *p) {
+	ngx_http_request_t *r = p->r;
+	ngx_http_clojure_socket_upstream_t *u = p->u;
+	ngx_http_clojure_module_ctx_t *ctx;
+	ngx_buf_t *hb = r->header_in;
+	size_t size;
+
+	ngx_http_clojure_get_ctx(r, ctx);
+
+	ctx->pipe = p;
+	u->pipe = p;
+	p->u_read_event_handler = u->read_event_handler;
+	p->u_write_event_handler = u->write_event_handler;
+	u->read_event_handler = ngx_http_clojure_pipe_upstream_read_handler;
+	u->write_event_handler = ngx_http_clojure_pipe_upstream_write_handler;
+
+	r->keepalive = 0;
+	r->read_event_handler = ngx_http_clojure_pipe_client_read_handler;
+	r->write_event_handler = ngx_http_clojure_pipe_client_write_handler;
+
+	/*bytes pipelined by the client after the request header belong to the tunnel*/
+	if (hb && hb->pos < hb->last) {
+		size = ngx_min((size_t)(hb->last - hb->pos), (size_t)(p->up.end - p->up.last));
+		p->up.last = ngx_cpymem(p->up.last, hb->pos, size);
+		hb->pos += size;
+	}
+
+	if (ngx_http_clojure_pipe_process(p, 1, 1) == NGX_OK) {
+		ngx_http_clojure_pipe_process(p, 0, 1);
+	}
+}
+
 
 static void  nji_ngx_http_clojure_socket_read_handler(ngx_http_clojure_socket_upstream_t *u, ngx_int_t sc) {
 	(*jvm_env)->CallVoidMethod(jvm_env, (jobject)u->context, nc_socket_handler_read_mid, (jlong)(uintptr_t)u, (jlong)sc);
@@ -501,6 +1159,11 @@ static jlong JNICALL jni_ngx_http_clojure_socket_available(JNIEnv *env, jclass c
 	return (jlong)ngx_http_clojure_socket_upstream_available(u);
 }
 
+static jlong JNICALL jni_ngx_http_clojure_socket_check_idle(JNIEnv *env, jclass cls, jlong s) {
+	ngx_http_clojure_socket_upstream_t *u = (ngx_http_clojure_socket_upstream_t *)(uintptr_t)s;
+	return (jlong)ngx_http_clojure_socket_upstream_check_idle(u);
+}
+
 static jlong jni_ngx_http_clojure_socket_set_tcp_nodelay(JNIEnv *env, jclass cls, jlong s, jlong tcp_nodelay) {
 	ngx_http_clojure_socket_upstream_t *u = (ngx_http_clojure_socket_upstream_t *)(uintptr_t)s;
 	return (jlong)ngx_http_clojure_socket_upstream_set_tcp_nodelay(u, (int)tcp_nodelay);
@@ -605,8 +1268,9 @@ static jlong jni_ngx_http_clojure_socket_get_write_timeout(JNIEnv *env, jclass c
 	return ((ngx_http_clojure_socket_upstream_t *)(uintptr_t)s)->write_timeout;
 }
 
-static void jni_ngx_http_clojure_socket_set_receive_buf(JNIEnv *env, jclass cls, jlong s, jlong size) {
+static jlong jni_ngx_http_clojure_socket_set_receive_buf(JNIEnv *env, jclass cls, jlong s, jlong size) {
 	((ngx_http_clojure_socket_upstream_t *)(uintptr_t)s)->buffer_size = (size_t)size;
+	return NGX_HTTP_CLOJURE_SOCKET_OK;
 }
 
 static jlong jni_ngx_http_clojure_socket_get_receive_buf(JNIEnv *env, jclass cls, jlong s) {
@@ -623,6 +1287,318 @@ static jlong JNICALL jni_ngx_http_clojure_socket_write(JNIEnv *env, jclass cls,
 			ngx_http_clojure_abs_off_addr(buf, off), len);
 }
 
+static jlong JNICALL jni_ngx_http_clojure_socket_ssl_init(JNIEnv *env, jclass cls, jobject ca, jlong off, jlong len) {
+#if (NGX_HTTP_SSL)
+	ngx_str_t tc;
+	tc.len = (size_t)len;
+	tc.data = NULL;
+	if (len > 0) {
+		tc.data = ngx_pcalloc(ngx_http_clojure_global_cycle->pool, (size_t)len + 1);
+		if (tc.data == NULL) {
+			return NGX_HTTP_CLOJURE_SOCKET_ERR_OUTOFMEMORY;
+		}
+		ngx_memcpy(tc.data, ngx_http_clojure_abs_off_addr(ca, off), (size_t)len);
+	}
+	return ngx_http_clojure_socket_upstream_ssl_init_context(&tc);
+#else
+	ngx_log_error(NGX_LOG_ERR, ngx_http_clojure_global_cycle->log, 0, "nginx-clojure ssl socket support need compile config option --with-http_ssl_module");
+	return NGX_HTTP_CLOJURE_SOCKET_ERR_SSL;
+#endif
+}
+
+static jlong JNICALL jni_ngx_http_clojure_socket_ssl_handshake(JNIEnv *env, jclass cls, jlong s, jobject name, jlong off, jlong len, jlong verify, jlong session) {
+#if (NGX_HTTP_SSL)
+	ngx_http_clojure_socket_upstream_t *u = (ngx_http_clojure_socket_upstream_t *)(uintptr_t)s;
+	ngx_str_t sn;
+	sn.len = (size_t)len;
+	sn.data = ngx_pcalloc(u->pool, (size_t)len + 1);
+	if (sn.data == NULL) {
+		return NGX_HTTP_CLOJURE_SOCKET_ERR_OUTOFMEMORY;
+	}
+	ngx_memcpy(sn.data, ngx_http_clojure_abs_off_addr(name, off), (size_t)len);
+	return ngx_http_clojure_socket_upstream_ssl_handshake(u, &sn, (int)verify, (ngx_ssl_session_t *)(uintptr_t)session);
+#else
+	return NGX_HTTP_CLOJURE_SOCKET_ERR_SSL;
+#endif
+}
+
+static jlong JNICALL jni_ngx_http_clojure_socket_get_ssl_session(JNIEnv *env, jclass cls, jlong s) {
+#if (NGX_HTTP_SSL)
+	ngx_http_clojure_socket_upstream_t *u = (ngx_http_clojure_socket_upstream_t *)(uintptr_t)s;
+	if (u->peer.connection == NULL || u->peer.connection->ssl == NULL) {
+		return 0;
+	}
+	return (uintptr_t)ngx_ssl_get_session(u->peer.connection);
+#else
+	return 0;
+#endif
+}
+
+static void JNICALL jni_ngx_http_clojure_socket_free_ssl_session(JNIEnv *env, jclass cls, jlong session) {
+#if (NGX_HTTP_SSL)
+	if (session) {
+		ngx_ssl_free_session((ngx_ssl_session_t *)(uintptr_t)session);
+	}
+#endif
+}
+
+/*
+ * type 0 : protocol, 1 : cipher, 2 : peer certificate in DER format
+ * return the length of the result, if it is greater than len nothing will be copied
+ */
+static jlong JNICALL jni_ngx_http_clojure_socket_get_ssl_info(JNIEnv *env, jclass cls, jlong s, jlong type, jobject buf, jlong off, jlong len) {
+#if (NGX_HTTP_SSL)
+	ngx_http_clojure_socket_upstream_t *u = (ngx_http_clojure_socket_upstream_t *)(uintptr_t)s;
+	ngx_connection_t *c = u->peer.connection;
+	const char *str = NULL;
+	X509 *cert;
+	u_char *p;
+	jlong n;
+
+	if (c == NULL || c->ssl == NULL) {
+		return NGX_HTTP_CLOJURE_SOCKET_ERR_SSL;
+	}
+
+	switch (type) {
+	case 0:
+		str = SSL_get_version(c->ssl->connection);
+		break;
+	case 1:
+		str = SSL_get_cipher_name(c->ssl->connection);
+		break;
+	case 2:
+		cert = SSL_get_peer_certificate(c->ssl->connection);
+		if (cert == NULL) {
+			return 0;
+		}
+		n = i2d_X509(cert, NULL);
+		if (n > 0 && n <= len) {
+			p = ngx_http_clojure_abs_off_addr(buf, off);
+			i2d_X509(cert, &p);
+		}
+		X509_free(cert);
+		return n;
+	default:
+		return NGX_HTTP_CLOJURE_SOCKET_ERR;
+	}
+
+	if (str == NULL) {
+		return 0;
+	}
+	n = (jlong)ngx_strlen(str);
+	if (n <= len) {
+		ngx_memcpy(ngx_http_clojure_abs_off_addr(buf, off), str, (size_t)n);
+	}
+	return n;
+#else
+	return NGX_HTTP_CLOJURE_SOCKET_ERR_SSL;
+#endif
+}
+
+/*
+ * Lists servers of an upstream {} block in nginx.conf, one line per resolved address, e.g.
+ * "10.0.0.1:80 weight=1 max_fails=1 fail_timeout=10 backup\n".
+ * Returns the length of the whole list which may be larger than len, or NGX_HTTP_CLOJURE_SOCKET_ERR if no such upstream.
+ */
+static jlong JNICALL jni_ngx_http_clojure_socket_upstream_servers(JNIEnv *env, jclass cls, jobject name, jlong noff, jlong nlen, jobject buf, jlong off, jlong len) {
+	ngx_http_upstream_main_conf_t *umcf;
+	ngx_http_upstream_srv_conf_t **uscfp, *uscf;
+	ngx_http_upstream_server_t *us;
+	u_char *n = ngx_http_clojure_abs_off_addr(name, noff);
+	u_char *dst = ngx_http_clojure_abs_off_addr(buf, off);
+	u_char line[NGX_SOCKADDR_STRLEN + 128], *p;
+	ngx_uint_t i, j, k;
+	jlong total = 0;
+
+	if (ngx_http_clojure_global_cycle == NULL) {
+		return NGX_HTTP_CLOJURE_SOCKET_ERR;
+	}
+	umcf = ngx_http_cycle_get_module_main_conf(ngx_http_clojure_global_cycle, ngx_http_upstream_module);
+	if (umcf == NULL) {
+		return NGX_HTTP_CLOJURE_SOCKET_ERR;
+	}
+
+	uscfp = umcf->upstreams.elts;
+	for (i = 0; i < umcf->upstreams.nelts; i++) {
+		uscf = uscfp[i];
+		/*implicit upstreams created by proxy_pass etc. have no server list*/
+		if (uscf->servers == NULL || !(uscf->flags & NGX_HTTP_UPSTREAM_CREATE)
+				|| uscf->host.len != (size_t)nlen || ngx_strncasecmp(uscf->host.data, n, (size_t)nlen) != 0) {
+			continue;
+		}
+		us = uscf->servers->elts;
+		for (j = 0; j < uscf->servers->nelts; j++) {
+			for (k = 0; k < us[j].naddrs; k++) {
+				p = ngx_snprintf(line, sizeof(line), "%V weight=%ui max_fails=%ui fail_timeout=%T%s%s\n",
+						&us[j].addrs[k].name, us[j].weight, us[j].max_fails, us[j].fail_timeout,
+						us[j].down ? " down" : "", us[j].backup ? " backup" : "");
+				if (total + (p - line) <= len) {
+					ngx_memcpy(dst + total, line, (size_t)(p - line));
+				}
+				total += p - line;
+			}
+		}
+		return total;
+	}
+	return NGX_HTTP_CLOJURE_SOCKET_ERR;
+}
+
+/*
+ * bufs[i] is a java byte[] or null for a native buffer,
+ * offLens[2*i] is the offset (including Java Object Base Offset) or the native address,
+ * offLens[2*i+1] is the length
+ */
+static jlong JNICALL jni_ngx_http_clojure_socket_rwv(JNIEnv *env, jlong s, jobjectArray bufs, jlongArray offLens, jlong n, int is_read) {
+	ngx_http_clojure_socket_upstream_t *u = (ngx_http_clojure_socket_upstream_t *)(uintptr_t)s;
+	jlong ols[NGX_HTTP_CLOJURE_SOCKET_MAX_IOVS * 2];
+	void *addrs[NGX_HTTP_CLOJURE_SOCKET_MAX_IOVS];
+	jobject b;
+	int i;
+
+	if (n > NGX_HTTP_CLOJURE_SOCKET_MAX_IOVS) {
+		n = NGX_HTTP_CLOJURE_SOCKET_MAX_IOVS;
+	}
+	(*env)->GetLongArrayRegion(env, offLens, 0, (jsize)n * 2, ols);
+	for (i = 0; i < n; i++) {
+		b = (*env)->GetObjectArrayElement(env, bufs, i);
+		addrs[i] = ngx_http_clojure_abs_off_addr(b, ols[2*i]);
+		if (b != NULL) {
+			(*env)->DeleteLocalRef(env, b);
+		}
+	}
+
+#if !(defined(_WIN32) || defined(WIN32))
+	/*readv/writev can not be used on a SSL connection because records must be encrypted/decrypted by OpenSSL*/
+	if (!ngx_http_clojure_socket_upstream_is_ssl(u)) {
+		struct iovec iovs[NGX_HTTP_CLOJURE_SOCKET_MAX_IOVS];
+		for (i = 0; i < n; i++) {
+			iovs[i].iov_base = addrs[i];
+			iovs[i].iov_len = (size_t)ols[2*i+1];
+		}
+		return is_read ? ngx_http_clojure_socket_upstream_readv(u, iovs, (int)n)
+				: ngx_http_clojure_socket_upstream_writev(u, iovs, (int)n);
+	}
+#endif
+	{
+		/*no readv/writev so we just do them one by one until partial*/
+		jlong total = 0;
+		int rc;
+		for (i = 0; i < n; i++) {
+			rc = is_read ? ngx_http_clojure_socket_upstream_read(u, addrs[i], (size_t)ols[2*i+1])
+					: ngx_http_clojure_socket_upstream_write(u, addrs[i], (size_t)ols[2*i+1]);
+			if (rc <= 0) {
+				return total > 0 ? total : rc;
+			}
+			total += rc;
+			if (rc < ols[2*i+1]) {
+				break;
+			}
+		}
+		return total;
+	}
+}
+
+static jlong JNICALL jni_ngx_http_clojure_socket_send_batch(JNIEnv *env, jclass cls, jlong s, jobjectArray bufs, jlongArray offLens, jlong n) {
+	ngx_http_clojure_socket_upstream_t *u = (ngx_http_clojure_socket_upstream_t *)(uintptr_t)s;
+	jlong ols[NGX_HTTP_CLOJURE_SOCKET_MAX_IOVS * 2];
+	void *addrs[NGX_HTTP_CLOJURE_SOCKET_MAX_IOVS];
+	jobject b;
+	int i;
+
+	if (n > NGX_HTTP_CLOJURE_SOCKET_MAX_IOVS) {
+		n = NGX_HTTP_CLOJURE_SOCKET_MAX_IOVS;
+	}
+	(*env)->GetLongArrayRegion(env, offLens, 0, (jsize)n * 2, ols);
+	for (i = 0; i < n; i++) {
+		b = (*env)->GetObjectArrayElement(env, bufs, i);
+		addrs[i] = ngx_http_clojure_abs_off_addr(b, ols[2*i]);
+		if (b != NULL) {
+			(*env)->DeleteLocalRef(env, b);
+		}
+	}
+
+#if !(defined(_WIN32) || defined(WIN32))
+	{
+		struct iovec iovs[NGX_HTTP_CLOJURE_SOCKET_MAX_IOVS];
+		for (i = 0; i < n; i++) {
+			iovs[i].iov_base = addrs[i];
+			iovs[i].iov_len = (size_t)ols[2*i+1];
+		}
+		return ngx_http_clojure_socket_upstream_sendmmsg(u, iovs, (int)n);
+	}
+#else
+	{
+		/*one datagram per send*/
+		int rc;
+		for (i = 0; i < n; i++) {
+			rc = ngx_http_clojure_socket_upstream_write(u, addrs[i], (size_t)ols[2*i+1]);
+			if (rc < 0) {
+				return i > 0 ? i : rc;
+			}
+		}
+		return n;
+	}
+#endif
+}
+
+static jlong JNICALL jni_ngx_http_clojure_socket_set_udp(JNIEnv *env, jclass cls, jlong s, jlong udp) {
+	ngx_http_clojure_socket_upstream_t *u = (ngx_http_clojure_socket_upstream_t *)(uintptr_t)s;
+	if (u->peer.connection) {
+		return NGX_HTTP_CLOJURE_SOCKET_ERR;
+	}
+	u->udp = udp ? 1 : 0;
+	if (u->udp) {
+		u->tcp_nodelay = 0;
+	}
+	return NGX_HTTP_CLOJURE_SOCKET_OK;
+}
+
+static jlong JNICALL jni_ngx_http_clojure_socket_readv(JNIEnv *env, jclass cls, jlong s, jobjectArray bufs, jlongArray offLens, jlong n) {
+	return jni_ngx_http_clojure_socket_rwv(env, s, bufs, offLens, n, 1);
+}
+
+static jlong JNICALL jni_ngx_http_clojure_socket_writev(JNIEnv *env, jclass cls, jlong s, jobjectArray bufs, jlongArray offLens, jlong n) {
+	return jni_ngx_http_clojure_socket_rwv(env, s, bufs, offLens, n, 0);
+}
+
+static void nji_ngx_http_clojure_pipe_close_handler(ngx_http_clojure_pipe_t *p, ngx_int_t sc) {
+	(*jvm_env)->CallVoidMethod(jvm_env, (jobject)p->context, nc_pipe_close_mid, (jlong)sc,
+			(jlong)p->up_bytes, (jlong)p->down_bytes, (jlong)p->request_gone);
+	exception_handle(0 == 0, jvm_env, (*jvm_env)->DeleteGlobalRef(jvm_env, (jobject)p->context);return);
+	(*jvm_env)->DeleteGlobalRef(jvm_env, (jobject)p->context);
+}
+
+static jlong JNICALL jni_ngx_http_clojure_socket_pipe(JNIEnv *env, jclass cls, jlong s, jlong req, jobject jpipe, jlong buffer_size) {
+	ngx_http_clojure_socket_upstream_t *u = (ngx_http_clojure_socket_upstream_t *)(uintptr_t)s;
+	ngx_http_request_t *r = (ngx_http_request_t *)(uintptr_t)req;
+	ngx_http_clojure_pipe_t *p;
+	jobject gh;
+	int rc;
+
+	rc = ngx_http_clojure_pipe_create(r, u, (size_t)buffer_size, &p);
+	if (rc != NGX_HTTP_CLOJURE_SOCKET_OK) {
+		return rc;
+	}
+
+	gh = (*env)->NewGlobalRef(env, jpipe);
+	if (gh == NULL) {
+		p->cln->handler = NULL;
+		ngx_free(p);
+		exception_handle(0 == 0, env, return NGX_HTTP_CLOJURE_SOCKET_ERR_OUTOFMEMORY);
+		return NGX_HTTP_CLOJURE_SOCKET_ERR_OUTOFMEMORY;
+	}
+
+	p->context = gh;
+	p->close_handler = nji_ngx_http_clojure_pipe_close_handler;
+	ngx_http_clojure_pipe_start(p);
+	/*the pipe maybe has been closed and freed here, so java side must check its close flag before using this handle*/
+	return (uintptr_t)p;
+}
+
+static void JNICALL jni_ngx_http_clojure_socket_unpipe(JNIEnv *env, jclass cls, jlong p, jlong sc) {
+	ngx_http_clojure_pipe_close((ngx_http_clojure_pipe_t *)(uintptr_t)p, (ngx_int_t)sc);
+}
+
 static void JNICALL jni_ngx_http_clojure_socket_close(JNIEnv *env, jclass cls, jlong u) {
 	ngx_http_clojure_socket_upstream_close((ngx_http_clojure_socket_upstream_t *)(uintptr_t)u);
 }
@@ -652,6 +1628,7 @@ int ngx_http_clojure_init_socket_util() {
 	JNINativeMethod nms[] = {
 			{"create", "(Lnginx/clojure/net/NginxClojureSocketRawHandler;)J", jni_ngx_http_clojure_socket_create},
 			{"available","(J)J", jni_ngx_http_clojure_socket_available},
+			{"checkIdle","(J)J", jni_ngx_http_clojure_socket_check_idle},
 			{"setTcpNoDelay", "(JJ)J", jni_ngx_http_clojure_socket_set_tcp_nodelay},
 			{"getTcpNoDelay", "(J)J", jni_ngx_http_clojure_socket_get_tcp_nodelay},
 			{"setSoKeepAlive", "(JJ)J", jni_ngx_http_clojure_socket_set_so_keepalive},
@@ -660,17 +1637,30 @@ int ngx_http_clojure_init_socket_util() {
 			{"getReadTimeout", "(J)J", jni_ngx_http_clojure_socket_get_read_timeout},
 			{"getWriteTimeout", "(J)J", jni_ngx_http_clojure_socket_get_write_timeout},
 			{"getConnectTimeout", "(J)J", jni_ngx_http_clojure_socket_get_connect_timeout},
-			{"getReceiveBufferSize", "(J)J", jni_ngx_http_clojure_socket_set_receive_buf},
-			{"setReceiveBufferSize", "(JJ)J", jni_ngx_http_clojure_socket_get_receive_buf},
+			{"getReceiveBufferSize", "(J)J", jni_ngx_http_clojure_socket_get_receive_buf},
+			{"setReceiveBufferSize", "(JJ)J", jni_ngx_http_clojure_socket_set_receive_buf},
 			{"connect", "(JLjava/lang/Object;JJ)J", jni_ngx_http_clojure_socket_connect_url},
 			{"bind", "(JLjava/lang/Object;JJ)J", jni_ngx_http_clojure_socket_bind_str},
 			{"read", "(JLjava/lang/Object;JJ)J", jni_ngx_http_clojure_socket_read},
 			{"write", "(JLjava/lang/Object;JJ)J", jni_ngx_http_clojure_socket_write},
+			{"readv", "(J[Ljava/lang/Object;[JJ)J", jni_ngx_http_clojure_socket_readv},
+			{"sslInit", "(Ljava/lang/Object;JJ)J", jni_ngx_http_clojure_socket_ssl_init},
+			{"sslHandshake", "(JLjava/lang/Object;JJJJ)J", jni_ngx_http_clojure_socket_ssl_handshake},
+			{"getSslSession", "(J)J", jni_ngx_http_clojure_socket_get_ssl_session},
+			{"sslFreeSession", "(J)V", jni_ngx_http_clojure_socket_free_ssl_session},
+			{"getSslInfo", "(JJLjava/lang/Object;JJ)J", jni_ngx_http_clojure_socket_get_ssl_info},
+			{"writev", "(J[Ljava/lang/Object;[JJ)J", jni_ngx_http_clojure_socket_writev},
+			{"sendBatch", "(J[Ljava/lang/Object;[JJ)J", jni_ngx_http_clojure_socket_send_batch},
+			{"setUdp", "(JJ)J", jni_ngx_http_clojure_socket_set_udp},
+			{"upstreamServers", "(Ljava/lang/Object;JJLjava/lang/Object;JJ)J", jni_ngx_http_clojure_socket_upstream_servers},
+			{"pipe", "(JJLjava/lang/Object;J)J", jni_ngx_http_clojure_socket_pipe},
+			{"unpipe", "(JJ)V", jni_ngx_http_clojure_socket_unpipe},
 			{"close", "(J)V", jni_ngx_http_clojure_socket_close},
 			{"shutdown", "(JJ)J", jni_ngx_http_clojure_socket_shutdown},
 			{"cancelSoftShutdown", "(JJ)J", jni_ngx_http_clojure_socket_cancel_soft_shutdown}
 	};
 	jclass nc_socket_handler_class;
+	jclass nc_pipe_class;
 
 	if (ngx_http_clojure_init_socket_flag != NGX_HTTP_CLOJURE_JVM_ERR) {
 		return NGX_HTTP_CLOJURE_JVM_OK;
@@ -701,6 +1691,12 @@ int ngx_http_clojure_init_socket_util() {
 	nc_socket_handler_release_mid  = (*env)->GetMethodID(env, nc_socket_handler_class,"onRelease", "(JJ)V");
 	exception_handle(nc_socket_handler_release_mid == NULL, env, return NGX_HTTP_CLOJURE_JVM_ERR_INIT_SOCKETAPI);
 
+	nc_pipe_class = (*jvm_env)->FindClass(env, "nginx/clojure/net/NginxClojurePipe");
+	exception_handle(nc_pipe_class == NULL, env, return NGX_HTTP_CLOJURE_JVM_ERR_INIT_SOCKETAPI);
+
+	nc_pipe_close_mid = (*env)->GetMethodID(env, nc_pipe_class, "onNativeClose", "(JJJJ)V");
+	exception_handle(nc_pipe_close_mid == NULL, env, return NGX_HTTP_CLOJURE_JVM_ERR_INIT_SOCKETAPI);
+
 	(*env)->RegisterNatives(env, nc_socket_class, nms, sizeof(nms) / sizeof(JNINativeMethod));
 	exception_handle(0 == 0, env, return NGX_HTTP_CLOJURE_JVM_ERR_INIT_SOCKETAPI);
 
@@ -31,6 +31,15 @@ struct ngx_http_clojure_socket_upstream_s {
 
 	unsigned connect_event_sent  : 1;
 	unsigned hijacked_from_http : 1;
+	/*connected UDP socket, it must be set before connecting*/
+	unsigned udp : 1;
+
+#if (NGX_HTTP_SSL)
+	/*verify peer certificate and host name after SSL handshake*/
+	unsigned ssl_verify : 1;
+	/*server name for SNI and host name verification*/
+	ngx_str_t ssl_name;
+#endif
 
 	/*TCP SO_SNDLOWAT option*/
 	size_t send_lowat;
@@ -80,6 +89,8 @@ struct ngx_http_clojure_socket_upstream_s {
 
 	ngx_http_clojure_socket_upstream_handler_pt socket_upstream_finalize;
 
+	/*the pipe which this socket is spliced by, see ngx_http_clojure_pipe_t*/
+	void *pipe;
 
 };
 
@@ -128,6 +139,9 @@ ngx_http_clojure_socket_upstream_t *ngx_http_clojure_socket_upstream_create(size
 
 int ngx_http_clojure_socket_upstream_available(ngx_http_clojure_socket_upstream_t *u);
 
+/*check whether a connection is alive and has no unread data, used before reusing a pooled connection*/
+int ngx_http_clojure_socket_upstream_check_idle(ngx_http_clojure_socket_upstream_t *u);
+
 int ngx_http_clojure_socket_upstream_set_tcp_nodelay(ngx_http_clojure_socket_upstream_t *u, int tcp_nodelay);
 
 int ngx_http_clojure_socket_upstream_set_so_keepalive(ngx_http_clojure_socket_upstream_t *u, int so_keepalive);
@@ -140,6 +154,21 @@ int ngx_http_clojure_socket_upstream_read(ngx_http_clojure_socket_upstream_t *u,
 
 int ngx_http_clojure_socket_upstream_write(ngx_http_clojure_socket_upstream_t *u, void *buf, size_t size);
 
+/*the max number of buffers used by one readv/writev/sendmmsg, it should be the same as NginxClojureAsynSocket.MAX_IOVS*/
+#define NGX_HTTP_CLOJURE_SOCKET_MAX_IOVS 64
+
+#if !(defined(_WIN32) || defined(WIN32))
+/*scatter read, the same return values as ngx_http_clojure_socket_upstream_read*/
+int ngx_http_clojure_socket_upstream_readv(ngx_http_clojure_socket_upstream_t *u, struct iovec *iovs, int n);
+
+/*gather write, the same return values as ngx_http_clojure_socket_upstream_write*/
+int ngx_http_clojure_socket_upstream_writev(ngx_http_clojure_socket_upstream_t *u, struct iovec *iovs, int n);
+
+/*send every iovec as one datagram on a UDP socket, by sendmmsg if available.
+ *return the number of datagrams sent or NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN/NGX_HTTP_CLOJURE_SOCKET_ERR_WRITE*/
+int ngx_http_clojure_socket_upstream_sendmmsg(ngx_http_clojure_socket_upstream_t *u, struct iovec *iovs, int n);
+#endif
+
 void ngx_http_clojure_socket_upstream_close(ngx_http_clojure_socket_upstream_t *u);
 
 /*how can be either:
@@ -152,6 +181,60 @@ void ngx_http_clojure_socket_upstream_close(ngx_http_clojure_socket_upstream_t *
  * */
 int ngx_http_clojure_socket_upstream_shutdown(ngx_http_clojure_socket_upstream_t *u, int how);
 
+#if (NGX_HTTP_SSL)
+/*create the SSL context shared by all upstream sockets of this worker*/
+int ngx_http_clojure_socket_upstream_ssl_init_context(ngx_str_t *trusted_certificate);
+
+/*start SSL on a connected socket, session can be NULL or a session got from a previous connection for session reuse.
+ *return NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN means the result will be sent by connect_event_handler*/
+int ngx_http_clojure_socket_upstream_ssl_handshake(ngx_http_clojure_socket_upstream_t *u, ngx_str_t *name, int verify, ngx_ssl_session_t *session);
+#endif
+
+typedef struct ngx_http_clojure_pipe_s ngx_http_clojure_pipe_t;
+
+typedef void (*ngx_http_clojure_pipe_handler_pt)(ngx_http_clojure_pipe_t *p, ngx_int_t sc/*status code*/);
+
+/*splices bytes between a hijacked http client connection and a connected socket upstream
+ *inside nginx, each direction has its own buffer and the reading side is paused while
+ *the buffer is full, so the slower peer's write readiness throttles the other one.*/
+struct ngx_http_clojure_pipe_s {
+	ngx_http_request_t *r;
+	ngx_http_clojure_socket_upstream_t *u;
+
+	/*client -> upstream*/
+	ngx_buf_t up;
+	/*upstream -> client*/
+	ngx_buf_t down;
+
+	off_t up_bytes;
+	off_t down_bytes;
+
+	/*saved handlers of the socket upstream, they will be restored when the pipe is closed*/
+	ngx_http_clojure_socket_upstream_handler_pt u_read_event_handler;
+	ngx_http_clojure_socket_upstream_handler_pt u_write_event_handler;
+
+	ngx_pool_cleanup_t *cln;
+
+	/*invoked only once when the pipe is closed by eof, error or ngx_http_clojure_pipe_close*/
+	ngx_http_clojure_pipe_handler_pt close_handler;
+
+	/*user defined context, eg. JNI java object handle*/
+	void *context;
+
+	unsigned request_gone : 1;
+	unsigned done : 1;
+};
+
+/*create a pipe, return NGX_HTTP_CLOJURE_SOCKET_OK or an error code.
+ *the pipe is allocated from heap and will be freed after close_handler is invoked*/
+int ngx_http_clojure_pipe_create(ngx_http_request_t *r, ngx_http_clojure_socket_upstream_t *u, size_t buffer_size, ngx_http_clojure_pipe_t **pp);
+
+/*start splicing, close_handler maybe be invoked before this function returns
+ *if either side has been closed*/
+void ngx_http_clojure_pipe_start(ngx_http_clojure_pipe_t *p);
+
+void ngx_http_clojure_pipe_close(ngx_http_clojure_pipe_t *p, ngx_int_t sc);
+
 /*for jni init*/
 int ngx_http_clojure_init_socket_util();
 
@@ -1,9 +1,9 @@
 (ns nginx.clojure.core
-  (:import [nginx.clojure Coroutine Stack NginxClojureRT 
+  (:import [nginx.clojure Coroutine Stack NginxClojureRT CoBatch
             NginxRequest NginxHttpServerChannel ChannelListener
             AppEventListenerManager AppEventListenerManager$Listener
             AppEventListenerManager$Decoder AppEventListenerManager$PostedEvent
-            MessageAdapter])
+            MessageAdapter NginxRouter NginxRouter$Match])
   (:import [nginx.clojure.net NginxClojureAsynChannel NginxClojureAsynChannel$CompletionListener
             NginxClojureAsynSocket])
   (:import [nginx.clojure.clj Constants])
@@ -48,6 +48,41 @@
                                 (for [f fns] #(do (with-bindings* bindings f))))) )]
     (->> fns (clojure.lang.RT/seqToTypedArray Callable) NginxClojureRT/coBatchCall seq) ) )
 
+(defn co-batch
+  "Executes the no-arg fns in parallel coroutines and returns a sequence of their values in order.
+   Options:
+     `:max-concurrency max number of fns running at the same time, default is unlimited
+     `:timeout deadline in milliseconds, an exception will be thrown when it expires
+     `:fail-fast? if true the first exception will be thrown and pending fns won't be started,
+        otherwise the value of a failed fn will be nil
+   e.g. fetch 100 shards at most 8 at a time within 500ms
+   (co-batch (for [s shards] #(fetch-shard s)) :max-concurrency 8 :timeout 500)"
+  [fns & {:keys [max-concurrency timeout fail-fast?]}]
+  (let [fns (if  NginxClojureRT/coroutineEnabled
+                         fns
+                         (let [bindings (clojure.lang.Var/getThreadBindings)]
+                            (doall
+                                (for [f fns] #(do (with-bindings* bindings f))))))
+        ^CoBatch b (CoBatch. (clojure.lang.RT/seqToTypedArray Callable fns))]
+    (if max-concurrency (.maxConcurrency b (int max-concurrency)))
+    (if timeout (.timeout b (long timeout)))
+    (.failFast b (boolean fail-fast?))
+    (seq (.invokeAll b))))
+
+(defn co-sleep
+  "Suspend the current coroutine for `ms milliseconds without blocking the nginx worker.
+   If there's no coroutine support, it will turn to use Thread/sleep."
+  [ms]
+  (Coroutine/sleep (long ms)))
+
+(defn schedule!
+  "Run the no-arg function f on the nginx main thread after `delay-ms milliseconds.
+   It is backed by nginx event timer so no thread will be occupied during waiting.
+   e.g. send a SSE heartbeat after 15 seconds
+   (schedule! 15000 #(send! ch \":\\n\\n\" true false))"
+  [delay-ms f]
+  (NginxClojureRT/scheduleOnMainThread f (long delay-ms)))
+
 (defn get-ngx-var 
   "get nginx variable"
   [^NginxRequest req name]
@@ -271,3 +306,36 @@ on MacosX is 504
                    (shouldDecode [e] (tester (event-clj-wrap e)))
                    (decode [e] (clj-event-wrap (decoder (event-clj-wrap e))))))))
 
+(defn router
+  "Compiles a route table into a ring handler backed by a radix trie, so the cost of routing
+   depends on the length of the uri instead of the number of routes.
+   routes is a sequence of [pattern handler] where handler is either a ring handler for any method
+   or a map from methods to ring handlers, e.g.
+   (router [[\"/users/:id\" {:get get-user, :put update-user}]
+            [\"/users\" {:post new-user}]
+            [\"/static/*path\" static-files]]
+           :not-found not-found-handler)
+   Path parameters are assoc-ed into the request as :route-params and merged into :params, e.g. {:id \"1\"}.
+   If no route matches the not-found handler or a 404 response is used, and a 405 response with an Allow header
+   is returned when only the method does not match."
+  [routes & {:keys [not-found]}]
+  (let [^NginxRouter r (NginxRouter.)]
+    (doseq [[pattern h] routes]
+      (if (map? h)
+        (doseq [[m f] h]
+          (.add r (if (= m :any) nil (name m)) ^String pattern f))
+        (.add r nil ^String pattern h)))
+    (fn [req]
+      (let [^NginxRouter$Match m (.localMatch r)
+            h (.match r (name (:request-method req)) ^String (:uri req) m)]
+        (cond
+          h (h (if (zero? (.size m))
+                 req
+                 (let [ps (loop [i 0, ps (transient {})]
+                            (if (< i (.size m))
+                              (recur (inc i) (assoc! ps (keyword (.name m i)) (.value m i)))
+                              (persistent! ps)))]
+                   (assoc req :route-params ps, :params (merge (:params req) ps)))))
+          (.isMethodNotAllowed m) {:status 405, :headers {"Allow" (.allowedMethods m)}}
+          not-found (not-found req)
+          :else {:status 404})))))
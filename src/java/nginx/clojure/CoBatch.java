@@ -0,0 +1,349 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure;
+
+import java.util.concurrent.Callable;
+
+import nginx.clojure.wave.JavaAgent;
+
+/**
+ * A structured batch of calls executed in parallel coroutines, typically used by scatter-gather handlers.
+ * Compared with {@link NginxClojureRT#coBatchCall(Callable...)} it supports 
+ * <ul>
+ * <li>max concurrency, pending calls are started only when running calls finish</li>
+ * <li>deadline, after it expires no more calls will be started and waiters will be woken up</li>
+ * <li>fail-fast or collect-errors policies</li>
+ * <li>consuming results as they complete by {@link #nextCompletion()}</li>
+ * </ul>
+ * e.g.
+ * <pre>
+ * CoBatch&lt;String&gt; b = new CoBatch&lt;String&gt;(calls).maxConcurrency(16).timeout(500);
+ * CoBatch.Completion&lt;String&gt; c;
+ * while ( (c = b.nextCompletion()) != null ) {
+ *   ...
+ * }
+ * </pre>
+ * Every running call sees a {@link CoDeadline} of the batch which expires with the batch timeout, the deadline of
+ * the caller or {@link #cancel()}, so that its coroutine based sockets, {@link Coroutine#sleep(long)} and nested batches
+ * give up at their next blocking point instead of running to the end.
+ * <p>
+ * If we are not in a coroutine context, calls will be run by a thread pool which is only for testing usage.
+ * @author Zhang,Yuexiang (xfeep)
+ *
+ * @param <T> the result type of calls
+ */
+public class CoBatch<T> {
+	
+	protected final Callable<T>[] calls;
+	protected int maxConcurrency;
+	protected long timeout;
+	protected boolean failFast;
+	
+	protected CoChannel<Completion<T>> completions;
+	protected Object[] results;
+	protected Throwable[] errors;
+	protected boolean threadMode;
+	protected int launched;
+	protected int consumed;
+	protected boolean started;
+	protected volatile boolean cancelled;
+	protected volatile boolean timedOut;
+	protected CoDeadline deadline;
+	protected CoDeadline parentDeadline;
+	protected Runnable onDeadline;
+	protected Runnable onParentDeadline;
+	
+	public static final class Completion<T> {
+		final int index;
+		final T value;
+		final Throwable error;
+		
+		public Completion(int index, T value, Throwable error) {
+			this.index = index;
+			this.value = value;
+			this.error = error;
+		}
+		
+		/**
+		 * @return the index of the call in the batch
+		 */
+		public int index() {
+			return index;
+		}
+		
+		public T value() {
+			return value;
+		}
+		
+		public Throwable error() {
+			return error;
+		}
+		
+		public boolean isFailed() {
+			return error != null;
+		}
+	}
+	
+	public static class CoBatchException extends RuntimeException {
+		
+		private static final long serialVersionUID = 1L;
+		
+		protected final CoBatch<?> batch;
+
+		public CoBatchException(String message, Throwable cause, CoBatch<?> batch) {
+			super(message, cause);
+			this.batch = batch;
+		}
+		
+		public CoBatch<?> getBatch() {
+			return batch;
+		}
+	}
+	
+	public CoBatch(Callable<T>... calls) {
+		this.calls = calls;
+		this.maxConcurrency = calls.length;
+		this.results = new Object[calls.length];
+		this.errors = new Throwable[calls.length];
+	}
+	
+	/**
+	 * @param n max number of calls running at the same time
+	 */
+	public CoBatch<T> maxConcurrency(int n) {
+		if (n <= 0) {
+			throw new IllegalArgumentException("max concurrency must be > 0");
+		}
+		this.maxConcurrency = n;
+		return this;
+	}
+	
+	/**
+	 * @param timeout deadline in milliseconds from {@link #start()}, &lt;= 0 means no deadline
+	 */
+	public CoBatch<T> timeout(long timeout) {
+		this.timeout = timeout;
+		return this;
+	}
+	
+	/**
+	 * @param failFast if true the first error will cancel pending calls and be thrown as
+	 * a {@link CoBatchException}, otherwise errors are collected in {@link #errors()}
+	 */
+	public CoBatch<T> failFast(boolean failFast) {
+		this.failFast = failFast;
+		return this;
+	}
+	
+	/**
+	 * Start the calls. It is not necessary to invoke it before {@link #nextCompletion()} or {@link #invokeAll()}
+	 * unless we want to do some other work before consuming completions.
+	 */
+	public CoBatch<T> start() {
+		if (prepare()) {
+			launchAll();
+		}
+		return this;
+	}
+	
+	private synchronized boolean prepare() {
+		if (started) {
+			return false;
+		}
+		started = true;
+		completions = new CoChannel<Completion<T>>(Math.max(1, calls.length));
+		threadMode = Coroutine.getActiveCoroutine() == null && (JavaAgent.db == null || !JavaAgent.db.isRunTool());
+		if (threadMode) {
+			NginxClojureRT.getLog().warn("we are not in coroutine enabled context, so we turn to use thread for only testing usage!");
+		}
+		if (calls.length == 0) {
+			completions.close();
+			return false;
+		}
+		long expireAt = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+		parentDeadline = CoDeadline.current();
+		if (parentDeadline != null && parentDeadline.getExpireAt() < expireAt) {
+			expireAt = parentDeadline.getExpireAt();
+		}
+		deadline = new CoDeadline(expireAt);
+		deadline.onExpire(onDeadline = new Runnable() {
+			@Override
+			public void run() {
+				expire();
+			}
+		});
+		if (parentDeadline != null) {
+			//a cancelled parent, e.g. a branch of an outer batch, cancels us too
+			parentDeadline.onExpire(onParentDeadline = new Runnable() {
+				@Override
+				public void run() {
+					deadline.cancel();
+				}
+			});
+		}
+		return true;
+	}
+	
+	private void launchAll() {
+		int n = Math.min(maxConcurrency, calls.length);
+		for (int i = 0; i < n; i++) {
+			launchNext();
+		}
+	}
+	
+	private void launchNext() {
+		int i;
+		synchronized (this) {
+			if (cancelled || launched >= calls.length) {
+				return;
+			}
+			i = launched++;
+		}
+		Runner r = new Runner(i);
+		if (threadMode) {
+			NginxClojureRT.initThreadPoolOnlyForTestingUsage().submit(r);
+		}else {
+			new Coroutine(r).resume();
+		}
+	}
+	
+	private void expire() {
+		synchronized (this) {
+			if (cancelled || consumed >= calls.length) {
+				return;
+			}
+			timedOut = true;
+			cancelled = true;
+		}
+		completions.close();
+		//a parent deadline may expire earlier than our own timer
+		deadline.cancel();
+		release();
+	}
+	
+	/**
+	 * Cancel the batch. Pending calls will not be started, running calls see the deadline of the batch expired
+	 * and waiters will be woken up with no more completions. It does nothing if the batch is not started or has finished.
+	 */
+	public void cancel() {
+		synchronized (this) {
+			if (cancelled || !started || consumed >= calls.length) {
+				return;
+			}
+			cancelled = true;
+		}
+		completions.close();
+		deadline.cancel();
+		release();
+	}
+	
+	/**
+	 * Unregisters our deadline listeners so that the timers left behind keep no reference to this batch.
+	 */
+	private void release() {
+		deadline.removeListener(onDeadline);
+		if (parentDeadline != null) {
+			parentDeadline.removeListener(onParentDeadline);
+		}
+	}
+	
+	private void complete(Completion<T> c) {
+		try {
+			completions.offer(c);
+		}catch(IllegalStateException e) {
+			//closed by timeout or fail-fast, ignore the late completion
+		}
+	}
+	
+	/**
+	 * Suspend the current coroutine until the next call completes.
+	 * @return the next completion or null if all calls are consumed or the deadline is expired (see {@link #isTimedOut()})
+	 * @throws CoBatchException when failFast is true and a call failed
+	 */
+	public Completion<T> nextCompletion() throws SuspendExecution {
+		start();
+		if (consumed >= calls.length) {
+			return null;
+		}
+		Completion<T> c = completions.take();
+		if (c == null) {
+			return null;
+		}
+		consumed++;
+		results[c.index] = c.value;
+		errors[c.index] = c.error;
+		if (consumed == calls.length) {
+			release();
+		}
+		if (c.error != null && failFast) {
+			cancel();
+			throw new CoBatchException("call #" + c.index + " failed", c.error, this);
+		}
+		return c;
+	}
+	
+	/**
+	 * Suspend the current coroutine until all calls complete.
+	 * @return results in the order of calls, the result of a failed call is null
+	 * @throws CoBatchException when the deadline is expired or failFast is true and a call failed
+	 */
+	public Object[] invokeAll() throws SuspendExecution {
+		while (nextCompletion() != null);
+		if (timedOut) {
+			throw new CoBatchException("batch call timeout after " + timeout + "ms, completed " + consumed + "/" + calls.length, null, this);
+		}
+		return results;
+	}
+	
+	public Object[] results() {
+		return results;
+	}
+	
+	public Throwable[] errors() {
+		return errors;
+	}
+	
+	public boolean isTimedOut() {
+		return timedOut;
+	}
+	
+	/**
+	 * @return true if the batch was cancelled by {@link #cancel()}, fail-fast or timeout
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+	
+	public int size() {
+		return calls.length;
+	}
+	
+	final class Runner implements Runnable {
+		
+		final int index;
+		
+		Runner(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public void run() throws SuspendExecution {
+			T v = null;
+			Throwable err = null;
+			CoDeadline old = CoDeadline.current();
+			CoDeadline.set(deadline);
+			try {
+				v = calls[index].call();
+			}catch(Throwable e) {
+				err = e;
+			}finally {
+				CoDeadline.set(old);
+			}
+			complete(new Completion<T>(index, v, err));
+			launchNext();
+		}
+	}
+	
+}
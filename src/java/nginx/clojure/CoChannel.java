@@ -0,0 +1,216 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure;
+
+import java.util.ArrayDeque;
+
+import nginx.clojure.CoWaiter.CoWaiterQueue;
+
+/**
+ * A bounded FIFO channel used by producer/consumer coroutines. {@link #put(Object)} suspends the current 
+ * coroutine when the channel is full and {@link #take()} suspends it when the channel is empty.
+ * After the channel is closed, {@link #put(Object)} will throw IllegalStateException and {@link #take()} will 
+ * return null once all remaining elements are consumed.
+ * Null elements are not allowed.
+ * @author Zhang,Yuexiang (xfeep)
+ *
+ * @param <E> the element type
+ */
+public class CoChannel<E> {
+
+	protected final int capacity;
+	protected final ArrayDeque<E> queue;
+	protected final CoWaiterQueue takers = new CoWaiterQueue();
+	protected final CoWaiterQueue putters = new CoWaiterQueue();
+	protected boolean closed;
+	
+	public CoChannel(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be > 0");
+		}
+		this.capacity = capacity;
+		this.queue = new ArrayDeque<E>(Math.min(capacity, 16));
+	}
+	
+	/**
+	 * Put an element, suspend the current coroutine while the channel is full.
+	 */
+	public void put(E e) throws SuspendExecution {
+		CoWaiter w = putOrEnqueue(e);
+		if (w != null) {
+			w.await();
+			if (w.value != null) {
+				//the channel was closed before our element was accepted
+				throw new IllegalStateException("channel closed");
+			}
+		}
+	}
+	
+	/**
+	 * suspendable methods can not contain monitors so we do synchronization here 
+	 * @return a waiter if the channel is full
+	 */
+	private CoWaiter putOrEnqueue(E e) {
+		if (e == null) {
+			throw new NullPointerException("null element is not allowed");
+		}
+		CoWaiter w;
+		synchronized (this) {
+			if (closed) {
+				throw new IllegalStateException("channel closed");
+			}
+			w = takers.poll();
+			if (w == null) {
+				if (queue.size() < capacity) {
+					queue.add(e);
+					return null;
+				}
+				w = new CoWaiter();
+				w.value = e;
+				putters.add(w);
+				return w;
+			}
+			//hand off to a waiting taker directly
+			w.value = e;
+		}
+		w.signal();
+		return null;
+	}
+	
+	/**
+	 * Put an element without waiting.
+	 * @return false if the channel is full
+	 */
+	public boolean offer(E e) {
+		if (e == null) {
+			throw new NullPointerException("null element is not allowed");
+		}
+		CoWaiter w;
+		synchronized (this) {
+			if (closed) {
+				throw new IllegalStateException("channel closed");
+			}
+			w = takers.poll();
+			if (w == null) {
+				if (queue.size() < capacity) {
+					queue.add(e);
+					return true;
+				}
+				return false;
+			}
+			w.value = e;
+		}
+		w.signal();
+		return true;
+	}
+	
+	/**
+	 * Take an element, suspend the current coroutine while the channel is empty.
+	 * @return null if the channel is closed and there's no remaining elements
+	 */
+	@SuppressWarnings("unchecked")
+	public E take() throws SuspendExecution {
+		for (;;) {
+			E e = poll();
+			if (e != null) {
+				return e;
+			}
+			CoWaiter w = enqueueTaker();
+			if (w != null) {
+				w.await();
+				e = (E) w.value;
+				w.value = null;
+				return e;
+			}
+			if (isClosed()) {
+				return poll();
+			}
+		}
+	}
+	
+	/**
+	 * suspendable methods can not contain monitors so we do synchronization here 
+	 * @return null if the channel is not empty or closed
+	 */
+	private synchronized CoWaiter enqueueTaker() {
+		if (closed || !queue.isEmpty()) {
+			return null;
+		}
+		CoWaiter w = new CoWaiter();
+		takers.add(w);
+		return w;
+	}
+	
+	/**
+	 * Take an element without waiting.
+	 * @return null if the channel is empty
+	 */
+	public E poll() {
+		CoWaiter w;
+		E e;
+		synchronized (this) {
+			e = queue.poll();
+			if (e == null) {
+				return null;
+			}
+			w = refillFromPutter();
+		}
+		if (w != null) {
+			w.signal();
+		}
+		return e;
+	}
+	
+	/**
+	 * move the element of the first waiting putter into the queue.
+	 * @return the putter which should be signaled out of the synchronized block
+	 */
+	@SuppressWarnings("unchecked")
+	private CoWaiter refillFromPutter() {
+		CoWaiter p = putters.poll();
+		if (p != null) {
+			queue.add((E) p.value);
+			p.value = null;
+		}
+		return p;
+	}
+	
+	/**
+	 * Close the channel and wake up all waiters. Waiting takers will get null and
+	 * waiting putters will get IllegalStateException.
+	 */
+	public void close() {
+		CoWaiterQueue ws = new CoWaiterQueue();
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			CoWaiter w;
+			while ((w = takers.poll()) != null) {
+				ws.add(w);
+			}
+			while ((w = putters.poll()) != null) {
+				ws.add(w);
+			}
+		}
+		CoWaiter w;
+		while ((w = ws.poll()) != null) {
+			w.signal();
+		}
+	}
+	
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+	
+	public synchronized int size() {
+		return queue.size();
+	}
+	
+	public int capacity() {
+		return capacity;
+	}
+}
@@ -0,0 +1,83 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure;
+
+import nginx.clojure.CoWaiter.CoWaiterQueue;
+
+/**
+ * A condition bound to a {@link CoLock}. {@link #await()} releases the lock, suspends the current coroutine 
+ * until it is signaled and then re-acquires the lock before returning.
+ * @author Zhang,Yuexiang (xfeep)
+ *
+ */
+public class CoCondition {
+
+	protected final CoLock lock;
+	protected final CoWaiterQueue waiters = new CoWaiterQueue();
+	
+	public CoCondition(CoLock lock) {
+		this.lock = lock;
+	}
+	
+	/**
+	 * It must be invoked by the lock owner.
+	 */
+	public void await() throws SuspendExecution {
+		CoWaiter w = enqueue();
+		int holds = lock.unlock(-1);
+		w.await();
+		lock.lock(holds);
+	}
+	
+	/**
+	 * suspendable methods can not contain monitors so we do synchronization here 
+	 */
+	private CoWaiter enqueue() {
+		CoWaiter w = new CoWaiter();
+		synchronized (lock) {
+			if (!lock.isHeldByCurrent()) {
+				throw new IllegalMonitorStateException("current coroutine/thread is not the owner of the lock");
+			}
+			waiters.add(w);
+		}
+		return w;
+	}
+	
+	/**
+	 * It must be invoked by the lock owner.
+	 */
+	public void signal() {
+		CoWaiter w;
+		synchronized (lock) {
+			if (!lock.isHeldByCurrent()) {
+				throw new IllegalMonitorStateException("current coroutine/thread is not the owner of the lock");
+			}
+			w = waiters.poll();
+		}
+		if (w != null) {
+			w.signal();
+		}
+	}
+	
+	/**
+	 * It must be invoked by the lock owner.
+	 */
+	public void signalAll() {
+		CoWaiterQueue all = new CoWaiterQueue();
+		synchronized (lock) {
+			if (!lock.isHeldByCurrent()) {
+				throw new IllegalMonitorStateException("current coroutine/thread is not the owner of the lock");
+			}
+			CoWaiter w;
+			while ( (w = waiters.poll()) != null) {
+				all.add(w);
+			}
+		}
+		CoWaiter w;
+		while ( (w = all.poll()) != null) {
+			w.signal();
+		}
+	}
+}
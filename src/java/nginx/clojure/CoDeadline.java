@@ -0,0 +1,209 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure;
+
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A per-request deadline which is honoured by coroutine based sockets, {@link Coroutine#sleep(long)}
+ * and {@link NginxClojureRT#coBatchCall(java.util.concurrent.Callable...)}.
+ * <p>
+ * The current deadline is kept in a thread local and because every coroutine has its own copy of thread locals
+ * cloned from its creator, a deadline set in a request coroutine is seen by all sub coroutines created
+ * after it, e.g. branches of <code>coBatchCall</code>, but never leaks to other requests.
+ * <p>
+ * It can be given by a handler property, e.g.
+ * <pre>content_handler_property deadline 800ms;</pre>
+ * or from the handler by {@link #start(long)}.
+ * @author Zhang,Yuexiang (xfeep)
+ *
+ */
+public final class CoDeadline {
+
+	private static final ThreadLocal<CoDeadline> current = new ThreadLocal<CoDeadline>();
+
+	final long expireAt;
+
+	private List<Runnable> listeners;
+
+	private boolean scheduled;
+
+	private boolean fired;
+
+	private volatile boolean cancelled;
+
+	public CoDeadline(long expireAt) {
+		this.expireAt = expireAt;
+	}
+
+	/**
+	 * @return the deadline of the current coroutine (or thread), null if there's no deadline
+	 */
+	public static CoDeadline current() {
+		return current.get();
+	}
+
+	/**
+	 * Sets a deadline which will expire after timeout milliseconds for the current coroutine.
+	 * If there's an earlier deadline already it will be kept because a nested deadline can only shrink the remaining time.
+	 * @return the deadline in effect
+	 */
+	public static CoDeadline start(long timeout) {
+		CoDeadline d = current.get();
+		long expireAt = System.currentTimeMillis() + timeout;
+		if (d == null || d.expireAt > expireAt) {
+			current.set(d = new CoDeadline(expireAt));
+		}
+		return d;
+	}
+
+	/**
+	 * Replaces the deadline of the current coroutine (or thread), null means clear it.
+	 */
+	public static void set(CoDeadline d) {
+		if (d == null) {
+			current.remove();
+		}else {
+			current.set(d);
+		}
+	}
+
+	public static void clear() {
+		current.remove();
+	}
+
+	/**
+	 * @return remaining milliseconds of the current deadline, {@link Long#MAX_VALUE} if there's no deadline
+	 */
+	public static long remainingMillis() {
+		CoDeadline d = current.get();
+		return d == null ? Long.MAX_VALUE : d.remaining();
+	}
+
+	/**
+	 * Shrinks a timeout to the remaining time of the current deadline.
+	 * @param timeout 0 means no timeout like nginx-clojure sockets
+	 * @return the shrunk timeout or the original one if there's no deadline
+	 * @throws DeadlineExceededException if the current deadline has passed
+	 */
+	public static long shrink(long timeout) throws DeadlineExceededException {
+		CoDeadline d = current.get();
+		if (d == null) {
+			return timeout;
+		}
+		long r = d.remaining();
+		if (r <= 0) {
+			throw new DeadlineExceededException();
+		}
+		return timeout <= 0 || timeout > r ? r : timeout;
+	}
+
+	/**
+	 * @throws DeadlineExceededException if the current deadline has passed
+	 */
+	public static void check() throws DeadlineExceededException {
+		CoDeadline d = current.get();
+		if (d != null && d.isExpired()) {
+			throw new DeadlineExceededException();
+		}
+	}
+
+	public long getExpireAt() {
+		return expireAt;
+	}
+
+	public long remaining() {
+		return cancelled ? 0 : expireAt - System.currentTimeMillis();
+	}
+
+	public boolean isExpired() {
+		return remaining() <= 0;
+	}
+
+	/**
+	 * Expires this deadline at once, e.g. when the work it guards is cancelled.
+	 * Listeners are invoked on the calling thread.
+	 */
+	public void cancel() {
+		cancelled = true;
+		fire();
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Registers a cancellation listener which will be invoked on the nginx main thread once the deadline passes
+	 * or by {@link #cancel()}. If it has passed already the listener will be invoked at once.
+	 * A deadline which expires at {@link Long#MAX_VALUE} has no timer and can only be expired by {@link #cancel()}.
+	 */
+	public void onExpire(Runnable listener) {
+		long r = remaining();
+		synchronized (this) {
+			if (!fired && r > 0) {
+				if (listeners == null) {
+					listeners = new ArrayList<Runnable>(2);
+				}
+				listeners.add(listener);
+				if (!scheduled && expireAt != Long.MAX_VALUE) {
+					scheduled = true;
+					NginxClojureRT.scheduleOnMainThread(new Runnable() {
+						@Override
+						public void run() {
+							fire();
+						}
+					}, r);
+				}
+				return;
+			}
+		}
+		listener.run();
+	}
+
+	/**
+	 * Unregisters a listener, e.g. when the work it guards has finished before the deadline.
+	 * The timer, if any, still fires but finds nothing to do and keeps no reference to the listener.
+	 */
+	public synchronized void removeListener(Runnable listener) {
+		if (listeners != null) {
+			listeners.remove(listener);
+		}
+	}
+
+	protected void fire() {
+		List<Runnable> ls;
+		synchronized (this) {
+			if (fired) {
+				return;
+			}
+			fired = true;
+			ls = listeners;
+			listeners = null;
+		}
+		if (ls == null) {
+			return;
+		}
+		for (Runnable l : ls) {
+			try {
+				l.run();
+			}catch(Throwable e) {
+				NginxClojureRT.getLog().error("error in deadline listener", e);
+			}
+		}
+	}
+
+	public static class DeadlineExceededException extends SocketTimeoutException {
+
+		private static final long serialVersionUID = 1L;
+
+		public DeadlineExceededException() {
+			super("deadline exceeded");
+		}
+	}
+
+}
@@ -0,0 +1,118 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure;
+
+import nginx.clojure.CoWaiter.CoWaiterQueue;
+
+/**
+ * A reentrant mutual exclusion lock which suspends the current coroutine instead of blocking 
+ * the nginx worker thread. It can be held across suspendable calls, e.g. socket I/O, which 
+ * is not safe with a java monitor.
+ * The owner is the current coroutine or the current thread if there's no coroutine. 
+ * Lock ownership is handed off to waiters in FIFO order.
+ * @author Zhang,Yuexiang (xfeep)
+ *
+ */
+public class CoLock {
+
+	protected Object owner;
+	protected int holds;
+	protected final CoWaiterQueue waiters = new CoWaiterQueue();
+	
+	public CoLock() {
+	}
+	
+	protected static Object currentOwner() {
+		Coroutine co = Coroutine.getActiveCoroutine();
+		return co == null ? Thread.currentThread() : co;
+	}
+	
+	public void lock() throws SuspendExecution {
+		lock(1);
+	}
+	
+	void lock(int n) throws SuspendExecution {
+		CoWaiter w = lockOrEnqueue(currentOwner(), n);
+		if (w != null) {
+			w.await();
+		}
+	}
+	
+	/**
+	 * suspendable methods can not contain monitors so we do synchronization here 
+	 */
+	private synchronized CoWaiter lockOrEnqueue(Object me, int n) {
+		if (owner == null) {
+			owner = me;
+			holds = n;
+			return null;
+		}else if (owner == me) {
+			holds += n;
+			return null;
+		}
+		CoWaiter w = new CoWaiter();
+		w.value = n;
+		waiters.add(w);
+		return w;
+	}
+	
+	public synchronized boolean tryLock() {
+		Object me = currentOwner();
+		if (owner == null) {
+			owner = me;
+			holds = 1;
+			return true;
+		}else if (owner == me) {
+			holds++;
+			return true;
+		}
+		return false;
+	}
+	
+	public void unlock() {
+		unlock(1);
+	}
+	
+	/**
+	 * @return the number of holds released
+	 */
+	int unlock(int n) {
+		CoWaiter w;
+		int released;
+		synchronized (this) {
+			if (owner != currentOwner()) {
+				throw new IllegalMonitorStateException("current coroutine/thread is not the owner of this lock");
+			}
+			released = n < 0 ? holds : n;
+			if ((holds -= released) > 0) {
+				return released;
+			}
+			w = waiters.poll();
+			if (w == null) {
+				owner = null;
+				holds = 0;
+				return released;
+			}
+			//hand off the lock to the next waiter
+			owner = w.co == null ? w.thread : w.co;
+			holds = (Integer)w.value;
+			w.value = null;
+		}
+		w.signal();
+		return released;
+	}
+	
+	public synchronized boolean isLocked() {
+		return owner != null;
+	}
+	
+	public synchronized boolean isHeldByCurrent() {
+		return owner == currentOwner();
+	}
+	
+	public CoCondition newCondition() {
+		return new CoCondition(this);
+	}
+}
@@ -0,0 +1,78 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure;
+
+import nginx.clojure.CoWaiter.CoWaiterQueue;
+
+/**
+ * A FIFO counting semaphore which suspends the current coroutine instead of blocking 
+ * the nginx worker thread when there's no available permit.
+ * Permits released are handed off to waiters directly so a waiter never needs to compete again 
+ * after it is resumed. 
+ * It is typically used to limit concurrent upstream requests or connections.
+ * @author Zhang,Yuexiang (xfeep)
+ *
+ */
+public class CoSemaphore {
+
+	protected int permits;
+	
+	protected final CoWaiterQueue waiters = new CoWaiterQueue();
+	
+	public CoSemaphore(int permits) {
+		this.permits = permits;
+	}
+	
+	/**
+	 * Acquire a permit, suspend the current coroutine until one is available.
+	 */
+	public void acquire() throws SuspendExecution {
+		CoWaiter w = acquireOrEnqueue();
+		if (w != null) {
+			w.await();
+		}
+	}
+	
+	/**
+	 * suspendable methods can not contain monitors so we do synchronization here 
+	 */
+	private synchronized CoWaiter acquireOrEnqueue() {
+		if (permits > 0 && waiters.isEmpty()) {
+			permits--;
+			return null;
+		}
+		CoWaiter w = new CoWaiter();
+		waiters.add(w);
+		return w;
+	}
+	
+	public synchronized boolean tryAcquire() {
+		if (permits > 0 && waiters.isEmpty()) {
+			permits--;
+			return true;
+		}
+		return false;
+	}
+	
+	public void release() {
+		CoWaiter w;
+		synchronized (this) {
+			w = waiters.poll();
+			if (w == null) {
+				permits++;
+				return;
+			}
+		}
+		w.signal();
+	}
+	
+	public synchronized int availablePermits() {
+		return permits;
+	}
+	
+	public synchronized boolean hasWaiters() {
+		return !waiters.isEmpty();
+	}
+}
@@ -0,0 +1,143 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A waiter parked by coroutine synchronizers such as {@link CoLock}, {@link CoSemaphore},
+ * {@link CoCondition} and {@link CoChannel}.
+ * If it is created inside a coroutine, {@link #await()} will suspend the coroutine and {@link #signal()} will 
+ * resume it on the nginx main thread later, otherwise they will park/unpark the current java thread.
+ * @author Zhang,Yuexiang (xfeep)
+ *
+ */
+public final class CoWaiter {
+
+	final Coroutine co;
+	final Thread thread;
+	volatile boolean signaled;
+	
+	/**
+	 * value handed off by the signaler, e.g. an element of {@link CoChannel}
+	 */
+	Object value;
+	
+	/**
+	 * next waiter in the same {@link CoWaiterQueue}
+	 */
+	CoWaiter next;
+	
+	public CoWaiter() {
+		co = Coroutine.getActiveCoroutine();
+		thread = co == null ? Thread.currentThread() : null;
+	}
+	
+	public boolean isSignaled() {
+		return signaled;
+	}
+	
+	/**
+	 * Suspend the current coroutine (or park the current thread if no coroutine)
+	 * until {@link #signal()} is invoked.
+	 * It must not be invoked inside a synchronized block.
+	 */
+	public void await() throws SuspendExecution {
+		if (co != null) {
+			while (!signaled) {
+				Coroutine.yield();
+			}
+		}else {
+			boolean interrupted = false;
+			while (!signaled) {
+				LockSupport.park(this);
+				if (Thread.interrupted()) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * @return the value handed off by {@link #signal(Object)}
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T getValue() {
+		return (T) value;
+	}
+	
+	/**
+	 * Hand off a value to the waiter and wake it up.
+	 */
+	public void signal(Object value) {
+		this.value = value;
+		signal();
+	}
+	
+	/**
+	 * Wake up the waiter. A coroutine waiter will be resumed on the nginx main thread at the next event loop 
+	 * so it is safe to call it from a running coroutine or from any other thread.
+	 */
+	public void signal() {
+		if (signaled) {
+			return;
+		}
+		signaled = true;
+		if (co != null) {
+			if (NginxClojureRT.NGINX_MAIN_THREAD == null) {
+				//no nginx event loop, e.g. unit testing
+				co.resume();
+			}else {
+				NginxClojureRT.postPollTaskEvent(null, new Runnable() {
+					@Override
+					public void run() {
+						if (co.getState() == Coroutine.State.SUSPENDED) {
+							co.resume();
+						}
+					}
+				});
+			}
+		}else {
+			LockSupport.unpark(thread);
+		}
+	}
+	
+	/**
+	 * A simple FIFO queue of waiters. It is not thread safe and should be guarded by its owner.
+	 */
+	public static final class CoWaiterQueue {
+		
+		CoWaiter head;
+		CoWaiter tail;
+		
+		public void add(CoWaiter w) {
+			if (tail == null) {
+				head = tail = w;
+			}else {
+				tail.next = w;
+				tail = w;
+			}
+		}
+		
+		public CoWaiter poll() {
+			CoWaiter w = head;
+			if (w != null) {
+				head = w.next;
+				if (head == null) {
+					tail = null;
+				}
+				w.next = null;
+			}
+			return w;
+		}
+		
+		public boolean isEmpty() {
+			return head == null;
+		}
+	}
+}
@@ -84,6 +84,39 @@ public class Coroutine implements Runnable, Serializable {
         throw new Error("Calling function not instrumented");
     }
     
+    /**
+     * Suspend the currently running Coroutine for the given time without blocking the nginx worker.
+     * The Coroutine will be resumed on the nginx main thread by a nginx event timer.
+     * If not called from a Coroutine it will fall back to {@link Thread#sleep(long)}.
+     * It never sleeps beyond the current {@link CoDeadline}.
+     * 
+     * @param millis the length of time to sleep in milliseconds
+     * @throws de.matthiasmann.continuations.SuspendExecution This exception is used for control transfer - don't catch it !
+     */
+    public static void sleep(long millis) throws SuspendExecution {
+        long remaining = CoDeadline.remainingMillis();
+        if (millis > remaining) {
+            //never sleep beyond the deadline of the current request
+            millis = Math.max(remaining, 0);
+        }
+        final Coroutine co = getActiveCoroutine();
+        if (co == null) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        NginxClojureRT.scheduleOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                co.resume();
+            }
+        }, millis);
+        yield();
+    }
+    
     /**
      * DON'T call this, this method is used by wave tool for generate waving configuration file
      * @throws SuspendExecution
@@ -499,6 +499,7 @@ public class MiniConstants {
 	public static final int NGX_HTTP_CLOJURE_EVENT_HANDLER_FLAG_READ = 1;
 	public static final int NGX_HTTP_CLOJURE_EVENT_HANDLER_FLAG_WRITE = 2;
 	public static final int NGX_HTTP_CLOJURE_EVENT_HANDLER_FLAG_NOKEEPALIVE = 4;
+	public static final int NGX_HTTP_CLOJURE_EVENT_HANDLER_FLAG_DRAIN = 8;
 	
 
 //	public static final String HEADERS = RT.keyword(null, "headers");
@@ -0,0 +1,357 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure;
+
+import static nginx.clojure.MiniConstants.BYTE_ARRAY_OFFSET;
+import static nginx.clojure.MiniConstants.DEFAULT_ENCODING;
+import static nginx.clojure.MiniConstants.NGX_ERROR;
+import static nginx.clojure.MiniConstants.NGX_HTTP_CLOJURE_CHAIN_NEXT_OFFSET;
+import static nginx.clojure.MiniConstants.NGX_OK;
+import static nginx.clojure.NginxClojureRT.ngx_http_clojure_mem_body_filter_emit;
+import static nginx.clojure.NginxClojureRT.ngx_http_clojure_mem_body_filter_pending;
+import static nginx.clojure.NginxClojureRT.ngx_http_clojure_mem_body_filter_send;
+import static nginx.clojure.NginxClojureRT.ngx_http_clojure_mem_get_chain_info;
+
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+
+import sun.misc.Unsafe;
+import sun.nio.ch.DirectBuffer;
+
+/**
+ * Walks the chain links given to a body filter one by one and collects what the filter emits for each of them.
+ * <p>
+ * A typical body filter loop is:
+ * <pre>
+ * NginxBodyFilterChunks chunks = new NginxBodyFilterChunks(req);
+ * while (chunks.next()) {
+ *   chunks.emit(filter(chunks.chunk(), chunks.isLast()));
+ * }
+ * return chunks.complete();
+ * </pre>
+ * The chunk is a zero-copy {@link ByteBuffer} view of the nginx buffer. It is read-only unless
+ * the nginx buffer is a temporary one. Emitting the chunk itself passes the nginx buffer on without copying.
+ * <p>
+ * If the filter suspends (e.g. it does some coroutine based socket I/O), nginx will keep the rest of
+ * the response body until it is resumed, and those pending chains are walked by the same loop
+ * so that the filter sees the whole body in order.
+ * @author Zhang,Yuexiang (xfeep)
+ *
+ */
+public class NginxBodyFilterChunks {
+
+	/**
+	 * chunk flags, they must be the same with NGX_HTTP_CLOJURE_CHUNK_XXX in ngx_http_clojure_mem.h
+	 */
+	public static final int CHUNK_LAST = 1;
+
+	public static final int CHUNK_FLUSH = 2;
+
+	public static final int CHUNK_WRITABLE = 4;
+
+	public static final int BATCH_SIZE = 16;
+
+	private static final Unsafe UNSAFE = HackUtils.UNSAFE;
+
+	private static final long LONG_ARRAY_OFFSET = UNSAFE.arrayBaseOffset(long[].class);
+
+	private static final ByteBuffer TEMPLATE = ByteBuffer.allocateDirect(0);
+
+	private static final long BUFFER_ADDRESS_OFFSET;
+
+	private static final long BUFFER_CAPACITY_OFFSET;
+
+	static {
+		long ao = -1, co = -1;
+		try {
+			Field af = Buffer.class.getDeclaredField("address");
+			Field cf = Buffer.class.getDeclaredField("capacity");
+			ao = UNSAFE.objectFieldOffset(af);
+			co = UNSAFE.objectFieldOffset(cf);
+		}catch(Throwable e) {
+			NginxClojureRT.getLog().warn("can not make zero-copy ByteBuffer views, body filter chunks will be copied");
+		}
+		BUFFER_ADDRESS_OFFSET = ao;
+		BUFFER_CAPACITY_OFFSET = co;
+	}
+
+	protected final long r;
+
+	/**
+	 * the next chain link which has not been loaded
+	 */
+	protected long chain;
+
+	/**
+	 * quadruples of (link, pos, size, flags)
+	 */
+	protected final long[] info = new long[BATCH_SIZE << 2];
+
+	protected int count;
+
+	protected int idx = -1;
+
+	protected ByteBuffer chunk;
+
+	protected boolean emitted = true;
+
+	protected int rc = NGX_OK;
+
+	/**
+	 * whether there's output which has not been sent
+	 */
+	protected boolean dirty;
+
+	public NginxBodyFilterChunks(NginxFilterRequest req) {
+		this(req.nativeRequest(), req.nativeChain());
+	}
+
+	public NginxBodyFilterChunks(long r, long chain) {
+		this.r = r;
+		this.chain = chain;
+	}
+
+	/**
+	 * Makes a ByteBuffer view of native memory without copying.
+	 */
+	public static ByteBuffer view(long address, int size, boolean writable) {
+		ByteBuffer bb;
+		if (BUFFER_ADDRESS_OFFSET < 0) {
+			bb = ByteBuffer.allocate(size);
+			NginxClojureRT.ngx_http_clojure_mem_copy_to_obj(address, bb.array(), BYTE_ARRAY_OFFSET, size);
+		}else {
+			bb = TEMPLATE.duplicate();
+			UNSAFE.putLong(bb, BUFFER_ADDRESS_OFFSET, address);
+			UNSAFE.putInt(bb, BUFFER_CAPACITY_OFFSET, size);
+			bb.clear();
+		}
+		return writable ? bb : bb.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Moves to the next chunk. If the current chunk has not been emitted it will be passed on as it is.
+	 * @return false if there are no more chunks, and all emitted data has been sent to the next filter
+	 */
+	public boolean next() {
+		if (!emitted) {
+			emit(chunk());
+		}
+		if (rc == NGX_ERROR) {
+			return false;
+		}
+		if (++idx >= count && !load()) {
+			return false;
+		}
+		chunk = null;
+		emitted = false;
+		return true;
+	}
+
+	protected boolean load() {
+		idx = 0;
+		count = 0;
+		while (true) {
+			if (chain == 0) {
+				send();
+				if (rc == NGX_ERROR) {
+					return false;
+				}
+				chain = nativePending();
+				if (chain == 0) {
+					return false;
+				}
+				if (chain == NGX_ERROR) {
+					chain = 0;
+					rc = NGX_ERROR;
+					return false;
+				}
+			}
+			count = nativeChainInfo(chain);
+			if (count == 0) {
+				chain = 0;
+				continue;
+			}
+			chain = nativeNextLink(info[(count - 1) << 2]);
+			return true;
+		}
+	}
+
+	/**
+	 * fills at most {@link #BATCH_SIZE} quadruples of links from the chain into {@link #info}
+	 * @return the number of links filled
+	 */
+	protected int nativeChainInfo(long chain) {
+		return (int)ngx_http_clojure_mem_get_chain_info(chain, info, LONG_ARRAY_OFFSET, info.length);
+	}
+
+	protected long nativeNextLink(long link) {
+		return UNSAFE.getAddress(link + NGX_HTTP_CLOJURE_CHAIN_NEXT_OFFSET);
+	}
+
+	protected long nativePending() {
+		return ngx_http_clojure_mem_body_filter_pending(r);
+	}
+
+	protected long nativeSend() {
+		return ngx_http_clojure_mem_body_filter_send(r);
+	}
+
+	protected long nativeEmit(long src, Object obj, long offset, long len, int flag) {
+		return ngx_http_clojure_mem_body_filter_emit(r, src, obj, offset, len, flag);
+	}
+
+	protected void send() {
+		if (!dirty) {
+			return;
+		}
+		dirty = false;
+		int src = (int)nativeSend();
+		if (src == NGX_ERROR || rc != NGX_ERROR) {
+			rc = src;
+		}
+	}
+
+	protected int flags() {
+		return (int)info[(idx << 2) + 3];
+	}
+
+	public ByteBuffer chunk() {
+		if (chunk == null) {
+			int i = idx << 2;
+			chunk = view(info[i + 1], (int)info[i + 2], (info[i + 3] & CHUNK_WRITABLE) != 0);
+		}
+		return chunk;
+	}
+
+	public boolean isLast() {
+		return (flags() & CHUNK_LAST) != 0;
+	}
+
+	public boolean isFlush() {
+		return (flags() & CHUNK_FLUSH) != 0;
+	}
+
+	/**
+	 * Emits the output for the current chunk.
+	 * @param o the chunk itself, null, a ByteBuffer, byte[], String or a collection/array of them
+	 */
+	public void emit(Object o) {
+		if (emitted) {
+			throw new IllegalStateException("current chunk has been emitted");
+		}
+		emitted = true;
+		int i = idx << 2;
+		long src = info[i];
+		int flag = (int)info[i + 3] & (CHUNK_LAST | CHUNK_FLUSH);
+		if (o == chunk && o != null && chunk.position() == 0 && chunk.limit() == chunk.capacity()) {
+			check(nativeEmit(src, null, 0, -1, 0));
+			return;
+		}
+		//consume the source buffer first
+		check(nativeEmit(src, null, 0, 0, 0));
+		if (o != null) {
+			emitPiece(o);
+		}
+		if (flag != 0) {
+			check(nativeEmit(0, null, 0, 0, flag));
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	protected void emitPiece(Object o) {
+		if (o instanceof ByteBuffer) {
+			ByteBuffer bb = (ByteBuffer) o;
+			int len = bb.remaining();
+			if (len == 0) {
+				return;
+			}
+			if (bb.isDirect()) {
+				check(nativeEmit(0, null, ((DirectBuffer)bb).address() + bb.position(), len, 0));
+			}else if (bb.hasArray()) {
+				check(nativeEmit(0, bb.array(), BYTE_ARRAY_OFFSET + bb.arrayOffset() + bb.position(), len, 0));
+			}else {
+				byte[] buf = new byte[len];
+				bb.duplicate().get(buf);
+				emitPiece(buf);
+				return;
+			}
+			bb.position(bb.limit());
+		}else if (o instanceof byte[]) {
+			byte[] buf = (byte[]) o;
+			if (buf.length > 0) {
+				check(nativeEmit(0, buf, BYTE_ARRAY_OFFSET, buf.length, 0));
+			}
+		}else if (o instanceof String) {
+			emitPiece(((String)o).getBytes(DEFAULT_ENCODING));
+		}else if (o instanceof Iterable) {
+			for (Object e : (Iterable)o) {
+				if (e != null) {
+					emitPiece(e);
+				}
+			}
+		}else if (o instanceof Object[]) {
+			for (Object e : (Object[])o) {
+				if (e != null) {
+					emitPiece(e);
+				}
+			}
+		}else if (o instanceof Map) {
+			throw new IllegalArgumentException("unsupported body filter result type : " + o.getClass());
+		}else {
+			emitPiece(o.toString());
+		}
+	}
+
+	protected void check(long src) {
+		dirty = true;
+		if (src == NGX_ERROR) {
+			rc = NGX_ERROR;
+			throw new RuntimeException("can not emit body filter output, maybe out of memory");
+		}
+	}
+
+	/**
+	 * Passes on the rest chunks (if any) as they are and sends all output to the next filter.
+	 * @return a fake response which carries the return code of the next filter
+	 */
+	public NginxResponse complete() {
+		while (next()) {
+			emit(chunk());
+		}
+		return new BodyFilterResponse(rc);
+	}
+
+	public int getReturnCode() {
+		return rc;
+	}
+
+	public static final class BodyFilterResponse extends NginxSimpleResponse {
+
+		final int rc;
+
+		public BodyFilterResponse(int rc) {
+			this.rc = rc;
+			this.type = TYPE_FAKE_BODY_FILTER_TAG;
+		}
+
+		@Override
+		public int fetchStatus(int defaultStatus) {
+			return rc;
+		}
+
+		@Override
+		public <K, V> Collection<Map.Entry<K, V>> fetchHeaders() {
+			return null;
+		}
+
+		@Override
+		public Object fetchBody() {
+			return null;
+		}
+	}
+}
@@ -26,6 +26,7 @@ import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
@@ -34,6 +35,7 @@ import java.util.concurrent.atomic.AtomicLong;
 import nginx.clojure.java.ArrayMap;
 import nginx.clojure.logger.LoggerService;
 import nginx.clojure.logger.TinyLogService;
+import nginx.clojure.net.NginxClojureSelectorProvider;
 import nginx.clojure.net.NginxClojureSocketFactory;
 import nginx.clojure.net.NginxClojureSocketImpl;
 import nginx.clojure.wave.JavaAgent;
@@ -69,6 +71,9 @@ public class NginxClojureRT extends MiniConstants {
 	//only for testing, e.g. with lein-ring where no coroutine support
 	public static ExecutorService threadPoolOnlyForTestingUsage;
 	
+	//only for testing, e.g. with lein-ring where no nginx timer support
+	public static ScheduledExecutorService timerOnlyForTestingUsage;
+	
 	public static boolean coroutineEnabled = false;
 	
 	public static LoggerService log;
@@ -123,6 +128,30 @@ public class NginxClojureRT extends MiniConstants {
 	 * @return
 	 */
 	public native static long ngx_http_filter_continue_next(long r, long chain);
+	
+	/**
+	 * Fills (link, pos, size, flags) of at most len/4 links of the chain into the long array.
+	 * @return the number of links filled
+	 */
+	public native static long ngx_http_clojure_mem_get_chain_info(long chain, Object buf, long offset, long len);
+	
+	/**
+	 * Appends output of a java body filter.
+	 * @param src the source chain link which will be consumed, 0 means none
+	 * @param len -1 means passing on the buffer of src as it is
+	 * @param flag {@link NginxBodyFilterChunks#CHUNK_LAST} and/or {@link NginxBodyFilterChunks#CHUNK_FLUSH}
+	 */
+	public native static long ngx_http_clojure_mem_body_filter_emit(long r, long src, Object buf, long offset, long len, int flag);
+	
+	/**
+	 * Sends output of the java body filter to the next body filter.
+	 */
+	public native static long ngx_http_clojure_mem_body_filter_send(long r);
+	
+	/**
+	 * @return the chain kept by nginx while the java body filter was suspended, 0 if there's none
+	 */
+	public native static long ngx_http_clojure_mem_body_filter_pending(long r);
 
 	/**
 	 * last_buf can be either of {@link MiniConstants#NGX_CLOJURE_BUF_LAST_OF_NONE} {@link MiniConstants#NGX_CLOJURE_BUF_LAST_OF_CHAIN}, {@link MiniConstants#NGX_CLOJURE_BUF_LAST_OF_RESPONSE}
@@ -178,6 +207,12 @@ public class NginxClojureRT extends MiniConstants {
 	
 	public native static long ngx_http_clojure_mem_read_raw_pipe(long p, Object buf, long offset, long len);
 	
+	/**
+	 * add a nginx event timer which will post the event to {@link #handlePostEvent(long, byte[], long)}
+	 * after delay milliseconds. It must be called by the nginx main thread.
+	 */
+	public native static long ngx_http_clojure_mem_add_timer(long delay, long event);
+	
 	/**
 	 * @deprecated
 	 */
@@ -199,6 +234,7 @@ public class NginxClojureRT extends MiniConstants {
 	 * 0
 	 * NGX_HTTP_CLOJURE_EVENT_HANDLER_FLAG_READ  1
 	 * NGX_HTTP_CLOJURE_EVENT_HANDLER_FLAG_WRITE 2
+	 * NGX_HTTP_CLOJURE_EVENT_HANDLER_FLAG_DRAIN 8
 	 */
 	public native static void ngx_http_hijack_turn_on_event_handler(long req, int flag);
 	
@@ -221,6 +257,11 @@ public class NginxClojureRT extends MiniConstants {
 	
 	public native static long ngx_http_hijack_send_chain(long req, long chain, int flag);
 	
+	/**
+	 * @return 1 if some output has not been sent to the client yet, 0 if all has been sent
+	 */
+	public native static long ngx_http_hijack_buffered(long req);
+	
 	public native static void ngx_http_hijack_set_async_timeout(long req, long timeout);
 	
 //	public native static long ngx_http_clojure_mem_get_body_tmp_file(long r);
@@ -424,6 +465,7 @@ public class NginxClojureRT extends MiniConstants {
 				} catch (IOException e) {
 					throw new RuntimeException("can not init NginxClojureSocketFactory!", e);
 				}
+				NginxClojureSelectorProvider.install();
 			}
 //			defaultByteBuffer = ByteBuffer.allocate(NGINX_CLOJURE_CORE_CLIENT_HEADER_MAX_SIZE);
 //			defaultCharBuffer = CharBuffer.allocate(NGINX_CLOJURE_CORE_CLIENT_HEADER_MAX_SIZE);
@@ -471,6 +513,19 @@ public class NginxClojureRT extends MiniConstants {
 		return threadPoolOnlyForTestingUsage;
 	}
 	
+	public static synchronized ScheduledExecutorService initTimerOnlyForTestingUsage() {
+		if (timerOnlyForTestingUsage == null) {
+			timerOnlyForTestingUsage = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "nginx-clojure-only4test-timer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return timerOnlyForTestingUsage;
+	}
+	
 	private static NginxHeaderHolder safeBuildKnownTableEltHeaderHolder(String name, long offset, long headersOffset) {
 		if (offset >= 0) {
 			return new TableEltHeaderHolder(name, offset, headersOffset);
@@ -733,6 +788,7 @@ public class NginxClojureRT extends MiniConstants {
 		System.setProperty(NginxHandlerFactory.NGINX_CLOJURE_HANDLER_FACTORY_SYSTEM_PROPERTY_PREFIX + "java", "nginx.clojure.java.NginxJavaHandlerFactory");
 		System.setProperty(NginxHandlerFactory.NGINX_CLOJURE_HANDLER_FACTORY_SYSTEM_PROPERTY_PREFIX + "clojure", "nginx.clojure.clj.NginxClojureHandlerFactory");
 		System.setProperty(NginxHandlerFactory.NGINX_CLOJURE_HANDLER_FACTORY_SYSTEM_PROPERTY_PREFIX + "groovy", "nginx.clojure.groovy.NginxGroovyHandlerFactory");
+		System.setProperty(NginxHandlerFactory.NGINX_CLOJURE_HANDLER_FACTORY_SYSTEM_PROPERTY_PREFIX + "rules", "nginx.clojure.NginxHeaderRulesHandlerFactory");
 	}
 
 	public static void initUnsafe() {
@@ -742,6 +798,23 @@ public class NginxClojureRT extends MiniConstants {
 		UNSAFE = HackUtils.UNSAFE;
 	}
 	
+	/**
+	 * Parses a time of handler properties, e.g. <code>800ms</code>, <code>30s</code>, <code>5m</code>.
+	 * @return milliseconds, a value without unit is in seconds like nginx
+	 */
+	public static long parseTime(String s) {
+		if (s.endsWith("ms")) {
+			return Long.parseLong(s.substring(0, s.length() - 2));
+		}
+		if (s.endsWith("s")) {
+			return Long.parseLong(s.substring(0, s.length() - 1)) * 1000;
+		}
+		if (s.endsWith("m")) {
+			return Long.parseLong(s.substring(0, s.length() - 1)) * 60000;
+		}
+		return Long.parseLong(s) * 1000;
+	}
+	
 	/**
 	 * DO NOT use this method for frequent invoking because it is slow and not optimized.
 	 */
@@ -806,10 +879,26 @@ public class NginxClojureRT extends MiniConstants {
 			for (Entry<String, String> en : properties.entrySet()) {
 				en.setValue(evalSimpleExp(en.getValue(), properties));
 			}
+			int known = 0;
+			String suspendable = properties.get(NginxSimpleHandler.SUSPENDABLE_PROPERTY);
+			if (suspendable != null && handler instanceof NginxSimpleHandler) {
+				((NginxSimpleHandler)handler).setSuspendable(Boolean.parseBoolean(suspendable));
+				known++;
+			}
+			String deadline = properties.get(NginxSimpleHandler.DEADLINE_PROPERTY);
+			if (deadline != null && handler instanceof NginxSimpleHandler) {
+				((NginxSimpleHandler)handler).setDeadline(parseTime(deadline));
+				known++;
+			}
+			NginxDecisionCache decisionCache = NginxDecisionCache.configure(properties);
+			if (decisionCache != null && handler instanceof NginxSimpleHandler) {
+				((NginxSimpleHandler)handler).setDecisionCache(decisionCache);
+				known += NginxDecisionCache.countProperties(properties);
+			}
 			if (handler instanceof Configurable) {
 				Configurable cr = (Configurable) handler;
 				cr.config(properties);
-			}else {
+			}else if (properties.size() > known) {
 				log.warn("%s is not an instance of nginx.clojure.Configurable, so properties will be ignored!", 
 						handler.getClass());
 			}
@@ -1174,6 +1263,7 @@ public class NginxClojureRT extends MiniConstants {
 					log.error("handle post poll task event error", e);
 					return NGX_HTTP_INTERNAL_SERVER_ERROR;
 				}
+				return NGX_OK;
 			}
 			default:
 				log.error("handlePostEvent:unknown event tag :%d", tag);
@@ -1260,6 +1350,8 @@ public class NginxClojureRT extends MiniConstants {
 			return NGX_HTTP_INTERNAL_SERVER_ERROR;
 		}
 		
+		NginxDecisionCache.record(req, resp);
+		
 		if (resp.type() == NginxResponse.TYPE_FAKE_PHASE_DONE) {
 			if (ctx.request.phase() == NGX_HTTP_HEADER_FILTER_PHASE) {
 				rc = ngx_http_filter_continue_next(r, -1);
@@ -1332,6 +1424,7 @@ public class NginxClojureRT extends MiniConstants {
 		if (resp == null) {
 			return NGX_HTTP_NOT_FOUND;
 		}
+		NginxDecisionCache.record(r, resp);
 		int phase = r.phase();
 		if (resp.type() == NginxResponse.TYPE_FAKE_PHASE_DONE) {
 			if (phase == NGX_HTTP_REWRITE_PHASE || phase == NGX_HTTP_ACCESS_PHASE) {
@@ -1385,12 +1478,20 @@ public class NginxClojureRT extends MiniConstants {
 		
 		long rc;
 		int phase = req.phase();
+		if (phase == NGX_HTTP_BODY_FILTER_PHASE) {
+			//a suspended body filter has sent its output by itself
+			if (resp.type() != NginxResponse.TYPE_FAKE_BODY_FILTER_TAG || resp.fetchStatus(NGX_ERROR) == NGX_ERROR) {
+				ngx_http_finalize_request(r, NGX_ERROR);
+			}
+			return;
+		}
 		if (resp.type() == NginxResponse.TYPE_FAKE_PHASE_DONE) {
 			if (phase == NGX_HTTP_HEADER_FILTER_PHASE) {
 				rc = ngx_http_filter_continue_next(r, -1);
 				ngx_http_finalize_request(r, rc);
 				return;
 			}
+			NginxDecisionCache.record(req, resp);
 			ngx_http_clojure_mem_continue_current_phase(r, NGX_DECLINED);
 			return;
 		}
@@ -1443,6 +1544,46 @@ public class NginxClojureRT extends MiniConstants {
 		ngx_http_clojure_mem_post_event(makeEventAndSaveIt(POST_EVENT_TYPE_POLL_TASK,task), null, 0);
 	}
 	
+	/**
+	 * Runs the task on the nginx main thread after delayMs milliseconds. It is backed by a nginx event timer
+	 * so no thread will be blocked or occupied while waiting. It can be called from any thread.
+	 * If there's no nginx main thread, e.g. testing with lein-ring, a java timer thread will be used instead.
+	 * @param task the task to run, the same task can be scheduled more than once
+	 * @param delayMs delay in milliseconds, if it is &lt;= 0 the task will be run at the next event loop
+	 */
+	public static void scheduleOnMainThread(final Runnable task, final long delayMs) {
+		if (NGINX_MAIN_THREAD == null) {
+			initTimerOnlyForTestingUsage().schedule(task, delayMs, TimeUnit.MILLISECONDS);
+			return;
+		}
+		
+		/*every schedule has its own event id so that the same task can be scheduled more than once*/
+		Runnable timerTask = new Runnable() {
+			@Override
+			public void run() {
+				task.run();
+			}
+		};
+		
+		if (delayMs <= 0) {
+			postPollTaskEvent(null, timerTask);
+		}else if (Thread.currentThread() == NGINX_MAIN_THREAD) {
+			long event = makeEventAndSaveIt(POST_EVENT_TYPE_POLL_TASK, timerTask);
+			if (ngx_http_clojure_mem_add_timer(delayMs, event) != NGX_OK) {
+				POSTED_EVENTS_DATA.remove(event & 0x00ffffffffffffffL);
+				throw new RuntimeException("can not add nginx timer, maybe out of memory");
+			}
+		}else {
+			/*nginx timers are not thread safe so we let the main thread add it*/
+			postPollTaskEvent(null, new Runnable() {
+				@Override
+				public void run() {
+					scheduleOnMainThread(task, delayMs);
+				}
+			});
+		}
+	}
+	
 	/**
 	 * broadcast simple event to all nginx workers
 	 * @param tag must be less than POST_EVENT_TYPE_COMPLEX_EVENT_IDX_START
@@ -1612,7 +1753,30 @@ public class NginxClojureRT extends MiniConstants {
 			}
 			
 			if (parent != null && shouldYieldParent) {
+				CoDeadline deadline = CoDeadline.current();
+				if (deadline != null) {
+					if (deadline.isExpired()) {
+						counter[0] = -1;
+						return results.clone();
+					}
+					final Coroutine fp = parent;
+					final int[] fc = counter;
+					deadline.onExpire(new Runnable() {
+						@Override
+						public void run() {
+							//a negative counter means the parent has stopped waiting for the rest branches
+							if (fc[0] > 0 && fp.getState() == Coroutine.State.SUSPENDED) {
+								fc[0] = -1;
+								fp.resume();
+							}
+						}
+					});
+				}
 				Coroutine.yield();
+				if (counter[0] < 0) {
+					//the deadline passed, results of unfinished branches are left null
+					return results.clone();
+				}
 			}
 		}
 		return results;
@@ -0,0 +1,272 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure;
+
+import static nginx.clojure.MiniConstants.NGX_DECLINED;
+import static nginx.clojure.MiniConstants.NGX_HTTP_ACCESS_PHASE;
+import static nginx.clojure.MiniConstants.NGX_HTTP_OK;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An opt-in per-worker cache of access handler decisions, e.g.
+ * <pre>
+ * access_handler_property decision.cache.key '$http_authorization';
+ * access_handler_property decision.cache.ttl 60s;
+ * access_handler_property decision.cache.negative.ttl 5s;
+ * access_handler_property decision.cache.max.size 10000;
+ * </pre>
+ * The key is built from nginx variables so that a cache hit is decided before any request map or coroutine
+ * is created. Requests whose key is empty, e.g. without an Authorization header, are never cached.
+ * <p>
+ * Only two kinds of decisions are cached: allow (the handler returns phase-done) and deny (a 4xx status
+ * except 408 and 429). A cached deny is replayed by its status code only, which lets nginx send its
+ * default error page, so headers such as WWW-Authenticate from the handler are not replayed.
+ * @author Zhang,Yuexiang (xfeep)
+ *
+ */
+public class NginxDecisionCache {
+
+	public static final String KEY_PROPERTY = "decision.cache.key";
+
+	public static final String TTL_PROPERTY = "decision.cache.ttl";
+
+	public static final String NEGATIVE_TTL_PROPERTY = "decision.cache.negative.ttl";
+
+	public static final String MAX_SIZE_PROPERTY = "decision.cache.max.size";
+
+	/**
+	 * returned by {@link #lookup(String)} when there's no valid decision
+	 */
+	public static final int MISS = Integer.MIN_VALUE;
+
+	/**
+	 * parts of the key, a String literal or a {@link Var}
+	 */
+	protected final Object[] keyParts;
+
+	protected final long ttl;
+
+	protected final long negativeTtl;
+
+	protected final int maxSize;
+
+	protected final Map<String, Decision> decisions;
+
+	protected long hits;
+
+	protected long misses;
+
+	public NginxDecisionCache(String keyExp, long ttl, long negativeTtl, final int maxSize) {
+		this.keyParts = compileKey(keyExp);
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+		this.maxSize = maxSize;
+		this.decisions = new LinkedHashMap<String, Decision>(Math.min(maxSize, 1024), 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Decision> eldest) {
+				return size() > NginxDecisionCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @return a decision cache if {@link #KEY_PROPERTY} is given, otherwise null
+	 */
+	public static NginxDecisionCache configure(Map<String, String> properties) {
+		String key = properties.get(KEY_PROPERTY);
+		if (key == null) {
+			return null;
+		}
+		String v = properties.get(TTL_PROPERTY);
+		long ttl = v == null ? 60000 : NginxClojureRT.parseTime(v);
+		v = properties.get(NEGATIVE_TTL_PROPERTY);
+		long negativeTtl = v == null ? ttl : NginxClojureRT.parseTime(v);
+		v = properties.get(MAX_SIZE_PROPERTY);
+		int maxSize = v == null ? 10000 : Integer.parseInt(v.trim());
+		return new NginxDecisionCache(key, ttl, negativeTtl, maxSize);
+	}
+
+	/**
+	 * @return the number of decision cache properties in the properties
+	 */
+	public static int countProperties(Map<String, String> properties) {
+		int c = 0;
+		for (String k : new String[] {KEY_PROPERTY, TTL_PROPERTY, NEGATIVE_TTL_PROPERTY, MAX_SIZE_PROPERTY}) {
+			if (properties.containsKey(k)) {
+				c++;
+			}
+		}
+		return c;
+	}
+
+	protected static Object[] compileKey(String exp) {
+		List<Object> parts = new ArrayList<Object>();
+		int len = exp.length();
+		int s = 0;
+		for (int i = 0; i < len; i++) {
+			if (exp.charAt(i) != '$') {
+				continue;
+			}
+			if (i > s) {
+				parts.add(exp.substring(s, i));
+			}
+			int b = i + 1, e;
+			if (b < len && exp.charAt(b) == '{') {
+				e = exp.indexOf('}', ++b);
+				if (e < 0) {
+					throw new IllegalArgumentException("unclosed '{' in " + KEY_PROPERTY + " : " + exp);
+				}
+				s = e + 1;
+			}else {
+				for (e = b; e < len && (Character.isLetterOrDigit(exp.charAt(e)) || exp.charAt(e) == '_'); e++);
+				s = e;
+			}
+			if (e == b) {
+				throw new IllegalArgumentException("empty variable name in " + KEY_PROPERTY + " : " + exp);
+			}
+			parts.add(new Var(exp.substring(b, e)));
+			i = s - 1;
+		}
+		if (s < len) {
+			parts.add(exp.substring(s));
+		}
+		return parts.toArray();
+	}
+
+	/**
+	 * Builds the cache key of a native request, it must be called in the nginx main thread.
+	 * @return null if any variable in the key is empty
+	 */
+	public String key(long r) {
+		if (keyParts.length == 1 && keyParts[0] instanceof Var) {
+			String v = NginxClojureRT.getNGXVariable(r, ((Var)keyParts[0]).name);
+			return v == null || v.length() == 0 ? null : v;
+		}
+		StringBuilder sb = new StringBuilder();
+		for (Object p : keyParts) {
+			if (p instanceof Var) {
+				String v = NginxClojureRT.getNGXVariable(r, ((Var)p).name);
+				if (v == null || v.length() == 0) {
+					return null;
+				}
+				sb.append(v);
+			}else {
+				sb.append(p);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return NGX_DECLINED for a cached allow, a status for a cached deny, or {@link #MISS}
+	 */
+	public synchronized int lookup(String key) {
+		Decision d = decisions.get(key);
+		if (d == null) {
+			misses++;
+			return MISS;
+		}
+		if (d.expireAt <= System.currentTimeMillis()) {
+			decisions.remove(key);
+			misses++;
+			return MISS;
+		}
+		hits++;
+		return d.rc;
+	}
+
+	public synchronized void put(String key, int rc) {
+		long t = rc == NGX_DECLINED ? ttl : negativeTtl;
+		if (t <= 0) {
+			return;
+		}
+		decisions.put(key, new Decision(rc, System.currentTimeMillis() + t));
+	}
+
+	public synchronized void invalidate(String key) {
+		decisions.remove(key);
+	}
+
+	public synchronized void clear() {
+		decisions.clear();
+	}
+
+	public synchronized int size() {
+		return decisions.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return NGX_DECLINED for allow, a status for deny, or {@link #MISS} if the response should not be cached
+	 */
+	public static int decisionOf(NginxResponse resp) {
+		if (resp.type() == NginxResponse.TYPE_FAKE_PHASE_DONE) {
+			return NGX_DECLINED;
+		}
+		if (resp.type() == NginxResponse.TYPE_NORMAL) {
+			int status = resp.fetchStatus(NGX_HTTP_OK);
+			if (status >= 400 && status < 500 && status != 408 && status != 429) {
+				return status;
+			}
+		}
+		return MISS;
+	}
+
+	/**
+	 * Records the decision of an access handler, it must be called in the nginx main thread.
+	 */
+	public static void record(NginxRequest req, NginxResponse resp) {
+		if (req.phase() != NGX_HTTP_ACCESS_PHASE || !(req.handler() instanceof NginxSimpleHandler)) {
+			return;
+		}
+		NginxDecisionCache cache = ((NginxSimpleHandler)req.handler()).decisionCache;
+		if (cache == null || req.isReleased()) {
+			return;
+		}
+		int rc = decisionOf(resp);
+		if (rc == MISS) {
+			return;
+		}
+		String key = cache.key(req.nativeRequest());
+		if (key != null) {
+			cache.put(key, rc);
+		}
+	}
+
+	public static final class Var {
+		final String name;
+
+		public Var(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public String toString() {
+			return "$" + name;
+		}
+	}
+
+	protected static final class Decision {
+		final int rc;
+		final long expireAt;
+
+		Decision(int rc, long expireAt) {
+			this.rc = rc;
+			this.expireAt = expireAt;
+		}
+	}
+}
@@ -8,4 +8,9 @@ public interface NginxFilterRequest extends NginxRequest {
 	
 	public Map<String, Object> responseHeaders();
 	
+	/**
+	 * @return native ngx_chain_t given to the body filter, 0 for header filters
+	 */
+	public long nativeChain();
+	
 }
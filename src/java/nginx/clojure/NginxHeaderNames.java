@@ -0,0 +1,160 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure;
+
+import static nginx.clojure.MiniConstants.BYTE_ARRAY_OFFSET;
+import static nginx.clojure.MiniConstants.DEFAULT_ENCODING;
+import static nginx.clojure.MiniConstants.NGX_HTTP_CLOJURE_STR_DATA_OFFSET;
+import static nginx.clojure.MiniConstants.NGX_HTTP_CLOJURE_STR_LEN_OFFSET;
+import static nginx.clojure.MiniConstants.NGX_HTTP_CLOJURE_TEL_HASH_OFFSET;
+import static nginx.clojure.MiniConstants.NGX_HTTP_CLOJURE_TEL_KEY_OFFSET;
+import static nginx.clojure.MiniConstants.NGX_HTTP_CLOJURE_UINT_SIZE;
+import static nginx.clojure.NginxClojureRT.UNSAFE;
+import static nginx.clojure.NginxClojureRT.fetchNGXInt;
+
+/**
+ * A per-worker cache of header names, which maps the nginx header hash and the name bytes of a
+ * ngx_table_elt_t to a String, so that reading the headers of every request does not decode and create
+ * the same few dozen names again and again.
+ * <p>
+ * It is a 2-way set associative table which is pre-populated with common names in both their usual form
+ * and their lower case form (HTTP/2). A miss replaces an entry, so the table never grows.
+ * Entries are immutable so lookups need no lock.
+ * @author Zhang,Yuexiang (xfeep)
+ *
+ */
+public final class NginxHeaderNames {
+
+	public static final int CAPACITY = 512;
+
+	/**
+	 * longer names are not cached
+	 */
+	public static final int MAX_NAME_LENGTH = 64;
+
+	public static final String[] COMMON_NAMES = {"Host", "Connection", "User-Agent", "Accept", "Accept-Encoding",
+		"Accept-Language", "Accept-Charset", "Cookie", "Referer", "Origin", "Authorization", "Cache-Control",
+		"Pragma", "Content-Type", "Content-Length", "Content-Encoding", "Transfer-Encoding", "Expect",
+		"If-Modified-Since", "If-None-Match", "If-Match", "If-Unmodified-Since", "If-Range", "Range", "Upgrade",
+		"Upgrade-Insecure-Requests", "Keep-Alive", "TE", "Via", "Date", "DNT", "X-Forwarded-For",
+		"X-Forwarded-Proto", "X-Forwarded-Host", "X-Real-IP", "X-Requested-With", "X-Request-Id",
+		"Sec-WebSocket-Key", "Sec-WebSocket-Version", "Sec-WebSocket-Extensions", "Sec-WebSocket-Protocol",
+		"Sec-Fetch-Site", "Sec-Fetch-Mode", "Sec-Fetch-Dest", "Sec-Fetch-User", "Sec-CH-UA", "Sec-CH-UA-Mobile",
+		"Sec-CH-UA-Platform", "Server", "Location", "Last-Modified", "ETag", "Expires", "Set-Cookie",
+		"WWW-Authenticate", "Accept-Ranges", "Content-Range", "Vary", "Access-Control-Allow-Origin"};
+
+	private static final Name[] names = new Name[CAPACITY];
+
+	static {
+		for (String n : COMMON_NAMES) {
+			put(n);
+			put(n.toLowerCase());
+		}
+	}
+
+	private NginxHeaderNames() {
+	}
+
+	static final class Name {
+		final long hash;
+		final byte[] bytes;
+		final String value;
+
+		Name(long hash, byte[] bytes, String value) {
+			this.hash = hash;
+			this.bytes = bytes;
+			this.value = value;
+		}
+
+		boolean matches(long hash, long data, int len) {
+			if ((int)this.hash != (int)hash || bytes.length != len) {
+				return false;
+			}
+			for (int i = 0; i < len; i++) {
+				if (UNSAFE.getByte(data + i) != bytes[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * the same hash as nginx computes for header names, viz. ngx_hash over the lower case name
+	 */
+	public static long hash(byte[] bs) {
+		long h = 0;
+		for (byte b : bs) {
+			h = h * 31 + (b >= 'A' && b <= 'Z' ? b | 0x20 : b);
+		}
+		return h;
+	}
+
+	private static long hash(long data, int len) {
+		long h = 0;
+		for (int i = 0; i < len; i++) {
+			byte b = UNSAFE.getByte(data + i);
+			h = h * 31 + (b >= 'A' && b <= 'Z' ? b | 0x20 : b);
+		}
+		return h;
+	}
+
+	/**
+	 * only low bits are used so that it is the same for 32-bit and 64-bit ngx_uint_t
+	 */
+	private static int index(long h) {
+		return (int)(h ^ (h >>> 9)) & (CAPACITY - 2);
+	}
+
+	private static void put(String n) {
+		byte[] bs = n.getBytes(DEFAULT_ENCODING);
+		put(new Name(hash(bs), bs, n));
+	}
+
+	private static void put(Name n) {
+		int i = index(n.hash);
+		if (names[i] == null) {
+			names[i] = n;
+		}else {
+			names[i + 1] = n;
+		}
+	}
+
+	/**
+	 * Fetches the name of a header.
+	 * @param tel address of a ngx_table_elt_t
+	 */
+	public static String fetch(long tel) {
+		long key = tel + NGX_HTTP_CLOJURE_TEL_KEY_OFFSET;
+		int len = fetchNGXInt(key + NGX_HTTP_CLOJURE_STR_LEN_OFFSET);
+		if (len <= 0) {
+			return null;
+		}
+		long data = UNSAFE.getAddress(key + NGX_HTTP_CLOJURE_STR_DATA_OFFSET);
+		if (len > MAX_NAME_LENGTH) {
+			return NginxClojureRT.fetchNGXString(key, DEFAULT_ENCODING);
+		}
+		long h = NGX_HTTP_CLOJURE_UINT_SIZE == 4 ? UNSAFE.getInt(tel + NGX_HTTP_CLOJURE_TEL_HASH_OFFSET) & 0xffffffffL
+				: UNSAFE.getLong(tel + NGX_HTTP_CLOJURE_TEL_HASH_OFFSET);
+		if (h == 0 || h == 1) {
+			//response headers set by modules often use 1 as their hash
+			h = hash(data, len);
+		}
+		int i = index(h);
+		Name n = names[i];
+		if (n != null && n.matches(h, data, len)) {
+			return n.value;
+		}
+		n = names[i + 1];
+		if (n != null && n.matches(h, data, len)) {
+			return n.value;
+		}
+		byte[] bs = new byte[len];
+		NginxClojureRT.ngx_http_clojure_mem_copy_to_obj(data, bs, BYTE_ARRAY_OFFSET, len);
+		String s = new String(bs, DEFAULT_ENCODING);
+		put(new Name(h, bs, s));
+		return s;
+	}
+}
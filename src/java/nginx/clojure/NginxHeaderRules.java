@@ -0,0 +1,291 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure;
+
+import static nginx.clojure.MiniConstants.NGX_HTTP_CLOJURE_HEADERSO_STATUS_OFFSET;
+import static nginx.clojure.MiniConstants.NGX_HTTP_CLOJURE_REQ_HEADERS_OUT_OFFSET;
+import static nginx.clojure.MiniConstants.NGX_HTTP_CLOJURE_REQ_POOL_OFFSET;
+import static nginx.clojure.NginxClojureRT.UNSAFE;
+import static nginx.clojure.NginxClojureRT.fetchNGXInt;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A precompiled set of response header rules, e.g.
+ * <pre>
+ * header_filter_type rules;
+ * header_filter_code '
+ *   set X-Frame-Options DENY;
+ *   add Cache-Control "no-store" if-status 4xx 5xx;
+ *   remove X-Powered-By;
+ *   replace Location "^http://" "https://" if-status 301 302;
+ * ';
+ * </pre>
+ * Supported rules are:
+ * <ul>
+ * <li><code>set name value</code> replaces all values of the header</li>
+ * <li><code>add name value</code> appends a value to the header, a single-valued known header (e.g. Server)
+ * will only be set if it is absent</li>
+ * <li><code>remove name</code> removes the header</li>
+ * <li><code>replace name regex replacement</code> rewrites every value of the header by {@link Matcher#replaceAll(String)}</li>
+ * </ul>
+ * Every rule can end with <code>if-status s1 s2 ...</code>, where a status is either an exact code, e.g. 404,
+ * or a class, e.g. 5xx. Rules are separated by ';' or new lines and values with white spaces can be quoted by '"'.
+ * <p>
+ * Rules are compiled once when the handler is registered and they are applied directly on the native
+ * headers_out without any request map or coroutine.
+ * @author Zhang,Yuexiang (xfeep)
+ *
+ */
+public class NginxHeaderRules {
+
+	public static final int OP_SET = 0;
+
+	public static final int OP_ADD = 1;
+
+	public static final int OP_REMOVE = 2;
+
+	public static final int OP_REPLACE = 3;
+
+	public static final int MAX_STATUS = 1000;
+
+	protected final Rule[] rules;
+
+	public NginxHeaderRules(Rule[] rules) {
+		this.rules = rules;
+	}
+
+	public Rule[] getRules() {
+		return rules;
+	}
+
+	/**
+	 * Applies rules to headers_out of the native request.
+	 * @param holders used to find the header holder of a header name
+	 */
+	public void apply(long r, NginxHandler holders) {
+		long h = r + NGX_HTTP_CLOJURE_REQ_HEADERS_OUT_OFFSET;
+		long pool = UNSAFE.getAddress(r + NGX_HTTP_CLOJURE_REQ_POOL_OFFSET);
+		int status = fetchNGXInt(h + NGX_HTTP_CLOJURE_HEADERSO_STATUS_OFFSET);
+		for (Rule rule : rules) {
+			if (!rule.matches(status)) {
+				continue;
+			}
+			NginxHeaderHolder holder = rule.holder;
+			if (holder == null) {
+				//known header holders are ready only after nginx-clojure runtime is initialized
+				holder = rule.holder = holders.fetchResponseHeaderPusher(rule.name);
+			}
+			switch (rule.op) {
+			case OP_SET:
+				holder.push(h, pool, rule.value);
+				break;
+			case OP_REMOVE:
+				holder.clear(h);
+				break;
+			default:
+				Object old = holder.fetch(h);
+				if (old == null && rule.op == OP_REPLACE) {
+					break;
+				}
+				Object v = rule.transform(old);
+				if (v != old) {
+					holder.push(h, pool, v);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if the holder is of a known header which has only one value, e.g. Content-Type or Server
+	 */
+	public static boolean isSingleValued(NginxHeaderHolder holder) {
+		return !(holder instanceof ArrayHeaderHolder) && !(holder instanceof UnknownHeaderHolder);
+	}
+
+	public static NginxHeaderRules compile(String code) {
+		List<Rule> rules = new ArrayList<Rule>();
+		List<String> tokens = new ArrayList<String>();
+		int line = 1;
+		int len = code.length();
+		for (int i = 0; i <= len; i++) {
+			char c = i == len ? ';' : code.charAt(i);
+			if (c == ';' || c == '\n') {
+				if (!tokens.isEmpty()) {
+					rules.add(compileRule(tokens, line));
+					tokens.clear();
+				}
+				if (c == '\n') {
+					line++;
+				}
+			}else if (c == '#') {
+				while (i + 1 < len && code.charAt(i + 1) != '\n') {
+					i++;
+				}
+			}else if (c == '"') {
+				StringBuilder sb = new StringBuilder();
+				for (i++; i < len && (c = code.charAt(i)) != '"'; i++) {
+					if (c == '\\' && i + 1 < len) {
+						c = code.charAt(++i);
+					}
+					sb.append(c);
+				}
+				if (i == len) {
+					throw new IllegalArgumentException("unclosed quote at line " + line);
+				}
+				tokens.add(sb.toString());
+			}else if (!Character.isWhitespace(c)) {
+				int s = i;
+				while (i + 1 < len && " \t\r\n;\"".indexOf(code.charAt(i + 1)) < 0) {
+					i++;
+				}
+				tokens.add(code.substring(s, i + 1));
+			}
+		}
+		return new NginxHeaderRules(rules.toArray(new Rule[rules.size()]));
+	}
+
+	protected static Rule compileRule(List<String> tokens, int line) {
+		int end = tokens.indexOf("if-status");
+		BitSet statuses = null;
+		if (end >= 0) {
+			if (end == tokens.size() - 1) {
+				throw new IllegalArgumentException("missing status after if-status at line " + line);
+			}
+			statuses = new BitSet(MAX_STATUS);
+			for (String s : tokens.subList(end + 1, tokens.size())) {
+				parseStatus(statuses, s, line);
+			}
+		}else {
+			end = tokens.size();
+		}
+		String op = tokens.get(0);
+		int args = end - 1;
+		if ("set".equals(op) || "add".equals(op)) {
+			checkArgs(op, args, 2, line);
+			return new Rule("set".equals(op) ? OP_SET : OP_ADD, tokens.get(1), tokens.get(2), null, statuses);
+		}else if ("remove".equals(op)) {
+			checkArgs(op, args, 1, line);
+			return new Rule(OP_REMOVE, tokens.get(1), null, null, statuses);
+		}else if ("replace".equals(op)) {
+			checkArgs(op, args, 3, line);
+			Pattern p;
+			try {
+				p = Pattern.compile(tokens.get(2));
+			}catch(RuntimeException e) {
+				throw new IllegalArgumentException("bad regex " + tokens.get(2) + " at line " + line, e);
+			}
+			return new Rule(OP_REPLACE, tokens.get(1), tokens.get(3), p, statuses);
+		}
+		throw new IllegalArgumentException("unknown header rule '" + op + "' at line " + line);
+	}
+
+	private static void checkArgs(String op, int args, int expected, int line) {
+		if (args != expected) {
+			throw new IllegalArgumentException(op + " needs " + expected + " arguments but " + args + " given at line " + line);
+		}
+	}
+
+	private static void parseStatus(BitSet statuses, String s, int line) {
+		try {
+			if (s.length() == 3 && (s.endsWith("xx") || s.endsWith("XX"))) {
+				int from = Integer.parseInt(s.substring(0, 1)) * 100;
+				statuses.set(from, from + 100);
+				return;
+			}
+			int st = Integer.parseInt(s);
+			if (st > 0 && st < MAX_STATUS) {
+				statuses.set(st);
+				return;
+			}
+		}catch(NumberFormatException e) {
+		}
+		throw new IllegalArgumentException("bad status '" + s + "' at line " + line);
+	}
+
+	public static final class Rule {
+
+		final int op;
+
+		final String name;
+
+		final String value;
+
+		final Pattern regex;
+
+		/**
+		 * null means any status
+		 */
+		final BitSet statuses;
+
+		NginxHeaderHolder holder;
+
+		public Rule(int op, String name, String value, Pattern regex, BitSet statuses) {
+			this.op = op;
+			this.name = name;
+			this.value = value;
+			this.regex = regex;
+			this.statuses = statuses;
+		}
+
+		public boolean matches(int status) {
+			return statuses == null || (status > 0 && status < MAX_STATUS && statuses.get(status));
+		}
+
+		/**
+		 * @param old the current value of the header, a String, String[] or null
+		 * @return the new value of the header, old itself if it is unchanged
+		 */
+		public Object transform(Object old) {
+			switch (op) {
+			case OP_SET:
+				return value;
+			case OP_REMOVE:
+				return null;
+			case OP_ADD:
+				if (old == null) {
+					return value;
+				}
+				if (holder != null && isSingleValued(holder)) {
+					//a single-valued known header is only set if it is absent
+					return old;
+				}
+				if (old instanceof String[]) {
+					String[] olds = (String[]) old;
+					String[] vals = new String[olds.length + 1];
+					System.arraycopy(olds, 0, vals, 0, olds.length);
+					vals[olds.length] = value;
+					return vals;
+				}
+				return new String[] {old.toString(), value};
+			default:
+				if (old == null) {
+					return null;
+				}
+				if (old instanceof String[]) {
+					String[] olds = (String[]) old;
+					String[] vals = new String[olds.length];
+					for (int i = 0; i < olds.length; i++) {
+						vals[i] = regex.matcher(olds[i]).replaceAll(value);
+					}
+					return vals;
+				}
+				return regex.matcher(old.toString()).replaceAll(value);
+			}
+		}
+
+		public int getOp() {
+			return op;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure;
+
+import static nginx.clojure.MiniConstants.NGX_HTTP_INTERNAL_SERVER_ERROR;
+import static nginx.clojure.MiniConstants.NGX_HTTP_OK;
+import static nginx.clojure.NginxClojureRT.log;
+import static nginx.clojure.NginxClojureRT.ngx_http_filter_continue_next;
+
+import java.io.IOException;
+
+/**
+ * A header filter which applies precompiled {@link NginxHeaderRules}. 
+ * It never creates a request map or a coroutine, so it is much cheaper than a java/clojure header filter for
+ * trivial header transforms.
+ * @author Zhang,Yuexiang (xfeep)
+ *
+ */
+public class NginxHeaderRulesHandler extends NginxSimpleHandler {
+
+	protected final NginxHeaderRules rules;
+
+	public NginxHeaderRulesHandler(NginxHeaderRules rules) {
+		this.rules = rules;
+		this.suspendable = false;
+	}
+	
+	public NginxHeaderRules getRules() {
+		return rules;
+	}
+
+	@Override
+	public int execute(long r, long c) {
+		if (r == 0) {
+			return NGX_HTTP_OK;
+		}
+		try {
+			rules.apply(r, this);
+		}catch(Throwable e) {
+			log.error("can not apply header rules", e);
+			return NGX_HTTP_INTERNAL_SERVER_ERROR;
+		}
+		return (int)ngx_http_filter_continue_next(r, -1);
+	}
+
+	@Override
+	public NginxRequest makeRequest(long r, long c) {
+		throw new UnsupportedOperationException("header rules need no request");
+	}
+
+	@Override
+	public NginxResponse process(NginxRequest req) throws IOException {
+		throw new UnsupportedOperationException("header rules need no request");
+	}
+
+	@Override
+	public NginxResponse toNginxResponse(NginxRequest req, Object resp) {
+		throw new UnsupportedOperationException("header rules need no response");
+	}
+
+	@Override
+	public void completeAsyncResponse(NginxRequest req, Object resp) {
+		throw new UnsupportedOperationException("header rules are never asynchronous");
+	}
+
+	@Override
+	public NginxHttpServerChannel hijack(NginxRequest req, boolean ignoreFilter) {
+		throw new UnsupportedOperationException("header rules can not hijack a request");
+	}
+
+}
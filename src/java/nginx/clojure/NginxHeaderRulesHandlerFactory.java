@@ -0,0 +1,58 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure;
+
+import static nginx.clojure.MiniConstants.DEFAULT_ENCODING;
+import static nginx.clojure.MiniConstants.NGX_HTTP_HEADER_FILTER_PHASE;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Factory of handler type <code>rules</code>. Rules are given by <code>header_filter_code</code>
+ * or by a rules file whose path is given by <code>header_filter_name</code>.
+ * @see NginxHeaderRules
+ */
+public class NginxHeaderRulesHandlerFactory extends NginxHandlerFactory {
+
+	public NginxHeaderRulesHandlerFactory() {
+	}
+
+	@Override
+	public NginxHandler newInstance(int phase, String name, String code) {
+		if (phase != NGX_HTTP_HEADER_FILTER_PHASE) {
+			throw new UnsupportedOperationException("rules can only be used by header filters");
+		}
+		if (code == null) {
+			if (name == null) {
+				throw new IllegalArgumentException("neither header_filter_code nor header_filter_name is given for rules");
+			}
+			try {
+				code = readRules(name.trim());
+			} catch (IOException e) {
+				throw new RuntimeException("can not read header rules file : " + name, e);
+			}
+		}
+		return new NginxHeaderRulesHandler(NginxHeaderRules.compile(code));
+	}
+
+	protected String readRules(String file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int c;
+			while ((c = in.read(buf)) > 0) {
+				out.write(buf, 0, c);
+			}
+			return new String(out.toByteArray(), DEFAULT_ENCODING);
+		}finally {
+			in.close();
+		}
+	}
+
+}
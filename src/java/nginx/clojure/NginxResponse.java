@@ -7,6 +7,10 @@ public interface NginxResponse {
 	
 	public static int TYPE_FAKE_PHASE_DONE = -5000;
 	public static int TYPE_FAKE_ASYNC_TAG = -5001;
+	/**
+	 * returned by body filters, its status is the return code of the next body filter
+	 */
+	public static int TYPE_FAKE_BODY_FILTER_TAG = -5002;
 	public static int TYPE_NORMAL = 0;
 	public static int TYPE_ERROR = 1;
 	public static int TYPE_FATAL = 2;
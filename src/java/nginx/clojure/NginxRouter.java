@@ -0,0 +1,391 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure;
+
+/**
+ * A compiled radix trie router with path parameters and method dispatch, e.g.
+ * <pre>
+ * NginxRouter router = new NginxRouter()
+ *   .add("GET", "/users/:id", getUser)
+ *   .add("PUT", "/users/:id", updateUser)
+ *   .add(null, "/static/*path", files);
+ * </pre>
+ * A parameter <code>:name</code> matches a non-empty path segment and a wildcard <code>*name</code>, which must be
+ * the last part of a pattern, matches the rest of the path. Static routes take priority over parameters, and
+ * parameters take priority over wildcards. A null method means any method.
+ * <p>
+ * Lookup is O(path length). It never creates a substring: captured parameters are offsets into the path,
+ * which are kept in a {@link Match}.
+ * @author Zhang,Yuexiang (xfeep)
+ *
+ */
+public class NginxRouter {
+
+	public static final String[] METHODS = {"GET", "HEAD", "POST", "PUT", "DELETE", "PATCH", "OPTIONS", "CONNECT", "TRACE"};
+
+	public static final int ANY = METHODS.length;
+
+	protected final Node root = new Node("");
+
+	protected int maxParams;
+
+	protected final ThreadLocal<Match> localMatch = new ThreadLocal<Match>();
+
+	public NginxRouter() {
+	}
+
+	/**
+	 * @return index of the method in {@link #METHODS}, {@link #ANY} for null, -1 for an unknown method
+	 */
+	public static int methodIndex(String method) {
+		if (method == null) {
+			return ANY;
+		}
+		for (int i = 0; i < METHODS.length; i++) {
+			if (METHODS[i].equalsIgnoreCase(method)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public NginxRouter add(String method, String pattern, Object handler) {
+		int m = methodIndex(method);
+		if (m < 0) {
+			throw new IllegalArgumentException("unknown method " + method + " for route " + pattern);
+		}
+		if (pattern == null || pattern.length() == 0 || pattern.charAt(0) != '/') {
+			throw new IllegalArgumentException("route pattern must start with '/' : " + pattern);
+		}
+		if (handler == null) {
+			throw new IllegalArgumentException("null handler for route " + pattern);
+		}
+		Node n = root;
+		int params = 0;
+		int len = pattern.length();
+		int i = 0;
+		while (i < len) {
+			char c = pattern.charAt(i);
+			if (c == ':' || c == '*') {
+				int e = pattern.indexOf('/', i);
+				if (e < 0) {
+					e = len;
+				}else if (c == '*') {
+					throw new IllegalArgumentException("wildcard must be the last part of route " + pattern);
+				}
+				String name = pattern.substring(i + 1, e);
+				if (name.length() == 0) {
+					throw new IllegalArgumentException("empty parameter name in route " + pattern);
+				}
+				if (c == ':') {
+					if (n.param == null) {
+						n.param = new Node("");
+						n.paramName = name;
+					}else if (!n.paramName.equals(name)) {
+						throw new IllegalArgumentException("parameter :" + name + " conflicts with :" + n.paramName + " in route " + pattern);
+					}
+					n = n.param;
+				}else {
+					if (n.wildcard == null) {
+						n.wildcard = new Node("");
+						n.wildcardName = name;
+					}else if (!n.wildcardName.equals(name)) {
+						throw new IllegalArgumentException("wildcard *" + name + " conflicts with *" + n.wildcardName + " in route " + pattern);
+					}
+					n = n.wildcard;
+				}
+				params++;
+				i = e;
+			}else {
+				int e = i;
+				while (e < len && pattern.charAt(e) != ':' && pattern.charAt(e) != '*') {
+					e++;
+				}
+				n = n.insertStatic(pattern.substring(i, e));
+				i = e;
+			}
+		}
+		if (n.handlers[m] != null) {
+			throw new IllegalArgumentException("duplicated route " + (method == null ? "ANY" : method) + " " + pattern);
+		}
+		n.handlers[m] = handler;
+		n.hasHandler = true;
+		n.methods |= 1 << m;
+		if (params > maxParams) {
+			maxParams = params;
+		}
+		return this;
+	}
+
+	/**
+	 * @return a match holder which is big enough for this router's routes
+	 */
+	public Match newMatch() {
+		return new Match(maxParams);
+	}
+
+	/**
+	 * @return the match holder of the current thread, which is reused by the next lookup on the same thread,
+	 * so captured parameters must be fetched before invoking the matched handler
+	 */
+	public Match localMatch() {
+		Match m = localMatch.get();
+		if (m == null || m.names.length < maxParams) {
+			localMatch.set(m = newMatch());
+		}
+		return m;
+	}
+
+	/**
+	 * @param match holder of captured parameters, it is reset before matching
+	 * @return the handler, or null if no route matches, see {@link Match#isMethodNotAllowed()}
+	 */
+	public Object match(String method, String path, Match match) {
+		match.reset(path);
+		int m = methodIndex(method);
+		Object h = match(root, path, 0, m, match);
+		match.handler = h;
+		return h;
+	}
+
+	protected Object match(Node n, String path, int i, int m, Match match) {
+		int len = path.length();
+		if (i == len) {
+			if (n.hasHandler) {
+				Object h = n.handler(m);
+				if (h != null) {
+					return h;
+				}
+				match.allowed |= n.methods;
+			}
+			//a wildcard also matches an empty rest
+			if (n.wildcard != null && n.wildcard.hasHandler) {
+				return wildcard(n, path, i, m, match);
+			}
+			return null;
+		}
+		char c = path.charAt(i);
+		char[] indices = n.indices;
+		for (int k = 0; k < indices.length; k++) {
+			if (indices[k] == c) {
+				Node child = n.children[k];
+				String p = child.prefix;
+				if (path.regionMatches(i, p, 0, p.length())) {
+					Object h = match(child, path, i + p.length(), m, match);
+					if (h != null) {
+						return h;
+					}
+				}
+				break;
+			}
+		}
+		if (n.param != null && c != '/') {
+			int e = path.indexOf('/', i);
+			if (e < 0) {
+				e = len;
+			}
+			int s = match.size;
+			match.push(n.paramName, i, e);
+			Object h = match(n.param, path, e, m, match);
+			if (h != null) {
+				return h;
+			}
+			match.size = s;
+		}
+		if (n.wildcard != null) {
+			return wildcard(n, path, i, m, match);
+		}
+		return null;
+	}
+
+	private Object wildcard(Node n, String path, int i, int m, Match match) {
+		Object h = n.wildcard.handler(m);
+		if (h == null) {
+			match.allowed |= n.wildcard.methods;
+			return null;
+		}
+		match.push(n.wildcardName, i, path.length());
+		return h;
+	}
+
+	protected static final class Node {
+
+		String prefix;
+
+		char[] indices = new char[0];
+
+		Node[] children = new Node[0];
+
+		Node param;
+
+		String paramName;
+
+		Node wildcard;
+
+		String wildcardName;
+
+		final Object[] handlers = new Object[ANY + 1];
+
+		boolean hasHandler;
+
+		/**
+		 * bits of methods which have handlers
+		 */
+		int methods;
+
+		Node(String prefix) {
+			this.prefix = prefix;
+		}
+
+		Object handler(int m) {
+			if (m < 0) {
+				return handlers[ANY];
+			}
+			Object h = handlers[m];
+			if (h == null && m == 1) { //HEAD falls back to GET
+				h = handlers[0];
+			}
+			return h == null ? handlers[ANY] : h;
+		}
+
+		/**
+		 * @return the node at the end of the static path s which starts from this node
+		 */
+		Node insertStatic(String s) {
+			Node n = this;
+			while (s.length() > 0) {
+				char c = s.charAt(0);
+				int k = 0;
+				while (k < n.indices.length && n.indices[k] != c) {
+					k++;
+				}
+				if (k == n.indices.length) {
+					Node child = new Node(s);
+					n.addChild(child);
+					return child;
+				}
+				Node child = n.children[k];
+				String p = child.prefix;
+				int common = 0;
+				int max = Math.min(p.length(), s.length());
+				while (common < max && p.charAt(common) == s.charAt(common)) {
+					common++;
+				}
+				if (common < p.length()) {
+					//split the child
+					Node mid = new Node(p.substring(0, common));
+					child.prefix = p.substring(common);
+					mid.addChild(child);
+					n.children[k] = mid;
+					child = mid;
+				}
+				s = s.substring(common);
+				n = child;
+			}
+			return n;
+		}
+
+		void addChild(Node child) {
+			int l = indices.length;
+			char[] ni = new char[l + 1];
+			Node[] nc = new Node[l + 1];
+			System.arraycopy(indices, 0, ni, 0, l);
+			System.arraycopy(children, 0, nc, 0, l);
+			ni[l] = child.prefix.charAt(0);
+			nc[l] = child;
+			indices = ni;
+			children = nc;
+		}
+	}
+
+	/**
+	 * Result of a lookup, parameters are kept as offsets into the path until they are fetched.
+	 */
+	public static final class Match {
+
+		String path;
+
+		final String[] names;
+
+		final int[] starts;
+
+		final int[] ends;
+
+		int size;
+
+		/**
+		 * bits of methods of all routes which match the path but not the method
+		 */
+		int allowed;
+
+		Object handler;
+
+		public Match(int capacity) {
+			names = new String[capacity];
+			starts = new int[capacity];
+			ends = new int[capacity];
+		}
+
+		void reset(String path) {
+			this.path = path;
+			size = 0;
+			allowed = 0;
+			handler = null;
+		}
+
+		void push(String name, int start, int end) {
+			names[size] = name;
+			starts[size] = start;
+			ends[size] = end;
+			size++;
+		}
+
+		public Object getHandler() {
+			return handler;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public String name(int i) {
+			return names[i];
+		}
+
+		public String value(int i) {
+			return path.substring(starts[i], ends[i]);
+		}
+
+		/**
+		 * @return true if the path matches a route but the method does not
+		 */
+		public boolean isMethodNotAllowed() {
+			return handler == null && allowed != 0;
+		}
+
+		/**
+		 * @return methods allowed for the matched path, which can be used as the Allow header of a 405 response
+		 */
+		public String allowedMethods() {
+			if (allowed == 0) {
+				return null;
+			}
+			int ms = allowed;
+			if ((ms & 1) != 0) { //HEAD falls back to GET
+				ms |= 2;
+			}
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < METHODS.length; i++) {
+				if ((ms & (1 << i)) != 0) {
+					if (sb.length() > 0) {
+						sb.append(", ");
+					}
+					sb.append(METHODS[i]);
+				}
+			}
+			return sb.toString();
+		}
+	}
+}
@@ -5,6 +5,8 @@ import static nginx.clojure.MiniConstants.CONTENT_TYPE;
 import static nginx.clojure.MiniConstants.DEFAULT_ENCODING;
 import static nginx.clojure.MiniConstants.KNOWN_RESP_HEADERS;
 import static nginx.clojure.MiniConstants.NGX_DONE;
+import static nginx.clojure.MiniConstants.NGX_ERROR;
+import static nginx.clojure.MiniConstants.NGX_HTTP_BODY_FILTER_PHASE;
 import static nginx.clojure.MiniConstants.NGX_HTTP_CLOJURE_HEADERSO_CONTENT_TYPE_LEN_OFFSET;
 import static nginx.clojure.MiniConstants.NGX_HTTP_CLOJURE_HEADERSO_CONTENT_TYPE_OFFSET;
 import static nginx.clojure.MiniConstants.NGX_HTTP_CLOJURE_HEADERSO_HEADERS_OFFSET;
@@ -44,6 +46,7 @@ import java.nio.charset.CoderResult;
 import java.nio.charset.CodingErrorAction;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -53,14 +56,177 @@ import java.util.concurrent.Callable;
 import nginx.clojure.NginxClojureRT.WorkerResponseContext;
 import nginx.clojure.java.Constants;
 import nginx.clojure.java.NginxJavaResponse;
+import nginx.clojure.wave.JavaAgent;
+import nginx.clojure.wave.MethodDatabase;
 import sun.nio.ch.DirectBuffer;
 import sun.nio.cs.ThreadLocalCoders;
 
 
 public abstract class NginxSimpleHandler implements NginxHandler {
 
+	/**
+	 * handler property used to declare whether a handler will suspend or not, e.g.
+	 * <pre>content_handler_property suspendable false;</pre>
+	 * If it is not given we'll check {@link NonSuspendable} and the coroutine method database.
+	 */
+	public static final String SUSPENDABLE_PROPERTY = "suspendable";
+	
+	/**
+	 * handler property used to give a per-request {@link CoDeadline}, e.g.
+	 * <pre>content_handler_property deadline 800ms;</pre>
+	 * A value without unit is in seconds like nginx.
+	 */
+	public static final String DEADLINE_PROPERTY = "deadline";
+	
+	/**
+	 * null means it has not been decided yet
+	 */
+	protected Boolean suspendable;
+	
+	/**
+	 * milliseconds, 0 means no deadline
+	 */
+	protected long deadline;
+	
+	/**
+	 * null means access decisions are not cached
+	 */
+	protected NginxDecisionCache decisionCache;
+	
+	/**
+	 * max number of header names whose pushers can be cached by {@link #responseHeaderPusher(Object)}
+	 */
+	public static int MAX_CACHED_HEADER_PUSHERS = 256;
+	
+	/**
+	 * response header pushers keyed by the header name objects given by the handler, e.g. Strings or Keywords.
+	 * It is copied on write so lookups need no lock.
+	 */
+	protected volatile Map<Object, NginxHeaderHolder> headerPushers = new HashMap<Object, NginxHeaderHolder>();
+	
+	/**
+	 * max initial coroutine stack size which can be learned by {@link #learnStackSize(Stack)}
+	 */
+	public static int MAX_LEARNED_STACK_SIZE = Integer.getInteger("nginx.clojure.coroutine.maxInitStackSize", 8192);
+	
+	public static final int MIN_LEARNED_STACK_SIZE = 32;
+	
+	/**
+	 * number of finished coroutines whose stack high-water marks are sampled to learn the next initial stack size
+	 */
+	public static final int STACK_SIZE_WINDOW = 64;
+	
+	/**
+	 * the percentile of the sampled high-water marks which is used as the initial stack size, 
+	 * so that a few very deep requests won't make every coroutine big
+	 */
+	public static final int STACK_SIZE_PERCENTILE = 90;
+	
+	/**
+	 * initial stack size of coroutines created for this handler, it is learned from the high-water marks 
+	 * of finished coroutines so that deep suspendable call chains (e.g. compojure routes, ring middlewares, jdbc)
+	 * needn't grow and copy their stacks again and again. It is learned again for every window so it 
+	 * can also shrink when the handler becomes shallow.
+	 */
+	protected volatile int coroutineStackSize = Coroutine.DEFAULT_STACK_SIZE;
+	
+	protected final int[] stackSamples = new int[STACK_SIZE_WINDOW];
+	
+	protected int stackSampleCount;
+	
 	public abstract NginxRequest makeRequest(long r, long c);
 	
+	public void setSuspendable(boolean suspendable) {
+		this.suspendable = suspendable;
+	}
+	
+	public long getDeadline() {
+		return deadline;
+	}
+	
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+	
+	public NginxDecisionCache getDecisionCache() {
+		return decisionCache;
+	}
+	
+	public void setDecisionCache(NginxDecisionCache decisionCache) {
+		this.decisionCache = decisionCache;
+	}
+	
+	public int getCoroutineStackSize() {
+		return coroutineStackSize;
+	}
+	
+	public void learnStackSize(Stack stack) {
+		int size;
+		synchronized (stackSamples) {
+			stackSamples[stackSampleCount++] = stack.getDataHighWater();
+			if (stackSampleCount < STACK_SIZE_WINDOW) {
+				return;
+			}
+			stackSampleCount = 0;
+			Arrays.sort(stackSamples);
+			size = stackSamples[(STACK_SIZE_WINDOW * STACK_SIZE_PERCENTILE + 99) / 100 - 1];
+		}
+		size = Math.max(MIN_LEARNED_STACK_SIZE, Math.min(size, MAX_LEARNED_STACK_SIZE));
+		if (size != coroutineStackSize) {
+			coroutineStackSize = size;
+			if (log.isDebugEnabled()) {
+				log.debug("%s coroutine initial stack size is learned as %d", this, size);
+			}
+		}
+	}
+	
+	/**
+	 * @return false if the handler is known not to suspend so that it can be invoked 
+	 * without a coroutine even if coroutine based socket is enabled.
+	 */
+	public boolean isSuspendable() {
+		Boolean s = suspendable;
+		if (s == null) {
+			suspendable = s = checkSuspendable();
+		}
+		return s;
+	}
+	
+	/**
+	 * Subclasses should override it to check their real handler object, 
+	 * e.g. by {@link #checkSuspendable(Object, String)}
+	 */
+	protected boolean checkSuspendable() {
+		return true;
+	}
+	
+	/**
+	 * Checks whether the method of the target object may suspend.
+	 * @param target the real handler object, e.g. a NginxJavaRingHandler or a clojure fn
+	 * @param method method name with descriptor, e.g. <code>invoke(Ljava/util/Map;)[Ljava/lang/Object;</code>
+	 * @return false only if the target class is annotated by {@link NonSuspendable} or the method
+	 * is recorded as a non-suspendable one by the coroutine method database.
+	 */
+	public static boolean checkSuspendable(Object target, String method) {
+		if (target == null) {
+			return true;
+		}
+		Class<?> clz = target.getClass();
+		if (clz.isAnnotationPresent(NonSuspendable.class)) {
+			return false;
+		}
+		MethodDatabase db = JavaAgent.db;
+		if (db != null) {
+			try {
+				Integer st = db.checkMethodSuspendType(clz.getName().replace('.', '/'), method, false, false);
+				return st == null || !st.equals(MethodDatabase.SUSPEND_NONE);
+			}catch(Throwable e) {
+				log.warn("can not check suspend type of %s#%s, assuming suspendable", clz, method);
+			}
+		}
+		return true;
+	}
+	
 	@Override
 	public int execute(final long r, final long c) {
 		
@@ -73,9 +239,32 @@ public abstract class NginxSimpleHandler implements NginxHandler {
 			return NGX_HTTP_OK;
 		}
 		
+		NginxDecisionCache dc = decisionCache;
+		if (dc != null) {
+			String key = dc.key(r);
+			if (key != null) {
+				int rc = dc.lookup(key);
+				if (rc != NginxDecisionCache.MISS) {
+					return rc;
+				}
+			}
+		}
+		
 		final NginxRequest req = makeRequest(r, c);
 		int phase = req.phase();
 		
+		if (phase == NGX_HTTP_BODY_FILTER_PHASE) {
+			//body filters walk native chains so they are never handed over to thread pool workers
+			NginxResponse resp = handleRequest(req);
+			if (resp.type() == NginxResponse.TYPE_FAKE_ASYNC_TAG) {
+				return NGX_DONE;
+			}
+			if (resp.type() == NginxResponse.TYPE_FAKE_BODY_FILTER_TAG) {
+				return resp.fetchStatus(NGX_ERROR);
+			}
+			return NGX_ERROR;
+		}
+		
 		if (workers == null) {
 			NginxResponse resp = handleRequest(req);
 			if (resp.type() == NginxResponse.TYPE_FAKE_ASYNC_TAG) {
@@ -107,12 +296,23 @@ public abstract class NginxSimpleHandler implements NginxHandler {
 	
 
 	
+	/**
+	 * @return a deadline from now given by the deadline property of the handler, or null if there's no deadline
+	 */
+	public static CoDeadline newDeadline(NginxHandler handler) {
+		long deadline = handler instanceof NginxSimpleHandler ? ((NginxSimpleHandler)handler).deadline : 0;
+		return deadline > 0 ? new CoDeadline(System.currentTimeMillis() + deadline) : null;
+	}
+	
 	public static NginxResponse handleRequest(final NginxRequest req) {
 		try{
 			
-			if (coroutineEnabled) {
+			NginxHandler handler = req.handler();
+			NginxSimpleHandler simpleHandler = handler instanceof NginxSimpleHandler ? (NginxSimpleHandler)handler : null;
+			if (coroutineEnabled && (simpleHandler == null || simpleHandler.isSuspendable())) {
 				CoroutineRunner coroutineRunner = new CoroutineRunner(req);
-				Coroutine coroutine = new Coroutine(coroutineRunner);
+				Coroutine coroutine = new Coroutine(coroutineRunner, 
+						simpleHandler == null ? Coroutine.DEFAULT_STACK_SIZE : simpleHandler.coroutineStackSize);
 				coroutine.resume();
 				if (coroutine.getState() == Coroutine.State.FINISHED) {
 					return coroutineRunner.response;
@@ -120,7 +320,13 @@ public abstract class NginxSimpleHandler implements NginxHandler {
 					return new NginxJavaResponse(req, Constants.ASYNC_TAG);
 				}
 			}else {
-				return req.handler().process(req);
+				//the main thread and thread pool workers are shared by requests so the deadline is always cleared after it
+				CoDeadline.set(newDeadline(handler));
+				try {
+					return handler.process(req);
+				}finally {
+					CoDeadline.clear();
+				}
 			}
 		}catch(Throwable e){
 			log.error("server unhandled exception!", e);
@@ -224,19 +430,58 @@ public abstract class NginxSimpleHandler implements NginxHandler {
 		@SuppressWarnings("rawtypes")
 		@Override
 		public void run() throws SuspendExecution {
+			NginxHandler handler = request.handler();
+			//never inherit a deadline from the creator thread
+			CoDeadline.set(newDeadline(handler));
 			try {
-				response = request.handler().process(request);
+				response = handler.process(request);
 			}catch(Throwable e) {
 				response = buildUnhandledExceptionResponse(request, e);
 				log.error("unhandled exception in coroutine", e);
 			}
 			
-			if (Coroutine.getActiveCoroutine().getResumeCounter() != 1) {
-				request.handler().completeAsyncResponse(request, response);
+			Coroutine co = Coroutine.getActiveCoroutine();
+			if (handler instanceof NginxSimpleHandler) {
+				((NginxSimpleHandler)handler).learnStackSize(co.getStack());
+			}
+			
+			if (co.getResumeCounter() != 1) {
+				handler.completeAsyncResponse(request, response);
 			}
 		}
 	}
 	
+	/**
+	 * @return the pusher of a header name object without normalizing it again if it has been met,
+	 * or null for an empty name
+	 */
+	protected NginxHeaderHolder responseHeaderPusher(Object nameObj) {
+		NginxHeaderHolder pusher = headerPushers.get(nameObj);
+		if (pusher != null) {
+			return pusher;
+		}
+		String name = normalizeHeaderName(nameObj);
+		if (name == null || name.length() == 0) {
+			return null;
+		}
+		pusher = fetchResponseHeaderPusher(name);
+		Map<Object, NginxHeaderHolder> old = headerPushers;
+		if (isCacheableHeaderName(nameObj) && old.size() < MAX_CACHED_HEADER_PUSHERS) {
+			//a concurrent update may be lost, which only causes another miss
+			Map<Object, NginxHeaderHolder> m = new HashMap<Object, NginxHeaderHolder>(old);
+			m.put(nameObj, pusher);
+			headerPushers = m;
+		}
+		return pusher;
+	}
+	
+	/**
+	 * @return whether the header name object is immutable so that it can be a key of the pusher cache
+	 */
+	protected boolean isCacheableHeaderName(Object nameObj) {
+		return nameObj instanceof String;
+	}
+	
 	@Override
 	public NginxHeaderHolder fetchResponseHeaderPusher(String name) {
 		NginxHeaderHolder pusher = KNOWN_RESP_HEADERS.get(name);
@@ -263,12 +508,10 @@ public abstract class NginxSimpleHandler implements NginxHandler {
 					continue;
 				}
 				
-				String name = normalizeHeaderName(nameObj);
-				if (name == null || name.length() == 0) {
+				NginxHeaderHolder pusher = responseHeaderPusher(nameObj);
+				if (pusher == null) {
 					continue;
 				}
-				
-				NginxHeaderHolder pusher = fetchResponseHeaderPusher(name);
 				if (pusher == RESP_CONTENT_TYPE_HOLDER) {
 					if (val instanceof String) {
 						contentType = (String)val;
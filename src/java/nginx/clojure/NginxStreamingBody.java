@@ -0,0 +1,450 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure;
+
+import static nginx.clojure.MiniConstants.DEFAULT_ENCODING;
+import static nginx.clojure.MiniConstants.NGX_AGAIN;
+import static nginx.clojure.MiniConstants.NGX_ERROR;
+import static nginx.clojure.MiniConstants.NGX_HTTP_CLOJURE_EVENT_HANDLER_FLAG_DRAIN;
+import static nginx.clojure.MiniConstants.NGX_OK;
+import static nginx.clojure.NginxClojureRT.log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams a response body chunk by chunk from a {@link Source} without materializing it, e.g. an infinite lazy seq,
+ * a core.async channel or a java {@link Iterator}.
+ * <p>
+ * Every chunk is flushed to the client as soon as it is produced. If the client can not keep up, the next chunk
+ * will not be produced until the buffered output has been sent, so at most one chunk is kept in memory.
+ * <p>
+ * A pulled source (e.g. a lazy seq or an iterator) may do blocking work to produce a chunk, so it is never pulled
+ * by the nginx main thread itself. It is pulled by the current coroutine or java thread (thread pool mode),
+ * or else by a new coroutine (coroutine enabled) or a producer thread, which is parked while waiting for draining.
+ * An {@link AsyncSource} (e.g. a core.async channel) gives chunks by callbacks, so it is always streamed
+ * by callbacks on the nginx main thread and no thread is parked for it.
+ * <p>
+ * Producer threads come from a bounded pool whose size is given by the system property
+ * <code>nginx.clojure.stream.producers</code> (default: 2 * available processors). A producer thread is held
+ * for the whole life of its stream, so when all of them are busy a new stream is queued and sends nothing until
+ * an earlier stream finishes. For many long-lived streams, e.g. server-sent events, enable coroutines or use
+ * an {@link AsyncSource}.
+ * <p>
+ * If the client closes the connection the source will be closed and no more chunks will be produced.
+ * @author Zhang,Yuexiang (xfeep)
+ *
+ */
+public class NginxStreamingBody extends ChannelCloseAdapter<NginxStreamingBody> {
+
+	public static final String NGINX_CLOJURE_STREAM_PRODUCERS = "nginx.clojure.stream.producers";
+
+	/**
+	 * returned by {@link Source#next(NginxStreamingBody)} when the chunk will be given later by {@link #offer(Object)}
+	 */
+	public static final Object PENDING = new Object();
+
+	/**
+	 * returned by {@link Source#next(NginxStreamingBody)} or given to {@link #offer(Object)} at the end of the body
+	 */
+	public static final Object END = new Object();
+
+	public interface Source {
+		/**
+		 * @return a chunk (String, byte[], ByteBuffer or any object which will be sent by its toString), null for
+		 * an empty chunk, {@link NginxStreamingBody#END} or {@link NginxStreamingBody#PENDING}
+		 */
+		public Object next(NginxStreamingBody body);
+
+		/**
+		 * invoked once when the body ends, fails or the client closes the connection
+		 */
+		public void close();
+	}
+
+	/**
+	 * A source whose {@link #next(NginxStreamingBody)} never blocks: it returns {@link NginxStreamingBody#PENDING}
+	 * and gives the chunk later by {@link NginxStreamingBody#offer(Object)} from any thread.
+	 */
+	public interface AsyncSource extends Source {
+	}
+
+	public static class IteratorSource implements Source {
+
+		protected Iterator<?> iterator;
+
+		public IteratorSource(Iterator<?> iterator) {
+			this.iterator = iterator;
+		}
+
+		@Override
+		public Object next(NginxStreamingBody body) {
+			return iterator.hasNext() ? iterator.next() : END;
+		}
+
+		@Override
+		public void close() {
+			if (iterator instanceof java.io.Closeable) {
+				try {
+					((java.io.Closeable)iterator).close();
+				} catch (IOException e) {
+					log.warn("can not close streaming body iterator", e);
+				}
+			}
+			iterator = null;
+		}
+	}
+
+	protected final NginxHttpServerChannel channel;
+
+	protected final long r;
+
+	protected Source source;
+
+	/**
+	 * producer threads of pulled sources started on the nginx main thread without coroutine support,
+	 * streams beyond its size wait in its queue
+	 */
+	private static ExecutorService producers;
+
+	/**
+	 * whether a pulled source is pumped by a producer which waits in place, viz. a coroutine or a java thread other
+	 * than the nginx main thread, otherwise an {@link AsyncSource} is streamed by callbacks on the nginx main thread
+	 */
+	protected boolean parkable;
+
+	/**
+	 * waiter of a pending chunk, only for a parkable producer
+	 */
+	protected volatile CoWaiter chunkWaiter;
+
+	/**
+	 * waiter of draining the buffered output, only for a parkable producer
+	 */
+	protected CoWaiter drainWaiter;
+
+	/**
+	 * whether the stream waits for draining the buffered output, only for a non-parkable producer
+	 */
+	protected boolean draining;
+
+	protected volatile boolean aborted;
+
+	public NginxStreamingBody(NginxHttpServerChannel channel, Source source) {
+		this.channel = channel;
+		this.r = channel.request().nativeRequest();
+		this.source = source;
+	}
+
+	/**
+	 * Sends the header and then the body. If a pulled source is pumped by the current coroutine or java thread
+	 * it returns after the whole body has been produced, otherwise it returns at once and the body is streamed
+	 * by a new producer or by callbacks on the nginx main thread.
+	 */
+	public <K, V> void start(long status, Collection<Map.Entry<K, V>> headers) throws SuspendExecution {
+		final boolean onMainThread = Thread.currentThread() == NginxClojureRT.NGINX_MAIN_THREAD;
+		parkable = !(source instanceof AsyncSource);
+		channel.addListener(this, this);
+		try {
+			if (onMainThread) {
+				NginxClojureRT.ngx_http_hijack_turn_on_event_handler(r, NGX_HTTP_CLOJURE_EVENT_HANDLER_FLAG_DRAIN);
+			}else {
+				NginxClojureRT.postPollTaskEvent(channel.request(), new Runnable() {
+					@Override
+					public void run() {
+						if (!aborted) {
+							NginxClojureRT.ngx_http_hijack_turn_on_event_handler(r, NGX_HTTP_CLOJURE_EVENT_HANDLER_FLAG_DRAIN);
+						}
+					}
+				});
+			}
+			channel.sendHeader(status, headers, true, false);
+		}catch(Throwable e) {
+			fail(e);
+			return;
+		}
+		if (!parkable) {
+			if (onMainThread) {
+				step(PENDING);
+			}else {
+				//never park a thread pool worker for callbacks
+				NginxClojureRT.postPollTaskEvent(channel.request(), new Runnable() {
+					@Override
+					public void run() {
+						step(PENDING);
+					}
+				});
+			}
+		}else if (!onMainThread || Coroutine.getActiveCoroutine() != null) {
+			pump();
+		}else if (NginxClojureRT.coroutineEnabled) {
+			new Coroutine(new Producer()).resume();
+		}else {
+			producers().submit(new Producer());
+		}
+	}
+
+	/**
+	 * pumps a pulled source in a new coroutine or a producer thread
+	 */
+	protected class Producer implements Runnable {
+		@Override
+		public void run() throws SuspendExecution {
+			pump();
+		}
+	}
+
+	private static synchronized ExecutorService producers() {
+		if (producers == null) {
+			int n = Math.max(1, Integer.getInteger(NGINX_CLOJURE_STREAM_PRODUCERS, Runtime.getRuntime().availableProcessors() * 2));
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(n, n, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				final AtomicLong counter = new AtomicLong(0);
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "nginx-clojure-stream-producer-" + counter.getAndIncrement());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			//idle producers exit so that no thread is kept when there's no stream
+			pool.allowCoreThreadTimeOut(true);
+			producers = pool;
+		}
+		return producers;
+	}
+
+	/**
+	 * Gives the chunk which was pending, it can be called from any thread.
+	 */
+	public void offer(final Object chunk) {
+		if (parkable) {
+			CoWaiter w = chunkWaiter;
+			if (w != null) {
+				chunkWaiter = null;
+				w.signal(chunk);
+			}
+		}else {
+			NginxClojureRT.postPollTaskEvent(channel.request(), new Runnable() {
+				@Override
+				public void run() {
+					step(chunk);
+				}
+			});
+		}
+	}
+
+	protected void pump() throws SuspendExecution {
+		try {
+			while (!aborted) {
+				CoWaiter w = chunkWaiter = new CoWaiter();
+				Object c = source.next(this);
+				if (c == PENDING) {
+					w.await();
+					c = w.getValue();
+				}else {
+					chunkWaiter = null;
+				}
+				if (c == END) {
+					if (!aborted) {
+						channel.close();
+					}
+					break;
+				}
+				c = encode(c);
+				if (c != null && !writeAndWait(c)) {
+					break;
+				}
+			}
+			release();
+		}catch(Throwable e) {
+			fail(e);
+		}
+	}
+
+	protected boolean writeAndWait(final Object c) throws SuspendExecution {
+		if (Thread.currentThread() == NginxClojureRT.NGINX_MAIN_THREAD) {
+			int rc = write(c);
+			if (rc == NGX_AGAIN) {
+				CoWaiter w = drainWaiter = new CoWaiter();
+				w.await();
+			}else if (rc != NGX_OK) {
+				aborted = true;
+			}
+			return !aborted;
+		}
+		final CoWaiter w = new CoWaiter();
+		NginxClojureRT.postPollTaskEvent(channel.request(), new Runnable() {
+			@Override
+			public void run() {
+				int rc = aborted ? NGX_ERROR : write(c);
+				if (rc == NGX_AGAIN) {
+					drainWaiter = w;
+				}else {
+					if (rc != NGX_OK) {
+						aborted = true;
+					}
+					w.signal();
+				}
+			}
+		});
+		w.await();
+		return !aborted;
+	}
+
+	/**
+	 * streams chunks on the nginx main thread until it needs to wait for a chunk or for draining
+	 * @param c the chunk given by {@link #offer(Object)} or {@link #PENDING} to produce a new one
+	 */
+	protected void step(Object c) {
+		try {
+			while (!aborted) {
+				if (c == PENDING) {
+					c = source.next(this);
+					if (c == PENDING) {
+						return;
+					}
+				}
+				if (c == END) {
+					channel.close();
+					break;
+				}
+				c = encode(c);
+				if (c != null) {
+					int rc = write(c);
+					if (rc == NGX_AGAIN) {
+						draining = true;
+						return;
+					}else if (rc != NGX_OK) {
+						aborted = true;
+						break;
+					}
+				}
+				c = PENDING;
+			}
+			release();
+		}catch(Throwable e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * @return byte[] or ByteBuffer, or null for an empty chunk
+	 */
+	protected static Object encode(Object c) {
+		if (c == null) {
+			return null;
+		}
+		if (c instanceof ByteBuffer) {
+			return ((ByteBuffer) c).hasRemaining() ? c : null;
+		}
+		byte[] b = c instanceof byte[] ? (byte[]) c : c.toString().getBytes(DEFAULT_ENCODING);
+		return b.length == 0 ? null : b;
+	}
+
+	/**
+	 * Sends a chunk with flush, it must be called on the nginx main thread.
+	 * @return NGX_OK if it has been sent, NGX_AGAIN if it is buffered because the client is slow, otherwise an error
+	 */
+	protected int write(Object c) {
+		int flag = channel.computeFlag(true, false);
+		int rc;
+		if (c instanceof ByteBuffer) {
+			rc = channel.send((ByteBuffer)c, flag);
+		}else {
+			byte[] b = (byte[]) c;
+			rc = channel.send(b, 0, b.length, flag);
+		}
+		if (rc != NGX_OK) {
+			return rc;
+		}
+		long buffered = NginxClojureRT.ngx_http_hijack_buffered(r);
+		return buffered == 1 ? NGX_AGAIN : (int)buffered;
+	}
+
+	protected void fail(Throwable e) {
+		log.error(String.format("#%d: streaming response body failed", r), e);
+		if (!aborted) {
+			aborted = true;
+			channel.tagClose();
+			if (Thread.currentThread() == NginxClojureRT.NGINX_MAIN_THREAD) {
+				//the response has been committed so we can only close the connection to tell the client it is broken
+				NginxClojureRT.ngx_http_finalize_request(r, NGX_ERROR);
+			}else {
+				NginxClojureRT.postPollTaskEvent(channel.request(), new Runnable() {
+					@Override
+					public void run() {
+						if (!channel.request().isReleased()) {
+							NginxClojureRT.ngx_http_finalize_request(r, NGX_ERROR);
+						}
+					}
+				});
+			}
+		}
+		release();
+	}
+
+	protected synchronized void release() {
+		Source s = source;
+		if (s != null) {
+			source = null;
+			try {
+				s.close();
+			}catch(Throwable e) {
+				log.warn("can not close streaming body source", e);
+			}
+		}
+	}
+
+	@Override
+	public void onWrite(long status, NginxStreamingBody data) throws IOException {
+		if (status != NGX_OK) {
+			aborted = true;
+		}
+		if (parkable) {
+			CoWaiter w = drainWaiter;
+			if (w != null) {
+				drainWaiter = null;
+				w.signal();
+			}
+		}else if (draining) {
+			draining = false;
+			step(PENDING);
+		}
+	}
+
+	@Override
+	public void onClose(NginxStreamingBody data) throws IOException {
+		if (aborted && source == null) {
+			return;
+		}
+		aborted = true;
+		if (parkable) {
+			CoWaiter w = drainWaiter;
+			if (w != null) {
+				drainWaiter = null;
+				w.signal();
+			}
+			w = chunkWaiter;
+			if (w != null) {
+				chunkWaiter = null;
+				w.signal(END);
+			}
+		}else {
+			release();
+		}
+	}
+
+	public boolean isAborted() {
+		return aborted;
+	}
+}
@@ -0,0 +1,22 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a handler class (e.g. a NginxJavaRingHandler or NginxJavaHeaderFilter) which never
+ * does any suspendable I/O so it can be run directly on the nginx main thread without 
+ * creating a coroutine for every request.
+ * @author Zhang,Yuexiang (xfeep)
+ *
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface NonSuspendable {
+}
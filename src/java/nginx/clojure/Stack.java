@@ -66,6 +66,11 @@ public final class Stack implements Serializable {
     private long[] dataLong;
     private Object[] dataObject;
     
+    /**
+     * the max data stack slots ever used
+     */
+    private int dataHighWater;
+    
     private VerifyInfo verifyInfo;
     
     transient int curMethodSP;
@@ -134,8 +139,11 @@ public final class Stack implements Serializable {
         	}
         }
         
-        if(dataTOS > dataObject.length) {
-            growDataStack(dataTOS);
+        if(dataTOS > dataHighWater) {
+            dataHighWater = dataTOS;
+            if(dataTOS > dataObject.length) {
+                growDataStack(dataTOS);
+            }
         }
     }
     
@@ -497,6 +505,13 @@ public final class Stack implements Serializable {
     }
     */
 
+    /**
+     * @return the max number of data stack slots which have been used
+     */
+    public final int getDataHighWater() {
+        return dataHighWater;
+    }
+    
     private void growDataStack(int required) {
         int newSize = dataObject.length;
         do {
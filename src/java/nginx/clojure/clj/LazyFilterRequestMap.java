@@ -47,4 +47,9 @@ public class LazyFilterRequestMap extends LazyRequestMap implements NginxFilterR
 		return responseHeaders;
 	}
 
+	@Override
+	public long nativeChain() {
+		return c;
+	}
+
 }
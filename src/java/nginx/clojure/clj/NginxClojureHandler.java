@@ -6,6 +6,7 @@ package nginx.clojure.clj;
 
 import static nginx.clojure.MiniConstants.NGX_HTTP_BODY_FILTER_PHASE;
 import static nginx.clojure.MiniConstants.NGX_HTTP_HEADER_FILTER_PHASE;
+import static nginx.clojure.MiniConstants.NGX_HTTP_INTERNAL_SERVER_ERROR;
 import static nginx.clojure.MiniConstants.NGX_HTTP_NOT_FOUND;
 import static nginx.clojure.MiniConstants.NGX_HTTP_NO_CONTENT;
 import static nginx.clojure.NginxClojureRT.log;
@@ -18,26 +19,53 @@ import static nginx.clojure.clj.Constants.URI;
 
 import java.io.Closeable;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import nginx.clojure.Configurable;
+import nginx.clojure.NginxBodyFilterChunks;
 import nginx.clojure.NginxClojureRT;
 import nginx.clojure.NginxHeaderHolder;
 import nginx.clojure.NginxHttpServerChannel;
 import nginx.clojure.NginxRequest;
 import nginx.clojure.NginxResponse;
 import nginx.clojure.NginxSimpleHandler;
+import nginx.clojure.NginxStreamingBody;
+import nginx.clojure.NginxStreamingBody.Source;
 import nginx.clojure.java.ArrayMap;
+import clojure.lang.AFn;
+import clojure.lang.ExceptionInfo;
 import clojure.lang.IFn;
+import clojure.lang.IPersistentMap;
 import clojure.lang.ISeq;
 import clojure.lang.Keyword;
 import clojure.lang.RT;
 import clojure.lang.Seqable;
 
-public class NginxClojureHandler extends NginxSimpleHandler {
+public class NginxClojureHandler extends NginxSimpleHandler implements Configurable {
+	
+	/**
+	 * content handler property to invoke the ring handler by its async arity, viz. (handler request respond raise), e.g.
+	 * <pre>content_handler_property ring.async true;</pre>
+	 */
+	public static final String RING_ASYNC_PROPERTY = "ring.async";
+	
+	/**
+	 * content handler property to stream an unrealized lazy seq body chunk by chunk instead of building it
+	 * as a whole, e.g.
+	 * <pre>content_handler_property stream.lazy.seq true;</pre>
+	 * A core.async channel body is always streamed.
+	 */
+	public static final String STREAM_LAZY_SEQ_PROPERTY = "stream.lazy.seq";
+
+	private static final Keyword VALUE = Keyword.intern("value");
 
 	public static ArrayMap<Keyword, Object> NOT_FOUND_RESPONSE = ArrayMap.create(STATUS, NGX_HTTP_NOT_FOUND);
 	
 	protected IFn ringHandler;
 	protected IFn headerFilter;
+	protected IFn bodyFilter;
+	protected boolean ringAsync;
+	protected boolean streamLazySeq;
 	
 	public NginxClojureHandler() {
 	}
@@ -47,6 +75,12 @@ public class NginxClojureHandler extends NginxSimpleHandler {
 		this.headerFilter = headerFilter;
 	}
 	
+	public NginxClojureHandler(IFn ringHandler, IFn headerFilter, IFn bodyFilter) {
+		this.ringHandler = ringHandler;
+		this.headerFilter = headerFilter;
+		this.bodyFilter = bodyFilter;
+	}
+	
 	public static  String normalizeHeaderNameHelper(Object nameObj) {
 		String name;
 		if (nameObj instanceof String) {
@@ -63,6 +97,11 @@ public class NginxClojureHandler extends NginxSimpleHandler {
 	protected  String normalizeHeaderName(Object nameObj) {
 		return normalizeHeaderNameHelper(nameObj);
 	}
+	
+	@Override
+	protected boolean isCacheableHeaderName(Object nameObj) {
+		return nameObj instanceof Keyword || nameObj instanceof String;
+	}
 
 	@Override
 	public NginxRequest makeRequest(long r,  long c) {
@@ -82,9 +121,54 @@ public class NginxClojureHandler extends NginxSimpleHandler {
 		return req.phase(phase);
 	}
 	
+	@Override
+	protected boolean checkSuspendable() {
+		if (ringHandler != null) {
+			if (ringAsync) {
+				return checkSuspendable(ringHandler, "invoke(Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+			}
+			return checkSuspendable(ringHandler, "invoke(Ljava/lang/Object;)Ljava/lang/Object;");
+		}
+		if (bodyFilter != null) {
+			return checkSuspendable(bodyFilter, "invoke(Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+		}
+		return checkSuspendable(headerFilter, "invoke(Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+	}
+	
+	public boolean isRingAsync() {
+		return ringAsync;
+	}
+	
+	public void setRingAsync(boolean ringAsync) {
+		this.ringAsync = ringAsync;
+	}
+	
+	public boolean isStreamLazySeq() {
+		return streamLazySeq;
+	}
+	
+	public void setStreamLazySeq(boolean streamLazySeq) {
+		this.streamLazySeq = streamLazySeq;
+	}
+	
+	@Override
+	public void config(Map<String, String> properties) {
+		String async = properties.get(RING_ASYNC_PROPERTY);
+		if (async != null) {
+			ringAsync = Boolean.parseBoolean(async.trim());
+		}
+		String stream = properties.get(STREAM_LAZY_SEQ_PROPERTY);
+		if (stream != null) {
+			streamLazySeq = Boolean.parseBoolean(stream.trim());
+		}
+	}
+	
 	@Override
 	public NginxResponse process(NginxRequest req) {
 		LazyRequestMap r = (LazyRequestMap)req;
+		if (ringAsync && req.phase() == -1) {
+			return processAsync(r);
+		}
 		try{
 			Map resp;
 			switch (req.phase()) {
@@ -93,24 +177,124 @@ public class NginxClojureHandler extends NginxSimpleHandler {
 				resp = (Map) headerFilter.invoke(freq.responseStatus(), freq, freq.responseHeaders());
 				break;
 			case NGX_HTTP_BODY_FILTER_PHASE:
-				throw new UnsupportedOperationException("body filter has not been supported yet!");
+				NginxBodyFilterChunks chunks = new NginxBodyFilterChunks((LazyFilterRequestMap)r);
+				while (chunks.next()) {
+					chunks.emit(bodyFilter.invoke(r, chunks.chunk(), chunks.isLast()));
+				}
+				return chunks.complete();
 			default:
 				 resp = (Map) ringHandler.invoke(req);
+				 if (!req.isHijacked()) {
+					 Source src = streamingSource(resp);
+					 if (src != null) {
+						 NginxResponse head = toNginxResponse(r, ((IPersistentMap)resp).without(BODY));
+						 //don't hold the head of a lazy seq while streaming
+						 resp = null;
+						 new NginxStreamingBody(hijack(r, false), src).start(head.fetchStatus(200), head.fetchHeaders());
+						 return toNginxResponse(r, ASYNC_TAG);
+					 }
+				 }
 			}
 			return req.isHijacked() ? toNginxResponse(r, ASYNC_TAG) : toNginxResponse(r, resp);
 		}finally {
-			int bodyIdx = r.index(BODY);
-			if (bodyIdx > 0) {
+			closeRequestBody(r);
+		}
+	}
+	
+	protected static void closeRequestBody(LazyRequestMap r) {
+		int bodyIdx = r.index(BODY);
+		if (bodyIdx > 0) {
+			try {
+				Object body = r.element(bodyIdx);
+				if (body != null && body instanceof Closeable) {
+					((Closeable)body).close();
+				}
+			} catch (Throwable e) {
+				NginxClojureRT.log.error("can not close Closeable object such as FileInputStream!", e);
+			}
+		}
+	}
+	
+	/**
+	 * @return the value given to raise as a Throwable, a non-throwable value is wrapped by ex-info
+	 */
+	protected static Throwable asThrowable(Object e) {
+		if (e instanceof Throwable) {
+			return (Throwable) e;
+		}
+		return new ExceptionInfo("ring async handler raised a non-throwable value", RT.map(VALUE, e));
+	}
+	
+	/**
+	 * Invokes the ring handler by (handler request respond raise). The request is hijacked so that
+	 * respond can complete it from any thread by the same path as send-response! without blocking.
+	 * The request body is left open because the handler may read it after returning, it is closed
+	 * by the first call of respond or raise.
+	 */
+	protected NginxResponse processAsync(final LazyRequestMap r) {
+		final NginxHttpServerChannel ch = hijack(r, false);
+		final AtomicBoolean done = new AtomicBoolean();
+		IFn respond = new AFn() {
+			@Override
+			public Object invoke(Object resp) {
+				if (!done.compareAndSet(false, true)) {
+					log.warn("#%s: ring async response has been sent, ignore %s", processId, resp);
+					return null;
+				}
+				closeRequestBody(r);
 				try {
-					Object body = r.element(bodyIdx);
-					if (body != null && body instanceof Closeable) {
-						((Closeable)body).close();
+					final Source src = streamingSource(resp);
+					if (src != null) {
+						final NginxResponse head = toNginxResponse(r, ((IPersistentMap)resp).without(BODY));
+						//never park the thread which calls respond, e.g. a core.async dispatch thread
+						NginxClojureRT.postPollTaskEvent(r, new Runnable() {
+							@Override
+							public void run() {
+								new NginxStreamingBody(ch, src).start(head.fetchStatus(200), head.fetchHeaders());
+							}
+						});
+					}else {
+						ch.sendResponse(resp == null ? NOT_FOUND_RESPONSE : resp);
 					}
 				} catch (Throwable e) {
-					NginxClojureRT.log.error("can not close Closeable object such as FileInputStream!", e);
+					log.error("can not send ring async response", e);
+				}
+				return null;
+			}
+		};
+		IFn raise = new AFn() {
+			@Override
+			public Object invoke(Object e) {
+				if (!done.compareAndSet(false, true)) {
+					log.error("ring async handler raised after responding", asThrowable(e));
+					return null;
+				}
+				closeRequestBody(r);
+				log.error("ring async handler raised", asThrowable(e));
+				try {
+					ch.sendResponse(NGX_HTTP_INTERNAL_SERVER_ERROR);
+				} catch (Throwable e2) {
+					log.error("can not send 500 for ring async handler", e2);
 				}
+				return null;
 			}
+		};
+		try {
+			ringHandler.invoke(r, respond, raise);
+		}catch(Throwable e) {
+			raise.invoke(e);
+		}
+		return toNginxResponse(r, ASYNC_TAG);
+	}
+	
+	/**
+	 * @return a streaming source if the body of the response should be streamed, otherwise null
+	 */
+	protected Source streamingSource(Object resp) {
+		if (!(resp instanceof IPersistentMap)) {
+			return null;
 		}
+		return StreamingSources.of(((IPersistentMap)resp).valAt(BODY), streamLazySeq);
 	}
 	
 	public  NginxResponse toNginxResponse(NginxRequest req, Object resp) {
@@ -0,0 +1,129 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure.clj;
+
+import nginx.clojure.NginxStreamingBody;
+import nginx.clojure.NginxStreamingBody.AsyncSource;
+import nginx.clojure.NginxStreamingBody.Source;
+import clojure.lang.AFn;
+import clojure.lang.ISeq;
+import clojure.lang.LazySeq;
+import clojure.lang.RT;
+import clojure.lang.Var;
+
+/**
+ * Streaming sources of clojure response bodies, viz. lazy seqs and core.async channels.
+ * core.async is not a dependency of nginx-clojure so its channels are detected by class name
+ * and used by their public functions.
+ * @author Zhang,Yuexiang (xfeep)
+ *
+ */
+public class StreamingSources {
+
+	public static final String CORE_ASYNC_READ_PORT = "clojure.core.async.impl.protocols.ReadPort";
+
+	private StreamingSources() {
+	}
+
+	/**
+	 * @param lazySeq whether an unrealized lazy seq should be streamed
+	 * @return a source, or null if the body should be sent as a whole
+	 */
+	public static Source of(Object body, boolean lazySeq) {
+		if (body == null || body instanceof String) {
+			return null;
+		}
+		if (body instanceof LazySeq) {
+			return lazySeq && !((LazySeq)body).isRealized() ? new SeqSource(body) : null;
+		}
+		if (body instanceof ISeq) {
+			return null;
+		}
+		return isReadPort(body.getClass()) ? new ChannelSource(body) : null;
+	}
+
+	public static boolean isReadPort(Class<?> c) {
+		for (; c != null && c != Object.class; c = c.getSuperclass()) {
+			for (Class<?> i : c.getInterfaces()) {
+				if (CORE_ASYNC_READ_PORT.equals(i.getName())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Realizes a seq one element at a time. It only keeps the current position so
+	 * the realized part can be collected while streaming.
+	 */
+	public static class SeqSource implements Source {
+
+		protected Object seq;
+
+		protected boolean started;
+
+		public SeqSource(Object seq) {
+			this.seq = seq;
+		}
+
+		@Override
+		public Object next(NginxStreamingBody body) {
+			ISeq s;
+			if (started) {
+				s = ((ISeq)seq).next();
+			}else {
+				started = true;
+				s = RT.seq(seq);
+			}
+			seq = s;
+			return s == null ? NginxStreamingBody.END : s.first();
+		}
+
+		@Override
+		public void close() {
+			seq = null;
+		}
+	}
+
+	/**
+	 * Takes values from a core.async channel by take! until it is closed. The channel will be closed if
+	 * the client closes the connection so that a producer can stop by the false result of put!.
+	 */
+	public static class ChannelSource implements AsyncSource {
+
+		/**
+		 * resolved when the first channel is met, by then core.async has been loaded
+		 */
+		private static final class Fns {
+			static final Var TAKE = RT.var("clojure.core.async", "take!");
+			static final Var CLOSE = RT.var("clojure.core.async", "close!");
+		}
+
+		protected final Object channel;
+
+		public ChannelSource(Object channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public Object next(final NginxStreamingBody body) {
+			//on-caller? is false so that the callback never runs on the caller thread, viz. the nginx main thread
+			Fns.TAKE.invoke(channel, new AFn() {
+				@Override
+				public Object invoke(Object v) {
+					body.offer(v == null ? NginxStreamingBody.END : v);
+					return null;
+				}
+			}, Boolean.FALSE);
+			return NginxStreamingBody.PENDING;
+		}
+
+		@Override
+		public void close() {
+			Fns.CLOSE.invoke(channel);
+		}
+	}
+}
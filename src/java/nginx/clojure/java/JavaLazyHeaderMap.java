@@ -16,7 +16,6 @@ import static nginx.clojure.MiniConstants.NGX_HTTP_CLOJURE_HEADERSO_HEADERS_OFFS
 import static nginx.clojure.MiniConstants.NGX_HTTP_CLOJURE_REQ_HEADERS_IN_OFFSET;
 import static nginx.clojure.MiniConstants.NGX_HTTP_CLOJURE_REQ_HEADERS_OUT_OFFSET;
 import static nginx.clojure.MiniConstants.NGX_HTTP_CLOJURE_REQ_POOL_OFFSET;
-import static nginx.clojure.MiniConstants.NGX_HTTP_CLOJURE_TEL_KEY_OFFSET;
 import static nginx.clojure.MiniConstants.NGX_HTTP_CLOJURE_TEL_VALUE_OFFSET;
 import static nginx.clojure.NginxClojureRT.UNSAFE;
 import static nginx.clojure.NginxClojureRT.fetchNGXString;
@@ -35,6 +34,7 @@ import java.util.Map;
 import java.util.Set;
 
 import nginx.clojure.NginxClojureRT;
+import nginx.clojure.NginxHeaderNames;
 import nginx.clojure.NginxHeaderHolder;
 import nginx.clojure.NginxSimpleHandler;
 import nginx.clojure.NginxSimpleHandler.SimpleEntry;
@@ -103,8 +103,7 @@ public class JavaLazyHeaderMap implements Map<String, Object>, Iterable  {
 		}
 		
 		//TODO: support setter of entry
-		bb.clear();
-		return new SimpleEntry<String, Object>(fetchNGXString(tp + NGX_HTTP_CLOJURE_TEL_KEY_OFFSET, DEFAULT_ENCODING, bb ,  pickCharBuffer()), v,  NginxSimpleHandler.readOnlyEntrySetter);
+		return new SimpleEntry<String, Object>(NginxHeaderNames.fetch(tp), v,  NginxSimpleHandler.readOnlyEntrySetter);
 	}
 	
 	public String key(int i) {
@@ -120,8 +119,7 @@ public class JavaLazyHeaderMap implements Map<String, Object>, Iterable  {
 		if (c == 0){
 			throw new IllegalStateException("[JavaLazyHeaderMap] no entry at position : " + i);
 		}
-		bb.limit(NGINX_CLOJURE_CORE_CLIENT_HEADER_MAX_LINE_SIZE);
-		return  fetchNGXString(lbb.get(0)+ NGX_HTTP_CLOJURE_TEL_KEY_OFFSET, DEFAULT_ENCODING,  bb ,  pickCharBuffer());
+		return NginxHeaderNames.fetch(lbb.get(0));
 	}
 	
 	public Object val(int i) {
@@ -0,0 +1,25 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure.java;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * A streaming body filter which is invoked once per response body chunk.
+ * <p>
+ * The chunk is a view of the nginx buffer and it is only valid until this method returns.
+ * The returned value decides what will be sent to the next filter:
+ * <ul>
+ * <li>the chunk itself, it will be passed on without copying</li>
+ * <li>null, the chunk will be dropped, e.g. when it is buffered by the filter</li>
+ * <li>a ByteBuffer, byte[], String or a collection of them, which will replace the chunk</li>
+ * </ul>
+ * @see nginx.clojure.NginxBodyFilterChunks
+ */
+public interface NginxJavaBodyFilter {
+	public Object doFilter(Map<String, Object> request, ByteBuffer chunk, boolean last) throws IOException;
+}
@@ -26,6 +26,7 @@ public class NginxJavaFilterRequest extends NginxJavaRequest implements NginxFil
 	
 	public NginxJavaFilterRequest(NginxHandler handler, NginxJavaRingHandler ringHandler, long r, long c)  {
 		super(handler, ringHandler, r);
+		this.c = c;
 //		long pool = NginxClojureRT.UNSAFE.getAddress(r + NGX_HTTP_CLOJURE_REQ_POOL_OFFSET);
 		ho = r + NGX_HTTP_CLOJURE_REQ_HEADERS_OUT_OFFSET;
 		responseHeaders = new JavaLazyHeaderMap(r, true);
@@ -46,4 +47,9 @@ public class NginxJavaFilterRequest extends NginxJavaRequest implements NginxFil
 		return responseHeaders;
 	}
 
+	@Override
+	public long nativeChain() {
+		return c;
+	}
+
 }
@@ -15,19 +15,24 @@ import static nginx.clojure.java.Constants.ASYNC_TAG;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.Map;
 
 import nginx.clojure.Configurable;
+import nginx.clojure.NginxBodyFilterChunks;
 import nginx.clojure.NginxClojureRT;
 import nginx.clojure.NginxHttpServerChannel;
 import nginx.clojure.NginxRequest;
 import nginx.clojure.NginxResponse;
 import nginx.clojure.NginxSimpleHandler;
+import nginx.clojure.NginxStreamingBody;
+import nginx.clojure.NginxStreamingBody.IteratorSource;
 
 public class NginxJavaHandler extends NginxSimpleHandler implements Configurable {
 
 	protected NginxJavaRingHandler ringHandler;
 	protected NginxJavaHeaderFilter headerFilter;
+	protected NginxJavaBodyFilter bodyFilter;
 	
 	public static Object[] NOT_FOUND_RESPONSE = new Object[] {NGX_HTTP_NOT_FOUND, null, null};
 	
@@ -44,6 +49,11 @@ public class NginxJavaHandler extends NginxSimpleHandler implements Configurable
 		super();
 		this.headerFilter = headerFilter;
 	}
+	
+	public NginxJavaHandler(NginxJavaBodyFilter bodyFilter) {
+		super();
+		this.bodyFilter = bodyFilter;
+	}
 
 
 	@Override
@@ -75,9 +85,22 @@ public class NginxJavaHandler extends NginxSimpleHandler implements Configurable
 				resp = headerFilter.doFilter(freq.responseStatus(), freq, freq.responseHeaders());
 				break;
 			case NGX_HTTP_BODY_FILTER_PHASE:
-				throw new UnsupportedOperationException("body filter has not been supported yet!");
+				NginxJavaFilterRequest breq = (NginxJavaFilterRequest)r;
+				NginxBodyFilterChunks chunks = new NginxBodyFilterChunks(breq);
+				while (chunks.next()) {
+					chunks.emit(bodyFilter.doFilter(breq, chunks.chunk(), chunks.isLast()));
+				}
+				return chunks.complete();
 			default:
 				 resp = ringHandler.invoke((NginxJavaRequest)req);
+				 //an Iterator body is streamed chunk by chunk
+				 if (!r.isHijacked() && resp != null && ((Object[])resp)[2] instanceof Iterator) {
+					 Object[] arr = (Object[])resp;
+					 Iterator<?> body = (Iterator<?>)arr[2];
+					 NginxResponse head = toNginxResponse(r, new Object[] {arr[0], arr[1], null});
+					 new NginxStreamingBody(hijack(r, false), new IteratorSource(body)).start(head.fetchStatus(200), head.fetchHeaders());
+					 return toNginxResponse(r, ASYNC_TAG);
+				 }
 			}
 			return r.isHijacked() ? toNginxResponse(r, ASYNC_TAG) : toNginxResponse(r, resp);
 		}finally {
@@ -127,6 +150,17 @@ public class NginxJavaHandler extends NginxSimpleHandler implements Configurable
 	}
 
 
+	@Override
+	protected boolean checkSuspendable() {
+		if (ringHandler != null) {
+			return checkSuspendable(ringHandler, "invoke(Ljava/util/Map;)[Ljava/lang/Object;");
+		}
+		if (bodyFilter != null) {
+			return checkSuspendable(bodyFilter, "doFilter(Ljava/util/Map;Ljava/nio/ByteBuffer;Z)Ljava/lang/Object;");
+		}
+		return checkSuspendable(headerFilter, "doFilter(ILjava/util/Map;Ljava/util/Map;)[Ljava/lang/Object;");
+	}
+
 	@Override
 	public void config(Map<String, String> properties) {
 		if (ringHandler != null) {
@@ -138,12 +172,13 @@ public class NginxJavaHandler extends NginxSimpleHandler implements Configurable
 						ringHandler.getClass());
 			}
 		}else {
-			if (headerFilter instanceof Configurable) {
-				Configurable cr = (Configurable) headerFilter;
+			Object filter = bodyFilter != null ? bodyFilter : headerFilter;
+			if (filter instanceof Configurable) {
+				Configurable cr = (Configurable) filter;
 				cr.config(properties);
 			}else {
 				NginxClojureRT.log.warn("%s is not an instance of nginx.clojure.Configurable, so properties will be ignored!", 
-						headerFilter.getClass());
+						filter.getClass());
 			}
 		}
 		
@@ -0,0 +1,104 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure.java;
+
+import static nginx.clojure.MiniConstants.NGX_HTTP_NOT_ALLOWED;
+import static nginx.clojure.MiniConstants.REQUEST_METHOD;
+import static nginx.clojure.MiniConstants.URI;
+
+import java.io.IOException;
+import java.util.Map;
+
+import nginx.clojure.NginxRouter;
+import nginx.clojure.NginxRouter.Match;
+
+/**
+ * A ring handler which dispatches requests to other ring handlers by a compiled {@link NginxRouter}, e.g.
+ * <pre>
+ * public class MyRoutes extends NginxJavaRouter {
+ *   public MyRoutes() {
+ *     get("/users/:id", new UserHandler());
+ *     post("/users", new NewUserHandler());
+ *     any("/static/*path", new FileHandler());
+ *   }
+ * }
+ * </pre>
+ * and in nginx.conf <code>content_handler_name 'my.MyRoutes';</code>
+ * <p>
+ * Path parameters are put into a map under {@link #ROUTE_PARAMS} of the request, like <code>:route-params</code> of
+ * the clojure router, so that they never overwrite request keys such as uri or headers, e.g. the sub handler of
+ * "/users/:id" gets the user id by <code>((Map)request.get(ROUTE_PARAMS)).get("id")</code>. If no route matches, a 404 response is returned, or a 405 response with an
+ * Allow header if only the method does not match.
+ * @author Zhang,Yuexiang (xfeep)
+ *
+ */
+public class NginxJavaRouter implements NginxJavaRingHandler {
+
+	/**
+	 * request key of the path parameters map
+	 */
+	public static final String ROUTE_PARAMS = "route-params";
+
+	protected final NginxRouter router = new NginxRouter();
+
+	protected NginxJavaRingHandler notFoundHandler;
+
+	public NginxJavaRouter() {
+	}
+
+	public NginxJavaRouter route(String method, String pattern, NginxJavaRingHandler handler) {
+		router.add(method, pattern, handler);
+		return this;
+	}
+
+	public NginxJavaRouter get(String pattern, NginxJavaRingHandler handler) {
+		return route("GET", pattern, handler);
+	}
+
+	public NginxJavaRouter post(String pattern, NginxJavaRingHandler handler) {
+		return route("POST", pattern, handler);
+	}
+
+	public NginxJavaRouter put(String pattern, NginxJavaRingHandler handler) {
+		return route("PUT", pattern, handler);
+	}
+
+	public NginxJavaRouter delete(String pattern, NginxJavaRingHandler handler) {
+		return route("DELETE", pattern, handler);
+	}
+
+	public NginxJavaRouter any(String pattern, NginxJavaRingHandler handler) {
+		return route(null, pattern, handler);
+	}
+
+	public NginxJavaRouter notFound(NginxJavaRingHandler handler) {
+		this.notFoundHandler = handler;
+		return this;
+	}
+
+	public NginxRouter getRouter() {
+		return router;
+	}
+
+	@Override
+	public Object[] invoke(Map<String, Object> request) throws IOException {
+		Match m = router.localMatch();
+		NginxJavaRingHandler h = (NginxJavaRingHandler) router.match((String)request.get(REQUEST_METHOD), (String)request.get(URI), m);
+		if (h == null) {
+			if (m.isMethodNotAllowed()) {
+				return new Object[] {NGX_HTTP_NOT_ALLOWED, ArrayMap.create("Allow", m.allowedMethods()), null};
+			}
+			return notFoundHandler == null ? NginxJavaHandler.NOT_FOUND_RESPONSE : notFoundHandler.invoke(request);
+		}
+		Object[] ps = new Object[m.size() << 1];
+		for (int i = 0; i < m.size(); i++) {
+			ps[i << 1] = m.name(i);
+			ps[(i << 1) + 1] = m.value(i);
+		}
+		request.put(ROUTE_PARAMS, new ArrayMap<String, String>(ps));
+		return h.invoke(request);
+	}
+
+}
@@ -6,8 +6,14 @@ package nginx.clojure.net;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.SocketException;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.net.ssl.SSLException;
 
 import nginx.clojure.ChannelListener;
 import nginx.clojure.HackUtils;
@@ -19,11 +25,20 @@ public class NginxClojureAsynChannel implements NginxClojureSocketHandler, Close
 	
 	protected ChannelListener<NginxClojureAsynChannel> listener;
 	protected BufferChain connectFakeChain;
+	protected BufferChain sslFakeChain;
+	protected String sslSessionKey;
+	/*not null when connecting or connected to a peer of a NginxClojureUpstream group*/
+	protected NginxClojureUpstream upstream;
+	protected NginxClojureUpstream.Peer upstreamPeer;
+	protected Set<NginxClojureUpstream.Peer> upstreamTried;
+	protected int upstreamTries;
+	protected boolean upstreamFailed;
 	protected BufferChain writeBusyChain;
 	protected BufferChain freeChain;
 	protected BufferChain readBusyChain;
 	protected int pagesize = 1024 * 4;
 	protected NginxClojureAsynSocket as;
+	protected ByteBuffer[] iovBuffers;
 	protected static TinyLogService log;
 	
 	public static class BufferChain {
@@ -31,6 +46,9 @@ public class NginxClojureAsynChannel implements NginxClojureSocketHandler, Close
 		public BufferChain next;
 		public CompletionListener listener;
 		public Object attachement;
+		/*for read, done as soon as some bytes are read instead of the buffer is full*/
+		public boolean partial;
+		public int startPosition;
 	}
 	
 	public static interface CompletionListener<T> {
@@ -176,7 +194,8 @@ public class NginxClojureAsynChannel implements NginxClojureSocketHandler, Close
 	/**
 	 * connect to remote server
 	 * @param url 
-	 *        e.g. "192.168.2.34:80" , "www.bing.com:80", or unix domain socket "unix:/var/mytest/server.sock"
+	 *        e.g. "192.168.2.34:80" , "www.bing.com:80", unix domain socket "unix:/var/mytest/server.sock"
+	 *        or a group of upstream servers "upstream:backend", see {@link NginxClojureUpstream}
 	 * @param listener 
 	 *        completion listener
 	 * @param attachement 
@@ -189,9 +208,103 @@ public class NginxClojureAsynChannel implements NginxClojureSocketHandler, Close
 			connectFakeChain.attachement = attachement;
 			connectFakeChain.listener = listener;
 		}
+		String group = NginxClojureUpstream.groupName(url);
+		if (group != null) {
+			as.url = url;
+			upstream = NginxClojureUpstream.lookup(group);
+			upstreamTried = null;
+			upstreamTries = 0;
+			if (upstream == null) {
+				onConnectNoThrows(NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_RESOLVE);
+				return;
+			}
+			connectNextPeer();
+			return;
+		}
+		connectUrl(url);
+	}
+	
+	protected void connectNextPeer() {
+		NginxClojureUpstream.Peer peer = upstream.select(upstreamTried);
+		if (peer == null) {
+			log.error("no live upstreams in %s", upstream.getName());
+			onConnectNoThrows(NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_CONNECT);
+			return;
+		}
+		upstreamPeer = peer;
+		upstreamFailed = false;
+		upstreamTries++;
+		connectUrl(peer.getUrl());
+	}
+	
+	protected void onConnectNoThrows(long sc) {
+		try {
+			onConnect(as, sc);
+		} catch (IOException e) {
+			log.error("onConnect error", e);
+		}
+	}
+	
+	protected void connectUrl(String url) {
+		int p = url.lastIndexOf(':');
+		if (p > 0 && !url.startsWith("unix:") && NginxClojureResolver.needResolve(url.substring(0, p))) {
+			as.url = url;
+			final String port = url.substring(p);
+			NginxClojureResolver.resolve(url.substring(0, p), new NginxClojureResolver.ResolveListener() {
+				@Override
+				public void onResolved(String host, InetAddress[] addrs, UnknownHostException error) {
+					if (as.isClosed()) {
+						return;
+					}
+					if (error != null) {
+						onConnectNoThrows(NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_RESOLVE);
+					}else {
+						as.connect(addrs[0].getHostAddress() + port);
+					}
+				}
+			});
+			return;
+		}
 		as.connect(url);
 	}
 	
+	/**
+	 * Starts TLS on a connected channel by nginx's OpenSSL layer, after it is done read/write will be encrypted.
+	 * Client sessions are shared with {@link NginxClojureSSLSocketFactory} so a later connection to the same server can resume them.
+	 * @param serverName 
+	 *        used by SNI and host name verification
+	 * @param verify 
+	 *        whether to verify peer certificate and host name
+	 * @param listener 
+	 *        completion listener, it is invoked when the handshake is done or meets error
+	 */
+	public <T> void startSsl(String serverName, boolean verify, T attachement, CompletionListener<T> listener) {
+		check();
+		sslFakeChain = new BufferChain();
+		sslFakeChain.attachement = attachement;
+		sslFakeChain.listener = listener;
+		long rc;
+		try {
+			NginxClojureSSLSocketFactory.ensureSslContext();
+			sslSessionKey = new StringBuilder(as.url).append('#').append(serverName).toString();
+			rc = as.sslHandshake(serverName, verify, NginxClojureSSLSocketFactory.getSession(sslSessionKey));
+		} catch (SSLException e) {
+			rc = NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_SSL;
+		}
+		if (rc != NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN) {
+			onSslHandshake(rc);
+		}
+	}
+	
+	protected void onSslHandshake(long sc) {
+		if (sc == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK) {
+			NginxClojureSSLSocketFactory.putSession(sslSessionKey, as.getSslSession());
+		}
+		BufferChain chain = sslFakeChain;
+		sslFakeChain = null;
+		callOnEventNoThrows(chain, sc);
+	}
+	
 	public <T> void write(byte[] buf, long off, long size, T attachement, CompletionListener<T> listener) {
 		write(ByteBuffer.wrap(buf, (int)off, (int)size), attachement, listener);
 	}
@@ -217,14 +330,33 @@ public class NginxClojureAsynChannel implements NginxClojureSocketHandler, Close
 	}
 	
     public <T> void read(ByteBuffer buf, T attachement, CompletionListener<T> listener) {
-    	check();
+    	read(buf, false, attachement, listener);
+    }
+    
+	/**
+	 * Unlike {@link #read(ByteBuffer, Object, CompletionListener)} which is done only when the buffer is full, 
+	 * it is done as soon as some bytes are read, so it is suitable for protocols whose message length is unknown before parsing.
+	 * The status passed to the listener is the position of the buffer.
+	 */
+	public <T> void readSome(ByteBuffer buf, T attachement, CompletionListener<T> listener) {
+		read(buf, true, attachement, listener);
+	}
+	
+	protected <T> void read(ByteBuffer buf, boolean partial, T attachement, CompletionListener<T> listener) {
+		check();
 		BufferChain chain = new BufferChain();
 		chain.attachement = attachement;
 		chain.buffer = buf;
 		chain.listener = listener;
+		chain.partial = partial;
+		chain.startPosition = buf.position();
 		chain.next = null;
 		if (readBusyChain != null) {
-			readBusyChain.next = chain;
+			BufferChain tail = readBusyChain;
+			while (tail.next != null) {
+				tail = tail.next;
+			}
+			tail.next = chain;
 		}else {
 			readBusyChain = chain;
 		}
@@ -241,6 +373,25 @@ public class NginxClojureAsynChannel implements NginxClojureSocketHandler, Close
 
 	@Override
 	public void onConnect(NginxClojureAsynSocket s, long sc) throws IOException {
+		if (sslFakeChain != null) {
+			onSslHandshake(sc);
+			return;
+		}
+		if (upstreamPeer != null && sc != NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK) {
+			upstream.free(upstreamPeer, true);
+			if (upstreamTried == null) {
+				upstreamTried = new HashSet<NginxClojureUpstream.Peer>();
+			}
+			upstreamTried.add(upstreamPeer);
+			upstreamPeer = null;
+			if (upstreamTries < upstream.getTries()) {
+				if (log.isDebugEnabled()) {
+					log.debug("asyn-channel#%d: connect error %d, try next upstream peer", as.s, sc);
+				}
+				connectNextPeer();
+				return;
+			}
+		}
 		if (listener != null) {
 			listener.onConnect(sc, this);
 		}
@@ -270,6 +421,7 @@ public class NginxClojureAsynChannel implements NginxClojureSocketHandler, Close
 		}
 		BufferChain chain = isRead ? readBusyChain : writeBusyChain;
 		if (sc != NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK) {
+			upstreamFailed = true;
 			while (chain != null) {
 				callOnEventNoThrows(chain, sc);
 				if (!isRead) {
@@ -286,40 +438,52 @@ public class NginxClojureAsynChannel implements NginxClojureSocketHandler, Close
 			return;
 		}
 		
+		//drain the whole chain by scatter read / gather write so that several buffers only cost one system call
 		while (chain != null) {
-			ByteBuffer buffer = chain.buffer;
-			long rc = isRead ? s.read(buffer) : s.write(buffer);
-			int c = buffer.position();
-			if (log.isDebugEnabled()) {
-				if (rc > 0) {
-					log.debug("asyn-channel#%d: %s offset %d len %d return %d, total %d", as.s, (isRead ? "read" : "write"),
-							buffer.position() - rc, buffer.limit(), rc, buffer.position());
+			int n = 0;
+			for (BufferChain c = chain; c != null && n < NginxClojureAsynSocket.MAX_IOVS; c = c.next) {
+				if (iovBuffers == null) {
+					iovBuffers = new ByteBuffer[NginxClojureAsynSocket.MAX_IOVS];
 				}
-				
+				iovBuffers[n++] = c.buffer;
+			}
+			long rc = n == 1 ? (isRead ? s.read(chain.buffer) : s.write(chain.buffer))
+					: (isRead ? s.read(iovBuffers, 0, n) : s.write(iovBuffers, 0, n));
+			for (int i = 0; i < n; i++) {
+				iovBuffers[i] = null;
+			}
+			if (log.isDebugEnabled()) {
+				log.debug("asyn-channel#%d: %s %d buffers return %d", as.s, (isRead ? "read" : "write"), n, rc);
 			}
 			if (rc > 0) {
-				if (!buffer.hasRemaining()) {
+				while (chain != null && (!chain.buffer.hasRemaining() 
+						|| (chain.partial && chain.buffer.position() > chain.startPosition))) {
+					BufferChain done = chain;
+					chain = chain.next;
 					if (isRead) {
-						readBusyChain = chain.next;
+						readBusyChain = chain;
 					}else {
-						writeBusyChain = chain.next;
+						writeBusyChain = chain;
 					}
-					callOnEventNoThrows(chain, c);
-					chain = isRead ? readBusyChain : writeBusyChain;
+					callOnEventNoThrows(done, done.buffer.position());
 				}
-			} else if (rc <= 0) {
+				//if the last operation is partial the next one will return NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN 
+			} else {
 				if (rc == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN) {
 					return;
 				}
+				if (rc < 0) {
+					upstreamFailed = true;
+				}
 				while (chain != null) {
 					if (isRead) {
 						readBusyChain = chain.next;
 					}else {
 						writeBusyChain = chain.next;
 					}
+					int c = chain.buffer.position();
 					if (c > 0) {
 						callOnEventNoThrows(chain, c);
-						c = 0;
 					}else {
 						callOnEventNoThrows(chain, rc);
 					}
@@ -347,6 +511,10 @@ public class NginxClojureAsynChannel implements NginxClojureSocketHandler, Close
 		if (log.isDebugEnabled()) {
 			log.debug("asyn-channel#%d: on release status=%d", as.s, sc);
 		}
+		if (upstreamPeer != null) {
+			upstream.free(upstreamPeer, upstreamFailed);
+			upstreamPeer = null;
+		}
 		if (listener != null) {
 			listener.onClose(this);
 		}
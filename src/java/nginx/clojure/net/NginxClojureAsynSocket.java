@@ -33,6 +33,7 @@ public class NginxClojureAsynSocket implements NginxClojureSocketRawHandler, Clo
 	public static final long NGX_HTTP_CLOJURE_SOCKET_ERR_OUTOFMEMORY = -26;
 	public static final long NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN = -27;
 	public static final long NGX_HTTP_CLOJURE_SOCKET_ERR_BIND = -28;
+	public static final long NGX_HTTP_CLOJURE_SOCKET_ERR_SSL = -29;
 
 
 	public static final long NGX_HTTP_CLOJURE_SOCKET_SHUTDOWN_READ  = 0;
@@ -57,6 +58,7 @@ public class NginxClojureAsynSocket implements NginxClojureSocketRawHandler, Clo
 		"socket out of memory" , //NGX_HTTP_CLOJURE_SOCKET_ERR_OUTOFMEMORY
 		"socket try again"     , //NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN
 		"socket bind error" ,  //NGX_HTTP_CLOJURE_SOCKET_ERR_BIND
+		"socket ssl error" ,  //NGX_HTTP_CLOJURE_SOCKET_ERR_SSL
 	};
 	
 	protected long s;
@@ -69,6 +71,32 @@ public class NginxClojureAsynSocket implements NginxClojureSocketRawHandler, Clo
 	
 	protected String url;
 	
+	protected boolean ssl;
+	
+	public static final long SSL_INFO_PROTOCOL = 0;
+	public static final long SSL_INFO_CIPHER = 1;
+	public static final long SSL_INFO_PEER_CERTIFICATE = 2;
+	
+	/**
+	 * the max number of buffers of one scatter read / gather write
+	 */
+	public static final int MAX_IOVS = 64;
+	
+	/*lazy created arguments for readv/writev*/
+	protected Object[] iovBufs;
+	protected long[] iovOffLens;
+	
+	protected boolean udp;
+	
+	/*latency histograms and error counters of the destination, null if disabled*/
+	protected NginxClojureSocketStats stats;
+	
+	/*nano times of the pending connect and the current exchange, 0 means none*/
+	protected long connectStart;
+	protected long exchangeStart;
+	protected long firstByteAt;
+	protected long lastReadAt;
+	
 	
 	public NginxClojureAsynSocket() {
 		if (Thread.currentThread() != NginxClojureRT.NGINX_MAIN_THREAD) {
@@ -90,6 +118,18 @@ public class NginxClojureAsynSocket implements NginxClojureSocketRawHandler, Clo
 		return (int)available(s);
 	}
 	
+	/**
+	 * Checks whether a connected socket is still alive and has no unread data,
+	 * pending read/write timers will also be cleared so that it can stay idle.
+	 * @return NGX_HTTP_CLOJURE_SOCKET_OK : alive and idle,
+	 *         NGX_HTTP_CLOJURE_SOCKET_ERR_RESET : closed by peer,
+	 *         NGX_HTTP_CLOJURE_SOCKET_ERR_READ : unread data or read error
+	 */
+	public long checkIdle() {
+		checkConnected();
+		return checkIdle(s);
+	}
+	
 	public long setTcpNoDelay(long tcpNoDelay) {
 		return setTcpNoDelay(s, tcpNoDelay);
 	}
@@ -201,6 +241,12 @@ public class NginxClojureAsynSocket implements NginxClojureSocketRawHandler, Clo
 	 */
 	public long connect(String url) {
 		this.url = url;
+		if (stats == null) {
+			stats = NginxClojureSocketStats.of(url);
+		}
+		if (stats != null) {
+			connectStart = System.nanoTime();
+		}
 		ByteBuffer b = HackUtils.encode(url, MiniConstants.DEFAULT_ENCODING, NginxClojureRT.pickByteBuffer());
 		return connect(s, b.array(), MiniConstants.BYTE_ARRAY_OFFSET, b.remaining());
 	}
@@ -222,7 +268,7 @@ public class NginxClojureAsynSocket implements NginxClojureSocketRawHandler, Clo
 	 */
 	public long read(byte[] buf, long off, long size) {
 		checkConnected();
-		return read(s, buf, MiniConstants.BYTE_ARRAY_OFFSET + off, size);
+		return afterRead(read(s, buf, MiniConstants.BYTE_ARRAY_OFFSET + off, size));
 	}
 	
 	
@@ -243,7 +289,7 @@ public class NginxClojureAsynSocket implements NginxClojureSocketRawHandler, Clo
 		if (rc > 0) {
 			buf.position(buf.position() + (int)rc);
 		}
-		return rc;
+		return afterRead(rc);
 	}
 	
 	/**
@@ -258,7 +304,7 @@ public class NginxClojureAsynSocket implements NginxClojureSocketRawHandler, Clo
 	 */
 	public long write(byte[] buf, long off, long size) {
 		checkConnected();
-		return write(s, buf, MiniConstants.BYTE_ARRAY_OFFSET + off, size);
+		return afterWrite(write(s, buf, MiniConstants.BYTE_ARRAY_OFFSET + off, size));
 	}
 	
 	public long write(ByteBuffer buf) {
@@ -271,8 +317,281 @@ public class NginxClojureAsynSocket implements NginxClojureSocketRawHandler, Clo
 		if (rc > 0) {
 			buf.position(buf.position() + (int)rc);
 		}
+		return afterWrite(rc);
+	}
+	
+	/**
+	 * Tracks first-byte and total time of the current exchange and counts read errors.
+	 */
+	protected final long afterRead(long rc) {
+		if (stats != null) {
+			if (rc > 0) {
+				if (exchangeStart != 0) {
+					long now = System.nanoTime();
+					if (firstByteAt == 0) {
+						firstByteAt = now;
+						stats.recordFirstByte(now - exchangeStart);
+					}
+					lastReadAt = now;
+				}
+			}else if (rc < 0) {
+				stats.recordError(rc);
+			}
+		}
+		return rc;
+	}
+	
+	/**
+	 * A write after something has been read back starts a new exchange, e.g. the next request on a keep-alive connection.
+	 */
+	protected final long afterWrite(long rc) {
+		if (stats != null) {
+			if (rc > 0) {
+				if (exchangeStart == 0 || lastReadAt != 0) {
+					endExchange();
+					exchangeStart = System.nanoTime();
+				}
+			}else if (rc < 0) {
+				stats.recordError(rc);
+			}
+		}
+		return rc;
+	}
+	
+	protected final void endExchange() {
+		if (lastReadAt != 0) {
+			stats.recordTotal(lastReadAt - exchangeStart);
+		}
+		exchangeStart = firstByteAt = lastReadAt = 0;
+	}
+	
+	public NginxClojureSocketStats getStats() {
+		return stats;
+	}
+	
+	/**
+	 * Sets the destination that timing data is aggregated to, e.g. the name of an upstream group.
+	 * It should be invoked before {@link #connect(String)}, otherwise the url will be used.
+	 */
+	public void setStats(NginxClojureSocketStats stats) {
+		this.stats = stats;
+	}
+
+	/**
+	 * Scatter read, reads into buffers in order until no more data available.
+	 * At most {@link #MAX_IOVS} buffers will be used by one call.
+	 * @return the same as {@link #read(ByteBuffer)}, positions of buffers will be moved forward by the bytes read
+	 */
+	public long read(ByteBuffer[] dsts, int offset, int length) {
+		return rwv(dsts, offset, length, true);
+	}
+	
+	public long read(ByteBuffer[] dsts) {
+		return rwv(dsts, 0, dsts.length, true);
+	}
+	
+	/**
+	 * Gather write, writes buffers in order by one system call.
+	 * At most {@link #MAX_IOVS} buffers will be used by one call.
+	 * @return the same as {@link #write(ByteBuffer)}, positions of buffers will be moved forward by the bytes sent
+	 */
+	public long write(ByteBuffer[] srcs, int offset, int length) {
+		return rwv(srcs, offset, length, false);
+	}
+	
+	public long write(ByteBuffer[] srcs) {
+		return rwv(srcs, 0, srcs.length, false);
+	}
+	
+	/**
+	 * Lists servers of an <code>upstream {}</code> block defined in nginx.conf.
+	 * @return one line per address, e.g. "10.0.0.1:80 weight=1 max_fails=1 fail_timeout=10 backup", or null if no such upstream
+	 */
+	public static String getUpstreamServers(String name) {
+		ByteBuffer nb = HackUtils.encode(name, MiniConstants.DEFAULT_ENCODING, NginxClojureRT.pickByteBuffer());
+		byte[] buf = new byte[1024];
+		long n = upstreamServers(nb.array(), MiniConstants.BYTE_ARRAY_OFFSET, nb.remaining(), buf, MiniConstants.BYTE_ARRAY_OFFSET, buf.length);
+		if (n > buf.length) {
+			buf = new byte[(int)n];
+			n = upstreamServers(nb.array(), MiniConstants.BYTE_ARRAY_OFFSET, nb.remaining(), buf, MiniConstants.BYTE_ARRAY_OFFSET, buf.length);
+		}
+		if (n < 0) {
+			return null;
+		}
+		return new String(buf, 0, (int)n, MiniConstants.DEFAULT_ENCODING);
+	}
+	
+	/**
+	 * Makes this socket a connected UDP socket, it must be invoked before {@link #connect(String)}.
+	 */
+	public long setUdp(boolean udp) {
+		checkNotClosed();
+		long rc = setUdp(s, udp ? 1 : 0);
+		if (rc == NGX_HTTP_CLOJURE_SOCKET_OK) {
+			this.udp = udp;
+		}
+		return rc;
+	}
+	
+	public boolean isUdp() {
+		return udp;
+	}
+	
+	/**
+	 * Sends every buffer as one datagram on a UDP socket by one system call (sendmmsg) where available.
+	 * At most {@link #MAX_IOVS} datagrams will be sent by one call.
+	 * @return > 0 : the number of datagrams sent, positions of them will be moved to their limits, 
+	 *         NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN : try on next write event,
+	 *         NGX_HTTP_CLOJURE_SOCKET_ERR_WRITE : write error
+	 */
+	public long sendBatch(ByteBuffer[] datagrams, int offset, int length) {
+		checkConnected();
+		prepareIovs();
+		int n = Math.min(length, MAX_IOVS);
+		if (n == 0) {
+			return 0;
+		}
+		for (int i = 0; i < n; i++) {
+			fillIov(i, datagrams[offset + i]);
+		}
+		long rc = afterWrite(sendBatch(s, iovBufs, iovOffLens, n));
+		for (int i = 0; i < n; i++) {
+			iovBufs[i] = null;
+		}
+		for (int i = 0; i < rc; i++) {
+			ByteBuffer b = datagrams[offset + i];
+			b.position(b.limit());
+		}
+		return rc;
+	}
+	
+	protected void prepareIovs() {
+		if (iovBufs == null) {
+			iovBufs = new Object[MAX_IOVS];
+			iovOffLens = new long[MAX_IOVS * 2];
+		}
+	}
+	
+	protected void fillIov(int n, ByteBuffer b) {
+		if (b.isDirect()) {
+			iovBufs[n] = null;
+			iovOffLens[n << 1] = ((DirectBuffer)b).address() + b.position();
+		}else {
+			iovBufs[n] = b.array();
+			iovOffLens[n << 1] = MiniConstants.BYTE_ARRAY_OFFSET + b.arrayOffset() + b.position();
+		}
+		iovOffLens[(n << 1) + 1] = b.remaining();
+	}
+	
+	protected long rwv(ByteBuffer[] bufs, int offset, int length, boolean isRead) {
+		checkConnected();
+		prepareIovs();
+		int end = offset + length;
+		int n = 0;
+		for (int i = offset; i < end && n < MAX_IOVS; i++) {
+			ByteBuffer b = bufs[i];
+			int r = b.remaining();
+			if (r == 0) {
+				continue;
+			}
+			fillIov(n, b);
+			n++;
+		}
+		if (n == 0) {
+			return 0;
+		}
+		long rc = isRead ? readv(s, iovBufs, iovOffLens, n) : writev(s, iovBufs, iovOffLens, n);
+		if (isRead) {
+			afterRead(rc);
+		}else {
+			afterWrite(rc);
+		}
+		for (int i = 0; i < n; i++) {
+			iovBufs[i] = null;
+		}
+		if (rc > 0) {
+			long left = rc;
+			for (int i = offset; i < end && left > 0; i++) {
+				ByteBuffer b = bufs[i];
+				int m = (int)Math.min(b.remaining(), left);
+				b.position(b.position() + m);
+				left -= m;
+			}
+		}
+		return rc;
+	}
+
+	/**
+	 * Creates the SSL context of this worker, it should be invoked once before any SSL handshake.
+	 * @param trustedCertificate CA certificates file in PEM format, if null the system default CA paths will be used
+	 */
+	public static long initSsl(String trustedCertificate) {
+		if (trustedCertificate == null) {
+			return sslInit(null, 0, 0);
+		}
+		ByteBuffer b = HackUtils.encode(trustedCertificate, MiniConstants.DEFAULT_ENCODING, NginxClojureRT.pickByteBuffer());
+		return sslInit(b.array(), MiniConstants.BYTE_ARRAY_OFFSET, b.remaining());
+	}
+	
+	/**
+	 * Starts SSL handshake on a connected socket by nginx's OpenSSL layer, after that read/write will be encrypted.
+	 * @param serverName used by SNI and host name verification
+	 * @param verify whether to verify peer certificate and host name
+	 * @param session 0 or a session got by {@link #getSslSession()} from a previous connection to the same server
+	 * @return NGX_HTTP_CLOJURE_SOCKET_OK : done, 
+	 *         NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN : the result will be notified by {@link NginxClojureSocketHandler#onConnect(NginxClojureAsynSocket, long)},
+	 *         others : error code
+	 */
+	public long sslHandshake(String serverName, boolean verify, long session) {
+		checkConnected();
+		ByteBuffer b = HackUtils.encode(serverName == null ? "" : serverName, MiniConstants.DEFAULT_ENCODING, NginxClojureRT.pickByteBuffer());
+		long rc = sslHandshake(s, b.array(), MiniConstants.BYTE_ARRAY_OFFSET, b.remaining(), verify ? 1 : 0, session);
+		if (rc == NGX_HTTP_CLOJURE_SOCKET_OK || rc == NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN) {
+			ssl = true;
+		}
 		return rc;
 	}
+	
+	public boolean isSsl() {
+		return ssl;
+	}
+	
+	/**
+	 * @return a native SSL session handle which must be freed by {@link #freeSslSession(long)}, or 0 if no SSL session
+	 */
+	public long getSslSession() {
+		checkConnected();
+		return getSslSession(s);
+	}
+	
+	public static void freeSslSession(long session) {
+		if (session != 0) {
+			sslFreeSession(session);
+		}
+	}
+	
+	/**
+	 * @param type SSL_INFO_PROTOCOL, SSL_INFO_CIPHER or SSL_INFO_PEER_CERTIFICATE
+	 * @return null if not available
+	 */
+	public byte[] getSslInfo(long type) {
+		checkConnected();
+		byte[] buf = new byte[64];
+		long n = getSslInfo(s, type, buf, MiniConstants.BYTE_ARRAY_OFFSET, buf.length);
+		if (n > buf.length) {
+			buf = new byte[(int)n];
+			n = getSslInfo(s, type, buf, MiniConstants.BYTE_ARRAY_OFFSET, buf.length);
+		}
+		if (n <= 0) {
+			return null;
+		}
+		if (n < buf.length) {
+			byte[] r = new byte[(int)n];
+			System.arraycopy(buf, 0, r, 0, (int)n);
+			return r;
+		}
+		return buf;
+	}
 
 	public long shutdown(long how) {
 		checkConnected();
@@ -288,6 +607,9 @@ public class NginxClojureAsynSocket implements NginxClojureSocketRawHandler, Clo
 		if (s <= 0) {
 			return;
 		}
+		if (stats != null && exchangeStart != 0) {
+			endExchange();
+		}
 		s = -s;
 		close(-s);
 	}
@@ -314,16 +636,31 @@ public class NginxClojureAsynSocket implements NginxClojureSocketRawHandler, Clo
 		if (!connected && sc == NGX_HTTP_CLOJURE_SOCKET_OK) {
 			connected = true;
 		}
+		if (stats != null) {
+			if (connectStart != 0) {
+				if (sc == NGX_HTTP_CLOJURE_SOCKET_OK) {
+					stats.recordConnect(System.nanoTime() - connectStart);
+				}
+				connectStart = 0;
+			}
+			stats.recordError(sc);
+		}
 		handler.onConnect(this, sc);
 	}
 
 	@Override
 	public void onRead(long u, long sc) throws IOException {
+		if (stats != null && sc < 0) {
+			stats.recordError(sc);
+		}
 		handler.onRead(this, sc);
 	}
 
 	@Override
 	public void onWrite(long u, long sc) throws IOException {
+		if (stats != null && sc < 0) {
+			stats.recordError(sc);
+		}
 		handler.onWrite(this, sc);
 	}
 
@@ -346,6 +683,8 @@ public class NginxClojureAsynSocket implements NginxClojureSocketRawHandler, Clo
 	 */
 	private static native long available(long s);
 	
+	private static native long checkIdle(long s);
+	
 	/**
 	 * 
 	 * @param s native socket handle
@@ -370,6 +709,41 @@ public class NginxClojureAsynSocket implements NginxClojureSocketRawHandler, Clo
 	 */
 	private static native long write(long s, Object buf, long off, long size);
 	
+	/**
+	 * @param bufs byte[] or null for native buffers
+	 * @param offLens offLens[2*i] is the offset of bufs[i] (including Java Object Base Offset) or native address, 
+	 *                offLens[2*i+1] is the length
+	 * @param n the number of buffers
+	 */
+	private static native long readv(long s, Object[] bufs, long[] offLens, long n);
+	
+	private static native long writev(long s, Object[] bufs, long[] offLens, long n);
+	
+	private static native long sendBatch(long s, Object[] bufs, long[] offLens, long n);
+	
+	private static native long setUdp(long s, long udp);
+	
+	private static native long upstreamServers(Object name, long noff, long nlen, Object buf, long off, long len);
+	
+	private static native long sslInit(Object ca, long off, long len);
+	
+	private static native long sslHandshake(long s, Object name, long off, long len, long verify, long session);
+	
+	private static native long getSslSession(long s);
+	
+	private static native void sslFreeSession(long session);
+	
+	private static native long getSslInfo(long s, long type, Object buf, long off, long len);
+	
+	/**
+	 * @param r native request handle of a hijacked request
+	 * @param pipe a {@link NginxClojurePipe} whose onNativeClose will be invoked once when the pipe is closed
+	 * @return native pipe handle or an error code
+	 */
+	static native long pipe(long s, long r, Object pipe, long bufferSize);
+	
+	static native void unpipe(long p, long sc);
+	
 	private static native void setTimeout(long s, long ctimeout, long rtimeout, long wtimeout);
 	
 	private static native long  setTcpNoDelay(long s, long tcpNoDelay);
@@ -0,0 +1,57 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure.net;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+
+/**
+ * A coroutine based datagram socket whose {@link #receive(DatagramPacket)} suspends only the current coroutine.
+ * {@link DatagramSocket#receive(DatagramPacket)} is a synchronized JDK method which can not be suspended,
+ * so the coroutine based implementation is only given to this class, and a plain DatagramSocket, e.g. one created
+ * by a third-party library, always uses the JDK default blocking implementation.
+ * <p>
+ * It can only be used in coroutines on the nginx main thread.
+ */
+public class NginxClojureDatagramSocket extends DatagramSocket {
+
+	protected final NginxClojureDatagramSocketImpl nimpl;
+
+	public NginxClojureDatagramSocket() throws SocketException {
+		this(new InetSocketAddress(0));
+	}
+
+	public NginxClojureDatagramSocket(SocketAddress bindaddr) throws SocketException {
+		this(new NginxClojureDatagramSocketImpl());
+		if (bindaddr != null) {
+			bind(bindaddr);
+		}
+	}
+
+	protected NginxClojureDatagramSocket(NginxClojureDatagramSocketImpl impl) {
+		super(impl);
+		this.nimpl = impl;
+	}
+
+	@Override
+	public void receive(DatagramPacket p) throws IOException {
+		if (isClosed()) {
+			throw new SocketException("Socket is closed");
+		}
+		nimpl.receive(p);
+	}
+
+	/**
+	 * @return the number of datagrams dropped because of send errors, queue overflow or closing
+	 */
+	public long getDropped() {
+		return nimpl.getDropped();
+	}
+
+}
@@ -0,0 +1,507 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure.net;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.DatagramPacket;
+import java.net.DatagramSocketImpl;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import nginx.clojure.CoDeadline;
+import nginx.clojure.Coroutine;
+import nginx.clojure.NginxClojureRT;
+import nginx.clojure.logger.LoggerService;
+import nginx.clojure.logger.TinyLogService;
+import nginx.clojure.logger.TinyLogService.MsgType;
+
+/**
+ * Coroutine based UDP socket implementation backed by nginx connected UDP sockets.
+ * <p>
+ * Sending never suspends the current coroutine. Datagrams are queued and flushed together
+ * by one sendmmsg system call when <code>nginx.clojure.udp.batchSize</code> (default 32) datagrams are queued,
+ * before receiving, or at the latest on the next nginx event loop iteration,
+ * so fire-and-forget traffic such as StatsD metrics or syslog costs neither a thread hop nor a system call per datagram.
+ * If the kernel send buffer is full the queue is flushed again on the next write event, and when more than
+ * <code>nginx.clojure.udp.maxPending</code> (default 1024) datagrams are queued the oldest ones are dropped, just like
+ * a congested network does.
+ * <p>
+ * Receiving suspends the current coroutine until a datagram arrives or SO_TIMEOUT expires. Because
+ * {@link java.net.DatagramSocket#receive(DatagramPacket)} is synchronized and can not be suspended,
+ * so it is only used by {@link NginxClojureDatagramSocket} and never installed as the system wide factory.
+ * <p>
+ * A native socket is always connected to one peer, an unconnected socket reconnects when the destination changes
+ * and can only receive datagrams from the last destination. Multicast is not supported.
+ */
+public class NginxClojureDatagramSocketImpl extends DatagramSocketImpl implements NginxClojureSocketHandler {
+
+	public static final String NGINX_CLOJURE_UDP_BATCH_SIZE = "nginx.clojure.udp.batchSize";
+
+	public static final String NGINX_CLOJURE_UDP_MAX_PENDING = "nginx.clojure.udp.maxPending";
+
+	final static int BATCH_SIZE = Math.max(1, Math.min(NginxClojureAsynSocket.MAX_IOVS, Integer.getInteger(NGINX_CLOJURE_UDP_BATCH_SIZE, 32)));
+
+	final static int MAX_PENDING = Integer.getInteger(NGINX_CLOJURE_UDP_MAX_PENDING, 1024);
+
+	final static int YIELD_READ = 2;
+
+	final static long LENGTH_FIELD_OFFSET_OF_PACKET;
+
+	final static long BUF_LENGTH_FIELD_OFFSET_OF_PACKET;
+
+	static {
+		long lo = 0, blo = 0;
+		try {
+			Field lf = DatagramPacket.class.getDeclaredField("length");
+			Field blf = DatagramPacket.class.getDeclaredField("bufLength");
+			lo = NginxClojureRT.UNSAFE.objectFieldOffset(lf);
+			blo = NginxClojureRT.UNSAFE.objectFieldOffset(blf);
+		} catch (Throwable e) {
+			lo = blo = 0;
+		}
+		LENGTH_FIELD_OFFSET_OF_PACKET = lo;
+		BUF_LENGTH_FIELD_OFFSET_OF_PACKET = blo;
+	}
+
+	protected static LoggerService log;
+
+	protected NginxClojureAsynSocket as;
+	protected Coroutine coroutine;
+	protected int yieldFlag = 0;
+	protected long status = NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK;
+
+	protected InetAddress localAddress;
+	protected String bindAddr;
+	protected InetAddress peerAddress;
+	protected int peerPort;
+	/*connected by DatagramSocket.connect*/
+	protected boolean userConnected;
+	protected int soTimeout;
+	protected int rcvbuf;
+	protected final Map<Integer, Object> ignoredOptions = new HashMap<Integer, Object>();
+
+	protected final ArrayDeque<ByteBuffer> pendings = new ArrayDeque<ByteBuffer>();
+	protected ByteBuffer[] batch;
+	protected boolean flushScheduled;
+	/*waiting for the next write event to flush*/
+	protected boolean writeBlocked;
+	/*close after all pending datagrams are flushed*/
+	protected boolean closing;
+	protected long dropped;
+
+	protected final Runnable flusher = new Runnable() {
+		@Override
+		public void run() {
+			flushScheduled = false;
+			if (as != null && !writeBlocked) {
+				flush();
+			}
+		}
+	};
+
+	public NginxClojureDatagramSocketImpl() {
+		if (Thread.currentThread() != NginxClojureRT.NGINX_MAIN_THREAD) {
+			throw new IllegalAccessError("coroutine based sockets can only be called in main thread");
+		}
+		if (log == null) {
+			log = new TinyLogService(TinyLogService.getSystemPropertyOrDefaultLevel(NginxClojureSocketImpl.NGINX_CLOJURE_LOG_SOCKET_LEVEL, MsgType.info), System.err, System.err);
+		}
+	}
+
+	@Override
+	protected void create() throws SocketException {
+		//the native socket is created when the peer is known
+	}
+
+	@Override
+	protected void bind(int lport, InetAddress laddr) throws SocketException {
+		localAddress = laddr;
+		localPort = lport;
+		if (lport != 0 || (laddr != null && !laddr.isAnyLocalAddress())) {
+			bindAddr = new StringBuilder(laddr == null ? "0.0.0.0" : laddr.getHostAddress()).append(':').append(lport).toString();
+		}
+	}
+
+	@Override
+	protected void connect(InetAddress address, int port) throws SocketException {
+		switchPeer(address, port);
+		userConnected = true;
+	}
+
+	@Override
+	protected void disconnect() {
+		userConnected = false;
+		closeNative();
+		peerAddress = null;
+		peerPort = 0;
+	}
+
+	protected void closeNative() {
+		if (as != null) {
+			flush();
+			if (!pendings.isEmpty()) {
+				dropped += pendings.size();
+				pendings.clear();
+			}
+			as.close();
+			as = null;
+		}
+		writeBlocked = false;
+	}
+
+	/**
+	 * Makes the native socket connected to a new peer. UDP connect never waits so it needn't suspend.
+	 */
+	protected void switchPeer(InetAddress address, int port) throws SocketException {
+		if (as != null && port == peerPort && address.equals(peerAddress)) {
+			return;
+		}
+		closeNative();
+		NginxClojureAsynSocket nas = new NginxClojureAsynSocket(this);
+		nas.setUdp(true);
+		if (rcvbuf > 0) {
+			nas.setReceiveBufferSize(rcvbuf);
+		}
+		if (soTimeout > 0) {
+			nas.setReadTimeout(soTimeout);
+		}
+		if (bindAddr != null) {
+			status = nas.bind(bindAddr);
+			if (status != NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK) {
+				nas.close();
+				throw new SocketException(nas.buildError(status));
+			}
+		}
+		String url = new StringBuilder(address.getHostAddress()).append(':').append(port).toString();
+		status = NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK;
+		nas.connect(url);
+		if (!nas.isConnected()) {
+			long sc = status == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK ? NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_CONNECT : status;
+			nas.close();
+			throw new SocketException(nas.buildError(sc));
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("udp-socket#%d: connected to %s", nas.s, url);
+		}
+		as = nas;
+		peerAddress = address;
+		peerPort = port;
+	}
+
+	@Override
+	protected void send(DatagramPacket p) throws IOException {
+		if (closing) {
+			throw new SocketException("Socket is closed");
+		}
+		InetAddress addr = p.getAddress();
+		if (userConnected) {
+			if (addr != null && (p.getPort() != peerPort || !addr.equals(peerAddress))) {
+				throw new IllegalArgumentException("connected address and packet address differ");
+			}
+		}else {
+			if (addr == null) {
+				throw new IllegalArgumentException("Address not set");
+			}
+			switchPeer(addr, p.getPort());
+		}
+
+		ByteBuffer d = ByteBuffer.allocate(p.getLength());
+		d.put(p.getData(), p.getOffset(), p.getLength());
+		d.flip();
+		pendings.addLast(d);
+		if (pendings.size() > MAX_PENDING) {
+			pendings.pollFirst();
+			dropped++;
+			if (log.isDebugEnabled()) {
+				log.debug("udp-socket#%d: too many pending datagrams, the oldest one is dropped", as.s);
+			}
+		}
+
+		if (writeBlocked) {
+			return;
+		}
+		if (pendings.size() >= BATCH_SIZE) {
+			flush();
+		}else if (!flushScheduled) {
+			flushScheduled = true;
+			NginxClojureRT.scheduleOnMainThread(flusher, 0);
+		}
+	}
+
+	/**
+	 * Sends pending datagrams until all of them are sent or the kernel buffer is full.
+	 */
+	protected void flush() {
+		if (batch == null) {
+			batch = new ByteBuffer[NginxClojureAsynSocket.MAX_IOVS];
+		}
+		while (!pendings.isEmpty()) {
+			int n = 0;
+			for (ByteBuffer d : pendings) {
+				batch[n++] = d;
+				if (n == batch.length) {
+					break;
+				}
+			}
+			long rc = as.sendBatch(batch, 0, n);
+			for (int i = 0; i < n; i++) {
+				batch[i] = null;
+			}
+			if (rc > 0) {
+				for (int i = 0; i < rc; i++) {
+					pendings.pollFirst();
+				}
+			}else if (rc == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN) {
+				writeBlocked = true;
+				return;
+			}else {
+				//e.g. ICMP port unreachable of a previous datagram, datagrams have no delivery guarantee so we just drop it
+				pendings.pollFirst();
+				dropped++;
+				if (log.isDebugEnabled()) {
+					log.debug("udp-socket#%d: send error %s, a datagram is dropped", as.s, as.buildError(rc));
+				}
+			}
+		}
+		if (closing) {
+			closing = false;
+			as.close();
+			as = null;
+		}
+	}
+
+	/**
+	 * @return the number of datagrams dropped because of send errors, queue overflow or closing
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+
+	public int getPendingCount() {
+		return pendings.size();
+	}
+
+	protected void attachCoroutine() {
+		Coroutine ac = Coroutine.getActiveCoroutine();
+		if (coroutine == null || coroutine.getState() == Coroutine.State.FINISHED) {
+			coroutine = ac;
+		}
+	}
+
+	@Override
+	protected void receive(DatagramPacket p) throws IOException {
+		if (as == null || closing) {
+			throw new SocketException("Socket is not connected, a coroutine based datagram socket can only receive from the peer it has connected or sent to");
+		}
+		if (!pendings.isEmpty() && !writeBlocked) {
+			flush();
+		}
+		byte[] buf = p.getData();
+		int off = p.getOffset();
+		int len = BUF_LENGTH_FIELD_OFFSET_OF_PACKET == 0 ? p.getLength() : NginxClojureRT.UNSAFE.getInt(p, BUF_LENGTH_FIELD_OFFSET_OF_PACKET);
+		long rc;
+		boolean shrunk = CoDeadline.current() != null;
+		if (shrunk) {
+			as.setReadTimeout(CoDeadline.shrink(soTimeout));
+		}
+		try {
+			while ((rc = as.read(buf, off, len)) == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN) {
+				if (log.isDebugEnabled()) {
+					log.debug("udp-socket#%d: yield on receive", as.s);
+				}
+				yieldFlag = YIELD_READ;
+				attachCoroutine();
+				Coroutine.yield();
+				if (as == null) {
+					throw new SocketException("Socket closed");
+				}
+				if (status == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_READ_TIMEOUT) {
+					CoDeadline.check();
+					throw new SocketTimeoutException(as.buildError(status));
+				}else if (status < 0 && status != NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN) {
+					throw new SocketException(as.buildError(status));
+				}
+			}
+		}finally {
+			if (shrunk && as != null && !as.isClosed()) {
+				as.setReadTimeout(soTimeout);
+			}
+		}
+		if (rc < 0) {
+			throw new SocketException(as.buildError(rc));
+		}
+		if (LENGTH_FIELD_OFFSET_OF_PACKET == 0) {
+			p.setLength((int)rc);
+		}else {
+			//keep bufLength so that the packet can be reused by next receive
+			NginxClojureRT.UNSAFE.putInt(p, LENGTH_FIELD_OFFSET_OF_PACKET, (int)rc);
+		}
+		p.setAddress(peerAddress);
+		p.setPort(peerPort);
+	}
+
+	@Override
+	protected int peek(InetAddress i) throws IOException {
+		throw new SocketException("peek is not supported by coroutine based datagram sockets");
+	}
+
+	@Override
+	protected int peekData(DatagramPacket p) throws IOException {
+		throw new SocketException("peekData is not supported by coroutine based datagram sockets");
+	}
+
+	@Override
+	protected void setTTL(byte ttl) throws IOException {
+		throw new SocketException("multicast is not supported by coroutine based datagram sockets");
+	}
+
+	@Override
+	protected byte getTTL() throws IOException {
+		throw new SocketException("multicast is not supported by coroutine based datagram sockets");
+	}
+
+	@Override
+	protected void setTimeToLive(int ttl) throws IOException {
+		throw new SocketException("multicast is not supported by coroutine based datagram sockets");
+	}
+
+	@Override
+	protected int getTimeToLive() throws IOException {
+		throw new SocketException("multicast is not supported by coroutine based datagram sockets");
+	}
+
+	@Override
+	protected void join(InetAddress inetaddr) throws IOException {
+		throw new SocketException("multicast is not supported by coroutine based datagram sockets");
+	}
+
+	@Override
+	protected void leave(InetAddress inetaddr) throws IOException {
+		throw new SocketException("multicast is not supported by coroutine based datagram sockets");
+	}
+
+	@Override
+	protected void joinGroup(SocketAddress mcastaddr, NetworkInterface netIf) throws IOException {
+		throw new SocketException("multicast is not supported by coroutine based datagram sockets");
+	}
+
+	@Override
+	protected void leaveGroup(SocketAddress mcastaddr, NetworkInterface netIf) throws IOException {
+		throw new SocketException("multicast is not supported by coroutine based datagram sockets");
+	}
+
+	@Override
+	protected void close() {
+		if (as == null || closing) {
+			return;
+		}
+		if (!pendings.isEmpty() && !writeBlocked) {
+			flush();
+		}
+		if (!pendings.isEmpty()) {
+			//closed by flush when the socket becomes writable
+			closing = true;
+			return;
+		}
+		as.close();
+		as = null;
+	}
+
+	@Override
+	public void setOption(int optID, Object value) throws SocketException {
+		switch (optID) {
+		case SO_TIMEOUT:
+			if (!(value instanceof Integer) || ((Integer)value).intValue() < 0) {
+				throw new SocketException("wrong argument for SO_TIMEOUT: " + value);
+			}
+			soTimeout = ((Integer)value).intValue();
+			if (as != null) {
+				as.setReadTimeout(soTimeout);
+			}
+			return;
+		case SO_RCVBUF:
+			if (!(value instanceof Integer) || ((Integer)value).intValue() < 0) {
+				throw new SocketException("wrong argument for SO_RCVBUF: " + value);
+			}
+			rcvbuf = ((Integer)value).intValue();
+			return;
+		case SO_BINDADDR:
+			throw new SocketException("Cannot re-bind Socket");
+		default:
+			//SO_SNDBUF, SO_REUSEADDR, SO_BROADCAST, IP_TOS ...
+			if (log.isDebugEnabled()) {
+				log.debug("not supported datagram socket options: %d, val: %s just ignored", optID, value + "");
+			}
+			ignoredOptions.put(optID, value);
+		}
+	}
+
+	@Override
+	public Object getOption(int optID) throws SocketException {
+		switch (optID) {
+		case SO_TIMEOUT:
+			return Integer.valueOf(soTimeout);
+		case SO_RCVBUF:
+			return Integer.valueOf(rcvbuf > 0 ? rcvbuf : (as == null ? 0 : (int)as.getReceiveBufferSize()));
+		case SO_BINDADDR:
+			return localAddress == null ? new InetSocketAddress(0).getAddress() : localAddress;
+		default:
+			return ignoredOptions.get(optID);
+		}
+	}
+
+	@Override
+	public void onConnect(NginxClojureAsynSocket s, long sc) {
+		status = sc;
+	}
+
+	@Override
+	public void onRead(NginxClojureAsynSocket s, long sc) {
+		if (log.isDebugEnabled()) {
+			log.debug("udp-socket#%d: on read status=%d", s.s, sc);
+		}
+		status = sc;
+		if (yieldFlag == YIELD_READ) {
+			yieldFlag = 0;
+			coroutine.resume();
+		}
+	}
+
+	@Override
+	public void onWrite(NginxClojureAsynSocket s, long sc) {
+		if (writeBlocked && s == as) {
+			writeBlocked = false;
+			if (sc < 0 && sc != NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN) {
+				//e.g. write timeout, give up all pending datagrams
+				dropped += pendings.size();
+				pendings.clear();
+				if (closing) {
+					closing = false;
+					as.close();
+					as = null;
+				}
+				return;
+			}
+			flush();
+		}
+	}
+
+	@Override
+	public void onRelease(NginxClojureAsynSocket s, long sc) {
+		if (yieldFlag != 0 && coroutine != null && coroutine.getState() == Coroutine.State.SUSPENDED) {
+			log.warn("udp-socket#%d: onRelease : coroutine is not finished, but we receive release event!", s.s);
+		}
+	}
+
+}
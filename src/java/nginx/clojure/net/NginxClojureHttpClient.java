@@ -0,0 +1,1011 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure.net;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import nginx.clojure.CoWaiter;
+import nginx.clojure.Coroutine;
+import nginx.clojure.NginxClojureRT;
+import nginx.clojure.SuspendExecution;
+import nginx.clojure.net.NginxClojureAsynChannel.BufferChain;
+import nginx.clojure.net.NginxClojureAsynChannel.CompletionListener;
+
+/**
+ * A HTTP/1.1 client running on nginx event loop by {@link NginxClojureAsynChannel}.
+ * <p>
+ * Connections are kept alive and reused per host. When pipelining is enabled a request can also be written to a busy
+ * keep-alive connection and its response will be read after the former ones. Response bodies (including chunked ones)
+ * are decoded into a {@link BufferChain} of pooled buffers which should be given back by {@link HttpResponse#release()}.
+ * <p>
+ * There are two kinds of APIs:
+ * <ul>
+ * <li>callback : {@link #execute(HttpRequest, CompletionListener)}, the listener is invoked on nginx main thread with
+ * the HTTP status code and the response</li>
+ * <li>coroutine : {@link #execute(HttpRequest)} and {@link #get(String)}, they only suspend the current coroutine</li>
+ * </ul>
+ * Idempotent requests (GET/HEAD/OPTIONS/PUT/DELETE) will be retried once on a new connection if the connection is broken
+ * before any bytes of their responses arrive, e.g. a stale keep-alive connection.
+ * <p>
+ * System properties for the default client of a nginx worker, see {@link #getDefault()}:
+ * <ul>
+ * <li><code>nginx.clojure.httpclient.maxConnectionsPerHost</code> default is 16</li>
+ * <li><code>nginx.clojure.httpclient.idleTimeout</code> in milliseconds, default is 60000</li>
+ * <li><code>nginx.clojure.httpclient.pipelining</code> the max number of requests in flight on one connection,
+ * default is 1 which means no pipelining</li>
+ * <li><code>nginx.clojure.httpclient.verify</code> whether to verify the server certificate of https, default is true</li>
+ * </ul>
+ */
+public class NginxClojureHttpClient {
+
+	public static final String NGINX_CLOJURE_HTTPCLIENT_MAX_CONNECTIONS_PER_HOST = "nginx.clojure.httpclient.maxConnectionsPerHost";
+
+	public static final String NGINX_CLOJURE_HTTPCLIENT_IDLE_TIMEOUT = "nginx.clojure.httpclient.idleTimeout";
+
+	public static final String NGINX_CLOJURE_HTTPCLIENT_PIPELINING = "nginx.clojure.httpclient.pipelining";
+
+	public static final String NGINX_CLOJURE_HTTPCLIENT_VERIFY = "nginx.clojure.httpclient.verify";
+
+	public static final int BODY_BUFFER_SIZE = 8 * 1024;
+
+	protected static final int MAX_POOLED_BUFFERS = 256;
+
+	/*pooled body buffers, guarded by itself because responses can be released by any thread*/
+	protected static final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<ByteBuffer>();
+
+	private static NginxClojureHttpClient defaultClient;
+
+	protected final int maxConnectionsPerHost;
+
+	protected final long idleTimeout;
+
+	protected final int pipelining;
+
+	protected final boolean verify;
+
+	protected long connectTimeout = 5000;
+
+	protected long readTimeout = 60000;
+
+	protected long writeTimeout = 60000;
+
+	/*only accessed by nginx main thread*/
+	protected final Map<String, Endpoint> endpoints = new HashMap<String, Endpoint>();
+
+	public NginxClojureHttpClient(int maxConnectionsPerHost, long idleTimeout, int pipelining, boolean verify) {
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		this.idleTimeout = idleTimeout;
+		this.pipelining = Math.max(1, pipelining);
+		this.verify = verify;
+	}
+
+	/**
+	 * @return the shared client of the current nginx worker configured by system properties
+	 */
+	public static synchronized NginxClojureHttpClient getDefault() {
+		if (defaultClient == null) {
+			defaultClient = new NginxClojureHttpClient(Integer.getInteger(NGINX_CLOJURE_HTTPCLIENT_MAX_CONNECTIONS_PER_HOST, 16),
+					Long.getLong(NGINX_CLOJURE_HTTPCLIENT_IDLE_TIMEOUT, 60000),
+					Integer.getInteger(NGINX_CLOJURE_HTTPCLIENT_PIPELINING, 1),
+					!"false".equalsIgnoreCase(System.getProperty(NGINX_CLOJURE_HTTPCLIENT_VERIFY)));
+		}
+		return defaultClient;
+	}
+
+	/**
+	 * if timeout is 0, this means no timeout. It takes effect on new connections.
+	 */
+	public void setTimeout(long connectTimeout, long readTimeout, long writeTimeout) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.writeTimeout = writeTimeout;
+	}
+
+	protected static ByteBuffer fetchBuffer() {
+		synchronized (bufferPool) {
+			ByteBuffer b = bufferPool.poll();
+			if (b != null) {
+				return b;
+			}
+		}
+		return ByteBuffer.allocate(BODY_BUFFER_SIZE);
+	}
+
+	protected static void returnBuffer(ByteBuffer b) {
+		b.clear();
+		synchronized (bufferPool) {
+			if (bufferPool.size() < MAX_POOLED_BUFFERS) {
+				bufferPool.add(b);
+			}
+		}
+	}
+
+	public static class HttpRequest {
+
+		protected final String method;
+		protected final boolean ssl;
+		protected final String host;
+		protected final int port;
+		protected final String path;
+		protected final Map<String, String> headers = new LinkedHashMap<String, String>();
+		protected byte[] body;
+		protected Object attachment;
+
+		/**
+		 * @param url e.g. "http://127.0.0.1:8080/api?id=1", "https://example.com/"
+		 */
+		public HttpRequest(String method, String url) {
+			this.method = method.toUpperCase();
+			int p;
+			if (url.startsWith("http://")) {
+				ssl = false;
+				p = 7;
+			}else if (url.startsWith("https://")) {
+				ssl = true;
+				p = 8;
+			}else {
+				throw new IllegalArgumentException("only http:// or https:// url is supported : " + url);
+			}
+			int slash = url.indexOf('/', p);
+			String authority = slash < 0 ? url.substring(p) : url.substring(p, slash);
+			path = slash < 0 ? "/" : url.substring(slash);
+			int colon = authority.lastIndexOf(':');
+			if (colon > 0 && authority.indexOf(']', colon) < 0) {
+				host = authority.substring(0, colon);
+				port = Integer.parseInt(authority.substring(colon + 1));
+			}else {
+				host = authority;
+				port = ssl ? 443 : 80;
+			}
+		}
+
+		public static HttpRequest get(String url) {
+			return new HttpRequest("GET", url);
+		}
+
+		public static HttpRequest post(String url, byte[] body, String contentType) {
+			return new HttpRequest("POST", url).setHeader("Content-Type", contentType).setBody(body);
+		}
+
+		public HttpRequest setHeader(String name, String value) {
+			headers.put(name, value);
+			return this;
+		}
+
+		public HttpRequest setBody(byte[] body) {
+			this.body = body;
+			return this;
+		}
+
+		public HttpRequest setAttachment(Object attachment) {
+			this.attachment = attachment;
+			return this;
+		}
+
+		public String getMethod() {
+			return method;
+		}
+
+		public String getHost() {
+			return host;
+		}
+
+		public int getPort() {
+			return port;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public boolean isSsl() {
+			return ssl;
+		}
+
+		public boolean isIdempotent() {
+			return "GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method)
+					|| "PUT".equals(method) || "DELETE".equals(method);
+		}
+
+		protected String endpointKey() {
+			return (ssl ? "https://" : "http://") + host + ':' + port;
+		}
+
+		protected static ByteBuffer putAscii(ByteBuffer out, String s) {
+			int len = s.length();
+			if (out.remaining() < len) {
+				ByteBuffer nb = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + len));
+				out.flip();
+				nb.put(out);
+				out = nb;
+			}
+			for (int i = 0; i < len; i++) {
+				out.put((byte)s.charAt(i));
+			}
+			return out;
+		}
+
+		/**
+		 * Encodes the request line, headers and body.
+		 * @return out or a larger buffer if out has no enough space
+		 */
+		public ByteBuffer encode(ByteBuffer out) {
+			out = putAscii(out, method + ' ' + path + " HTTP/1.1\r\n");
+			boolean hasHost = false;
+			for (Entry<String, String> h : headers.entrySet()) {
+				if ("host".equalsIgnoreCase(h.getKey())) {
+					hasHost = true;
+				}else if ("content-length".equalsIgnoreCase(h.getKey())) {
+					continue;
+				}
+				out = putAscii(out, h.getKey() + ": " + h.getValue() + "\r\n");
+			}
+			if (!hasHost) {
+				out = putAscii(out, "Host: " + (port == (ssl ? 443 : 80) ? host : host + ':' + port) + "\r\n");
+			}
+			if (body != null || "POST".equals(method) || "PUT".equals(method)) {
+				out = putAscii(out, "Content-Length: " + (body == null ? 0 : body.length) + "\r\n");
+			}
+			out = putAscii(out, "\r\n");
+			if (body != null && body.length > 0) {
+				if (out.remaining() < body.length) {
+					ByteBuffer nb = ByteBuffer.allocate(out.position() + body.length);
+					out.flip();
+					nb.put(out);
+					out = nb;
+				}
+				out.put(body);
+			}
+			return out;
+		}
+	}
+
+	public static class HttpResponse {
+
+		protected final HttpRequest request;
+		protected int status;
+		protected String reason;
+		protected boolean http10;
+		/*lower case header name -> value, values of duplicated headers are joined by ", "*/
+		protected final Map<String, String> headers = new LinkedHashMap<String, String>();
+		protected BufferChain body;
+		protected BufferChain bodyTail;
+		protected long contentLength;
+
+		public HttpResponse(HttpRequest request) {
+			this.request = request;
+		}
+
+		public HttpRequest getRequest() {
+			return request;
+		}
+
+		@SuppressWarnings("unchecked")
+		public <T> T getAttachment() {
+			return (T) request.attachment;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		public String getReason() {
+			return reason;
+		}
+
+		public Map<String, String> getHeaders() {
+			return headers;
+		}
+
+		public String getHeader(String name) {
+			return headers.get(name.toLowerCase());
+		}
+
+		/**
+		 * @return the decoded body chain whose buffers are ready to be read (flipped), or null if no body
+		 */
+		public BufferChain getBodyChain() {
+			return body;
+		}
+
+		public long getContentLength() {
+			return contentLength;
+		}
+
+		public byte[] getBody() {
+			byte[] bs = new byte[(int)contentLength];
+			int p = 0;
+			for (BufferChain c = body; c != null; c = c.next) {
+				ByteBuffer b = c.buffer;
+				int n = b.remaining();
+				System.arraycopy(b.array(), b.arrayOffset() + b.position(), bs, p, n);
+				p += n;
+			}
+			return bs;
+		}
+
+		public String getBodyAsString() {
+			String ct = getHeader("content-type");
+			String charset = "UTF-8";
+			int i;
+			if (ct != null && (i = ct.toLowerCase().indexOf("charset=")) >= 0) {
+				charset = ct.substring(i + 8).trim();
+				int e = charset.indexOf(';');
+				if (e > 0) {
+					charset = charset.substring(0, e).trim();
+				}
+			}
+			try {
+				return new String(getBody(), charset);
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		/**
+		 * Gives the body buffers back to the pool, the body can not be used after that.
+		 */
+		public void release() {
+			BufferChain c = body;
+			body = bodyTail = null;
+			while (c != null) {
+				returnBuffer(c.buffer);
+				c = c.next;
+			}
+		}
+
+		protected void appendBody(ByteBuffer in, int n) {
+			contentLength += n;
+			while (n > 0) {
+				ByteBuffer tail = bodyTail == null ? null : bodyTail.buffer;
+				if (tail == null || tail.limit() == tail.capacity()) {
+					BufferChain c = new BufferChain();
+					c.buffer = fetchBuffer();
+					c.buffer.limit(0);
+					if (bodyTail == null) {
+						body = bodyTail = c;
+					}else {
+						bodyTail = bodyTail.next = c;
+					}
+					tail = c.buffer;
+				}
+				int m = Math.min(n, tail.capacity() - tail.limit());
+				int oldLimit = in.limit();
+				in.limit(in.position() + m);
+				int p = tail.position();
+				tail.position(tail.limit());
+				tail.limit(tail.capacity());
+				tail.put(in);
+				tail.limit(tail.position());
+				tail.position(p);
+				in.limit(oldLimit);
+				n -= m;
+			}
+		}
+
+		protected void reset() {
+			status = 0;
+			reason = null;
+			headers.clear();
+			release();
+			contentLength = 0;
+		}
+	}
+
+	/**
+	 * An incremental HTTP/1.x response parser.
+	 */
+	public static class ResponseParser {
+
+		protected static final int STATUS_LINE = 0;
+		protected static final int HEADER = 1;
+		protected static final int BODY = 2;
+		protected static final int CHUNK_SIZE = 3;
+		protected static final int CHUNK_DATA = 4;
+		protected static final int CHUNK_END = 5;
+		protected static final int TRAILER = 6;
+		protected static final int BODY_UNTIL_CLOSE = 7;
+		protected static final int DONE = 8;
+
+		protected int state;
+		protected long remaining;
+		protected boolean noBody;
+		protected boolean keepAlive;
+		protected HttpResponse response;
+
+		public void reset(HttpResponse response) {
+			this.response = response;
+			this.noBody = "HEAD".equals(response.request.method);
+			state = STATUS_LINE;
+			remaining = 0;
+			keepAlive = true;
+		}
+
+		public boolean isStarted() {
+			return state != STATUS_LINE || response.status != 0;
+		}
+
+		public boolean isKeepAlive() {
+			return keepAlive;
+		}
+
+		/**
+		 * @return null if there's no complete line
+		 */
+		protected static String readLine(ByteBuffer in) {
+			for (int i = in.position(), end = in.limit(); i < end; i++) {
+				if (in.get(i) == '\n') {
+					int len = i - in.position();
+					if (len > 0 && in.get(i - 1) == '\r') {
+						len--;
+					}
+					char[] cs = new char[len];
+					for (int j = 0; j < len; j++) {
+						cs[j] = (char)(in.get(in.position() + j) & 0xff);
+					}
+					in.position(i + 1);
+					return new String(cs);
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * @return true if the response is complete
+		 */
+		public boolean parse(ByteBuffer in) throws IOException {
+			String line;
+			while (true) {
+				switch (state) {
+				case STATUS_LINE:
+					if ((line = readLine(in)) == null) {
+						return false;
+					}
+					if (line.length() == 0) {
+						continue;
+					}
+					parseStatusLine(line);
+					state = HEADER;
+					break;
+				case HEADER:
+					if ((line = readLine(in)) == null) {
+						return false;
+					}
+					if (line.length() > 0) {
+						int p = line.indexOf(':');
+						if (p <= 0) {
+							throw new IOException("bad http header : " + line);
+						}
+						String name = line.substring(0, p).trim().toLowerCase();
+						String value = line.substring(p + 1).trim();
+						String old = response.headers.get(name);
+						response.headers.put(name, old == null ? value : old + ", " + value);
+						break;
+					}
+					onHeaderDone();
+					break;
+				case BODY:
+				case CHUNK_DATA: {
+					int n = (int)Math.min(remaining, in.remaining());
+					if (n == 0) {
+						return false;
+					}
+					response.appendBody(in, n);
+					remaining -= n;
+					if (remaining == 0) {
+						state = state == BODY ? DONE : CHUNK_END;
+					}
+					break;
+				}
+				case CHUNK_SIZE: {
+					if ((line = readLine(in)) == null) {
+						return false;
+					}
+					int p = line.indexOf(';');
+					String hex = (p < 0 ? line : line.substring(0, p)).trim();
+					try {
+						remaining = Long.parseLong(hex, 16);
+					}catch(NumberFormatException e) {
+						throw new IOException("bad chunk size : " + line);
+					}
+					if (remaining < 0) {
+						throw new IOException("bad chunk size : " + line);
+					}
+					state = remaining == 0 ? TRAILER : CHUNK_DATA;
+					break;
+				}
+				case CHUNK_END:
+					if ((line = readLine(in)) == null) {
+						return false;
+					}
+					if (line.length() != 0) {
+						throw new IOException("bad chunk end : " + line);
+					}
+					state = CHUNK_SIZE;
+					break;
+				case TRAILER:
+					if ((line = readLine(in)) == null) {
+						return false;
+					}
+					if (line.length() == 0) {
+						state = DONE;
+					}
+					break;
+				case BODY_UNTIL_CLOSE: {
+					int n = in.remaining();
+					if (n > 0) {
+						response.appendBody(in, n);
+					}
+					return false;
+				}
+				case DONE:
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * Invoked when the connection is closed by peer.
+		 * @return true if the response is complete
+		 */
+		public boolean finishOnEof() {
+			if (state == BODY_UNTIL_CLOSE) {
+				state = DONE;
+			}
+			return state == DONE;
+		}
+
+		protected void parseStatusLine(String line) throws IOException {
+			// HTTP/1.1 200 OK
+			if (!line.startsWith("HTTP/1.")) {
+				throw new IOException("bad http status line : " + line);
+			}
+			int p = line.indexOf(' ');
+			int e = p < 0 ? -1 : line.indexOf(' ', p + 1);
+			try {
+				response.status = Integer.parseInt(e < 0 ? line.substring(p + 1).trim() : line.substring(p + 1, e));
+			}catch(RuntimeException ex) {
+				throw new IOException("bad http status line : " + line);
+			}
+			response.reason = e < 0 ? "" : line.substring(e + 1);
+			response.http10 = line.startsWith("HTTP/1.0");
+		}
+
+		protected void onHeaderDone() throws IOException {
+			int status = response.status;
+			if (status / 100 == 1) {
+				//e.g. 100 Continue, the final response follows
+				response.reset();
+				state = STATUS_LINE;
+				return;
+			}
+			String conn = response.headers.get("connection");
+			if (response.http10) {
+				keepAlive = conn != null && conn.toLowerCase().indexOf("keep-alive") >= 0;
+			}else {
+				keepAlive = conn == null || conn.toLowerCase().indexOf("close") < 0;
+			}
+			if (noBody || status == 204 || status == 304) {
+				state = DONE;
+				return;
+			}
+			String te = response.headers.get("transfer-encoding");
+			if (te != null && te.toLowerCase().indexOf("chunked") >= 0) {
+				state = CHUNK_SIZE;
+				return;
+			}
+			String cl = response.headers.get("content-length");
+			if (cl != null) {
+				try {
+					remaining = Long.parseLong(cl.trim());
+				}catch(NumberFormatException e) {
+					remaining = -1;
+				}
+				if (remaining < 0) {
+					//also rejects duplicated ones which have been joined, e.g. "3, 5"
+					throw new IOException("bad content-length");
+				}
+				state = remaining == 0 ? DONE : BODY;
+				return;
+			}
+			keepAlive = false;
+			state = BODY_UNTIL_CLOSE;
+		}
+	}
+
+	protected static class Exchange {
+		final HttpResponse response;
+		final CompletionListener<HttpResponse> listener;
+		boolean retried;
+
+		public Exchange(HttpRequest request, CompletionListener<HttpResponse> listener) {
+			this.response = new HttpResponse(request);
+			this.listener = listener;
+		}
+	}
+
+	protected static void complete(Exchange ex, long code) {
+		if (ex.listener == null) {
+			return;
+		}
+		try {
+			if (code >= 0) {
+				ex.listener.onDone(ex.response.status, ex.response);
+			}else {
+				ex.listener.onError(code, ex.response);
+			}
+		}catch(Throwable e) {
+			NginxClojureRT.getLog().error("unhandled error of http client listener", e);
+		}
+	}
+
+	protected class Endpoint {
+
+		final String key;
+		final String url;
+		final String host;
+		final boolean ssl;
+		final ArrayDeque<Connection> idle = new ArrayDeque<Connection>();
+		final List<Connection> active = new ArrayList<Connection>();
+		final ArrayDeque<Exchange> waiting = new ArrayDeque<Exchange>();
+
+		public Endpoint(HttpRequest r) {
+			key = r.endpointKey();
+			url = r.host + ':' + r.port;
+			host = r.host;
+			ssl = r.ssl;
+		}
+
+		void dispatch(Exchange ex) {
+			Connection c = pollIdle();
+			if (c == null && pipelining > 1) {
+				for (Connection a : active) {
+					if (a.keepAlive && a.inflight.size() < pipelining && (c == null || a.inflight.size() < c.inflight.size())) {
+						c = a;
+					}
+				}
+			}
+			if (c == null && active.size() < maxConnectionsPerHost) {
+				c = new Connection(this);
+				active.add(c);
+				c.connect();
+			}
+			if (c == null) {
+				waiting.add(ex);
+				return;
+			}
+			c.send(ex);
+		}
+
+		Connection pollIdle() {
+			Connection c;
+			long now = System.currentTimeMillis();
+			while ((c = idle.poll()) != null) {
+				if (now - c.idleSince < idleTimeout && c.channel.getAsynSocket().checkIdle() == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK) {
+					active.add(c);
+					return c;
+				}
+				c.channel.close();
+			}
+			return null;
+		}
+
+		/**
+		 * Invoked when a connection has finished all of its requests or can accept more.
+		 */
+		void onAvailable(Connection c) {
+			while (!waiting.isEmpty() && c.inflight.size() < pipelining) {
+				c.send(waiting.poll());
+			}
+			if (c.inflight.isEmpty()) {
+				active.remove(c);
+				c.idleSince = System.currentTimeMillis();
+				idle.add(c);
+			}
+		}
+
+		void onClosed(Connection c, Iterable<Exchange> unfinished, long code) {
+			active.remove(c);
+			for (Exchange ex : unfinished) {
+				if (!ex.retried && ex.response.request.isIdempotent()) {
+					ex.retried = true;
+					dispatch(ex);
+				}else {
+					complete(ex, code < 0 ? code : NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_RESET);
+				}
+			}
+			//waiting ones can use the free slot
+			if (!waiting.isEmpty() && active.size() < maxConnectionsPerHost) {
+				dispatch(waiting.poll());
+			}
+		}
+	}
+
+	protected class Connection {
+
+		final Endpoint endpoint;
+		final NginxClojureAsynChannel channel;
+		/*written or to be written, the head is the one whose response is being read*/
+		final ArrayDeque<Exchange> inflight = new ArrayDeque<Exchange>();
+		final ResponseParser parser = new ResponseParser();
+		ByteBuffer writeBuffer;
+		ByteBuffer readBuffer;
+		int written;
+		boolean connected;
+		boolean reading;
+		/*listeners invoked while parsing may send more requests, they must not start reading into the buffer being parsed*/
+		boolean parsing;
+		boolean closed;
+		boolean keepAlive = true;
+		long idleSince;
+
+		final CompletionListener<Object> connectListener = new CompletionListener<Object>() {
+			@Override
+			public void onDone(long status, Object attachment) throws IOException {
+				if (endpoint.ssl && attachment == null) {
+					channel.startSsl(endpoint.host, verify, this, this);
+					return;
+				}
+				connected = true;
+				flush();
+			}
+			@Override
+			public void onError(long code, Object attachment) throws IOException {
+				close(code);
+			}
+		};
+
+		final CompletionListener<Object> writeListener = new CompletionListener<Object>() {
+			@Override
+			public void onDone(long status, Object attachment) throws IOException {
+			}
+			@Override
+			public void onError(long code, Object attachment) throws IOException {
+				close(code);
+			}
+		};
+
+		final CompletionListener<Integer> readListener = new CompletionListener<Integer>() {
+			@Override
+			public void onDone(long status, Integer start) throws IOException {
+				reading = false;
+				onReadable(readBuffer.position() > start);
+			}
+			@Override
+			public void onError(long code, Integer start) throws IOException {
+				reading = false;
+				close(code);
+			}
+		};
+
+		public Connection(Endpoint endpoint) {
+			this.endpoint = endpoint;
+			this.channel = new NginxClojureAsynChannel();
+			channel.setTimeout(connectTimeout, readTimeout, writeTimeout);
+		}
+
+		void connect() {
+			channel.connect(endpoint.url, null, connectListener);
+		}
+
+		void send(Exchange ex) {
+			if (inflight.isEmpty()) {
+				parser.reset(ex.response);
+			}
+			inflight.add(ex);
+			if (connected) {
+				flush();
+			}
+		}
+
+		/**
+		 * Writes requests which are not written yet by one write.
+		 */
+		void flush() {
+			if (closed || written == inflight.size()) {
+				return;
+			}
+			if (writeBuffer == null) {
+				writeBuffer = ByteBuffer.allocate(BODY_BUFFER_SIZE);
+			}
+			ByteBuffer out = writeBuffer;
+			out.clear();
+			int i = 0;
+			for (Exchange ex : inflight) {
+				if (i++ >= written) {
+					out = ex.response.request.encode(out);
+				}
+			}
+			written = inflight.size();
+			out.flip();
+			writeBuffer = out.capacity() > BODY_BUFFER_SIZE * 4 ? null : out;
+			//buffer is copied by the channel so it can be reused at once
+			channel.write(out, null, writeListener);
+			ensureReading();
+		}
+
+		void ensureReading() {
+			if (reading || parsing || closed || inflight.isEmpty()) {
+				return;
+			}
+			if (readBuffer == null) {
+				readBuffer = fetchBuffer();
+			}
+			reading = true;
+			channel.readSome(readBuffer, readBuffer.position(), readListener);
+		}
+
+		void onReadable(boolean hasNewBytes) {
+			ByteBuffer b = readBuffer;
+			b.flip();
+			parsing = true;
+			try {
+				while (!inflight.isEmpty()) {
+					if (!parser.parse(b)) {
+						if (!hasNewBytes && parser.finishOnEof()) {
+							keepAlive = false;
+							onResponse();
+						}
+						break;
+					}
+					onResponse();
+					if (!keepAlive) {
+						break;
+					}
+				}
+			}catch(IOException e) {
+				NginxClojureRT.getLog().error("bad http response from %s : %s", endpoint.key, e.getMessage());
+				parsing = false;
+				close(NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_READ);
+				return;
+			}
+			parsing = false;
+			if (closed) {
+				return;
+			}
+			b.compact();
+			if (!keepAlive || !hasNewBytes) {
+				close(0);
+				return;
+			}
+			if (inflight.isEmpty()) {
+				if (b.position() > 0) {
+					//unexpected bytes
+					close(NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_READ);
+					return;
+				}
+				returnBuffer(b);
+				readBuffer = null;
+				endpoint.onAvailable(this);
+				return;
+			}
+			if (!b.hasRemaining()) {
+				//no enough space for a long header line
+				ByteBuffer nb = ByteBuffer.allocate(b.capacity() * 2);
+				b.flip();
+				nb.put(b);
+				returnBuffer(b);
+				readBuffer = nb;
+			}
+			ensureReading();
+		}
+
+		void onResponse() {
+			Exchange ex = inflight.poll();
+			written--;
+			keepAlive = keepAlive && parser.isKeepAlive();
+			if (!inflight.isEmpty()) {
+				parser.reset(inflight.peek().response);
+			}
+			complete(ex, ex.response.status);
+			if (keepAlive && pipelining > 1 && !inflight.isEmpty()) {
+				endpoint.onAvailable(this);
+			}
+		}
+
+		void close(long code) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			channel.close();
+			if (readBuffer != null) {
+				returnBuffer(readBuffer);
+				readBuffer = null;
+			}
+			List<Exchange> unfinished = new ArrayList<Exchange>(inflight);
+			inflight.clear();
+			if (!unfinished.isEmpty() && parser.isStarted()) {
+				//the head one has got some bytes of its response so it can not be retried
+				Exchange head = unfinished.remove(0);
+				head.response.reset();
+				complete(head, code < 0 ? code : NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_RESET);
+			}
+			endpoint.onClosed(this, unfinished, code);
+		}
+	}
+
+	/**
+	 * Executes a request, the listener will be invoked on nginx main thread with the HTTP status code and the response
+	 * when it is done, or with an error code on connection errors.
+	 * It can be called from any thread.
+	 */
+	public void execute(final HttpRequest request, final CompletionListener<HttpResponse> listener) {
+		if (Thread.currentThread() != NginxClojureRT.NGINX_MAIN_THREAD) {
+			NginxClojureRT.scheduleOnMainThread(new Runnable() {
+				@Override
+				public void run() {
+					execute(request, listener);
+				}
+			}, 0);
+			return;
+		}
+		String key = request.endpointKey();
+		Endpoint ep = endpoints.get(key);
+		if (ep == null) {
+			endpoints.put(key, ep = new Endpoint(request));
+		}
+		ep.dispatch(new Exchange(request, listener));
+	}
+
+	protected static final CompletionListener<HttpResponse> WAITER_LISTENER = new CompletionListener<HttpResponse>() {
+		@Override
+		public void onDone(long status, HttpResponse response) throws IOException {
+			((CoWaiter)response.request.attachment).signal(response);
+		}
+		@Override
+		public void onError(long code, HttpResponse response) throws IOException {
+			((CoWaiter)response.request.attachment).signal(new IOException(code == 0 ? "connection closed by peer"
+					: NginxClojureAsynSocket.errorCodeToString(code)));
+		}
+	};
+
+	/**
+	 * Executes a request and waits for its response. In a coroutine it only suspends the current coroutine.
+	 * It must not be called on nginx main thread outside coroutines because that will block the event loop.
+	 * The attachment of the request will be replaced.
+	 */
+	public HttpResponse execute(HttpRequest request) throws IOException, SuspendExecution {
+		if (Thread.currentThread() == NginxClojureRT.NGINX_MAIN_THREAD && Coroutine.getActiveCoroutine() == null) {
+			throw new IllegalStateException("execute can not block nginx main thread, use execute with a CompletionListener instead");
+		}
+		CoWaiter w = new CoWaiter();
+		request.attachment = w;
+		execute(request, WAITER_LISTENER);
+		w.await();
+		Object r = w.getValue();
+		request.attachment = null;
+		if (r instanceof IOException) {
+			throw (IOException)r;
+		}
+		return (HttpResponse)r;
+	}
+
+	public HttpResponse get(String url) throws IOException, SuspendExecution {
+		return execute(HttpRequest.get(url));
+	}
+
+	/**
+	 * Closes all idle connections.
+	 */
+	public void closeIdleConnections() {
+		for (Endpoint ep : endpoints.values()) {
+			for (Iterator<Connection> it = ep.idle.iterator(); it.hasNext();) {
+				it.next().channel.close();
+				it.remove();
+			}
+		}
+	}
+}
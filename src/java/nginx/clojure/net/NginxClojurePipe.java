@@ -0,0 +1,210 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure.net;
+
+import java.io.IOException;
+
+import nginx.clojure.NginxClojureRT;
+import nginx.clojure.NginxHttpServerChannel;
+
+/**
+ * A bidirectional pipe which splices bytes between a hijacked client channel and a connected
+ * {@link NginxClojureAsynSocket} inside nginx, e.g. for WebSocket relays, HTTP CONNECT tunnels or gRPC passthrough.
+ * <p>
+ * Bytes never cross JNI. Each direction has its own native buffer and reading from one side is paused
+ * while the buffer is full, so the write readiness of each side throttles the other one.
+ * Java code is only notified once by {@link PipeListener#onClose(NginxClojurePipe, long)} when either side is closed
+ * or an error happens, after that both the channel and the socket will be closed.
+ * <p>
+ * The read/write timeouts of the socket are used as idle timeouts of both sides, 0 means no timeout.
+ * <p>
+ * System properties:
+ * <ul>
+ * <li><code>nginx.clojure.pipe.bufferSize</code> default buffer size of each direction, default is 16384</li>
+ * </ul>
+ */
+public class NginxClojurePipe {
+	
+	public static final String NGINX_CLOJURE_PIPE_BUFFER_SIZE = "nginx.clojure.pipe.bufferSize";
+	
+	public static final int DEFAULT_BUFFER_SIZE = Integer.getInteger(NGINX_CLOJURE_PIPE_BUFFER_SIZE, 16384);
+	
+	public static interface PipeListener {
+		/**
+		 * @param status NGX_HTTP_CLOJURE_SOCKET_OK if it is closed by eof or {@link NginxClojurePipe#close()}, 
+		 * otherwise an error code, see {@link NginxClojureAsynSocket#errorCodeToString(long)}
+		 */
+		public void onClose(NginxClojurePipe pipe, long status);
+	}
+	
+	protected final NginxHttpServerChannel channel;
+	
+	protected final NginxClojureAsynSocket socket;
+	
+	protected final int bufferSize;
+	
+	protected final PipeListener listener;
+	
+	/*native pipe handle, only accessed by nginx main thread*/
+	protected long p;
+	
+	protected volatile boolean closed;
+	
+	protected long status;
+	
+	protected long clientBytes;
+	
+	protected long upstreamBytes;
+	
+	protected NginxClojurePipe(NginxHttpServerChannel channel, NginxClojureAsynSocket socket, int bufferSize, PipeListener listener) {
+		this.channel = channel;
+		this.socket = socket;
+		this.bufferSize = bufferSize;
+		this.listener = listener;
+	}
+	
+	public static NginxClojurePipe pipe(NginxHttpServerChannel channel, NginxClojureAsynSocket socket, PipeListener listener) {
+		return pipe(channel, socket, DEFAULT_BUFFER_SIZE, listener);
+	}
+	
+	/**
+	 * Starts splicing bytes between a hijacked client channel and a connected socket.
+	 * The response header (if any) should have been sent by the channel before, e.g. "HTTP/1.1 200 Connection Established".
+	 * Bytes already received from the client after the request header will be sent to the socket first.
+	 * After this the channel and the socket must not be read or written by java code.
+	 * <p>
+	 * It can be called from any thread, if it is not nginx main thread the pipe will be started at the next event loop.
+	 */
+	public static NginxClojurePipe pipe(NginxHttpServerChannel channel, NginxClojureAsynSocket socket, int bufferSize, PipeListener listener) {
+		if (channel.isClosed()) {
+			throw new IllegalStateException("channel has been closed");
+		}
+		socket.checkConnected();
+		final NginxClojurePipe pipe = new NginxClojurePipe(channel, socket, bufferSize, listener);
+		if (Thread.currentThread() != NginxClojureRT.NGINX_MAIN_THREAD) {
+			NginxClojureRT.scheduleOnMainThread(new Runnable() {
+				@Override
+				public void run() {
+					pipe.start();
+				}
+			}, 0);
+		}else {
+			pipe.start();
+		}
+		return pipe;
+	}
+	
+	protected void start() {
+		if (closed) {
+			return;
+		}
+		if (channel.isClosed() || socket.isClosed()) {
+			onNativeClose(NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_RESET, 0, 0, channel.isClosed() ? 1 : 0);
+			return;
+		}
+		long rc = NginxClojureAsynSocket.pipe(socket.s, channel.request().nativeRequest(), this, bufferSize);
+		if (closed) {
+			//closed before returning, rc is a freed handle
+			return;
+		}
+		if (rc < 0) {
+			onNativeClose(rc, 0, 0, 0);
+			return;
+		}
+		p = rc;
+	}
+	
+	/**
+	 * Invoked by native code only once when the pipe is closed.
+	 */
+	protected void onNativeClose(long sc, long up, long down, long requestGone) {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		p = 0;
+		status = sc;
+		clientBytes = up;
+		upstreamBytes = down;
+		if (NginxClojureRT.log.isDebugEnabled()) {
+			NginxClojureRT.log.debug("pipe closed : %s, client bytes %d, upstream bytes %d", 
+					sc == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK ? "ok" : NginxClojureAsynSocket.errorCodeToString(sc), up, down);
+		}
+		if (listener != null) {
+			try {
+				listener.onClose(this, sc);
+			}catch(Throwable e) {
+				NginxClojureRT.log.error("pipe listener error", e);
+			}
+		}
+		socket.close();
+		if (requestGone != 0) {
+			channel.tagClose();
+		}else {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				NginxClojureRT.log.warn("can not close channel : %s", e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Closes the pipe together with the channel and the socket. It can be called from any thread.
+	 */
+	public void close() {
+		if (closed) {
+			return;
+		}
+		if (Thread.currentThread() != NginxClojureRT.NGINX_MAIN_THREAD) {
+			NginxClojureRT.scheduleOnMainThread(new Runnable() {
+				@Override
+				public void run() {
+					close();
+				}
+			}, 0);
+			return;
+		}
+		if (p != 0) {
+			NginxClojureAsynSocket.unpipe(p, NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK);
+		}else {
+			//not started yet
+			onNativeClose(NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK, 0, 0, 0);
+		}
+	}
+	
+	public boolean isClosed() {
+		return closed;
+	}
+	
+	/**
+	 * @return the close status, only valid after the pipe is closed
+	 */
+	public long getStatus() {
+		return status;
+	}
+	
+	/**
+	 * @return bytes sent from the client to the socket, only valid after the pipe is closed
+	 */
+	public long getClientBytes() {
+		return clientBytes;
+	}
+	
+	/**
+	 * @return bytes sent from the socket to the client, only valid after the pipe is closed
+	 */
+	public long getUpstreamBytes() {
+		return upstreamBytes;
+	}
+	
+	public NginxHttpServerChannel getChannel() {
+		return channel;
+	}
+	
+	public NginxClojureAsynSocket getSocket() {
+		return socket;
+	}
+}
@@ -0,0 +1,271 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure.net;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nginx.clojure.CoWaiter;
+import nginx.clojure.Coroutine;
+import nginx.clojure.NginxClojureRT;
+import nginx.clojure.SuspendExecution;
+
+/**
+ * Host name resolver for coroutine based sockets.
+ * <p>
+ * A lookup is done by a small resolver thread pool so a slow DNS server will only suspend the coroutines
+ * which need that host name instead of freezing the whole nginx worker. Concurrent lookups of the same host
+ * are coalesced and results are cached per worker, successful ones for <code>nginx.clojure.dns.ttl</code> seconds
+ * (default 30) and failed ones for <code>nginx.clojure.dns.negativeTtl</code> seconds (default 10).
+ * At most <code>nginx.clojure.dns.maxEntries</code> hosts (default 1024) are cached, expired entries and then the
+ * oldest ones are evicted when a new host is looked up.
+ * The JDK resolver does not expose record TTLs so they are caps configured by users like
+ * <code>networkaddress.cache.ttl</code>.
+ * <p>
+ * Outside coroutines it just falls back to the blocking {@link InetAddress#getAllByName(String)}.
+ */
+public class NginxClojureResolver {
+
+	public static final String NGINX_CLOJURE_DNS_TTL = "nginx.clojure.dns.ttl";
+
+	public static final String NGINX_CLOJURE_DNS_NEGATIVE_TTL = "nginx.clojure.dns.negativeTtl";
+
+	public static final String NGINX_CLOJURE_DNS_THREADS = "nginx.clojure.dns.threads";
+
+	public static final String NGINX_CLOJURE_DNS_MAX_ENTRIES = "nginx.clojure.dns.maxEntries";
+
+	protected static long ttl = Long.getLong(NGINX_CLOJURE_DNS_TTL, 30) * 1000;
+
+	protected static long negativeTtl = Long.getLong(NGINX_CLOJURE_DNS_NEGATIVE_TTL, 10) * 1000;
+
+	protected static int maxEntries = Integer.getInteger(NGINX_CLOJURE_DNS_MAX_ENTRIES, 1024);
+
+	/**
+	 * in the order of lookups, so the eldest entries expire first
+	 */
+	protected static final Map<String, Entry> cache = new LinkedHashMap<String, Entry>();
+
+	protected static ExecutorService resolverThreads;
+
+	/**
+	 * Callback based resolving result listener, e.g. for {@link NginxClojureAsynChannel}.
+	 * It is always invoked on the nginx main thread.
+	 */
+	public static interface ResolveListener {
+		public void onResolved(String host, InetAddress[] addrs, UnknownHostException error);
+	}
+
+	protected static final class Entry {
+		final String host;
+		InetAddress[] addrs;
+		UnknownHostException error;
+		long expires;
+		boolean resolving;
+		/*CoWaiter or ResolveListener*/
+		List<Object> waiters;
+
+		Entry(String host) {
+			this.host = host;
+		}
+	}
+
+	private NginxClojureResolver() {
+	}
+
+	public static void setTtl(long ttlMs, long negativeTtlMs) {
+		ttl = ttlMs;
+		negativeTtl = negativeTtlMs;
+	}
+
+	public static void setMaxEntries(int n) {
+		maxEntries = n;
+	}
+
+	/**
+	 * @return true if host is not an IP literal or unix domain socket path
+	 */
+	public static boolean needResolve(String host) {
+		int len = host.length();
+		if (len == 0 || host.charAt(0) == '[' || host.startsWith("unix:") || host.indexOf(':') >= 0) {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			char c = host.charAt(i);
+			if (c != '.' && (c < '0' || c > '9')) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public static InetAddress resolveOne(String host) throws UnknownHostException, SuspendExecution {
+		return resolve(host)[0];
+	}
+
+	/**
+	 * Resolves a host name, suspends the current coroutine if it is not cached.
+	 */
+	public static InetAddress[] resolve(String host) throws UnknownHostException, SuspendExecution {
+		if (Coroutine.getActiveCoroutine() == null || !needResolve(host)) {
+			return InetAddress.getAllByName(host);
+		}
+		CoWaiter w = new CoWaiter();
+		Entry e = lookupOrWait(host, w);
+		if (e == null) {
+			w.await();
+			e = w.getValue();
+		}
+		if (e.error != null) {
+			throw new UnknownHostException(e.error.getMessage());
+		}
+		return e.addrs;
+	}
+
+	/**
+	 * Resolves a host name and invokes listener on the nginx main thread when it is done.
+	 * If the result is cached the listener will be invoked at once.
+	 */
+	public static void resolve(String host, ResolveListener listener) {
+		if (!needResolve(host)) {
+			try {
+				listener.onResolved(host, InetAddress.getAllByName(host), null);
+			} catch (UnknownHostException ex) {
+				listener.onResolved(host, null, ex);
+			}
+			return;
+		}
+		Entry e = lookupOrWait(host, listener);
+		if (e != null) {
+			listener.onResolved(host, e.addrs, e.error);
+		}
+	}
+
+	/**
+	 * @return the cached entry or null if the waiter has been enqueued
+	 */
+	protected static synchronized Entry lookupOrWait(String host, Object waiter) {
+		Entry e = cache.get(host);
+		if (e != null && !e.resolving && e.expires > System.currentTimeMillis()) {
+			return e;
+		}
+		if (e == null || !e.resolving) {
+			if (e != null) {
+				//remove it first so that the new entry goes to the tail
+				cache.remove(host);
+			}
+			evict(System.currentTimeMillis());
+			e = new Entry(host);
+			e.resolving = true;
+			e.waiters = new ArrayList<Object>(2);
+			cache.put(host, e);
+			startResolving(e);
+		}
+		e.waiters.add(waiter);
+		return null;
+	}
+
+	/**
+	 * Evicts expired entries from the eldest ones and then the eldest ones until there's room for a new entry.
+	 * Entries being resolved are kept because their waiters are still to be woken up.
+	 */
+	protected static synchronized void evict(long now) {
+		for (Iterator<Entry> it = cache.values().iterator(); it.hasNext();) {
+			Entry o = it.next();
+			if (o.resolving) {
+				continue;
+			}
+			if (o.expires > now && cache.size() < maxEntries) {
+				break;
+			}
+			it.remove();
+		}
+	}
+
+	protected static void startResolving(final Entry e) {
+		if (resolverThreads == null) {
+			resolverThreads = Executors.newFixedThreadPool(Integer.getInteger(NGINX_CLOJURE_DNS_THREADS, 2), new ThreadFactory() {
+				final AtomicLong counter = new AtomicLong(0);
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "nginx-clojure-resolver-" + counter.getAndIncrement());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		resolverThreads.submit(new Runnable() {
+			@Override
+			public void run() {
+				InetAddress[] addrs = null;
+				UnknownHostException error = null;
+				try {
+					addrs = InetAddress.getAllByName(e.host);
+				} catch (UnknownHostException ex) {
+					error = ex;
+				} catch (Throwable ex) {
+					error = new UnknownHostException(e.host + ": " + ex);
+				}
+				final InetAddress[] faddrs = addrs;
+				final UnknownHostException ferror = error;
+				NginxClojureRT.scheduleOnMainThread(new Runnable() {
+					@Override
+					public void run() {
+						complete(e, faddrs, ferror);
+					}
+				}, 0);
+			}
+		});
+	}
+
+	protected static void complete(Entry e, InetAddress[] addrs, UnknownHostException error) {
+		List<Object> waiters;
+		synchronized (NginxClojureResolver.class) {
+			e.addrs = addrs;
+			e.error = error;
+			e.expires = System.currentTimeMillis() + (error == null ? ttl : negativeTtl);
+			e.resolving = false;
+			waiters = e.waiters;
+			e.waiters = null;
+		}
+		if (error != null && NginxClojureRT.log != null) {
+			NginxClojureRT.log.warn("can not resolve %s : %s", e.host, error.getMessage());
+		}
+		for (Object w : waiters) {
+			if (w instanceof CoWaiter) {
+				((CoWaiter)w).signal(e);
+			}else {
+				try {
+					((ResolveListener)w).onResolved(e.host, addrs, error);
+				}catch(Throwable ex) {
+					NginxClojureRT.log.error("resolve listener error", ex);
+				}
+			}
+		}
+	}
+
+	public static synchronized void invalidate(String host) {
+		Entry e = cache.get(host);
+		if (e != null && !e.resolving) {
+			cache.remove(host);
+		}
+	}
+
+	public static synchronized void clear() {
+		for (Iterator<Entry> it = cache.values().iterator(); it.hasNext();) {
+			if (!it.next().resolving) {
+				it.remove();
+			}
+		}
+	}
+
+}
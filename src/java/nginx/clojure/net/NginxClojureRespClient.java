@@ -0,0 +1,533 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure.net;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import nginx.clojure.CoWaiter;
+import nginx.clojure.Coroutine;
+import nginx.clojure.NginxClojureRT;
+import nginx.clojure.SuspendExecution;
+import nginx.clojure.net.NginxClojureAsynChannel.CompletionListener;
+
+/**
+ * A pipelined RESP (Redis protocol) client on {@link NginxClojureAsynChannel}.
+ * <p>
+ * Commands issued in the same event loop tick are encoded together and written by one write, and
+ * their replies are read back in order from the same connection, so there's only one round trip for them.
+ * {@link #get(String)} returns the shared client of the current nginx worker so one connection per worker is enough.
+ * The connection is made lazily and made again by the next command after it is broken.
+ * <p>
+ * Replies are mapped to java objects:
+ * <ul>
+ * <li>simple string : String</li>
+ * <li>error : {@link RespError}</li>
+ * <li>integer : Long</li>
+ * <li>bulk string : byte[], null for nil</li>
+ * <li>array : Object[], null for nil</li>
+ * </ul>
+ * e.g.
+ * <pre>
+ * NginxClojureRespClient redis = NginxClojureRespClient.get("127.0.0.1:6379");
+ * //in a coroutine, it suspends the coroutine until the reply arrives
+ * byte[] v = (byte[]) redis.call("GET", "user:1");
+ * //or by callback
+ * redis.send(new Object[]{"INCR", "hits"}, null, listener);
+ * </pre>
+ */
+public class NginxClojureRespClient {
+
+	public static final Object INCOMPLETE = new Object();
+
+	protected static final byte[] CRLF = new byte[] {'\r', '\n'};
+
+	protected static final int INIT_BUFFER_SIZE = 16 * 1024;
+
+	protected static final int STATE_IDLE = 0;
+	protected static final int STATE_CONNECTING = 1;
+	protected static final int STATE_CONNECTED = 2;
+
+	/*only accessed by nginx main thread*/
+	protected static final Map<String, NginxClojureRespClient> clients = new HashMap<String, NginxClojureRespClient>();
+
+	public static interface ReplyListener<T> {
+
+		/**
+		 * @param reply the reply object, error replies are passed as {@link RespError}
+		 */
+		public void onReply(Object reply, T attachment) throws IOException;
+
+		/**
+		 * @param code connection error code, 0 means the connection is closed by peer,
+		 *        see {@link NginxClojureAsynChannel#buildError(long)}
+		 */
+		public void onError(long code, T attachment) throws IOException;
+	}
+
+	/**
+	 * An error reply such as "-ERR unknown command".
+	 */
+	public static class RespError extends IOException {
+		private static final long serialVersionUID = 1L;
+		public RespError(String message) {
+			super(message);
+		}
+	}
+
+	protected static class Command<T> {
+		final Object[] args;
+		final T attachment;
+		final ReplyListener<T> listener;
+		public Command(Object[] args, T attachment, ReplyListener<T> listener) {
+			this.args = args;
+			this.attachment = attachment;
+			this.listener = listener;
+		}
+
+		void reply(Object reply) throws IOException {
+			if (listener != null) {
+				listener.onReply(reply, attachment);
+			}
+		}
+
+		void fail(long code) throws IOException {
+			if (listener != null) {
+				listener.onError(code, attachment);
+			}
+		}
+	}
+
+	protected final String url;
+
+	protected NginxClojureAsynChannel channel;
+
+	protected int state;
+
+	/*commands waiting for being written*/
+	protected final ArrayDeque<Command<?>> queued = new ArrayDeque<Command<?>>();
+
+	/*commands written and waiting for replies*/
+	protected final ArrayDeque<Command<?>> inflight = new ArrayDeque<Command<?>>();
+
+	protected boolean flushScheduled;
+
+	protected boolean writing;
+
+	protected boolean reading;
+
+	protected ByteBuffer writeBuffer = ByteBuffer.allocate(INIT_BUFFER_SIZE);
+
+	protected ByteBuffer readBuffer = ByteBuffer.allocate(INIT_BUFFER_SIZE);
+
+	protected long connectTimeout = 5000;
+
+	protected long readTimeout = 0;
+
+	protected long writeTimeout = 0;
+
+	protected final Runnable flusher = new Runnable() {
+		@Override
+		public void run() {
+			flushScheduled = false;
+			flush();
+		}
+	};
+
+	protected final CompletionListener<Object> connectListener = new CompletionListener<Object>() {
+		@Override
+		public void onDone(long status, Object attachment) throws IOException {
+			state = STATE_CONNECTED;
+			flush();
+		}
+		@Override
+		public void onError(long code, Object attachment) throws IOException {
+			failAll(code);
+		}
+	};
+
+	protected final CompletionListener<Object> writeListener = new CompletionListener<Object>() {
+		@Override
+		public void onDone(long status, Object attachment) throws IOException {
+			writing = false;
+			if (!queued.isEmpty()) {
+				flush();
+			}
+		}
+		@Override
+		public void onError(long code, Object attachment) throws IOException {
+			writing = false;
+			failAll(code);
+		}
+	};
+
+	protected final CompletionListener<Object> readListener = new CompletionListener<Object>() {
+		@Override
+		public void onDone(long status, Object attachment) throws IOException {
+			reading = false;
+			onReadable(readBuffer.position() > (Integer)attachment);
+		}
+		@Override
+		public void onError(long code, Object attachment) throws IOException {
+			reading = false;
+			failAll(code);
+		}
+	};
+
+	protected static final ReplyListener<CoWaiter> WAITER_LISTENER = new ReplyListener<CoWaiter>() {
+		@Override
+		public void onReply(Object reply, CoWaiter w) throws IOException {
+			w.signal(reply);
+		}
+		@Override
+		public void onError(long code, CoWaiter w) throws IOException {
+			w.signal(new IOException(code == 0 ? "connection closed by redis server" : NginxClojureAsynSocket.errorCodeToString(code)));
+		}
+	};
+
+	public NginxClojureRespClient(String url) {
+		this.url = url;
+	}
+
+	/**
+	 * @return the shared client of the current nginx worker, it must be called on nginx main thread
+	 */
+	public static NginxClojureRespClient get(String url) {
+		NginxClojureRespClient c = clients.get(url);
+		if (c == null) {
+			clients.put(url, c = new NginxClojureRespClient(url));
+		}
+		return c;
+	}
+
+	/**
+	 * if timeout is 0, this means no timeout. It takes effect on the next connection.
+	 */
+	public void setTimeout(long connectTimeout, long readTimeout, long writeTimeout) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.writeTimeout = writeTimeout;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	/**
+	 * Sends a command, the listener will be invoked on nginx main thread when the reply arrives.
+	 * It can be called from any thread.
+	 * @param args command name and arguments, each of them can be byte[], String (encoded by UTF-8) or any object whose toString() will be used
+	 */
+	public <T> void send(final Object[] args, final T attachment, final ReplyListener<T> listener) {
+		if (Thread.currentThread() != NginxClojureRT.NGINX_MAIN_THREAD) {
+			NginxClojureRT.scheduleOnMainThread(new Runnable() {
+				@Override
+				public void run() {
+					send(args, attachment, listener);
+				}
+			}, 0);
+			return;
+		}
+		queued.add(new Command<T>(args, attachment, listener));
+		if (!flushScheduled) {
+			flushScheduled = true;
+			//let commands issued in the same event loop tick go together
+			NginxClojureRT.scheduleOnMainThread(flusher, 0);
+		}
+	}
+
+	/**
+	 * Sends a command and waits for its reply. In a coroutine it only suspends the current coroutine.
+	 * It must not be called on nginx main thread outside coroutines because that will block the event loop.
+	 * @return the reply object
+	 * @throws RespError if the reply is an error reply
+	 * @throws IOException if the connection is broken
+	 */
+	public Object call(Object... args) throws IOException, SuspendExecution {
+		if (Thread.currentThread() == NginxClojureRT.NGINX_MAIN_THREAD && Coroutine.getActiveCoroutine() == null) {
+			throw new IllegalStateException("call can not block nginx main thread, use send with a ReplyListener instead");
+		}
+		CoWaiter w = new CoWaiter();
+		send(args, w, WAITER_LISTENER);
+		w.await();
+		Object reply = w.getValue();
+		if (reply instanceof IOException) {
+			throw (IOException)reply;
+		}
+		return reply;
+	}
+
+	/**
+	 * The same as {@link #call(Object...)} but a bulk string reply is decoded by UTF-8.
+	 */
+	public String callString(Object... args) throws IOException, SuspendExecution {
+		Object reply = call(args);
+		if (reply instanceof byte[]) {
+			return new String((byte[])reply, "UTF-8");
+		}
+		return reply == null ? null : reply.toString();
+	}
+
+	protected void connect() {
+		state = STATE_CONNECTING;
+		channel = new NginxClojureAsynChannel();
+		channel.setTimeout(connectTimeout, readTimeout, writeTimeout);
+		channel.connect(url, null, connectListener);
+	}
+
+	protected void flush() {
+		if (queued.isEmpty()) {
+			return;
+		}
+		if (state == STATE_IDLE) {
+			connect();
+			return;
+		}
+		if (state == STATE_CONNECTING || writing) {
+			//it will be flushed after connected or the current write is done
+			return;
+		}
+		ByteBuffer out = writeBuffer;
+		out.clear();
+		Command<?> c;
+		while ((c = queued.poll()) != null) {
+			out = encode(out, c.args);
+			inflight.add(c);
+		}
+		out.flip();
+		writeBuffer = out;
+		writing = true;
+		//buffer is copied by the channel so it can be reused at once
+		channel.write(out, null, writeListener);
+		ensureReading();
+	}
+
+	protected void ensureReading() {
+		if (reading || inflight.isEmpty() || state != STATE_CONNECTED) {
+			return;
+		}
+		if (!readBuffer.hasRemaining()) {
+			ByteBuffer nb = ByteBuffer.allocate(readBuffer.capacity() * 2);
+			readBuffer.flip();
+			nb.put(readBuffer);
+			readBuffer = nb;
+		}
+		reading = true;
+		channel.readSome(readBuffer, readBuffer.position(), readListener);
+	}
+
+	protected void onReadable(boolean hasNewBytes) throws IOException {
+		ByteBuffer b = readBuffer;
+		b.flip();
+		Object reply;
+		while (!inflight.isEmpty()) {
+			try {
+				reply = parse(b);
+			}catch(IllegalStateException e) {
+				NginxClojureRT.getLog().error("bad reply from redis server %s : %s", url, e.getMessage());
+				failAll(NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_READ);
+				return;
+			}
+			if (reply == INCOMPLETE) {
+				break;
+			}
+			Command<?> c = inflight.poll();
+			try {
+				c.reply(reply);
+			}catch(Throwable e) {
+				NginxClojureRT.getLog().error("unhandled error of resp reply listener", e);
+			}
+		}
+		b.compact();
+		if (!hasNewBytes) {
+			failAll(0);
+			return;
+		}
+		ensureReading();
+	}
+
+	/**
+	 * Closes the connection, pending commands will fail and later commands will make a new connection.
+	 */
+	public void close() {
+		failAll(NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_RESET);
+	}
+
+	protected void failAll(long code) {
+		if (channel != null) {
+			NginxClojureAsynChannel ch = channel;
+			channel = null;
+			ch.close();
+		}
+		state = STATE_IDLE;
+		writing = reading = false;
+		readBuffer.clear();
+		//commands not written yet can be sent by a new connection, so only written ones fail
+		ArrayDeque<Command<?>> failed = new ArrayDeque<Command<?>>(inflight);
+		inflight.clear();
+		if (failed.isEmpty() && !queued.isEmpty()) {
+			failed.addAll(queued);
+			queued.clear();
+		}
+		for (Command<?> c : failed) {
+			try {
+				c.fail(code);
+			}catch(Throwable e) {
+				NginxClojureRT.getLog().error("unhandled error of resp reply listener", e);
+			}
+		}
+		if (!queued.isEmpty() && !flushScheduled) {
+			flushScheduled = true;
+			NginxClojureRT.scheduleOnMainThread(flusher, 0);
+		}
+	}
+
+	protected static ByteBuffer ensure(ByteBuffer out, int size) {
+		if (out.remaining() >= size) {
+			return out;
+		}
+		ByteBuffer nb = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + size));
+		out.flip();
+		nb.put(out);
+		return nb;
+	}
+
+	protected static ByteBuffer putLine(ByteBuffer out, char type, long v) {
+		byte[] n = Long.toString(v).getBytes();
+		out = ensure(out, n.length + 3);
+		out.put((byte)type).put(n).put(CRLF);
+		return out;
+	}
+
+	/**
+	 * Encodes a command as a RESP array of bulk strings.
+	 * @return out or a larger buffer if out has no enough space
+	 */
+	public static ByteBuffer encode(ByteBuffer out, Object[] args) {
+		out = putLine(out, '*', args.length);
+		for (Object a : args) {
+			byte[] bs;
+			if (a instanceof byte[]) {
+				bs = (byte[])a;
+			}else {
+				try {
+					bs = String.valueOf(a).getBytes("UTF-8");
+				} catch (UnsupportedEncodingException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+			out = putLine(out, '$', bs.length);
+			out = ensure(out, bs.length + 2);
+			out.put(bs).put(CRLF);
+		}
+		return out;
+	}
+
+	/**
+	 * Parses one reply from the buffer.
+	 * @return the reply or {@link #INCOMPLETE} if there's no enough bytes, in this case the buffer position is not changed.
+	 */
+	public static Object parse(ByteBuffer b) {
+		int start = b.position();
+		Object r = parseOne(b);
+		if (r == INCOMPLETE) {
+			b.position(start);
+		}
+		return r;
+	}
+
+	protected static int findCRLF(ByteBuffer b) {
+		for (int i = b.position(), end = b.limit() - 1; i < end; i++) {
+			if (b.get(i) == '\r' && b.get(i + 1) == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	protected static String readLine(ByteBuffer b, int end) {
+		byte[] bs = new byte[end - b.position()];
+		b.get(bs);
+		b.position(end + 2);
+		try {
+			return new String(bs, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	protected static long readLong(ByteBuffer b, int end) {
+		long v = 0;
+		boolean neg = false;
+		int i = b.position();
+		if (b.get(i) == '-') {
+			neg = true;
+			i++;
+		}
+		for (; i < end; i++) {
+			byte c = b.get(i);
+			if (c < '0' || c > '9') {
+				throw new IllegalStateException("bad resp integer");
+			}
+			v = v * 10 + (c - '0');
+		}
+		b.position(end + 2);
+		return neg ? -v : v;
+	}
+
+	protected static Object parseOne(ByteBuffer b) {
+		if (!b.hasRemaining()) {
+			return INCOMPLETE;
+		}
+		int end = findCRLF(b);
+		if (end < 0) {
+			return INCOMPLETE;
+		}
+		byte type = b.get();
+		switch (type) {
+		case '+':
+			return readLine(b, end);
+		case '-':
+			return new RespError(readLine(b, end));
+		case ':':
+			return readLong(b, end);
+		case '$': {
+			int len = (int)readLong(b, end);
+			if (len < 0) {
+				return null;
+			}
+			if (b.remaining() < len + 2) {
+				return INCOMPLETE;
+			}
+			byte[] bs = new byte[len];
+			b.get(bs);
+			b.position(b.position() + 2);
+			return bs;
+		}
+		case '*': {
+			int len = (int)readLong(b, end);
+			if (len < 0) {
+				return null;
+			}
+			Object[] items = new Object[len];
+			for (int i = 0; i < len; i++) {
+				Object item = parseOne(b);
+				if (item == INCOMPLETE) {
+					return INCOMPLETE;
+				}
+				items[i] = item;
+			}
+			return items;
+		}
+		default:
+			throw new IllegalStateException("unknown resp type : " + (char)type);
+		}
+	}
+
+}
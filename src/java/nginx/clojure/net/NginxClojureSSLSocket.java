@@ -0,0 +1,509 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.channels.SocketChannel;
+import java.security.Principal;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+import nginx.clojure.NginxClojureRT;
+
+/**
+ * A client SSLSocket created by {@link NginxClojureSSLSocketFactory}. It wraps a coroutine based socket
+ * whose TLS is done by nginx's OpenSSL layer, so all plain socket methods are delegated to that socket.
+ * <p>
+ * Cipher suites and protocols are decided by nginx's SSL context so their setters are ignored.
+ */
+public class NginxClojureSSLSocket extends SSLSocket {
+
+	protected final NginxClojureSSLSocketFactory factory;
+
+	protected final Socket base;
+
+	protected final NginxClojureSocketImpl impl;
+
+	protected final boolean autoClose;
+
+	protected List<HandshakeCompletedListener> listeners;
+
+	protected NginxClojureSSLSession session;
+
+	protected NginxClojureSSLSocket(NginxClojureSSLSocketFactory factory, Socket base, NginxClojureSocketImpl impl, boolean autoClose) {
+		this.factory = factory;
+		this.base = base;
+		this.impl = impl;
+		this.autoClose = autoClose;
+	}
+
+	@Override
+	public void startHandshake() throws IOException {
+		if (impl.sslHost == null) {
+			throw new SocketException("Socket is not connected");
+		}
+		if (impl.isSslHandshaked()) {
+			return;
+		}
+		impl.ensureSsl();
+		if (listeners != null) {
+			HandshakeCompletedEvent event = new HandshakeCompletedEvent(this, getSession());
+			for (HandshakeCompletedListener l : listeners) {
+				try {
+					l.handshakeCompleted(event);
+				} catch (Throwable e) {
+					NginxClojureRT.getLog().error("handshake completed listener error", e);
+				}
+			}
+		}
+	}
+
+	@Override
+	public SSLSession getSession() {
+		if (session != null) {
+			return session;
+		}
+		if (!impl.isSslHandshaked()) {
+			try {
+				startHandshake();
+			} catch (IOException e) {
+				NginxClojureRT.getLog().warn("ssl handshake failed : %s", e.getMessage());
+				return new NginxClojureSSLSession(this, null);
+			}
+		}
+		return session = new NginxClojureSSLSession(this, impl.asynSocket());
+	}
+
+	@Override
+	public void connect(SocketAddress endpoint) throws IOException {
+		connect(endpoint, 0);
+	}
+
+	@Override
+	public void connect(SocketAddress endpoint, int timeout) throws IOException {
+		if (impl.sslHost == null && endpoint instanceof InetSocketAddress) {
+			impl.requireSsl(((InetSocketAddress)endpoint).getHostString(), factory.isVerify());
+		}
+		base.connect(endpoint, timeout);
+	}
+
+	@Override
+	public void bind(SocketAddress bindpoint) throws IOException {
+		base.bind(bindpoint);
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return base.getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return base.getOutputStream();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (autoClose) {
+			base.close();
+		}
+	}
+
+	@Override
+	public void shutdownInput() throws IOException {
+		throw new UnsupportedOperationException("The method shutdownInput() is not supported in SSLSocket");
+	}
+
+	@Override
+	public void shutdownOutput() throws IOException {
+		throw new UnsupportedOperationException("The method shutdownOutput() is not supported in SSLSocket");
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return base.getInetAddress();
+	}
+
+	@Override
+	public InetAddress getLocalAddress() {
+		return base.getLocalAddress();
+	}
+
+	@Override
+	public int getPort() {
+		return base.getPort();
+	}
+
+	@Override
+	public int getLocalPort() {
+		return base.getLocalPort();
+	}
+
+	@Override
+	public SocketAddress getRemoteSocketAddress() {
+		return base.getRemoteSocketAddress();
+	}
+
+	@Override
+	public SocketAddress getLocalSocketAddress() {
+		return base.getLocalSocketAddress();
+	}
+
+	@Override
+	public SocketChannel getChannel() {
+		return null;
+	}
+
+	@Override
+	public void setTcpNoDelay(boolean on) throws SocketException {
+		base.setTcpNoDelay(on);
+	}
+
+	@Override
+	public boolean getTcpNoDelay() throws SocketException {
+		return base.getTcpNoDelay();
+	}
+
+	@Override
+	public void setSoLinger(boolean on, int linger) throws SocketException {
+		base.setSoLinger(on, linger);
+	}
+
+	@Override
+	public int getSoLinger() throws SocketException {
+		return base.getSoLinger();
+	}
+
+	@Override
+	public synchronized void setSoTimeout(int timeout) throws SocketException {
+		base.setSoTimeout(timeout);
+	}
+
+	@Override
+	public synchronized int getSoTimeout() throws SocketException {
+		return base.getSoTimeout();
+	}
+
+	@Override
+	public synchronized void setSendBufferSize(int size) throws SocketException {
+		base.setSendBufferSize(size);
+	}
+
+	@Override
+	public synchronized int getSendBufferSize() throws SocketException {
+		return base.getSendBufferSize();
+	}
+
+	@Override
+	public synchronized void setReceiveBufferSize(int size) throws SocketException {
+		base.setReceiveBufferSize(size);
+	}
+
+	@Override
+	public synchronized int getReceiveBufferSize() throws SocketException {
+		return base.getReceiveBufferSize();
+	}
+
+	@Override
+	public void setKeepAlive(boolean on) throws SocketException {
+		base.setKeepAlive(on);
+	}
+
+	@Override
+	public boolean getKeepAlive() throws SocketException {
+		return base.getKeepAlive();
+	}
+
+	@Override
+	public boolean isConnected() {
+		return base.isConnected();
+	}
+
+	@Override
+	public boolean isBound() {
+		return base.isBound();
+	}
+
+	@Override
+	public boolean isClosed() {
+		return base.isClosed();
+	}
+
+	@Override
+	public boolean isInputShutdown() {
+		return base.isInputShutdown();
+	}
+
+	@Override
+	public boolean isOutputShutdown() {
+		return base.isOutputShutdown();
+	}
+
+	@Override
+	public String[] getSupportedCipherSuites() {
+		return factory.getSupportedCipherSuites();
+	}
+
+	@Override
+	public String[] getEnabledCipherSuites() {
+		return factory.getDefaultCipherSuites();
+	}
+
+	@Override
+	public void setEnabledCipherSuites(String[] suites) {
+	}
+
+	@Override
+	public String[] getSupportedProtocols() {
+		return new String[] {"TLSv1", "TLSv1.1", "TLSv1.2", "TLSv1.3"};
+	}
+
+	@Override
+	public String[] getEnabledProtocols() {
+		return getSupportedProtocols();
+	}
+
+	@Override
+	public void setEnabledProtocols(String[] protocols) {
+	}
+
+	@Override
+	public void addHandshakeCompletedListener(HandshakeCompletedListener listener) {
+		if (listeners == null) {
+			listeners = new ArrayList<HandshakeCompletedListener>(1);
+		}
+		listeners.add(listener);
+	}
+
+	@Override
+	public void removeHandshakeCompletedListener(HandshakeCompletedListener listener) {
+		if (listeners != null) {
+			listeners.remove(listener);
+		}
+	}
+
+	@Override
+	public void setUseClientMode(boolean mode) {
+		if (!mode) {
+			throw new IllegalArgumentException("only client mode is supported");
+		}
+	}
+
+	@Override
+	public boolean getUseClientMode() {
+		return true;
+	}
+
+	@Override
+	public void setNeedClientAuth(boolean need) {
+	}
+
+	@Override
+	public boolean getNeedClientAuth() {
+		return false;
+	}
+
+	@Override
+	public void setWantClientAuth(boolean want) {
+	}
+
+	@Override
+	public boolean getWantClientAuth() {
+		return false;
+	}
+
+	@Override
+	public void setEnableSessionCreation(boolean flag) {
+	}
+
+	@Override
+	public boolean getEnableSessionCreation() {
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "NginxClojureSSLSocket[" + base + "]";
+	}
+
+	/**
+	 * A read-only view of the SSL information of a connection.
+	 */
+	protected static class NginxClojureSSLSession implements SSLSession {
+
+		protected final NginxClojureSSLSocket socket;
+		protected final String protocol;
+		protected final String cipherSuite;
+		protected final Certificate[] peerCertificates;
+		protected final long creationTime;
+		protected final Map<String, Object> values = new HashMap<String, Object>();
+		protected boolean valid;
+
+		protected NginxClojureSSLSession(NginxClojureSSLSocket socket, NginxClojureAsynSocket as) {
+			this.socket = socket;
+			this.creationTime = System.currentTimeMillis();
+			if (as == null) {
+				protocol = "NONE";
+				cipherSuite = "SSL_NULL_WITH_NULL_NULL";
+				peerCertificates = null;
+				return;
+			}
+			valid = true;
+			protocol = toString(as.getSslInfo(NginxClojureAsynSocket.SSL_INFO_PROTOCOL), "NONE");
+			cipherSuite = toString(as.getSslInfo(NginxClojureAsynSocket.SSL_INFO_CIPHER), "SSL_NULL_WITH_NULL_NULL");
+			byte[] der = as.getSslInfo(NginxClojureAsynSocket.SSL_INFO_PEER_CERTIFICATE);
+			Certificate[] certs = null;
+			if (der != null) {
+				try {
+					certs = new Certificate[] {CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(der))};
+				} catch (Exception e) {
+					NginxClojureRT.getLog().warn("can not parse peer certificate : %s", e.getMessage());
+				}
+			}
+			peerCertificates = certs;
+		}
+
+		protected static String toString(byte[] b, String dv) {
+			if (b == null) {
+				return dv;
+			}
+			try {
+				return new String(b, "ISO-8859-1");
+			} catch (java.io.UnsupportedEncodingException e) {
+				return dv;
+			}
+		}
+
+		@Override
+		public byte[] getId() {
+			return new byte[0];
+		}
+
+		@Override
+		public SSLSessionContext getSessionContext() {
+			return null;
+		}
+
+		@Override
+		public long getCreationTime() {
+			return creationTime;
+		}
+
+		@Override
+		public long getLastAccessedTime() {
+			return creationTime;
+		}
+
+		@Override
+		public void invalidate() {
+			valid = false;
+		}
+
+		@Override
+		public boolean isValid() {
+			return valid;
+		}
+
+		@Override
+		public void putValue(String name, Object value) {
+			values.put(name, value);
+		}
+
+		@Override
+		public Object getValue(String name) {
+			return values.get(name);
+		}
+
+		@Override
+		public void removeValue(String name) {
+			values.remove(name);
+		}
+
+		@Override
+		public String[] getValueNames() {
+			return values.keySet().toArray(new String[values.size()]);
+		}
+
+		@Override
+		public Certificate[] getPeerCertificates() throws SSLPeerUnverifiedException {
+			if (peerCertificates == null) {
+				throw new SSLPeerUnverifiedException("peer not authenticated");
+			}
+			return peerCertificates.clone();
+		}
+
+		@Override
+		public Certificate[] getLocalCertificates() {
+			return null;
+		}
+
+		@Override
+		public javax.security.cert.X509Certificate[] getPeerCertificateChain() throws SSLPeerUnverifiedException {
+			throw new UnsupportedOperationException("getPeerCertificateChain");
+		}
+
+		@Override
+		public Principal getPeerPrincipal() throws SSLPeerUnverifiedException {
+			return ((X509Certificate)getPeerCertificates()[0]).getSubjectX500Principal();
+		}
+
+		@Override
+		public Principal getLocalPrincipal() {
+			return null;
+		}
+
+		@Override
+		public String getCipherSuite() {
+			return cipherSuite;
+		}
+
+		@Override
+		public String getProtocol() {
+			return protocol;
+		}
+
+		@Override
+		public String getPeerHost() {
+			String host = socket.impl.sslHost;
+			return host == null || host.length() == 0 ? null : host;
+		}
+
+		@Override
+		public int getPeerPort() {
+			return socket.getPort();
+		}
+
+		@Override
+		public int getPacketBufferSize() {
+			return 16709;
+		}
+
+		@Override
+		public int getApplicationBufferSize() {
+			return 16384;
+		}
+	}
+
+}
@@ -0,0 +1,237 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSocketFactory;
+
+import nginx.clojure.Coroutine;
+import nginx.clojure.NginxClojureRT;
+
+/**
+ * A SSLSocketFactory whose sockets do TLS by nginx's OpenSSL layer on coroutine based sockets,
+ * so an SSL handshake or an encrypted read/write only suspends the current coroutine instead of blocking the nginx worker.
+ * <p>
+ * Outside coroutines, or when a layered socket is not a coroutine based one, everything is delegated to the JDK default SSLSocketFactory.
+ * <p>
+ * Client sessions are cached per worker by upstream address and server name, so later connections can resume them
+ * and skip the full handshake. When the socket pool is enabled (see {@link NginxClojureSocketPool}) a handshaked connection is
+ * also kept alive and reused only by SSL sockets to the same server name.
+ * <p>
+ * System properties:
+ * <ul>
+ * <li><code>nginx.clojure.socket.ssl.trustedCertificate</code> CA certificates file in PEM format, default is the OpenSSL default paths</li>
+ * <li><code>nginx.clojure.socket.ssl.verify</code> whether to verify peer certificate and host name, default is true</li>
+ * <li><code>nginx.clojure.socket.ssl.sessionCacheSize</code> the max number of cached client sessions, default is 256, 0 means no cache</li>
+ * </ul>
+ */
+public class NginxClojureSSLSocketFactory extends SSLSocketFactory {
+
+	public static final String NGINX_CLOJURE_SOCKET_SSL_TRUSTED_CERTIFICATE = "nginx.clojure.socket.ssl.trustedCertificate";
+
+	public static final String NGINX_CLOJURE_SOCKET_SSL_VERIFY = "nginx.clojure.socket.ssl.verify";
+
+	public static final String NGINX_CLOJURE_SOCKET_SSL_SESSION_CACHE_SIZE = "nginx.clojure.socket.ssl.sessionCacheSize";
+
+	protected static final int SESSION_CACHE_SIZE = Integer.getInteger(NGINX_CLOJURE_SOCKET_SSL_SESSION_CACHE_SIZE, 256);
+
+	/*only accessed by nginx main thread*/
+	@SuppressWarnings("serial")
+	protected static final Map<String, Long> sessions = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String,Long> eldest) {
+			if (size() > SESSION_CACHE_SIZE) {
+				NginxClojureAsynSocket.freeSslSession(eldest.getValue());
+				return true;
+			}
+			return false;
+		};
+	};
+
+	private static NginxClojureSSLSocketFactory instance;
+
+	private static long sslInitResult = 1;
+
+	protected final SSLSocketFactory fallback;
+
+	protected final boolean verify;
+
+	public NginxClojureSSLSocketFactory(SSLSocketFactory fallback, boolean verify) {
+		this.fallback = fallback;
+		this.verify = verify;
+	}
+
+	public static synchronized NginxClojureSSLSocketFactory getInstance() {
+		if (instance == null) {
+			instance = new NginxClojureSSLSocketFactory((SSLSocketFactory) SSLSocketFactory.getDefault(),
+					!"false".equalsIgnoreCase(System.getProperty(NGINX_CLOJURE_SOCKET_SSL_VERIFY)));
+		}
+		return instance;
+	}
+
+	/**
+	 * @return the cached native session or 0 if none
+	 */
+	public static long getSession(String key) {
+		if (SESSION_CACHE_SIZE <= 0) {
+			return 0;
+		}
+		Long session = sessions.get(key);
+		return session == null ? 0 : session;
+	}
+
+	public static void putSession(String key, long session) {
+		if (session == 0) {
+			return;
+		}
+		if (SESSION_CACHE_SIZE <= 0) {
+			NginxClojureAsynSocket.freeSslSession(session);
+			return;
+		}
+		Long old = sessions.put(key, session);
+		if (old != null && old != session) {
+			NginxClojureAsynSocket.freeSslSession(old);
+		}
+	}
+
+	public static void clearSessions() {
+		for (Long session : sessions.values()) {
+			NginxClojureAsynSocket.freeSslSession(session);
+		}
+		sessions.clear();
+	}
+
+	protected static void ensureSslContext() throws SSLException {
+		if (sslInitResult == 1) {
+			sslInitResult = NginxClojureAsynSocket.initSsl(System.getProperty(NGINX_CLOJURE_SOCKET_SSL_TRUSTED_CERTIFICATE));
+			if (sslInitResult != NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK) {
+				NginxClojureRT.getLog().error("can not init ssl context for coroutine based sockets, rc=%d", sslInitResult);
+			}
+		}
+		if (sslInitResult != NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK) {
+			throw new SSLException("ssl context for coroutine based sockets is not available, rc=" + sslInitResult);
+		}
+	}
+
+	protected boolean useFallback() {
+		return Coroutine.getActiveCoroutine() == null || Thread.currentThread() != NginxClojureRT.NGINX_MAIN_THREAD;
+	}
+
+	public boolean isVerify() {
+		return verify;
+	}
+
+	@Override
+	public String[] getDefaultCipherSuites() {
+		return fallback.getDefaultCipherSuites();
+	}
+
+	@Override
+	public String[] getSupportedCipherSuites() {
+		return fallback.getSupportedCipherSuites();
+	}
+
+	@Override
+	public Socket createSocket() throws IOException {
+		if (useFallback()) {
+			return fallback.createSocket();
+		}
+		ensureSslContext();
+		Socket base = new Socket();
+		NginxClojureSocketImpl impl = NginxClojureSocketImpl.fromSocket(base);
+		if (impl == null) {
+			base.close();
+			return fallback.createSocket();
+		}
+		return new NginxClojureSSLSocket(this, base, impl, true);
+	}
+
+	@Override
+	public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+		NginxClojureSocketImpl impl = NginxClojureSocketImpl.fromSocket(s);
+		if (impl == null || useFallback()) {
+			return fallback.createSocket(s, host, port, autoClose);
+		}
+		ensureSslContext();
+		impl.requireSsl(host, verify);
+		return new NginxClojureSSLSocket(this, s, impl, autoClose);
+	}
+
+	@Override
+	public Socket createSocket(String host, int port) throws IOException {
+		if (useFallback()) {
+			return fallback.createSocket(host, port);
+		}
+		return connect(host, InetSocketAddress.createUnresolved(host, port), null);
+	}
+
+	@Override
+	public Socket createSocket(InetAddress host, int port) throws IOException {
+		if (useFallback()) {
+			return fallback.createSocket(host, port);
+		}
+		return connect(suppliedHostName(host), new InetSocketAddress(host, port), null);
+	}
+
+	@Override
+	public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+		if (useFallback()) {
+			return fallback.createSocket(host, port, localHost, localPort);
+		}
+		return connect(host, InetSocketAddress.createUnresolved(host, port), new InetSocketAddress(localHost, localPort));
+	}
+
+	@Override
+	public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+		if (useFallback()) {
+			return fallback.createSocket(address, port, localAddress, localPort);
+		}
+		return connect(suppliedHostName(address), new InetSocketAddress(address, port), new InetSocketAddress(localAddress, localPort));
+	}
+
+	/**
+	 * Gets the host name which the address was created with without a reverse DNS lookup, which
+	 * {@link InetAddress#getHostName()} would do on the nginx worker for an address made from a literal IP.
+	 * @return the host name, or an empty string if there's none so that neither SNI nor host name verification is done
+	 */
+	public static String suppliedHostName(InetAddress address) {
+		String s = address.toString();
+		int i = s.indexOf('/');
+		return i > 0 ? s.substring(0, i) : "";
+	}
+
+	/**
+	 * An unresolved remote address will be resolved by {@link NginxClojureResolver} without blocking the nginx worker.
+	 */
+	protected Socket connect(String host, SocketAddress remote, SocketAddress local) throws IOException {
+		ensureSslContext();
+		Socket base = new Socket();
+		NginxClojureSocketImpl impl = NginxClojureSocketImpl.fromSocket(base);
+		if (impl == null) {
+			base.close();
+			throw new SSLException("coroutine based socket is not available");
+		}
+		//before connected so that the pool key includes the server name
+		impl.requireSsl(host, verify);
+		try {
+			if (local != null) {
+				base.bind(local);
+			}
+			base.connect(remote);
+		} catch (IOException e) {
+			base.close();
+			throw e;
+		}
+		return new NginxClojureSSLSocket(this, base, impl, true);
+	}
+
+}
@@ -0,0 +1,115 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure.net;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.AbstractSelector;
+import java.nio.channels.spi.SelectorProvider;
+
+import nginx.clojure.Coroutine;
+import nginx.clojure.NginxClojureRT;
+
+/**
+ * A SelectorProvider which opens coroutine based {@link NginxClojureSocketChannel} when
+ * {@link SocketChannel#open()} is invoked in a coroutine, otherwise everything is delegated to the JDK default provider.
+ * <p>
+ * It is installed by {@link #install()} when coroutine is enabled. If the JDK does not allow to replace
+ * the provider at runtime, it can be installed by
+ * <code>-Djava.nio.channels.spi.SelectorProvider=nginx.clojure.net.NginxClojureSelectorProvider</code>
+ */
+public class NginxClojureSelectorProvider extends SelectorProvider {
+
+	protected final SelectorProvider delegate;
+
+	public NginxClojureSelectorProvider() {
+		this(defaultProvider());
+	}
+
+	public NginxClojureSelectorProvider(SelectorProvider delegate) {
+		this.delegate = delegate;
+	}
+
+	protected static SelectorProvider defaultProvider() {
+		try {
+			Class<?> dc = Class.forName("sun.nio.ch.DefaultSelectorProvider");
+			Method m;
+			try {
+				m = dc.getMethod("create");
+			} catch (NoSuchMethodException e) {
+				m = dc.getMethod("get");
+			}
+			return (SelectorProvider) m.invoke(null);
+		} catch (Throwable e) {
+			throw new RuntimeException("can not get jdk default SelectorProvider", e);
+		}
+	}
+
+	/**
+	 * Replaces the system wide SelectorProvider with a NginxClojureSelectorProvider.
+	 * @return false if the JDK does not allow to do so
+	 */
+	public static boolean install() {
+		SelectorProvider current = SelectorProvider.provider();
+		if (current instanceof NginxClojureSelectorProvider) {
+			return true;
+		}
+		try {
+			Field f = SelectorProvider.class.getDeclaredField("provider");
+			f.setAccessible(true);
+			f.set(null, new NginxClojureSelectorProvider(current));
+			return true;
+		} catch (Throwable e) {
+			NginxClojureRT.getLog().warn("can not install NginxClojureSelectorProvider at runtime (%s), "
+					+ "NIO SocketChannel will block nginx worker unless -Djava.nio.channels.spi.SelectorProvider=%s is given",
+					e.toString(), NginxClojureSelectorProvider.class.getName());
+			return false;
+		}
+	}
+
+	public SelectorProvider getDelegate() {
+		return delegate;
+	}
+
+	@Override
+	public DatagramChannel openDatagramChannel() throws IOException {
+		return delegate.openDatagramChannel();
+	}
+
+	@Override
+	public DatagramChannel openDatagramChannel(ProtocolFamily family) throws IOException {
+		return delegate.openDatagramChannel(family);
+	}
+
+	@Override
+	public Pipe openPipe() throws IOException {
+		return delegate.openPipe();
+	}
+
+	@Override
+	public AbstractSelector openSelector() throws IOException {
+		return delegate.openSelector();
+	}
+
+	@Override
+	public ServerSocketChannel openServerSocketChannel() throws IOException {
+		return delegate.openServerSocketChannel();
+	}
+
+	@Override
+	public SocketChannel openSocketChannel() throws IOException {
+		if (Coroutine.getActiveCoroutine() == null || Thread.currentThread() != NginxClojureRT.NGINX_MAIN_THREAD) {
+			return delegate.openSocketChannel();
+		}
+		return new NginxClojureSocketChannel(this);
+	}
+
+}
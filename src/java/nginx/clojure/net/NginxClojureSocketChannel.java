@@ -0,0 +1,508 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure.net;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.NoRouteToHostException;
+import java.net.PortUnreachableException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.SocketOptions;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AlreadyConnectedException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ConnectionPendingException;
+import java.nio.channels.NoConnectionPendingException;
+import java.nio.channels.NotYetConnectedException;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.channels.UnsupportedAddressTypeException;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import nginx.clojure.Coroutine;
+import nginx.clojure.NginxClojureRT;
+import nginx.clojure.logger.LoggerService;
+import nginx.clojure.logger.TinyLogService;
+import nginx.clojure.logger.TinyLogService.MsgType;
+
+/**
+ * A {@link SocketChannel} backed by {@link NginxClojureAsynSocket}.
+ * In blocking mode (the default one) it suspends the current coroutine instead of blocking the nginx worker
+ * so libraries based on blocking NIO become non-blocking transparently.
+ * In non-blocking mode read/write/connect return immediately just like the JDK implementation
+ * but it can not be registered to a JDK {@link java.nio.channels.Selector}.
+ * <p>
+ * It can only be used in nginx main thread and is created by {@link NginxClojureSelectorProvider}
+ * when {@link SocketChannel#open()} is invoked in a coroutine.
+ */
+public class NginxClojureSocketChannel extends SocketChannel implements NginxClojureSocketHandler {
+
+	final static int YIELD_CONNECT = 1;
+	final static int YIELD_READ = 2;
+	final static int YIELD_WRITE = 3;
+
+	protected static LoggerService log;
+
+	protected static final Set<SocketOption<?>> SUPPORTED_OPTIONS;
+
+	static {
+		Set<SocketOption<?>> set = new HashSet<SocketOption<?>>();
+		set.add(StandardSocketOptions.TCP_NODELAY);
+		set.add(StandardSocketOptions.SO_KEEPALIVE);
+		set.add(StandardSocketOptions.SO_RCVBUF);
+		SUPPORTED_OPTIONS = Collections.unmodifiableSet(set);
+	}
+
+	protected NginxClojureAsynSocket as;
+	protected Coroutine coroutine;
+	protected int yieldFlag = 0;
+	protected long status = NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK;
+	protected boolean connectionPending;
+	protected boolean inputShutdown;
+	protected boolean outputShutdown;
+	protected InetSocketAddress remoteAddress;
+	protected InetSocketAddress localAddress;
+	protected Socket socket;
+
+	public NginxClojureSocketChannel(SelectorProvider provider) {
+		super(provider);
+		if (log == null) {
+			log = new TinyLogService(TinyLogService.getSystemPropertyOrDefaultLevel(NginxClojureSocketImpl.NGINX_CLOJURE_LOG_SOCKET_LEVEL, MsgType.info), System.err, System.err);
+		}
+		as = new NginxClojureAsynSocket(this);
+		//see comments in NginxClojureSocketImpl.create
+		as.setConnectTimeout(120000);
+	}
+
+	public NginxClojureAsynSocket asynSocket() {
+		return as;
+	}
+
+	protected final void checkOpen() throws ClosedChannelException {
+		if (!isOpen()) {
+			throw new ClosedChannelException();
+		}
+	}
+
+	protected final void checkConnected() throws IOException {
+		checkOpen();
+		if (!as.isConnected()) {
+			throw new NotYetConnectedException();
+		}
+	}
+
+	protected void attachCoroutine() {
+		Coroutine ac = Coroutine.getActiveCoroutine();
+		if (coroutine == null || coroutine.getState() == Coroutine.State.FINISHED) {
+			coroutine = ac;
+		}
+	}
+
+	protected static int toSocketOptionId(SocketOption<?> name) {
+		if (name == StandardSocketOptions.TCP_NODELAY) {
+			return SocketOptions.TCP_NODELAY;
+		}else if (name == StandardSocketOptions.SO_KEEPALIVE) {
+			return SocketOptions.SO_KEEPALIVE;
+		}else if (name == StandardSocketOptions.SO_RCVBUF) {
+			return SocketOptions.SO_RCVBUF;
+		}
+		throw new UnsupportedOperationException("'" + name + "' not supported");
+	}
+
+	@Override
+	public SocketChannel bind(SocketAddress local) throws IOException {
+		checkOpen();
+		if (local == null) {
+			return this;
+		}
+		if (!(local instanceof InetSocketAddress)) {
+			throw new UnsupportedAddressTypeException();
+		}
+		InetSocketAddress addr = (InetSocketAddress) local;
+		if (addr.isUnresolved()) {
+			throw new UnresolvedAddressException();
+		}
+		status = as.bind(new StringBuilder(addr.getAddress().getHostAddress()).append(':').append(addr.getPort()).toString());
+		if (status != NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK) {
+			throw new BindException(as.buildError(status));
+		}
+		localAddress = addr;
+		return this;
+	}
+
+	@Override
+	public <T> SocketChannel setOption(SocketOption<T> name, T value) throws IOException {
+		checkOpen();
+		NginxClojureSocketImpl.setOption(as, toSocketOptionId(name), value);
+		return this;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> T getOption(SocketOption<T> name) throws IOException {
+		checkOpen();
+		return (T) NginxClojureSocketImpl.getOption(as, toSocketOptionId(name));
+	}
+
+	@Override
+	public Set<SocketOption<?>> supportedOptions() {
+		return SUPPORTED_OPTIONS;
+	}
+
+	@Override
+	public SocketChannel shutdownInput() throws IOException {
+		checkConnected();
+		if (!inputShutdown) {
+			inputShutdown = true;
+			as.shutdown(NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_SHUTDOWN_READ);
+		}
+		return this;
+	}
+
+	@Override
+	public SocketChannel shutdownOutput() throws IOException {
+		checkConnected();
+		if (!outputShutdown) {
+			outputShutdown = true;
+			as.shutdown(NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_SHUTDOWN_WRITE);
+		}
+		return this;
+	}
+
+	/**
+	 * The returned socket is only an adaptor for socket options and closing.
+	 */
+	@Override
+	public Socket socket() {
+		if (socket == null) {
+			try {
+				socket = new Socket(new NginxClojureSocketImpl(as)) {
+					@Override
+					public synchronized void close() throws IOException {
+						NginxClojureSocketChannel.this.close();
+					}
+					@Override
+					public boolean isConnected() {
+						return NginxClojureSocketChannel.this.isConnected();
+					}
+					@Override
+					public boolean isClosed() {
+						return !NginxClojureSocketChannel.this.isOpen();
+					}
+				};
+			} catch (SocketException e) {
+				throw new RuntimeException("can not create socket adaptor", e);
+			}
+		}
+		return socket;
+	}
+
+	@Override
+	public boolean isConnected() {
+		return as != null && as.isConnected();
+	}
+
+	@Override
+	public boolean isConnectionPending() {
+		return connectionPending;
+	}
+
+	@Override
+	public boolean connect(SocketAddress remote) throws IOException {
+		checkOpen();
+		if (isConnected()) {
+			throw new AlreadyConnectedException();
+		}
+		if (connectionPending) {
+			throw new ConnectionPendingException();
+		}
+		if (!(remote instanceof InetSocketAddress)) {
+			throw new UnsupportedAddressTypeException();
+		}
+		InetSocketAddress addr = (InetSocketAddress) remote;
+		if (addr.isUnresolved()) {
+			throw new UnresolvedAddressException();
+		}
+		remoteAddress = addr;
+		String url = new StringBuilder(addr.getAddress().getHostAddress()).append(':').append(addr.getPort()).toString();
+		if (log.isDebugEnabled()) {
+			log.debug("channel#%d: connecting to %s", as.s, url);
+		}
+		as.connect(url);
+		if (as.isConnected()) {
+			return true;
+		}
+		connectionPending = true;
+		checkConnectStatus();
+		if (!isBlocking()) {
+			return false;
+		}
+		return finishConnect();
+	}
+
+	protected void checkConnectStatus() throws IOException {
+		if (status == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK) {
+			return;
+		}
+		connectionPending = false;
+		if (status == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_RESOLVE) {
+			throw new NoRouteToHostException(as.buildError(status));
+		}else if (status == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_CONNECT) {
+			throw new PortUnreachableException(as.buildError(status));
+		}
+		throw new ConnectException(as.buildError(status));
+	}
+
+	@Override
+	public boolean finishConnect() throws IOException {
+		checkOpen();
+		if (isConnected()) {
+			connectionPending = false;
+			return true;
+		}
+		if (!connectionPending) {
+			throw new NoConnectionPendingException();
+		}
+		checkConnectStatus();
+		if (!isBlocking()) {
+			return false;
+		}
+		while (!isConnected()) {
+			yieldFlag = YIELD_CONNECT;
+			if (log.isDebugEnabled()) {
+				log.debug("channel#%d: yield on connect", as.s);
+			}
+			attachCoroutine();
+			Coroutine.yield();
+			checkConnectStatus();
+		}
+		connectionPending = false;
+		return true;
+	}
+
+	@Override
+	public SocketAddress getRemoteAddress() throws IOException {
+		checkOpen();
+		return remoteAddress;
+	}
+
+	/**
+	 * Local address is not tracked by native socket so only the bound address can be returned.
+	 */
+	@Override
+	public SocketAddress getLocalAddress() throws IOException {
+		checkOpen();
+		return localAddress;
+	}
+
+	/**
+	 * Suspends the current coroutine until the socket is readable/writable.
+	 */
+	protected void awaitIO(int flag, long timeoutStatus) throws IOException {
+		if (status == timeoutStatus) {
+			throw new SocketTimeoutException(as.buildError(status));
+		}
+		yieldFlag = flag;
+		attachCoroutine();
+		Coroutine.yield();
+		if (status != NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK) {
+			throw status == timeoutStatus ? new SocketTimeoutException(as.buildError(status)) : new SocketException(as.buildError(status));
+		}
+	}
+
+	protected static boolean hasRemaining(ByteBuffer[] bufs, int offset, int length) {
+		if (offset < 0 || length < 0 || offset > bufs.length - length) {
+			throw new IndexOutOfBoundsException();
+		}
+		for (int i = offset; i < offset + length; i++) {
+			if (bufs[i].hasRemaining()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		checkConnected();
+		if (inputShutdown) {
+			return -1;
+		}
+		if (!dst.hasRemaining()) {
+			return 0;
+		}
+		while (true) {
+			long rc = as.read(dst);
+			if (rc > 0) {
+				return (int)rc;
+			}else if (rc == 0) {
+				return -1;
+			}else if (rc == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN) {
+				if (!isBlocking()) {
+					return 0;
+				}
+				awaitIO(YIELD_READ, NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_READ_TIMEOUT);
+			}else {
+				throw new SocketException(as.buildError(rc));
+			}
+		}
+	}
+
+	/**
+	 * Scatter read by one native readv.
+	 */
+	@Override
+	public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+		if (!hasRemaining(dsts, offset, length)) {
+			return 0;
+		}
+		checkConnected();
+		if (inputShutdown) {
+			return -1;
+		}
+		while (true) {
+			long rc = as.read(dsts, offset, length);
+			if (rc > 0) {
+				return rc;
+			}else if (rc == 0) {
+				return -1;
+			}else if (rc == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN) {
+				if (!isBlocking()) {
+					return 0;
+				}
+				awaitIO(YIELD_READ, NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_READ_TIMEOUT);
+			}else {
+				throw new SocketException(as.buildError(rc));
+			}
+		}
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		checkConnected();
+		if (outputShutdown) {
+			throw new ClosedChannelException();
+		}
+		int c = 0;
+		while (src.hasRemaining()) {
+			long rc = as.write(src);
+			if (rc > 0) {
+				c += rc;
+			}else if (rc == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN || rc == 0) {
+				if (!isBlocking()) {
+					return c;
+				}
+				awaitIO(YIELD_WRITE, NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_WRITE_TIMEOUT);
+			}else {
+				throw new SocketException(as.buildError(rc));
+			}
+		}
+		return c;
+	}
+
+	/**
+	 * Gather write by native writev, in blocking mode all buffers will be written.
+	 */
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		checkConnected();
+		if (outputShutdown) {
+			throw new ClosedChannelException();
+		}
+		long c = 0;
+		while (hasRemaining(srcs, offset, length)) {
+			long rc = as.write(srcs, offset, length);
+			if (rc > 0) {
+				c += rc;
+			}else if (rc == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN || rc == 0) {
+				if (!isBlocking()) {
+					return c;
+				}
+				awaitIO(YIELD_WRITE, NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_WRITE_TIMEOUT);
+			}else {
+				throw new SocketException(as.buildError(rc));
+			}
+		}
+		return c;
+	}
+
+	@Override
+	protected void implCloseSelectableChannel() throws IOException {
+		if (as == null) {
+			return;
+		}
+		if (Thread.currentThread() != NginxClojureRT.NGINX_MAIN_THREAD) {
+			final NginxClojureAsynSocket tas = as;
+			NginxClojureRT.scheduleOnMainThread(new Runnable() {
+				@Override
+				public void run() {
+					tas.close();
+				}
+			}, 0);
+		}else {
+			as.close();
+		}
+		yieldFlag = 0;
+		connectionPending = false;
+	}
+
+	@Override
+	protected void implConfigureBlocking(boolean block) throws IOException {
+		//nothing to do because the native socket is always non-blocking
+	}
+
+	protected void resumeIfYield(int flag) {
+		if (yieldFlag == flag && coroutine != null) {
+			yieldFlag = 0;
+			coroutine.resume();
+		}
+	}
+
+	@Override
+	public void onConnect(NginxClojureAsynSocket s, long sc) throws IOException {
+		if (log.isDebugEnabled()) {
+			log.debug("channel#%d: on connect status=%d", s.s, sc);
+		}
+		status = sc;
+		resumeIfYield(YIELD_CONNECT);
+	}
+
+	@Override
+	public void onRead(NginxClojureAsynSocket s, long sc) throws IOException {
+		status = sc;
+		resumeIfYield(YIELD_READ);
+	}
+
+	@Override
+	public void onWrite(NginxClojureAsynSocket s, long sc) throws IOException {
+		status = sc;
+		resumeIfYield(YIELD_WRITE);
+	}
+
+	@Override
+	public void onRelease(NginxClojureAsynSocket s, long sc) throws IOException {
+		if (log.isDebugEnabled()) {
+			log.debug("channel#%d: on release status=%d", s.s, sc);
+		}
+		status = sc;
+	}
+
+	@Override
+	public String toString() {
+		return new StringBuilder("NginxClojureSocketChannel[").append(isConnected() ? "connected " : "unconnected ")
+				.append(remoteAddress).append(']').toString();
+	}
+
+}
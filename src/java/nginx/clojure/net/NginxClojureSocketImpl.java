@@ -20,7 +20,13 @@ import java.net.SocketException;
 import java.net.SocketImpl;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
 
+import javax.net.ssl.SSLHandshakeException;
+
+import nginx.clojure.CoDeadline;
 import nginx.clojure.Coroutine;
 import nginx.clojure.Coroutine.State;
 import nginx.clojure.NginxClojureRT;
@@ -38,6 +44,16 @@ public class NginxClojureSocketImpl extends SocketImpl implements NginxClojureSo
 	
 	public static final String NGINX_CLOJURE_LOG_SOCKET_LEVEL = "nginx.clojure.logger.socket.level";
 	
+	/**
+	 * the max size of read-ahead buffer of socket input stream, its actual size is SO_RCVBUF 
+	 * (or DEFAULT_READ_AHEAD_SIZE if SO_RCVBUF is not set) but not more than this value. 0 means no read-ahead.
+	 */
+	public static final String NGINX_CLOJURE_SOCKET_READ_AHEAD_MAX_SIZE = "nginx.clojure.socket.readAheadMaxSize";
+	
+	final static int READ_AHEAD_MAX_SIZE = Integer.getInteger(NGINX_CLOJURE_SOCKET_READ_AHEAD_MAX_SIZE, 64 * 1024);
+	
+	final static int DEFAULT_READ_AHEAD_SIZE = 8192;
+	
 	static {
 		Field socketField = null;
 		try {
@@ -59,6 +75,16 @@ public class NginxClojureSocketImpl extends SocketImpl implements NginxClojureSo
 	protected long status = NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK;
 	protected SocketInputStream inputStream;
 	protected SocketOutputStream outputStream;
+	/*not null only when this socket can be returned to NginxClojureSocketPool*/
+	protected String poolKey;
+	/*not null when SSL is required, it is the server name for SNI and certificate verification*/
+	protected String sslHost;
+	protected boolean sslVerify;
+	protected boolean sslHandshaked;
+	/*not null when connected to a peer of a NginxClojureUpstream group*/
+	protected NginxClojureUpstream upstream;
+	protected NginxClojureUpstream.Peer upstreamPeer;
+	protected boolean upstreamFailed;
 
 	public NginxClojureSocketImpl() {
 		if (Thread.currentThread() != NginxClojureRT.NGINX_MAIN_THREAD) {
@@ -70,6 +96,99 @@ public class NginxClojureSocketImpl extends SocketImpl implements NginxClojureSo
 	}
 	
 
+	/**
+	 * Creates a socket implementation wrapping an existed native socket, e.g. for a socket adaptor of
+	 * {@link NginxClojureSocketChannel}.
+	 */
+	NginxClojureSocketImpl(NginxClojureAsynSocket as) {
+		this();
+		this.as = as;
+	}
+
+	final static long IMPL_FIELD_OFFSET_OF_SOCKET;
+	
+	static {
+		Field implField = null;
+		try {
+			implField = Socket.class.getDeclaredField("impl");
+		} catch (Throwable e) {
+		}
+		IMPL_FIELD_OFFSET_OF_SOCKET = implField == null ? 0 : NginxClojureRT.UNSAFE.objectFieldOffset(implField);
+	}
+	
+	/**
+	 * @return the NginxClojureSocketImpl of a socket or null if it is not a coroutine based socket
+	 */
+	public static NginxClojureSocketImpl fromSocket(Socket socket) {
+		if (IMPL_FIELD_OFFSET_OF_SOCKET == 0 || socket == null) {
+			return null;
+		}
+		Object impl = NginxClojureRT.UNSAFE.getObject(socket, IMPL_FIELD_OFFSET_OF_SOCKET);
+		return impl instanceof NginxClojureSocketImpl ? (NginxClojureSocketImpl)impl : null;
+	}
+	
+	/**
+	 * Makes this socket to do SSL handshake before the first read/write.
+	 * If it has been connected, it is layered SSL (e.g. by {@link javax.net.ssl.SSLSocketFactory#createSocket(Socket, String, int, boolean)}).
+	 */
+	public void requireSsl(String host, boolean verify) {
+		if (sslHost != null) {
+			return;
+		}
+		sslHost = host;
+		sslVerify = verify;
+		if (as != null && as.isConnected() && poolKey != null) {
+			//it can be reused only by the same kind of SSL socket
+			poolKey = poolKey + sslKeySuffix();
+		}
+	}
+	
+	protected String sslKeySuffix() {
+		return new StringBuilder("#ssl:").append(sslHost).append(',').append(sslVerify).toString();
+	}
+	
+	public boolean isSslHandshaked() {
+		return sslHandshaked;
+	}
+	
+	/**
+	 * Does SSL handshake if it is required but not done, the current coroutine will be suspended until it is done.
+	 */
+	public void ensureSsl() throws IOException {
+		if (sslHost == null || sslHandshaked) {
+			return;
+		}
+		if (as.isSsl()) {
+			//a pooled SSL connection
+			sslHandshaked = true;
+			return;
+		}
+		String sessionKey = new StringBuilder(as.url).append('#').append(sslHost).toString();
+		long[] timeouts = applyDeadline();
+		long rc;
+		try {
+			rc = as.sslHandshake(sslHost, sslVerify, NginxClojureSSLSocketFactory.getSession(sessionKey));
+			if (rc == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN) {
+				if (log.isDebugEnabled()) {
+					log.debug("socket#%d: yield on ssl handshake", as.s);
+				}
+				yieldFlag = YIELD_CONNECT;
+				attachCoroutine();
+				Coroutine.yield();
+				rc = status;
+			}
+		}finally {
+			restoreTimeouts(timeouts);
+		}
+		if (rc != NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK) {
+			poolKey = null;
+			CoDeadline.check();
+			throw new SSLHandshakeException(as.buildError(rc));
+		}
+		sslHandshaked = true;
+		NginxClojureSSLSocketFactory.putSession(sessionKey, as.getSslSession());
+	}
+	
 	protected Socket fetchSocket()  {
 		if (SOCKET_FIELD_OFFSET_OF_SOCKETIMPL != 0) {
 			log.debug("we'll get socket field object from NginxClojureSocketImpl");
@@ -177,6 +296,10 @@ public class NginxClojureSocketImpl extends SocketImpl implements NginxClojureSo
 		if (!stream) {
 			throw new UnsupportedOperationException("stream = false not supported!");
 		}
+		if (as != null) {
+			//already wrapped an existed native socket
+			return;
+		}
 		as = new NginxClojureAsynSocket(this);
 		/*
 		 * Although the default SO_TIMEOUT in java socket is 0, when SO_TIMEOUT = 0 a blocked Java Socket will call socket API connect
@@ -192,30 +315,157 @@ public class NginxClojureSocketImpl extends SocketImpl implements NginxClojureSo
 	protected void connect(String host, int port) throws IOException {
 		//now java.net.socket has done safe close check so we can ignore it
 		//checkCreatedAndNotClosed();
+		NginxClojureUpstream group = NginxClojureResolver.needResolve(host) ? NginxClojureUpstream.lookup(host) : null;
+		if (group != null) {
+			connectUpstream(group);
+			return;
+		}
+		connectPeer(host, port);
+	}
+	
+	/**
+	 * Connects to a peer selected from the group, a failed connect is retried on the next peer.
+	 */
+	protected void connectUpstream(NginxClojureUpstream group) throws IOException {
+		Set<NginxClojureUpstream.Peer> tried = null;
+		IOException last = null;
+		//timing data of all peers are aggregated to the group
+		as.setStats(NginxClojureSocketStats.of(group.getName()));
+		for (int i = 0; i < group.getTries(); i++) {
+			NginxClojureUpstream.Peer peer = group.select(tried);
+			if (peer == null) {
+				break;
+			}
+			if (log.isDebugEnabled()) {
+				log.debug("socket#%d: upstream %s selects %s", as.s, group.getName(), peer.getUrl());
+			}
+			String url = peer.getUrl();
+			int p = url.lastIndexOf(':');
+			try {
+				if (url.startsWith("unix:") || p < 0) {
+					connectPeer(url, -1);
+				}else {
+					connectPeer(url.substring(0, p), Integer.parseInt(url.substring(p + 1)));
+				}
+				upstream = group;
+				upstreamPeer = peer;
+				upstreamFailed = false;
+				return;
+			}catch(CoDeadline.DeadlineExceededException e) {
+				//not the fault of the peer and no time left to try another one
+				group.free(peer, false);
+				poolKey = null;
+				throw e;
+			}catch(IOException e) {
+				group.free(peer, true);
+				last = e;
+				if (tried == null) {
+					tried = new HashSet<NginxClojureUpstream.Peer>();
+				}
+				tried.add(peer);
+				poolKey = null;
+				//the native socket can connect again
+				status = NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK;
+				yieldFlag = 0;
+			}
+		}
+		if (last != null) {
+			throw last;
+		}
+		throw new ConnectException("no live upstreams in " + group.getName());
+	}
+	
+	protected void connectPeer(String host, int port) throws IOException {
 		if (log.isDebugEnabled()) {
 			log.debug("socket#%d: connecting to %s:%d", as.s , host, port);
 		}
-		as.connect(new StringBuilder(host).append(':').append(port).toString());
-		if (!as.isConnected()) {
-			yieldFlag = YIELD_CONNECT;
-			if (log.isTraceEnabled()) {
-				log.trace("show connect stack trace for debug", new Exception("DEBUG USAGE"));
+		String url = port < 0 ? host : new StringBuilder(host).append(':').append(port).toString();
+		if (as.getStats() == null) {
+			//by host name rather than the resolved address
+			as.setStats(NginxClojureSocketStats.of(url));
+		}
+		NginxClojureSocketPool pool = NginxClojureSocketPool.getPool();
+		if (pool != null && pool.accept(url)) {
+			poolKey = pool.buildKey(url, as);
+			if (sslHost != null) {
+				poolKey = poolKey + sslKeySuffix();
 			}
-			if (status == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_RESOLVE) {
-				throw new NoRouteToHostException(as.buildError(status));
-			}else if (status == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_CONNECT) {
-				throw new PortUnreachableException(as.buildError(status));
-			}else if (status != NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK) {
-				throw new ConnectException(as.buildError(status));
+			NginxClojureAsynSocket pas = pool.acquire(poolKey);
+			if (pas != null) {
+				if (log.isDebugEnabled()) {
+					log.debug("socket#%d: reuse pooled connection socket#%d to %s", as.s, pas.s, url);
+				}
+				pas.setTimeout(as.getConnectTimeout(), as.getReadTimeout(), as.getWriteTimeout());
+				pas.setStats(as.getStats());
+				as.close();
+				as = pas;
+				as.setHandler(this);
+				return;
 			}
-			if (log.isDebugEnabled()) {
-				log.debug("socket#%d: yield on connect", as.s);
+		}
+		if (NginxClojureResolver.needResolve(host)) {
+			try {
+				InetAddress ra = NginxClojureResolver.resolveOne(host);
+				if (address == null) {
+					address = ra;
+				}
+				url = new StringBuilder(ra.getHostAddress()).append(':').append(port).toString();
+			}catch(UnknownHostException e) {
+				status = NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_RESOLVE;
+				if (as.getStats() != null) {
+					as.getStats().recordError(status);
+				}
+				throw e;
 			}
-			attachCoroutine();
-			Coroutine.yield();
-			if (status != NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK) {
-				throw new ConnectException(as.buildError(status));
+		}
+		long[] timeouts = applyDeadline();
+		try {
+			as.connect(url);
+			if (!as.isConnected()) {
+				yieldFlag = YIELD_CONNECT;
+				if (log.isTraceEnabled()) {
+					log.trace("show connect stack trace for debug", new Exception("DEBUG USAGE"));
+				}
+				if (status == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_RESOLVE) {
+					throw new NoRouteToHostException(as.buildError(status));
+				}else if (status == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_CONNECT) {
+					throw new PortUnreachableException(as.buildError(status));
+				}else if (status != NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK) {
+					throw new ConnectException(as.buildError(status));
+				}
+				if (log.isDebugEnabled()) {
+					log.debug("socket#%d: yield on connect", as.s);
+				}
+				attachCoroutine();
+				Coroutine.yield();
+				if (status != NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK) {
+					CoDeadline.check();
+					throw new ConnectException(as.buildError(status));
+				}
 			}
+		}finally {
+			restoreTimeouts(timeouts);
+		}
+	}
+	
+	/**
+	 * Shrinks the native timeouts to the remaining time of the current {@link CoDeadline}.
+	 * @return the original connect/read/write timeouts which should be given back by {@link #restoreTimeouts(long[])}, 
+	 * null if there's no deadline
+	 * @throws SocketTimeoutException if the deadline has passed
+	 */
+	protected long[] applyDeadline() throws SocketTimeoutException {
+		if (CoDeadline.current() == null) {
+			return null;
+		}
+		long[] timeouts = new long[] {as.getConnectTimeout(), as.getReadTimeout(), as.getWriteTimeout()};
+		as.setTimeout(CoDeadline.shrink(timeouts[0]), CoDeadline.shrink(timeouts[1]), CoDeadline.shrink(timeouts[2]));
+		return timeouts;
+	}
+	
+	protected void restoreTimeouts(long[] timeouts) {
+		if (timeouts != null && as != null && !as.isClosed()) {
+			as.setTimeout(timeouts[0], timeouts[1], timeouts[2]);
 		}
 	}
 
@@ -234,9 +484,12 @@ public class NginxClojureSocketImpl extends SocketImpl implements NginxClojureSo
 		if (address == null || !(address instanceof InetSocketAddress))
 			throw new IllegalArgumentException("unsupported address type");
 		InetSocketAddress addr = (InetSocketAddress) address;
-		if (addr.isUnresolved())
-			throw new UnknownHostException(addr.getHostName());
 		this.port = addr.getPort();
+		if (addr.isUnresolved()) {
+			//resolved by NginxClojureResolver without blocking
+			connect(addr.getHostName(), this.port);
+			return;
+		}
 		this.address = addr.getAddress();
 		connect(this.address, this.port);
 	}
@@ -294,7 +547,16 @@ public class NginxClojureSocketImpl extends SocketImpl implements NginxClojureSo
 	protected void close() throws IOException {
 //		checkCreatedAndNotClosed();
 		if (!isClosed()) {
+			if (upstreamPeer != null) {
+				upstream.free(upstreamPeer, upstreamFailed || (status != NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK 
+						&& status != NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN));
+				upstreamPeer = null;
+			}
 			if (inputStream != null) {
+				if (inputStream.buffered() > 0) {
+					//unconsumed data means the connection is not at a clean request/response boundary
+					poolKey = null;
+				}
 				inputStream.closed = true;
 				inputStream = null;
 			}
@@ -312,7 +574,17 @@ public class NginxClojureSocketImpl extends SocketImpl implements NginxClojureSo
 				}
 				NginxClojureRT.postCloseSocketEvent(this);
 			}else {
-				as.close();
+				NginxClojureSocketPool pool;
+				if (poolKey != null && yieldFlag == 0 
+						&& status == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK
+						&& (pool = NginxClojureSocketPool.getPool()) != null
+						&& pool.release(poolKey, as)) {
+					if (log.isDebugEnabled()) {
+						log.debug("socket#%d: returned to pool", as.s);
+					}
+				}else {
+					as.close();
+				}
 				as = null;
 			}
 			yieldFlag = 0;
@@ -332,12 +604,14 @@ public class NginxClojureSocketImpl extends SocketImpl implements NginxClojureSo
 	@Override
 	protected void shutdownInput() throws IOException {
 		//make the same behavior with Java build-in socket implementation
+		poolKey = null;
 		as.shutdown(NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_SHUTDOWN_READ);
 	}
 	
 	@Override
 	protected void shutdownOutput() throws IOException {
         //make the same behavior with Java build-in socket implementation
+		poolKey = null;
 		as.shutdown(NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_SHUTDOWN_WRITE);
 	}
 	
@@ -415,21 +689,51 @@ public class NginxClojureSocketImpl extends SocketImpl implements NginxClojureSo
 		byte[] oba = new byte[1];
 		boolean closed;
 		boolean eof;
+		/*read-ahead buffer, small reads are served from it so that they needn't cross JNI one by one*/
+		ByteBuffer rbuf;
 		
 		public SocketInputStream(NginxClojureSocketImpl s) {
 			this.s = s;
 		}
 		
+		/**
+		 * @return the number of bytes which have been read from socket but not consumed
+		 */
+		public int buffered() {
+			return rbuf == null ? 0 : rbuf.remaining();
+		}
+		
+		protected int readAheadSize() {
+			if (rbuf != null) {
+				return rbuf.capacity();
+			}
+			if (READ_AHEAD_MAX_SIZE <= 0) {
+				return 0;
+			}
+			int size = (int)s.as.getReceiveBufferSize();
+			if (size <= 0) {
+				size = DEFAULT_READ_AHEAD_SIZE;
+			}
+			size = Math.min(size, READ_AHEAD_MAX_SIZE);
+			rbuf = ByteBuffer.allocateDirect(size);
+			rbuf.flip();
+			return size;
+		}
+		
 		@Override
 		public int available() throws IOException {
 			checkClosed();
-			return s.available();
+			return buffered() + s.available();
 		}
 		
 		@Override
 		public int read() throws IOException {
+			if (rbuf != null && rbuf.hasRemaining()) {
+				checkClosed();
+				return rbuf.get() & 0xff;
+			}
 			if ( read(oba, 0, 1) == 1) {
-				return oba[0];
+				return oba[0] & 0xff;
 			}
 			return -1;
 		}
@@ -437,60 +741,93 @@ public class NginxClojureSocketImpl extends SocketImpl implements NginxClojureSo
 		@Override
 		public int read(byte[] b, int off, int len) throws IOException {
 			checkClosed();
+			if (s.sslHost != null && !s.sslHandshaked) {
+				s.ensureSsl();
+			}
 			if (len == 0) {
 				return 0;
 			}
-			if (eof) {
-				return -1;
-			}
 			if (off + len > b.length) {
 				throw new IndexOutOfBoundsException("buffer space is too small, off + len > b.length");
 			}
+			if (rbuf != null && rbuf.hasRemaining()) {
+				int n = Math.min(rbuf.remaining(), len);
+				rbuf.get(b, off, n);
+				return n;
+			}
+			if (eof) {
+				return -1;
+			}
 			if (log.isDebugEnabled()) {
 				log.debug("socket#%d: enter read offset %d len %d", s.as.s, off, len);
 			}
 			long rc = 0;
 			long c = 0;
-			do {
-				rc = s.as.read(b, off + c, len - c);
-				if (log.isDebugEnabled()) {
-					log.debug("socket#%d: read offset %d len %d return %d, total %d", s.as.s, off+c, len-c, rc, rc > 0 ? rc + c : c);
-				}
-				
-				if (rc == 0) {
-					eof = true;
-					return c == 0 ? -1 : (int)c;
-				}else if (rc == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN) {
-					if (c > 0) {
-						return (int)c;
+			long[] timeouts = s.applyDeadline();
+			try {
+				do {
+					int need = (int)(len - c);
+					boolean readAhead = need < readAheadSize();
+					if (readAhead) {
+						rbuf.clear();
+						rc = s.as.read(rbuf);
+						rbuf.flip();
+					}else {
+						rc = s.as.read(b, off + c, need);
 					}
-					if (s.status == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_READ_TIMEOUT) {
-						throw new SocketTimeoutException(s.as.buildError(s.status));
-					}
-					s.yieldFlag = YIELD_READ;
 					if (log.isDebugEnabled()) {
-						if (log.isTraceEnabled()) {
-							log.trace(String.format("socket#%d: yield read", s.as.s), new Exception("DEBUG USAGE--yield read"));
-						}else {
-							log.debug(String.format("socket#%d: yield read", s.as.s));
-						}
+						log.debug("socket#%d: read offset %d len %d return %d, total %d", s.as.s, off+c, readAhead ? rbuf.capacity() : need, rc, rc > 0 ? rc + c : c);
 					}
-					s.attachCoroutine();
-					Coroutine.yield();
-					if (s.status != NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK) {
-						throw new SocketException(s.as.buildError(s.status));
-					}
-				}else if (rc < 0) {
-					if (c > 0) {
-						log.warn("socket#%d: meet error %d, but we have read some data (len=%d), just return it", s.as.s, rc, c);
-						break;
+				
+					if (rc == 0) {
+						eof = true;
+						s.poolKey = null;
+						return c == 0 ? -1 : (int)c;
+					}else if (rc == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN) {
+						if (c > 0) {
+							return (int)c;
+						}
+						if (s.status == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_READ_TIMEOUT) {
+							throw new SocketTimeoutException(s.as.buildError(s.status));
+						}
+						s.yieldFlag = YIELD_READ;
+						if (log.isDebugEnabled()) {
+							if (log.isTraceEnabled()) {
+								log.trace(String.format("socket#%d: yield read", s.as.s), new Exception("DEBUG USAGE--yield read"));
+							}else {
+								log.debug(String.format("socket#%d: yield read", s.as.s));
+							}
+						}
+						s.attachCoroutine();
+						Coroutine.yield();
+						if (s.status != NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK) {
+							CoDeadline.check();
+							throw new SocketException(s.as.buildError(s.status));
+						}
+					}else if (rc < 0) {
+						if (c > 0) {
+							log.warn("socket#%d: meet error %d, but we have read some data (len=%d), just return it", s.as.s, rc, c);
+							break;
+						}
+						s.poolKey = null;
+						s.upstreamFailed = true;
+						throw new SocketException(s.as.buildError(rc));
+					}else if (readAhead) {
+						int n = Math.min(rbuf.remaining(), need);
+						rbuf.get(b, (int)(off + c), n);
+						c += n;
+						if (rbuf.hasRemaining()) {
+							//got more than needed, the rest will be served by the next read
+							break;
+						}
+					}else {
+						c += rc;
 					}
-					throw new SocketException(s.as.buildError(rc));
-				}else {
-					c += rc;
-				}
 				
-			}while( (rc > 0 || rc == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN) && c < len);
+				}while( (rc > 0 || rc == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN) && c < len);
+			}finally {
+				s.restoreTimeouts(timeouts);
+			}
 
 			return (int)c;
 		}
@@ -542,6 +879,9 @@ public class NginxClojureSocketImpl extends SocketImpl implements NginxClojureSo
 		@Override
 		public void write(byte[] b, int off, int len) throws IOException {
 			checkClosed();
+			if (s.sslHost != null && !s.sslHandshaked) {
+				s.ensureSsl();
+			}
 			if (b == null) {
 				throw new NullPointerException("byte[] can not be null");
 			}
@@ -553,38 +893,45 @@ public class NginxClojureSocketImpl extends SocketImpl implements NginxClojureSo
 			}
 			long rc = 0;
 			long c = 0;
-			do {
-				rc = s.as.write(b, off + c, len - c);
-				if (log.isDebugEnabled()) {
-					log.debug("socket#%d: write offset %d len %d return %d, total %d", s.as.s, off+c, len-c, rc, rc > 0 ? rc + c : c);
-				}
-				if (rc == 0) {
-					return;
-				}else if (rc == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN) {
-					if (s.status == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_WRITE_TIMEOUT) {
-						throw new SocketTimeoutException(s.as.buildError(s.status));
-					}
-					s.yieldFlag = YIELD_WRITE;
+			long[] timeouts = s.applyDeadline();
+			try {
+				do {
+					rc = s.as.write(b, off + c, len - c);
 					if (log.isDebugEnabled()) {
-						if (log.isTraceEnabled()) {
-							log.trace(String.format("socket#%d: yield write", s.as.s), new Exception("DEBUG USAGE--yield write"));
-						}else {
-							log.debug(String.format("socket#%d: yield write", s.as.s));
+						log.debug("socket#%d: write offset %d len %d return %d, total %d", s.as.s, off+c, len-c, rc, rc > 0 ? rc + c : c);
+					}
+					if (rc == 0) {
+						return;
+					}else if (rc == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN) {
+						if (s.status == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_WRITE_TIMEOUT) {
+							throw new SocketTimeoutException(s.as.buildError(s.status));
 						}
+						s.yieldFlag = YIELD_WRITE;
+						if (log.isDebugEnabled()) {
+							if (log.isTraceEnabled()) {
+								log.trace(String.format("socket#%d: yield write", s.as.s), new Exception("DEBUG USAGE--yield write"));
+							}else {
+								log.debug(String.format("socket#%d: yield write", s.as.s));
+							}
 						
+						}
+						s.attachCoroutine();
+						Coroutine.yield();
+						if (s.status != NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK) {
+							CoDeadline.check();
+							throw new SocketException(s.as.buildError(s.status));
+						}
+					}else if (rc < 0) {
+						s.upstreamFailed = true;
+						throw new SocketException(s.as.buildError(rc));
+					}else {
+						c += rc;
 					}
-					s.attachCoroutine();
-					Coroutine.yield();
-					if (s.status != NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK) {
-						throw new SocketException(s.as.buildError(s.status));
-					}
-				}else if (rc < 0) {
-					throw new SocketException(s.as.buildError(rc));
-				}else {
-					c += rc;
-				}
 				
-			}while((rc > 0 || rc == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN) && c < len);
+				}while((rc > 0 || rc == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN) && c < len);
+			}finally {
+				s.restoreTimeouts(timeouts);
+			}
 		}
 		
 		final void checkClosed() throws IOException {
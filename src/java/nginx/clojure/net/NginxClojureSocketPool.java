@@ -0,0 +1,243 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure.net;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import nginx.clojure.NginxClojureRT;
+
+/**
+ * A per-worker keep-alive pool of upstream connections used by {@link NginxClojureSocketImpl}.
+ * Connections are keyed by "host:port" plus the socket options which can not be changed
+ * after connected, so a pooled connection is only reused by an equivalent socket.
+ * <p>
+ * It is disabled by default because reusing connections at socket level is only safe for
+ * stateless request/response protocols, e.g. HTTP/1.1 keep-alive or redis, which fully consume responses.
+ * To enable it set system property <code>nginx.clojure.socket.pool.maxPerHost</code> to a positive value
+ * and optionally restrict it to some upstreams by <code>nginx.clojure.socket.pool.hosts</code>, e.g.
+ * <code>-Dnginx.clojure.socket.pool.hosts=127.0.0.1:6379,api.local:80</code>.
+ * <p>
+ * All methods should be called only in the nginx main thread so there's no synchronization.
+ */
+public class NginxClojureSocketPool implements NginxClojureSocketHandler {
+
+	public static final String NGINX_CLOJURE_SOCKET_POOL_MAX_PER_HOST = "nginx.clojure.socket.pool.maxPerHost";
+
+	public static final String NGINX_CLOJURE_SOCKET_POOL_IDLE_TIMEOUT = "nginx.clojure.socket.pool.idleTimeout";
+
+	public static final String NGINX_CLOJURE_SOCKET_POOL_HOSTS = "nginx.clojure.socket.pool.hosts";
+
+	private static NginxClojureSocketPool pool;
+
+	private static boolean poolInited;
+
+	protected final int maxPerHost;
+
+	protected final long idleTimeout;
+
+	protected final Set<String> hosts;
+
+	protected final Map<String, ArrayDeque<IdleSocket>> idles = new HashMap<String, ArrayDeque<IdleSocket>>();
+
+	protected boolean sweepScheduled;
+
+	protected final Runnable sweeper = new Runnable() {
+		@Override
+		public void run() {
+			sweepScheduled = false;
+			sweep(System.currentTimeMillis());
+		}
+	};
+
+	public NginxClojureSocketPool(int maxPerHost, long idleTimeout, Set<String> hosts) {
+		this.maxPerHost = maxPerHost;
+		this.idleTimeout = idleTimeout;
+		this.hosts = hosts;
+	}
+
+	/**
+	 * @return the pool of current worker or null if the pool is not enabled
+	 */
+	public static NginxClojureSocketPool getPool() {
+		if (!poolInited) {
+			poolInited = true;
+			int maxPerHost = Integer.getInteger(NGINX_CLOJURE_SOCKET_POOL_MAX_PER_HOST, 0);
+			if (maxPerHost > 0) {
+				Set<String> hosts = null;
+				String hs = System.getProperty(NGINX_CLOJURE_SOCKET_POOL_HOSTS);
+				if (hs != null && hs.trim().length() > 0) {
+					hosts = new HashSet<String>();
+					for (String h : hs.split(",")) {
+						if (h.trim().length() > 0) {
+							hosts.add(h.trim());
+						}
+					}
+				}
+				pool = new NginxClojureSocketPool(maxPerHost, Long.getLong(NGINX_CLOJURE_SOCKET_POOL_IDLE_TIMEOUT, 60000), hosts);
+				NginxClojureRT.getLog().info("socket pool enabled, maxPerHost=%d, idleTimeout=%d, hosts=%s", maxPerHost, pool.idleTimeout, hs);
+			}
+		}
+		return pool;
+	}
+
+	public boolean accept(String url) {
+		return hosts == null || hosts.contains(url);
+	}
+
+	/**
+	 * Builds the pool key from url and the socket options which must be set before connected.
+	 */
+	public String buildKey(String url, NginxClojureAsynSocket as) {
+		return new StringBuilder(url).append('#').append(as.getTcpNoDelay())
+				.append(',').append(as.getSoKeepAlive())
+				.append(',').append(as.getReceiveBufferSize()).toString();
+	}
+
+	/**
+	 * Takes the most recently used alive connection.
+	 * @return null if there's no alive connection for this key
+	 */
+	public NginxClojureAsynSocket acquire(String key) {
+		ArrayDeque<IdleSocket> q = idles.get(key);
+		if (q == null) {
+			return null;
+		}
+		IdleSocket is;
+		long now = System.currentTimeMillis();
+		while ((is = q.pollLast()) != null) {
+			NginxClojureAsynSocket as = is.as;
+			if (now - is.since < idleTimeout && !as.isClosed() && as.checkIdle() == NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK) {
+				as.setHandler(null);
+				as.setContext(null);
+				if (q.isEmpty()) {
+					idles.remove(key);
+				}
+				return as;
+			}
+			as.close();
+		}
+		idles.remove(key);
+		return null;
+	}
+
+	/**
+	 * Tries to keep a connection for reusing.
+	 * @return false if the connection is not healthy or the pool is full, caller should close it by itself.
+	 */
+	public boolean release(String key, NginxClojureAsynSocket as) {
+		if (as.isClosed() || !as.isConnected() || as.checkIdle() != NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK) {
+			return false;
+		}
+		ArrayDeque<IdleSocket> q = idles.get(key);
+		if (q == null) {
+			idles.put(key, q = new ArrayDeque<IdleSocket>());
+		}else if (q.size() >= maxPerHost) {
+			return false;
+		}
+		as.setHandler(this);
+		as.setContext(key);
+		q.addLast(new IdleSocket(as, System.currentTimeMillis()));
+		if (!sweepScheduled) {
+			sweepScheduled = true;
+			NginxClojureRT.scheduleOnMainThread(sweeper, idleTimeout);
+		}
+		return true;
+	}
+
+	/**
+	 * Closes connections which have been idle more than idleTimeout.
+	 */
+	protected void sweep(long now) {
+		for (Iterator<ArrayDeque<IdleSocket>> it = idles.values().iterator(); it.hasNext();) {
+			ArrayDeque<IdleSocket> q = it.next();
+			IdleSocket is;
+			//the oldest one is at the head
+			while ((is = q.peekFirst()) != null && now - is.since >= idleTimeout) {
+				q.pollFirst();
+				is.as.close();
+			}
+			if (q.isEmpty()) {
+				it.remove();
+			}
+		}
+		if (!idles.isEmpty()) {
+			sweepScheduled = true;
+			NginxClojureRT.scheduleOnMainThread(sweeper, idleTimeout);
+		}
+	}
+
+	protected void remove(NginxClojureAsynSocket as) {
+		String key = as.getContext();
+		ArrayDeque<IdleSocket> q = key == null ? null : idles.get(key);
+		if (q != null) {
+			for (Iterator<IdleSocket> it = q.iterator(); it.hasNext();) {
+				if (it.next().as == as) {
+					it.remove();
+					break;
+				}
+			}
+			if (q.isEmpty()) {
+				idles.remove(key);
+			}
+		}
+		as.setContext(null);
+	}
+
+	public int idleCount(String key) {
+		ArrayDeque<IdleSocket> q = idles.get(key);
+		return q == null ? 0 : q.size();
+	}
+
+	public int getMaxPerHost() {
+		return maxPerHost;
+	}
+
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	@Override
+	public void onConnect(NginxClojureAsynSocket s, long sc) throws IOException {
+	}
+
+	/**
+	 * An idle connection is readable only when the peer closed it or sent some unexpected data,
+	 * either way it can not be reused any more.
+	 */
+	@Override
+	public void onRead(NginxClojureAsynSocket s, long sc) throws IOException {
+		if (NginxClojureRT.log.isDebugEnabled()) {
+			NginxClojureRT.log.debug("socket#%d: idle connection readable, status=%d, we'll close it", s.s, sc);
+		}
+		remove(s);
+		s.close();
+	}
+
+	@Override
+	public void onWrite(NginxClojureAsynSocket s, long sc) throws IOException {
+	}
+
+	@Override
+	public void onRelease(NginxClojureAsynSocket s, long sc) throws IOException {
+		remove(s);
+	}
+
+	protected static final class IdleSocket {
+		final NginxClojureAsynSocket as;
+		final long since;
+
+		IdleSocket(NginxClojureAsynSocket as, long since) {
+			this.as = as;
+			this.since = since;
+		}
+	}
+
+}
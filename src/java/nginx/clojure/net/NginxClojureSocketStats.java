@@ -0,0 +1,290 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure.net;
+
+import static nginx.clojure.net.NginxClojureAsynSocket.*;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms and error counters of coroutine/asynchronous sockets per destination, viz. "host:port"
+ * or the name of an upstream group. They are aggregated per nginx worker (JVM) and are lock-free,
+ * recording a sample or an error never allocates memory.
+ * <p>
+ * Three histograms are kept for every destination:
+ * <ul>
+ * <li>connect time, from <code>connect</code> to the connection established</li>
+ * <li>first-byte time, from the first write of an exchange to the first byte read back</li>
+ * <li>total time, from the first write of an exchange to the last byte read before the next exchange or close</li>
+ * </ul>
+ * It can be turned off by the system property <code>nginx.clojure.socket.stats=false</code>.
+ * At most <code>nginx.clojure.socket.stats.maxDestinations</code> (default 256) destinations will be tracked
+ * and the rest are aggregated into {@link #OTHERS}.
+ * @author Zhang,Yuexiang (xfeep)
+ *
+ */
+public final class NginxClojureSocketStats {
+
+	public static final boolean ENABLED = !"false".equals(System.getProperty("nginx.clojure.socket.stats"));
+
+	public static final int MAX_DESTINATIONS = Integer.getInteger("nginx.clojure.socket.stats.maxDestinations", 256);
+
+	public static final String OTHERS = "*";
+
+	private static final ConcurrentHashMap<String, NginxClojureSocketStats> all = new ConcurrentHashMap<String, NginxClojureSocketStats>();
+
+	final String name;
+
+	final Histogram connectTime = new Histogram();
+
+	final Histogram firstByteTime = new Histogram();
+
+	final Histogram totalTime = new Histogram();
+
+	final AtomicLong connectFailures = new AtomicLong();
+
+	final AtomicLong timeouts = new AtomicLong();
+
+	final AtomicLong resets = new AtomicLong();
+
+	final AtomicLong dnsFailures = new AtomicLong();
+
+	final AtomicLong errors = new AtomicLong();
+
+	public NginxClojureSocketStats(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @return stats of the destination, null if stats is disabled
+	 */
+	public static NginxClojureSocketStats of(String name) {
+		if (!ENABLED || name == null) {
+			return null;
+		}
+		NginxClojureSocketStats st = all.get(name);
+		if (st != null) {
+			return st;
+		}
+		if (all.size() >= MAX_DESTINATIONS) {
+			name = OTHERS;
+			if ((st = all.get(name)) != null) {
+				return st;
+			}
+		}
+		NginxClojureSocketStats old = all.putIfAbsent(name, st = new NginxClojureSocketStats(name));
+		return old == null ? st : old;
+	}
+
+	/**
+	 * @return stats of the destination, null if there's no stats about it
+	 */
+	public static NginxClojureSocketStats get(String name) {
+		return all.get(name);
+	}
+
+	public static Map<String, NginxClojureSocketStats> getAll() {
+		return Collections.unmodifiableMap(all);
+	}
+
+	public static void clear() {
+		all.clear();
+	}
+
+	public void recordConnect(long nanos) {
+		connectTime.record(nanos / 1000);
+	}
+
+	public void recordFirstByte(long nanos) {
+		firstByteTime.record(nanos / 1000);
+	}
+
+	public void recordTotal(long nanos) {
+		totalTime.record(nanos / 1000);
+	}
+
+	/**
+	 * Counts an error by its native socket error code.
+	 */
+	public void recordError(long sc) {
+		if (sc == NGX_HTTP_CLOJURE_SOCKET_ERR_RESOLVE) {
+			dnsFailures.incrementAndGet();
+		}else if (sc == NGX_HTTP_CLOJURE_SOCKET_ERR_CONNECT) {
+			connectFailures.incrementAndGet();
+		}else if (sc == NGX_HTTP_CLOJURE_SOCKET_ERR_CONNECT_TIMEOUT || sc == NGX_HTTP_CLOJURE_SOCKET_ERR_READ_TIMEOUT
+				|| sc == NGX_HTTP_CLOJURE_SOCKET_ERR_WRITE_TIMEOUT) {
+			timeouts.incrementAndGet();
+		}else if (sc == NGX_HTTP_CLOJURE_SOCKET_ERR_RESET || sc == NGX_HTTP_CLOJURE_SOCKET_ERR_READ
+				|| sc == NGX_HTTP_CLOJURE_SOCKET_ERR_WRITE) {
+			//a broken connection, e.g. ECONNRESET, EPIPE
+			resets.incrementAndGet();
+		}else if (sc != NGX_HTTP_CLOJURE_SOCKET_OK && sc != NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN) {
+			errors.incrementAndGet();
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return histogram of connect time in microseconds
+	 */
+	public Histogram getConnectTime() {
+		return connectTime;
+	}
+
+	/**
+	 * @return histogram of first-byte time in microseconds
+	 */
+	public Histogram getFirstByteTime() {
+		return firstByteTime;
+	}
+
+	/**
+	 * @return histogram of total time in microseconds
+	 */
+	public Histogram getTotalTime() {
+		return totalTime;
+	}
+
+	public long getConnectFailures() {
+		return connectFailures.get();
+	}
+
+	public long getTimeouts() {
+		return timeouts.get();
+	}
+
+	public long getResets() {
+		return resets.get();
+	}
+
+	public long getDnsFailures() {
+		return dnsFailures.get();
+	}
+
+	public long getErrors() {
+		return errors.get();
+	}
+
+	@Override
+	public String toString() {
+		return new StringBuilder(name)
+			.append(" connect{").append(connectTime)
+			.append("} first-byte{").append(firstByteTime)
+			.append("} total{").append(totalTime)
+			.append("} connect-failures=").append(connectFailures.get())
+			.append(" timeouts=").append(timeouts.get())
+			.append(" resets=").append(resets.get())
+			.append(" dns-failures=").append(dnsFailures.get())
+			.append(" errors=").append(errors.get())
+			.toString();
+	}
+
+	/**
+	 * A lock-free HDR-style (log-linear) histogram. Values in [0, 2^{@link #SUB_BITS}) are counted exactly and above that
+	 * every power of two range is split into 2^{@link #SUB_BITS} sub buckets so that the relative error is
+	 * less than 1/2^{@link #SUB_BITS} (6.25%). Values greater than {@link #MAX_VALUE} are counted as {@link #MAX_VALUE}.
+	 */
+	public static final class Histogram {
+
+		public static final int SUB_BITS = 4;
+
+		public static final int SUB_COUNT = 1 << SUB_BITS;
+
+		public static final int MAX_EXP = 36;
+
+		public static final long MAX_VALUE = (1L << (MAX_EXP + 1)) - 1;
+
+		final AtomicLongArray counts = new AtomicLongArray(index(MAX_VALUE) + 1);
+
+		final AtomicLong count = new AtomicLong();
+
+		final AtomicLong sum = new AtomicLong();
+
+		final AtomicLong max = new AtomicLong();
+
+		public static int index(long v) {
+			if (v < SUB_COUNT) {
+				return (int)v;
+			}
+			int exp = 63 - Long.numberOfLeadingZeros(v);
+			return ((exp - SUB_BITS + 1) << SUB_BITS) + (int)((v >>> (exp - SUB_BITS)) & (SUB_COUNT - 1));
+		}
+
+		/**
+		 * @return the least value counted by the bucket
+		 */
+		public static long lowerBound(int index) {
+			if (index < SUB_COUNT) {
+				return index;
+			}
+			int shift = (index >>> SUB_BITS) - 1;
+			return (long)(SUB_COUNT + (index & (SUB_COUNT - 1))) << shift;
+		}
+
+		public void record(long v) {
+			if (v < 0) {
+				v = 0;
+			}else if (v > MAX_VALUE) {
+				v = MAX_VALUE;
+			}
+			counts.incrementAndGet(index(v));
+			count.incrementAndGet();
+			sum.addAndGet(v);
+			long m;
+			while (v > (m = max.get()) && !max.compareAndSet(m, v));
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getMax() {
+			return max.get();
+		}
+
+		public double getMean() {
+			long c = count.get();
+			return c == 0 ? 0 : (double)sum.get() / c;
+		}
+
+		/**
+		 * @param percentile e.g. 50, 99, 99.9
+		 * @return the highest value equivalent to the given percentile, 0 if there's no sample
+		 */
+		public long getValueAtPercentile(double percentile) {
+			long c = count.get();
+			if (c == 0) {
+				return 0;
+			}
+			long target = Math.max(1, (long)Math.ceil(percentile / 100 * c));
+			long acc = 0;
+			int n = counts.length();
+			for (int i = 0; i < n; i++) {
+				acc += counts.get(i);
+				if (acc >= target) {
+					return i + 1 < n ? Math.min(lowerBound(i + 1) - 1, max.get()) : MAX_VALUE;
+				}
+			}
+			return max.get();
+		}
+
+		@Override
+		public String toString() {
+			return new StringBuilder("count=").append(count.get())
+					.append(" mean=").append((long)getMean())
+					.append(" p50=").append(getValueAtPercentile(50))
+					.append(" p99=").append(getValueAtPercentile(99))
+					.append(" max=").append(max.get()).toString();
+		}
+	}
+
+}
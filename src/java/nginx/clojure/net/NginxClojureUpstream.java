@@ -0,0 +1,443 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure.net;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import nginx.clojure.NginxClojureRT;
+
+/**
+ * A named group of upstream servers which coroutine based sockets can connect to by the group name,
+ * e.g. <code>new Socket("backend", 0)</code> or <code>asynChannel.connect("upstream:backend", ...)</code>.
+ * <p>
+ * A group is either defined in Java by {@link #define(String, int, String)}, by system property
+ * <code>nginx.clojure.upstream.NAME</code> (servers) and <code>nginx.clojure.upstream.NAME.strategy</code>
+ * (<code>round_robin</code>, <code>least_conn</code> or <code>hash</code>), or loaded from an <code>upstream NAME {}</code> block of nginx.conf.
+ * Servers use the same syntax and semantics as nginx, e.g.
+ * <code>"10.0.0.1:80 weight=2 max_fails=3 fail_timeout=10s; 10.0.0.2:80; 10.0.0.3:80 backup"</code>.
+ * <p>
+ * Peers are selected in the worker event loop without any proxy hop. Passive health checks work like nginx:
+ * a peer is skipped for <code>fail_timeout</code> after <code>max_fails</code> failures, then one probe connection is allowed,
+ * backup peers are used only when all primary peers are unavailable.
+ * A failed connect is retried on the next peer at most <code>nginx.clojure.upstream.NAME.tries</code> times (default all peers).
+ * <p>
+ * All methods should be called only in the nginx main thread so there's no synchronization.
+ */
+public class NginxClojureUpstream {
+
+	public static final int ROUND_ROBIN = 0;
+
+	public static final int LEAST_CONN = 1;
+
+	public static final int HASH = 2;
+
+	public static final String NGINX_CLOJURE_UPSTREAM_PREFIX = "nginx.clojure.upstream.";
+
+	public static final String URL_PREFIX = "upstream:";
+
+	protected static final Map<String, NginxClojureUpstream> upstreams = new HashMap<String, NginxClojureUpstream>();
+
+	/*names which are neither defined nor in nginx.conf, they are remembered to avoid looking up again on every connection*/
+	protected static final Set<String> unknowns = new HashSet<String>();
+
+	/*hash key for the next selection on a HASH group, see withHashKey*/
+	protected static Object nextHashKey;
+
+	protected final String name;
+
+	protected final int strategy;
+
+	protected final Peer[] primaries;
+
+	protected final Peer[] backups;
+
+	protected final int tries;
+
+	public static class Peer {
+		protected final String url;
+		protected final int weight;
+		protected final int maxFails;
+		protected final long failTimeout;
+		protected final boolean backup;
+		protected boolean down;
+		protected int currentWeight;
+		protected int effectiveWeight;
+		protected int active;
+		protected int fails;
+		protected long accessed;
+		protected long checked;
+
+		public Peer(String url, int weight, int maxFails, long failTimeout, boolean backup, boolean down) {
+			this.url = url;
+			this.weight = weight;
+			this.maxFails = maxFails;
+			this.failTimeout = failTimeout;
+			this.backup = backup;
+			this.down = down;
+			this.effectiveWeight = weight;
+		}
+
+		public String getUrl() {
+			return url;
+		}
+
+		public int getWeight() {
+			return weight;
+		}
+
+		public int getActive() {
+			return active;
+		}
+
+		public int getFails() {
+			return fails;
+		}
+
+		public boolean isBackup() {
+			return backup;
+		}
+
+		public boolean isDown() {
+			return down;
+		}
+
+		public void setDown(boolean down) {
+			this.down = down;
+		}
+
+		protected boolean isAvailable(long now) {
+			if (down) {
+				return false;
+			}
+			return maxFails == 0 || fails < maxFails || now - checked > failTimeout;
+		}
+
+		@Override
+		public String toString() {
+			return new StringBuilder(url).append(" weight=").append(weight).append(" active=").append(active)
+					.append(" fails=").append(fails).append(down ? " down" : "").append(backup ? " backup" : "").toString();
+		}
+	}
+
+	public NginxClojureUpstream(String name, int strategy, List<Peer> peers, int tries) {
+		this.name = name;
+		this.strategy = strategy;
+		List<Peer> ps = new ArrayList<Peer>();
+		List<Peer> bs = new ArrayList<Peer>();
+		for (Peer p : peers) {
+			(p.backup ? bs : ps).add(p);
+		}
+		if (ps.isEmpty()) {
+			throw new IllegalArgumentException("upstream " + name + " has no primary server");
+		}
+		this.primaries = ps.toArray(new Peer[ps.size()]);
+		this.backups = bs.toArray(new Peer[bs.size()]);
+		this.tries = tries > 0 ? tries : primaries.length + backups.length;
+	}
+
+	/**
+	 * Defines a group in Java, an existing one with the same name will be replaced.
+	 * @param servers e.g. "10.0.0.1:80 weight=2 max_fails=3 fail_timeout=10s; 10.0.0.2:80 backup"
+	 */
+	public static NginxClojureUpstream define(String name, int strategy, String servers) {
+		NginxClojureUpstream u = new NginxClojureUpstream(name, strategy, parseServers(servers), 0);
+		register(u);
+		return u;
+	}
+
+	public static void register(NginxClojureUpstream u) {
+		upstreams.put(u.name, u);
+		unknowns.remove(u.name);
+	}
+
+	public static NginxClojureUpstream remove(String name) {
+		return upstreams.remove(name);
+	}
+
+	/**
+	 * Finds a group by name, groups of system properties and nginx.conf are loaded at the first time.
+	 * @return null if there's no such group
+	 */
+	public static NginxClojureUpstream lookup(String name) {
+		NginxClojureUpstream u = upstreams.get(name);
+		if (u != null || unknowns.contains(name)) {
+			return u;
+		}
+		String servers = System.getProperty(NGINX_CLOJURE_UPSTREAM_PREFIX + name);
+		if (servers == null && NginxClojureRT.NGINX_MAIN_THREAD != null) {
+			servers = NginxClojureAsynSocket.getUpstreamServers(name);
+		}
+		if (servers == null) {
+			unknowns.add(name);
+			return null;
+		}
+		u = new NginxClojureUpstream(name, parseStrategy(System.getProperty(NGINX_CLOJURE_UPSTREAM_PREFIX + name + ".strategy")),
+				parseServers(servers), Integer.getInteger(NGINX_CLOJURE_UPSTREAM_PREFIX + name + ".tries", 0));
+		upstreams.put(name, u);
+		NginxClojureRT.getLog().info("upstream group %s loaded : %s", name, u);
+		return u;
+	}
+
+	/**
+	 * @return the group name of a url like "upstream:backend", or null if it is not a group url
+	 */
+	public static String groupName(String url) {
+		return url.startsWith(URL_PREFIX) ? url.substring(URL_PREFIX.length()) : null;
+	}
+
+	/**
+	 * Sets the hash key used by the next peer selection of a HASH group, e.g. a user id
+	 * before <code>new Socket("backend", 0)</code>. It is consumed by that selection.
+	 */
+	public static void withHashKey(Object key) {
+		nextHashKey = key;
+	}
+
+	public static int parseStrategy(String s) {
+		if (s == null || s.length() == 0 || "round_robin".equals(s)) {
+			return ROUND_ROBIN;
+		}
+		if ("least_conn".equals(s)) {
+			return LEAST_CONN;
+		}
+		if ("hash".equals(s)) {
+			return HASH;
+		}
+		throw new IllegalArgumentException("unknown upstream strategy : " + s);
+	}
+
+	/**
+	 * Parses servers separated by ';' or new lines, a server is an address followed by
+	 * optional parameters weight=N, max_fails=N, fail_timeout=T (e.g. 10, 10s, 500ms, 1m), backup and down.
+	 */
+	public static List<Peer> parseServers(String servers) {
+		List<Peer> peers = new ArrayList<Peer>();
+		for (String line : servers.split("[;\n]")) {
+			line = line.trim();
+			if (line.length() == 0) {
+				continue;
+			}
+			String[] parts = line.split("\\s+");
+			int weight = 1;
+			int maxFails = 1;
+			long failTimeout = 10000;
+			boolean backup = false;
+			boolean down = false;
+			for (int i = 1; i < parts.length; i++) {
+				String p = parts[i];
+				if (p.startsWith("weight=")) {
+					weight = Integer.parseInt(p.substring(7));
+					if (weight <= 0) {
+						throw new IllegalArgumentException("invalid weight in " + line);
+					}
+				}else if (p.startsWith("max_fails=")) {
+					maxFails = Integer.parseInt(p.substring(10));
+				}else if (p.startsWith("fail_timeout=")) {
+					failTimeout = NginxClojureRT.parseTime(p.substring(13));
+				}else if ("backup".equals(p)) {
+					backup = true;
+				}else if ("down".equals(p)) {
+					down = true;
+				}else {
+					throw new IllegalArgumentException("invalid parameter \"" + p + "\" in " + line);
+				}
+			}
+			peers.add(new Peer(parts[0], weight, maxFails, failTimeout, backup, down));
+		}
+		return peers;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getStrategy() {
+		return strategy;
+	}
+
+	public int getTries() {
+		return tries;
+	}
+
+	public Peer[] getPeers() {
+		Peer[] all = new Peer[primaries.length + backups.length];
+		System.arraycopy(primaries, 0, all, 0, primaries.length);
+		System.arraycopy(backups, 0, all, primaries.length, backups.length);
+		return all;
+	}
+
+	/**
+	 * Selects a peer and counts it as an active connection which must be given back by {@link #free(Peer, boolean)}.
+	 * @param tried peers which have been tried by the current connection, can be null
+	 * @return null if no live peer
+	 */
+	public Peer select(Set<Peer> tried) {
+		Object key = nextHashKey;
+		nextHashKey = null;
+		return select(key, tried, System.currentTimeMillis());
+	}
+
+	protected Peer select(Object hashKey, Set<Peer> tried, long now) {
+		Peer p = select(primaries, hashKey, tried, now);
+		if (p == null && backups.length > 0) {
+			p = select(backups, hashKey, tried, now);
+		}
+		if (p == null) {
+			return null;
+		}
+		p.active++;
+		if (now - p.checked > p.failTimeout) {
+			//a probe after fail_timeout or a normal selection, either way starts a new check period
+			p.checked = now;
+		}
+		return p;
+	}
+
+	protected Peer select(Peer[] peers, Object hashKey, Set<Peer> tried, long now) {
+		if (strategy == HASH && hashKey != null) {
+			Peer p = selectByHash(peers, hashKey, tried, now);
+			if (p != null) {
+				return p;
+			}
+		}else if (strategy == LEAST_CONN) {
+			return selectLeastConn(peers, tried, now);
+		}
+		return selectRoundRobin(peers, tried, now);
+	}
+
+	/**
+	 * Smooth weighted round-robin, the same as nginx.
+	 */
+	protected Peer selectRoundRobin(Peer[] peers, Set<Peer> tried, long now) {
+		Peer best = null;
+		int total = 0;
+		for (Peer p : peers) {
+			if ((tried != null && tried.contains(p)) || !p.isAvailable(now)) {
+				continue;
+			}
+			p.currentWeight += p.effectiveWeight;
+			total += p.effectiveWeight;
+			if (p.effectiveWeight < p.weight) {
+				p.effectiveWeight++;
+			}
+			if (best == null || p.currentWeight > best.currentWeight) {
+				best = p;
+			}
+		}
+		if (best != null) {
+			best.currentWeight -= total;
+		}
+		return best;
+	}
+
+	/**
+	 * The fewest active connections relative to weight, ties are broken by round-robin.
+	 */
+	protected Peer selectLeastConn(Peer[] peers, Set<Peer> tried, long now) {
+		Peer best = null;
+		int ties = 0;
+		for (Peer p : peers) {
+			if ((tried != null && tried.contains(p)) || !p.isAvailable(now)) {
+				continue;
+			}
+			if (best == null || (long)p.active * best.weight < (long)best.active * p.weight) {
+				best = p;
+				ties = 1;
+			}else if ((long)p.active * best.weight == (long)best.active * p.weight) {
+				ties++;
+			}
+		}
+		if (ties <= 1) {
+			return best;
+		}
+		Peer[] candidates = new Peer[ties];
+		int n = 0;
+		for (Peer p : peers) {
+			if ((tried != null && tried.contains(p)) || !p.isAvailable(now)) {
+				continue;
+			}
+			if ((long)p.active * best.weight == (long)best.active * p.weight) {
+				candidates[n++] = p;
+			}
+		}
+		return selectRoundRobin(candidates, null, now);
+	}
+
+	/**
+	 * Weighted hash which rehashes at most 20 times when the peer is not available, like nginx hash.
+	 * @return null if not found so that round-robin will be used
+	 */
+	protected Peer selectByHash(Peer[] peers, Object hashKey, Set<Peer> tried, long now) {
+		int total = 0;
+		for (Peer p : peers) {
+			total += p.weight;
+		}
+		int h = hashKey.hashCode();
+		for (int t = 0; t < 20; t++) {
+			//spread bits so that close keys are not mapped to neighbours
+			h ^= (h >>> 20) ^ (h >>> 12);
+			h ^= (h >>> 7) ^ (h >>> 4);
+			int w = (h & 0x7fffffff) % total;
+			Peer p = null;
+			for (Peer c : peers) {
+				w -= c.weight;
+				if (w < 0) {
+					p = c;
+					break;
+				}
+			}
+			if ((tried == null || !tried.contains(p)) && p.isAvailable(now)) {
+				return p;
+			}
+			h = h * 31 + t + 1;
+		}
+		return null;
+	}
+
+	/**
+	 * Gives back a selected peer with the result of its connection, failures feed the passive health check.
+	 */
+	public void free(Peer p, boolean failed) {
+		free(p, failed, System.currentTimeMillis());
+	}
+
+	protected void free(Peer p, boolean failed, long now) {
+		if (p.active > 0) {
+			p.active--;
+		}
+		if (failed) {
+			p.fails++;
+			p.accessed = now;
+			p.checked = now;
+			if (p.maxFails > 0) {
+				p.effectiveWeight -= p.weight / p.maxFails;
+				if (p.fails >= p.maxFails) {
+					NginxClojureRT.getLog().warn("upstream server %s of %s temporarily disabled", p.url, name);
+				}
+			}
+			if (p.effectiveWeight < 0) {
+				p.effectiveWeight = 0;
+			}
+		}else if (p.accessed < p.checked) {
+			p.fails = 0;
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(name).append('[');
+		sb.append(strategy == ROUND_ROBIN ? "round_robin" : strategy == LEAST_CONN ? "least_conn" : "hash");
+		for (Peer p : getPeers()) {
+			sb.append("; ").append(p);
+		}
+		return sb.append(']').toString();
+	}
+
+}
@@ -0,0 +1,159 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nginx.clojure.CoBatch.CoBatchException;
+import nginx.clojure.CoBatch.Completion;
+
+import org.junit.Test;
+
+/**
+ * There's no coroutine context here so CoBatch will use the thread pool only for testing usage.
+ */
+public class CoBatchTest {
+
+	@SuppressWarnings("unchecked")
+	static Callable<Integer>[] sleepCalls(final long... delays) {
+		Callable<Integer>[] calls = new Callable[delays.length];
+		for (int i = 0; i < delays.length; i++) {
+			final int idx = i;
+			calls[i] = new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					if (delays[idx] < 0) {
+						throw new IllegalStateException("fail #" + idx);
+					}
+					Thread.sleep(delays[idx]);
+					return idx;
+				}
+			};
+		}
+		return calls;
+	}
+	
+	@Test
+	public void testInvokeAll() {
+		Object[] rt = new CoBatch<Integer>(sleepCalls(30, 10, 0)).invokeAll();
+		assertArrayEquals(new Object[]{0, 1, 2}, rt);
+	}
+	
+	@Test
+	public void testCompletionOrder() {
+		CoBatch<Integer> b = new CoBatch<Integer>(sleepCalls(300, 0));
+		Completion<Integer> c = b.nextCompletion();
+		assertEquals(1, c.index());
+		c = b.nextCompletion();
+		assertEquals(0, c.index());
+		assertNull(b.nextCompletion());
+	}
+	
+	@Test
+	public void testMaxConcurrency() {
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger max = new AtomicInteger();
+		@SuppressWarnings("unchecked")
+		Callable<Integer>[] calls = new Callable[8];
+		for (int i = 0; i < calls.length; i++) {
+			final int idx = i;
+			calls[i] = new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					int r = running.incrementAndGet();
+					synchronized (max) {
+						if (r > max.get()) {
+							max.set(r);
+						}
+					}
+					Thread.sleep(20);
+					running.decrementAndGet();
+					return idx;
+				}
+			};
+		}
+		Object[] rt = new CoBatch<Integer>(calls).maxConcurrency(2).invokeAll();
+		assertEquals(8, rt.length);
+		assertTrue(max.get() <= 2);
+	}
+	
+	@Test
+	public void testCollectErrors() {
+		CoBatch<Integer> b = new CoBatch<Integer>(sleepCalls(0, -1, 10));
+		Object[] rt = b.invokeAll();
+		assertEquals(0, rt[0]);
+		assertNull(rt[1]);
+		assertEquals(2, rt[2]);
+		assertNotNull(b.errors()[1]);
+	}
+	
+	@Test
+	public void testFailFast() {
+		try {
+			new CoBatch<Integer>(sleepCalls(500, -1)).failFast(true).invokeAll();
+			fail("no exception!");
+		}catch(CoBatchException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+	}
+	
+	@Test
+	public void testTimeout() {
+		CoBatch<Integer> b = new CoBatch<Integer>(sleepCalls(0, 2000)).timeout(100);
+		try {
+			b.invokeAll();
+			fail("no exception!");
+		}catch(CoBatchException e) {
+			assertTrue(b.isTimedOut());
+			assertEquals(0, b.results()[0]);
+		}
+	}
+	
+	@Test
+	public void testCancel() throws InterruptedException {
+		final AtomicInteger launched = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(2);
+		final CountDownLatch stopped = new CountDownLatch(2);
+		@SuppressWarnings("unchecked")
+		Callable<Integer>[] calls = new Callable[3];
+		for (int i = 0; i < calls.length; i++) {
+			final int idx = i;
+			calls[i] = new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					launched.incrementAndGet();
+					started.countDown();
+					//a running call sees the deadline of the batch expired after cancel
+					while (!CoDeadline.current().isExpired()) {
+						Thread.sleep(5);
+					}
+					stopped.countDown();
+					return idx;
+				}
+			};
+		}
+		CoBatch<Integer> b = new CoBatch<Integer>(calls).maxConcurrency(2).start();
+		assertTrue(started.await(2, TimeUnit.SECONDS));
+		b.cancel();
+		assertTrue(b.isCancelled());
+		assertTrue(stopped.await(2, TimeUnit.SECONDS));
+		assertNull(b.nextCompletion());
+		assertFalse(b.isTimedOut());
+		//the pending call is never started
+		Thread.sleep(50);
+		assertEquals(2, launched.get());
+	}
+}
@@ -0,0 +1,102 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import nginx.clojure.CoDeadline.DeadlineExceededException;
+import nginx.clojure.logger.TinyLogService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CoDeadlineTest {
+
+	@Before
+	public void setUp() {
+		if (NginxClojureRT.log == null) {
+			NginxClojureRT.log = TinyLogService.createDefaultTinyLogService();
+		}
+	}
+
+	@After
+	public void tearDown() {
+		CoDeadline.clear();
+	}
+
+	@Test
+	public void testShrink() throws Exception {
+		assertNull(CoDeadline.current());
+		assertEquals(3000, CoDeadline.shrink(3000));
+		assertEquals(Long.MAX_VALUE, CoDeadline.remainingMillis());
+		CoDeadline.start(1000);
+		long t = CoDeadline.shrink(3000);
+		assertTrue(t > 0 && t <= 1000);
+		//0 means no timeout so it is shrunk too
+		t = CoDeadline.shrink(0);
+		assertTrue(t > 0 && t <= 1000);
+		assertEquals(10, CoDeadline.shrink(10));
+	}
+
+	@Test
+	public void testNestedDeadlineOnlyShrinks() {
+		CoDeadline d = CoDeadline.start(1000);
+		assertSame(d, CoDeadline.start(5000));
+		CoDeadline d2 = CoDeadline.start(100);
+		assertTrue(d2.getExpireAt() < d.getExpireAt());
+		assertSame(d2, CoDeadline.current());
+	}
+
+	@Test
+	public void testExpired() throws Exception {
+		CoDeadline.set(new CoDeadline(System.currentTimeMillis() - 1));
+		try {
+			CoDeadline.shrink(100);
+			fail("deadline should be exceeded");
+		}catch(DeadlineExceededException e) {
+		}
+		try {
+			CoDeadline.check();
+			fail("deadline should be exceeded");
+		}catch(DeadlineExceededException e) {
+		}
+		long s = System.currentTimeMillis();
+		Coroutine.sleep(5000);
+		assertTrue(System.currentTimeMillis() - s < 1000);
+	}
+
+	@Test
+	public void testOnExpire() throws Exception {
+		CoDeadline d = CoDeadline.start(50);
+		final CountDownLatch latch = new CountDownLatch(2);
+		Runnable l = new Runnable() {
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		};
+		d.onExpire(l);
+		d.onExpire(l);
+		assertTrue(latch.await(2, TimeUnit.SECONDS));
+		//listeners registered after expiration are invoked at once
+		final boolean[] invoked = new boolean[1];
+		d.onExpire(new Runnable() {
+			@Override
+			public void run() {
+				invoked[0] = true;
+			}
+		});
+		assertTrue(invoked[0]);
+	}
+
+}
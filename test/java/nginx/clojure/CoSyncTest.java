@@ -0,0 +1,142 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for coroutine synchronizers. There's no nginx main thread here so 
+ * waiters are resumed directly by their signalers.
+ */
+public class CoSyncTest {
+
+	@Test
+	public void testChannel() {
+		final CoChannel<Integer> ch = new CoChannel<Integer>(2);
+		final List<Integer> got = new ArrayList<Integer>();
+		Coroutine consumer = new Coroutine(new Runnable() {
+			public void run() throws SuspendExecution {
+				Integer i;
+				while ((i = ch.take()) != null) {
+					got.add(i);
+				}
+				got.add(-1);
+			}
+		});
+		Coroutine producer = new Coroutine(new Runnable() {
+			public void run() throws SuspendExecution {
+				for (int i = 0; i < 5; i++) {
+					ch.put(i);
+				}
+				ch.close();
+			}
+		});
+		consumer.resume();
+		assertEquals(Coroutine.State.SUSPENDED, consumer.getState());
+		producer.resume();
+		assertEquals(Coroutine.State.FINISHED, producer.getState());
+		assertEquals(Coroutine.State.FINISHED, consumer.getState());
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4, -1), got);
+	}
+	
+	@Test
+	public void testChannelFull() {
+		final CoChannel<String> ch = new CoChannel<String>(1);
+		final List<String> log = new ArrayList<String>();
+		Coroutine producer = new Coroutine(new Runnable() {
+			public void run() throws SuspendExecution {
+				ch.put("a");
+				log.add("put a");
+				ch.put("b");
+				log.add("put b");
+			}
+		});
+		producer.resume();
+		assertEquals(Coroutine.State.SUSPENDED, producer.getState());
+		assertEquals(Arrays.asList("put a"), log);
+		assertEquals("a", ch.poll());
+		assertEquals(Coroutine.State.FINISHED, producer.getState());
+		assertEquals("b", ch.poll());
+		assertNull(ch.poll());
+	}
+	
+	@Test
+	public void testLockAndCondition() {
+		final CoLock lock = new CoLock();
+		final CoCondition cond = lock.newCondition();
+		final List<String> log = new ArrayList<String>();
+		Coroutine waiter = new Coroutine(new Runnable() {
+			public void run() throws SuspendExecution {
+				lock.lock();
+				try {
+					log.add("wait");
+					cond.await();
+					assertTrue(lock.isHeldByCurrent());
+					log.add("woken");
+				}finally {
+					lock.unlock();
+				}
+			}
+		});
+		Coroutine holder = new Coroutine(new Runnable() {
+			public void run() throws SuspendExecution {
+				lock.lock();
+				try {
+					log.add("locked");
+					cond.signal();
+					Coroutine.yield();
+					log.add("unlock");
+				}finally {
+					lock.unlock();
+				}
+			}
+		});
+		waiter.resume();
+		assertFalse(lock.isLocked());
+		holder.resume();
+		assertEquals(Coroutine.State.SUSPENDED, waiter.getState());
+		holder.resume();
+		assertEquals(Coroutine.State.FINISHED, holder.getState());
+		assertEquals(Coroutine.State.FINISHED, waiter.getState());
+		assertEquals(Arrays.asList("wait", "locked", "unlock", "woken"), log);
+		assertFalse(lock.isLocked());
+	}
+	
+	@Test
+	public void testSemaphore() {
+		final CoSemaphore sem = new CoSemaphore(1);
+		final List<String> log = new ArrayList<String>();
+		Coroutine[] cos = new Coroutine[3];
+		for (int i = 0; i < cos.length; i++) {
+			final String name = "c" + i;
+			cos[i] = new Coroutine(new Runnable() {
+				public void run() throws SuspendExecution {
+					sem.acquire();
+					log.add(name);
+					Coroutine.yield();
+					sem.release();
+				}
+			});
+			cos[i].resume();
+		}
+		assertEquals(Arrays.asList("c0"), log);
+		assertEquals(0, sem.availablePermits());
+		cos[0].resume();
+		assertEquals(Arrays.asList("c0", "c1"), log);
+		cos[1].resume();
+		cos[2].resume();
+		assertEquals(Arrays.asList("c0", "c1", "c2"), log);
+		assertEquals(1, sem.availablePermits());
+	}
+}
@@ -0,0 +1,227 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import nginx.clojure.logger.TinyLogService;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import sun.nio.ch.DirectBuffer;
+
+public class NginxBodyFilterChunksTest {
+
+	@Before
+	public void setUp() {
+		if (NginxClojureRT.log == null) {
+			NginxClojureRT.log = TinyLogService.createDefaultTinyLogService();
+		}
+	}
+
+	@Test
+	public void testView() {
+		ByteBuffer mem = ByteBuffer.allocateDirect(16);
+		for (int i = 0; i < 16; i++) {
+			mem.put(i, (byte)i);
+		}
+		long address = ((DirectBuffer)mem).address();
+		ByteBuffer v = NginxBodyFilterChunks.view(address + 4, 8, false);
+		assertTrue(v.isReadOnly());
+		assertEquals(0, v.position());
+		assertEquals(8, v.remaining());
+		assertEquals(4, v.get(0));
+		assertEquals(11, v.get(7));
+
+		ByteBuffer w = NginxBodyFilterChunks.view(address, 4, true);
+		assertFalse(w.isReadOnly());
+		w.put(1, (byte)100);
+		//zero-copy, so the native memory is changed
+		assertEquals(100, mem.get(1));
+		assertEquals(0, NginxBodyFilterChunks.view(address, 0, true).remaining());
+	}
+
+	/**
+	 * A chain of fake links over a direct buffer, link i (from 1) holds the byte i.
+	 */
+	static class FakeChunks extends NginxBodyFilterChunks {
+
+		final ByteBuffer mem = ByteBuffer.allocateDirect(256);
+
+		final long base = ((DirectBuffer)mem).address();
+
+		/**
+		 * chains returned by pending() in turn, each is {first, last} link
+		 */
+		final LinkedList<long[]> pendings = new LinkedList<long[]>();
+
+		long[] current;
+
+		final List<String> log = new ArrayList<String>();
+
+		int lastLink;
+
+		int sendRc = MiniConstants.NGX_OK;
+
+		FakeChunks(int first, int last, int lastLink) {
+			super(1, first);
+			for (int i = 0; i < 256; i++) {
+				mem.put(i, (byte)i);
+			}
+			this.current = new long[] {first, last};
+			this.lastLink = lastLink;
+		}
+
+		@Override
+		protected int nativeChainInfo(long chain) {
+			int n = 0;
+			for (long l = chain; l != 0 && n < BATCH_SIZE; l = nativeNextLink(l), n++) {
+				int i = n << 2;
+				info[i] = l;
+				info[i + 1] = base + l;
+				info[i + 2] = 1;
+				info[i + 3] = l == lastLink ? CHUNK_LAST : 0;
+			}
+			return n;
+		}
+
+		@Override
+		protected long nativeNextLink(long link) {
+			if (link == current[1]) {
+				return 0;
+			}
+			return link + 1;
+		}
+
+		@Override
+		protected long nativePending() {
+			log.add("pending");
+			if (pendings.isEmpty()) {
+				return 0;
+			}
+			current = pendings.removeFirst();
+			return current[0];
+		}
+
+		@Override
+		protected long nativeSend() {
+			log.add("send");
+			return sendRc;
+		}
+
+		@Override
+		protected long nativeEmit(long src, Object obj, long offset, long len, int flag) {
+			if (src != 0) {
+				log.add((len < 0 ? "pass:" : "consume:") + src);
+			}else if (len > 0) {
+				StringBuilder sb = new StringBuilder("data:");
+				for (int i = 0; i < len; i++) {
+					sb.append(obj == null ? HackUtils.UNSAFE.getByte(offset + i) : ((byte[])obj)[(int)offset - MiniConstants.BYTE_ARRAY_OFFSET + i]);
+				}
+				log.add(sb.toString());
+			}else if (flag != 0) {
+				log.add("flag:" + flag);
+			}
+			return MiniConstants.NGX_OK;
+		}
+	}
+
+	@Test
+	public void testPassThroughAcrossBatches() {
+		int n = NginxBodyFilterChunks.BATCH_SIZE * 2 + 3;
+		FakeChunks chunks = new FakeChunks(1, n, n);
+		int seen = 0;
+		while (chunks.next()) {
+			seen++;
+			assertEquals(seen, chunks.chunk().get(0));
+			assertEquals(seen == n, chunks.isLast());
+		}
+		assertEquals(n, seen);
+		assertEquals(MiniConstants.NGX_OK, chunks.complete().fetchStatus(0));
+		assertEquals(n + 3, chunks.log.size());
+		for (int i = 0; i < n; i++) {
+			assertEquals("pass:" + (i + 1), chunks.log.get(i));
+		}
+		assertEquals("send", chunks.log.get(n));
+		assertEquals("pending", chunks.log.get(n + 1));
+		assertEquals("pending", chunks.log.get(n + 2));
+	}
+
+	@Test
+	public void testEmitAcrossBatches() {
+		int n = NginxBodyFilterChunks.BATCH_SIZE + 1;
+		FakeChunks chunks = new FakeChunks(1, n, n);
+		while (chunks.next()) {
+			ByteBuffer c = chunks.chunk();
+			chunks.emit(new byte[] {(byte)(c.get(0) * 2)});
+		}
+		List<String> expected = new ArrayList<String>();
+		for (int i = 1; i <= n; i++) {
+			expected.add("consume:" + i);
+			expected.add("data:" + (i * 2));
+		}
+		expected.add("flag:" + NginxBodyFilterChunks.CHUNK_LAST);
+		expected.add("send");
+		expected.add("pending");
+		assertEquals(expected, chunks.log);
+	}
+
+	@Test
+	public void testEmitTwice() {
+		FakeChunks chunks = new FakeChunks(1, 1, 1);
+		assertTrue(chunks.next());
+		chunks.emit(null);
+		try {
+			chunks.emit(null);
+			fail("emitted twice");
+		}catch(IllegalStateException e) {
+		}
+	}
+
+	@Test
+	public void testPendingChainsInOrder() {
+		int n = NginxBodyFilterChunks.BATCH_SIZE + 4;
+		FakeChunks chunks = new FakeChunks(1, n, n + 5);
+		chunks.pendings.add(new long[] {n + 1, n + 5});
+		int seen = 0;
+		while (chunks.next()) {
+			seen++;
+			assertEquals(seen, chunks.chunk().get(0));
+			if (seen % 2 == 0) {
+				chunks.emit(null);
+			}
+		}
+		assertEquals(n + 5, seen);
+		//output of the first chain is sent before the pending one is fetched
+		int send = chunks.log.indexOf("send");
+		assertEquals(send + 1, chunks.log.indexOf("pending"));
+		assertTrue(chunks.log.lastIndexOf("consume:" + n) < send);
+		assertTrue(chunks.log.indexOf("pass:" + (n + 1)) > send);
+		assertEquals("pass:" + (n + 5), chunks.log.get(chunks.log.size() - 3));
+		assertEquals(MiniConstants.NGX_OK, chunks.getReturnCode());
+	}
+
+	@Test
+	public void testSendError() {
+		FakeChunks chunks = new FakeChunks(1, 2, 0);
+		chunks.pendings.add(new long[] {3, 3});
+		chunks.sendRc = MiniConstants.NGX_ERROR;
+		assertTrue(chunks.next());
+		assertTrue(chunks.next());
+		assertFalse(chunks.next());
+		assertEquals(MiniConstants.NGX_ERROR, chunks.complete().fetchStatus(0));
+		assertFalse(chunks.log.contains("pending"));
+	}
+
+}
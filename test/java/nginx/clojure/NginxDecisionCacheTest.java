@@ -0,0 +1,69 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure;
+
+import static nginx.clojure.MiniConstants.NGX_DECLINED;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class NginxDecisionCacheTest {
+
+	@Test
+	public void testCompileKey() {
+		assertArrayEquals(new String[] {"$http_authorization"}, strs(NginxDecisionCache.compileKey("$http_authorization")));
+		assertArrayEquals(new String[] {"k:", "$http_x_api_key", "@", "$host", ".x"}, 
+				strs(NginxDecisionCache.compileKey("k:$http_x_api_key@${host}.x")));
+	}
+
+	private static String[] strs(Object[] parts) {
+		String[] s = new String[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			s[i] = parts[i].toString();
+		}
+		return s;
+	}
+
+	@Test
+	public void testLookup() throws Exception {
+		NginxDecisionCache c = new NginxDecisionCache("$http_authorization", 1000, 30, 2);
+		assertEquals(NginxDecisionCache.MISS, c.lookup("a"));
+		c.put("a", NGX_DECLINED);
+		c.put("b", 403);
+		assertEquals(NGX_DECLINED, c.lookup("a"));
+		assertEquals(403, c.lookup("b"));
+		//"a" is the eldest one after "b" is accessed
+		c.put("c", NGX_DECLINED);
+		assertEquals(2, c.size());
+		assertEquals(NginxDecisionCache.MISS, c.lookup("a"));
+		Thread.sleep(60);
+		//negative ttl is shorter
+		assertEquals(NginxDecisionCache.MISS, c.lookup("b"));
+		assertEquals(NGX_DECLINED, c.lookup("c"));
+		assertEquals(3, c.getHits());
+	}
+
+	@Test
+	public void testConfigure() {
+		Map<String, String> props = new HashMap<String, String>();
+		props.put("suspendable", "true");
+		assertNull(NginxDecisionCache.configure(props));
+		props.put(NginxDecisionCache.KEY_PROPERTY, "$cookie_sid");
+		props.put(NginxDecisionCache.TTL_PROPERTY, "30s");
+		props.put(NginxDecisionCache.NEGATIVE_TTL_PROPERTY, "0");
+		NginxDecisionCache c = NginxDecisionCache.configure(props);
+		assertEquals(30000, c.ttl);
+		assertEquals(3, NginxDecisionCache.countProperties(props));
+		//negative caching is disabled
+		c.put("x", 401);
+		assertEquals(0, c.size());
+	}
+
+}
@@ -0,0 +1,95 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure;
+
+import static nginx.clojure.NginxClojureRT.UNSAFE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import nginx.clojure.java.NginxJavaHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NginxHeaderNamesTest {
+
+	long mem;
+
+	long[] saved;
+
+	@Before
+	public void setUp() {
+		saved = new long[] {MiniConstants.NGX_HTTP_CLOJURE_UINT_SIZE, MiniConstants.NGX_HTTP_CLOJURE_TEL_HASH_OFFSET,
+				MiniConstants.NGX_HTTP_CLOJURE_TEL_KEY_OFFSET, MiniConstants.NGX_HTTP_CLOJURE_STR_LEN_OFFSET,
+				MiniConstants.NGX_HTTP_CLOJURE_STR_DATA_OFFSET};
+		//a fake 64-bit ngx_table_elt_t : hash, key.len, key.data
+		MiniConstants.NGX_HTTP_CLOJURE_UINT_SIZE = 8;
+		MiniConstants.NGX_HTTP_CLOJURE_TEL_HASH_OFFSET = 0;
+		MiniConstants.NGX_HTTP_CLOJURE_TEL_KEY_OFFSET = 8;
+		MiniConstants.NGX_HTTP_CLOJURE_STR_LEN_OFFSET = 0;
+		MiniConstants.NGX_HTTP_CLOJURE_STR_DATA_OFFSET = 8;
+		mem = UNSAFE.allocateMemory(256);
+	}
+
+	@After
+	public void tearDown() {
+		UNSAFE.freeMemory(mem);
+		MiniConstants.NGX_HTTP_CLOJURE_UINT_SIZE = saved[0];
+		MiniConstants.NGX_HTTP_CLOJURE_TEL_HASH_OFFSET = saved[1];
+		MiniConstants.NGX_HTTP_CLOJURE_TEL_KEY_OFFSET = saved[2];
+		MiniConstants.NGX_HTTP_CLOJURE_STR_LEN_OFFSET = saved[3];
+		MiniConstants.NGX_HTTP_CLOJURE_STR_DATA_OFFSET = saved[4];
+	}
+
+	private long tel(String name, long hash) {
+		long data = mem + 64;
+		for (int i = 0; i < name.length(); i++) {
+			UNSAFE.putByte(data + i, (byte)name.charAt(i));
+		}
+		UNSAFE.putLong(mem, hash);
+		UNSAFE.putLong(mem + 8, name.length());
+		UNSAFE.putAddress(mem + 16, data);
+		return mem;
+	}
+
+	@Test
+	public void testHash() {
+		//ngx_hash over the lower case name
+		long h = 0;
+		for (char c : "user-agent".toCharArray()) {
+			h = h * 31 + c;
+		}
+		assertEquals(h, NginxHeaderNames.hash("User-Agent".getBytes()));
+		assertEquals(h, NginxHeaderNames.hash("user-agent".getBytes()));
+	}
+
+	@Test
+	public void testFetchCommonNames() {
+		long h = NginxHeaderNames.hash("User-Agent".getBytes());
+		String s = NginxHeaderNames.fetch(tel("User-Agent", h));
+		assertEquals("User-Agent", s);
+		assertSame(s, NginxHeaderNames.fetch(tel("User-Agent", h)));
+		//hash 1 is used by modules for response headers
+		assertSame(s, NginxHeaderNames.fetch(tel("User-Agent", 1)));
+		assertEquals("user-agent", NginxHeaderNames.fetch(tel("user-agent", h)));
+		String ct = NginxHeaderNames.fetch(tel("Content-Type", 0));
+		assertEquals("Content-Type", ct);
+		assertSame(ct, NginxHeaderNames.fetch(tel("Content-Type", 1)));
+		assertNull(NginxHeaderNames.fetch(tel("", 0)));
+	}
+
+	@Test
+	public void testResponseHeaderPusherCache() {
+		NginxJavaHandler handler = new NginxJavaHandler();
+		NginxHeaderHolder p = handler.responseHeaderPusher("X-Trace-Id");
+		assertEquals("X-Trace-Id", p.name());
+		assertSame(p, handler.responseHeaderPusher("X-Trace-Id"));
+		assertSame(p, handler.responseHeaderPusher(new String("X-Trace-Id")));
+		assertNull(handler.responseHeaderPusher(""));
+		assertEquals(1, handler.headerPushers.size());
+	}
+}
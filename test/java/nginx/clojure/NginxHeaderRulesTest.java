@@ -0,0 +1,82 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import nginx.clojure.NginxHeaderRules.Rule;
+
+import org.junit.Test;
+
+public class NginxHeaderRulesTest {
+
+	@Test
+	public void testCompile() {
+		NginxHeaderRules rules = NginxHeaderRules.compile(
+				"  set X-Frame-Options DENY;\n" +
+				"# comments are ignored\n" +
+				"add Cache-Control \"no-store, private\" if-status 4xx 503\n" +
+				"remove X-Powered-By; replace Location ^http:// https:// if-status 301 302");
+		Rule[] rs = rules.getRules();
+		assertEquals(4, rs.length);
+		assertEquals(NginxHeaderRules.OP_SET, rs[0].getOp());
+		assertEquals("X-Frame-Options", rs[0].getName());
+		assertEquals("DENY", rs[0].transform("SAMEORIGIN"));
+		assertTrue(rs[0].matches(200));
+
+		assertEquals(NginxHeaderRules.OP_ADD, rs[1].getOp());
+		assertTrue(rs[1].matches(404));
+		assertTrue(rs[1].matches(503));
+		assertFalse(rs[1].matches(500));
+		assertFalse(rs[1].matches(200));
+		assertEquals("no-store, private", rs[1].transform(null));
+		assertArrayEquals(new String[] {"max-age=0", "no-store, private"}, (String[])rs[1].transform("max-age=0"));
+
+		assertEquals(NginxHeaderRules.OP_REMOVE, rs[2].getOp());
+		assertNull(rs[2].transform("PHP"));
+
+		assertEquals(NginxHeaderRules.OP_REPLACE, rs[3].getOp());
+		assertTrue(rs[3].matches(302));
+		assertFalse(rs[3].matches(200));
+		assertEquals("https://a.com/x", rs[3].transform("http://a.com/x"));
+		assertArrayEquals(new String[] {"https://a", "ftp://b"}, (String[])rs[3].transform(new String[] {"http://a", "ftp://b"}));
+	}
+
+	@Test
+	public void testBadRules() {
+		String[] bads = {"set X", "unknown X Y", "replace X [ y", "remove X if-status", "remove X if-status abc", "set X \"Y"};
+		for (String bad : bads) {
+			try {
+				NginxHeaderRules.compile(bad);
+				fail("should fail : " + bad);
+			}catch(IllegalArgumentException e) {
+			}
+		}
+	}
+
+	@Test
+	public void testAddSingleValuedKnownHeader() {
+		Rule[] rs = NginxHeaderRules.compile("add Content-Type text/plain; add Cache-Control no-store; add X-A b").getRules();
+		rs[0].holder = new ResponseContentTypeHolder();
+		rs[1].holder = new ArrayHeaderHolder("Cache-Control", 0, 0);
+		rs[2].holder = new UnknownHeaderHolder("X-A", 0);
+		assertTrue(NginxHeaderRules.isSingleValued(rs[0].holder));
+		assertFalse(NginxHeaderRules.isSingleValued(rs[1].holder));
+		assertFalse(NginxHeaderRules.isSingleValued(rs[2].holder));
+		assertEquals("text/plain", rs[0].transform(null));
+		//an existing Content-Type is neither replaced nor duplicated
+		String old = "text/html";
+		assertSame(old, rs[0].transform(old));
+		assertArrayEquals(new String[] {"private", "no-store"}, (String[])rs[1].transform("private"));
+		assertArrayEquals(new String[] {"a", "b"}, (String[])rs[2].transform("a"));
+	}
+
+}
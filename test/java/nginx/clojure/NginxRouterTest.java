@@ -0,0 +1,123 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import nginx.clojure.NginxRouter.Match;
+
+import org.junit.Test;
+
+public class NginxRouterTest {
+
+	private NginxRouter build() {
+		return new NginxRouter()
+			.add("GET", "/", "root")
+			.add("GET", "/users", "users")
+			.add("POST", "/users", "newUser")
+			.add("GET", "/users/new", "newUserForm")
+			.add("GET", "/users/:id", "user")
+			.add("PUT", "/users/:id", "updateUser")
+			.add("GET", "/users/:id/posts/:post", "post")
+			.add("GET", "/uploads", "uploads")
+			.add(null, "/static/*path", "static");
+	}
+
+	@Test
+	public void testStatic() {
+		NginxRouter r = build();
+		Match m = r.newMatch();
+		assertEquals("root", r.match("GET", "/", m));
+		assertEquals("users", r.match("GET", "/users", m));
+		assertEquals("newUser", r.match("post", "/users", m));
+		assertEquals("uploads", r.match("GET", "/uploads", m));
+		//static routes win
+		assertEquals("newUserForm", r.match("GET", "/users/new", m));
+		assertEquals(0, m.size());
+		//HEAD falls back to GET
+		assertEquals("users", r.match("HEAD", "/users", m));
+		assertNull(r.match("GET", "/user", m));
+		assertFalse(m.isMethodNotAllowed());
+	}
+
+	@Test
+	public void testParams() {
+		NginxRouter r = build();
+		Match m = r.newMatch();
+		assertEquals("user", r.match("GET", "/users/42", m));
+		assertEquals(1, m.size());
+		assertEquals("id", m.name(0));
+		assertEquals("42", m.value(0));
+		assertEquals("post", r.match("GET", "/users/42/posts/7", m));
+		assertEquals(2, m.size());
+		assertEquals("7", m.value(1));
+		//backtrack from the static node "new"
+		assertEquals("post", r.match("GET", "/users/new/posts/1", m));
+		assertEquals("new", m.value(0));
+		assertNull(r.match("GET", "/users/42/posts", m));
+		assertNull(r.match("GET", "/users//posts/1", m));
+		assertEquals("static", r.match("DELETE", "/static/css/a.css", m));
+		assertEquals("path", m.name(0));
+		assertEquals("css/a.css", m.value(0));
+		assertEquals("static", r.match("GET", "/static/", m));
+		assertEquals("", m.value(0));
+	}
+
+	@Test
+	public void testMethodNotAllowed() {
+		NginxRouter r = build();
+		Match m = r.newMatch();
+		assertNull(r.match("DELETE", "/users/1", m));
+		assertTrue(m.isMethodNotAllowed());
+		assertEquals("GET, HEAD, PUT", m.allowedMethods());
+	}
+
+	@Test
+	public void testAllowedMethodsOfAllMatchedRoutes() {
+		NginxRouter r = build().add("DELETE", "/users/new", "deleteForm");
+		Match m = r.newMatch();
+		//both the static route and the parameter route match the path
+		assertNull(r.match("POST", "/users/new", m));
+		assertEquals("GET, HEAD, PUT, DELETE", m.allowedMethods());
+		assertEquals("updateUser", r.match("PUT", "/users/new", m));
+		assertFalse(m.isMethodNotAllowed());
+	}
+
+	@Test
+	public void testLocalMatch() {
+		NginxRouter r = build();
+		Match m = r.localMatch();
+		assertTrue(m == r.localMatch());
+		r.add("GET", "/a/:b/:c/:d", "deep");
+		Match m2 = r.localMatch();
+		assertFalse(m == m2);
+		assertEquals("deep", r.match("GET", "/a/1/2/3", m2));
+		assertEquals("3", m2.value(2));
+	}
+
+	@Test
+	public void testConflicts() {
+		try {
+			build().add("GET", "/users/:name", "x");
+			fail("conflict parameter names");
+		}catch(IllegalArgumentException e) {
+		}
+		try {
+			build().add("GET", "/users", "x");
+			fail("duplicated route");
+		}catch(IllegalArgumentException e) {
+		}
+		try {
+			new NginxRouter().add("GET", "/a/*b/c", "x");
+			fail("wildcard in the middle");
+		}catch(IllegalArgumentException e) {
+		}
+	}
+
+}
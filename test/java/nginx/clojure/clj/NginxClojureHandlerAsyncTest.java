@@ -0,0 +1,205 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure.clj;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import nginx.clojure.NginxClojureRT;
+import nginx.clojure.NginxHttpServerChannel;
+import nginx.clojure.NginxRequest;
+import nginx.clojure.NginxResponse;
+import nginx.clojure.logger.TinyLogService;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import clojure.lang.AFn;
+import clojure.lang.IFn;
+import clojure.lang.RT;
+
+public class NginxClojureHandlerAsyncTest {
+
+	static class CountedBody extends ByteArrayInputStream {
+		int closed;
+
+		CountedBody() {
+			super(new byte[0]);
+		}
+
+		@Override
+		public void close() throws IOException {
+			closed++;
+		}
+	}
+
+	static class StubRequest extends LazyRequestMap {
+		StubRequest(NginxClojureHandler handler, Object body) {
+			super(handler, 0, new byte[1], new Object[] {Constants.URI, "/async", Constants.BODY, body});
+		}
+
+		@Override
+		public boolean isWebSocket() {
+			return false;
+		}
+	}
+
+	/**
+	 * records what is sent instead of calling nginx
+	 */
+	static class StubChannel extends NginxHttpServerChannel {
+		final List<Object> sent = new ArrayList<Object>();
+
+		StubChannel(NginxRequest request) {
+			super(request, false);
+		}
+
+		@Override
+		public void sendResponse(Object resp) throws IOException {
+			sent.add(resp);
+		}
+
+		@Override
+		public void sendResponse(int status) throws IOException {
+			sent.add(status);
+		}
+	}
+
+	static class StubHandler extends NginxClojureHandler {
+		StubChannel channel;
+
+		StubHandler(IFn ringHandler) {
+			super(ringHandler, null);
+			setRingAsync(true);
+		}
+
+		@Override
+		public NginxHttpServerChannel hijack(NginxRequest req, boolean ignoreFilter) {
+			return channel = new StubChannel(req);
+		}
+	}
+
+	static final Object OK = RT.map(Constants.STATUS, 200, Constants.BODY, "ok");
+
+	CountedBody body;
+
+	@Before
+	public void setUp() {
+		if (NginxClojureRT.log == null) {
+			NginxClojureRT.log = TinyLogService.createDefaultTinyLogService();
+		}
+		body = new CountedBody();
+	}
+
+	private StubHandler run(IFn ringHandler) {
+		StubHandler h = new StubHandler(ringHandler);
+		NginxResponse resp = h.process(new StubRequest(h, body));
+		assertEquals(NginxResponse.TYPE_FAKE_ASYNC_TAG, resp.type());
+		return h;
+	}
+
+	@Test
+	public void testRespond() {
+		final Object[] args = new Object[3];
+		StubHandler h = run(new AFn() {
+			@Override
+			public Object invoke(Object req, Object respond, Object raise) {
+				args[0] = req;
+				args[1] = respond;
+				args[2] = raise;
+				return ((IFn)respond).invoke(OK);
+			}
+		});
+		assertTrue(args[0] instanceof LazyRequestMap);
+		assertEquals(1, h.channel.sent.size());
+		assertEquals(OK, h.channel.sent.get(0));
+		assertEquals(1, body.closed);
+	}
+
+	@Test
+	public void testRespondOnlyOnce() {
+		StubHandler h = run(new AFn() {
+			@Override
+			public Object invoke(Object req, Object respond, Object raise) {
+				((IFn)respond).invoke(OK);
+				((IFn)respond).invoke(RT.map(Constants.STATUS, 201));
+				((IFn)raise).invoke(new RuntimeException("too late"));
+				return null;
+			}
+		});
+		assertEquals(1, h.channel.sent.size());
+		assertEquals(OK, h.channel.sent.get(0));
+		assertEquals(1, body.closed);
+	}
+
+	@Test
+	public void testRaise() {
+		StubHandler h = run(new AFn() {
+			@Override
+			public Object invoke(Object req, Object respond, Object raise) {
+				((IFn)raise).invoke(new RuntimeException("failed"));
+				((IFn)respond).invoke(OK);
+				return null;
+			}
+		});
+		assertEquals(1, h.channel.sent.size());
+		assertEquals(500, h.channel.sent.get(0));
+		assertEquals(1, body.closed);
+	}
+
+	@Test
+	public void testRaiseNonThrowable() {
+		StubHandler h = run(new AFn() {
+			@Override
+			public Object invoke(Object req, Object respond, Object raise) {
+				return ((IFn)raise).invoke("not a throwable");
+			}
+		});
+		assertEquals(1, h.channel.sent.size());
+		assertEquals(500, h.channel.sent.get(0));
+	}
+
+	@Test
+	public void testThrowBeforeRespond() {
+		StubHandler h = run(new AFn() {
+			@Override
+			public Object invoke(Object req, Object respond, Object raise) {
+				throw new IllegalStateException("broken");
+			}
+		});
+		assertEquals(1, h.channel.sent.size());
+		assertEquals(500, h.channel.sent.get(0));
+		assertEquals(1, body.closed);
+	}
+
+	@Test
+	public void testRespondLater() throws InterruptedException {
+		final IFn[] respond = new IFn[1];
+		StubHandler h = run(new AFn() {
+			@Override
+			public Object invoke(Object req, Object resp, Object raise) {
+				respond[0] = (IFn) resp;
+				return null;
+			}
+		});
+		//the body is left open until the handler responds
+		assertEquals(0, h.channel.sent.size());
+		assertEquals(0, body.closed);
+		Thread t = new Thread() {
+			public void run() {
+				respond[0].invoke(OK);
+			}
+		};
+		t.start();
+		t.join();
+		assertEquals(OK, h.channel.sent.get(0));
+		assertEquals(1, body.closed);
+	}
+}
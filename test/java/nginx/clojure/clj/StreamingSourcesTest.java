@@ -0,0 +1,80 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure.clj;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nginx.clojure.NginxStreamingBody;
+import nginx.clojure.NginxStreamingBody.Source;
+
+import org.junit.Test;
+
+import clojure.lang.AFn;
+import clojure.lang.LazySeq;
+import clojure.lang.PersistentList;
+import clojure.lang.RT;
+
+public class StreamingSourcesTest {
+
+	/**
+	 * an infinite lazy seq of "0", "1", "2", ... which counts realized elements
+	 */
+	private static LazySeq numbers(final int from, final AtomicInteger realized) {
+		return new LazySeq(new AFn() {
+			@Override
+			public Object invoke() {
+				realized.incrementAndGet();
+				return RT.cons(String.valueOf(from), numbers(from + 1, realized));
+			}
+		});
+	}
+
+	@Test
+	public void testSeqSourceRealizesOneByOne() {
+		AtomicInteger realized = new AtomicInteger();
+		Source src = StreamingSources.of(numbers(0, realized), true);
+		assertTrue(src instanceof StreamingSources.SeqSource);
+		//a lazy seq may block while realizing, so it must be pulled by a producer instead of callbacks
+		assertFalse(src instanceof NginxStreamingBody.AsyncSource);
+		assertEquals(0, realized.get());
+		for (int i = 0; i < 5; i++) {
+			assertEquals(String.valueOf(i), src.next(null));
+			assertEquals(i + 1, realized.get());
+		}
+		src.close();
+	}
+
+	@Test
+	public void testSeqSourceEnd() {
+		Source src = new StreamingSources.SeqSource(RT.seq(Arrays.asList("a", "b")));
+		assertEquals("a", src.next(null));
+		assertEquals("b", src.next(null));
+		assertSame(NginxStreamingBody.END, src.next(null));
+	}
+
+	@Test
+	public void testOf() {
+		assertNull(StreamingSources.of(null, true));
+		assertNull(StreamingSources.of("hello", true));
+		assertNull(StreamingSources.of(PersistentList.create(Arrays.asList("a")), true));
+		assertNull(StreamingSources.of(numbers(0, new AtomicInteger()), false));
+		LazySeq realized = numbers(0, new AtomicInteger());
+		realized.seq();
+		assertNull(StreamingSources.of(realized, true));
+		assertFalse(StreamingSources.isReadPort(String.class));
+	}
+	@Test
+	public void testChannelSourceIsAsync() {
+		assertTrue(new StreamingSources.ChannelSource(new Object()) instanceof NginxStreamingBody.AsyncSource);
+	}
+
+}
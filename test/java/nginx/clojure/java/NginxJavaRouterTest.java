@@ -0,0 +1,39 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure.java;
+
+import static nginx.clojure.MiniConstants.REQUEST_METHOD;
+import static nginx.clojure.MiniConstants.URI;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class NginxJavaRouterTest {
+
+	@Test
+	public void testRouteParamsNeverOverwriteRequestKeys() throws IOException {
+		final Object[] resp = new Object[] {200, null, "ok"};
+		final Map<?, ?>[] seen = new Map[1];
+		NginxJavaRouter r = new NginxJavaRouter().get("/files/:uri", new NginxJavaRingHandler() {
+			@Override
+			public Object[] invoke(Map<String, Object> request) throws IOException {
+				seen[0] = (Map<?, ?>) request.get(NginxJavaRouter.ROUTE_PARAMS);
+				return resp;
+			}
+		});
+		Map<String, Object> request = new HashMap<String, Object>();
+		request.put(REQUEST_METHOD, "GET");
+		request.put(URI, "/files/a.txt");
+		assertSame(resp, r.invoke(request));
+		assertEquals("a.txt", seen[0].get("uri"));
+		assertEquals(1, seen[0].size());
+		assertEquals("/files/a.txt", request.get(URI));
+	}
+}
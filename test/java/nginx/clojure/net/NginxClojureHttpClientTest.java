@@ -0,0 +1,123 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure.net;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import nginx.clojure.net.NginxClojureHttpClient.HttpRequest;
+import nginx.clojure.net.NginxClojureHttpClient.HttpResponse;
+import nginx.clojure.net.NginxClojureHttpClient.ResponseParser;
+
+import org.junit.Test;
+
+public class NginxClojureHttpClientTest {
+
+	protected static ByteBuffer buf(String s) throws Exception {
+		return ByteBuffer.wrap(s.getBytes("ISO-8859-1"));
+	}
+
+	@Test
+	public void testEncodeRequest() throws Exception {
+		HttpRequest r = HttpRequest.post("http://127.0.0.1:8080/api?id=1", "hello".getBytes(), "text/plain");
+		assertEquals("127.0.0.1", r.getHost());
+		assertEquals(8080, r.getPort());
+		assertEquals("/api?id=1", r.getPath());
+		ByteBuffer out = r.encode(ByteBuffer.allocate(8));
+		out.flip();
+		assertEquals("POST /api?id=1 HTTP/1.1\r\nContent-Type: text/plain\r\nHost: 127.0.0.1:8080\r\nContent-Length: 5\r\n\r\nhello",
+				new String(out.array(), 0, out.limit(), "ISO-8859-1"));
+		HttpRequest g = HttpRequest.get("https://example.com");
+		assertTrue(g.isSsl());
+		assertEquals(443, g.getPort());
+		out = g.encode(ByteBuffer.allocate(256));
+		out.flip();
+		assertEquals("GET / HTTP/1.1\r\nHost: example.com\r\n\r\n", new String(out.array(), 0, out.limit(), "ISO-8859-1"));
+	}
+
+	@Test
+	public void testContentLengthAndPipelined() throws Exception {
+		ByteBuffer in = buf("HTTP/1.1 200 OK\r\nContent-Length: 3\r\nX-A: 1\r\nx-a: 2\r\n\r\nabcHTTP/1.1 204 No Content\r\n\r\n");
+		ResponseParser p = new ResponseParser();
+		HttpResponse r1 = new HttpResponse(HttpRequest.get("http://a/"));
+		p.reset(r1);
+		assertTrue(p.parse(in));
+		assertTrue(p.isKeepAlive());
+		assertEquals(200, r1.getStatus());
+		assertEquals("1, 2", r1.getHeader("X-A"));
+		assertEquals("abc", r1.getBodyAsString());
+		HttpResponse r2 = new HttpResponse(HttpRequest.get("http://a/"));
+		p.reset(r2);
+		assertTrue(p.parse(in));
+		assertEquals(204, r2.getStatus());
+		assertNull(r2.getBodyChain());
+		r1.release();
+	}
+
+	@Test
+	public void testChunkedSplitEverywhere() throws Exception {
+		StringBuilder big = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			big.append((char)('a' + i % 26));
+		}
+		String all = "HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\nConnection: close\r\n\r\n"
+				+ "5;ext=1\r\nhello\r\n" + Integer.toHexString(big.length()) + "\r\n" + big + "\r\n0\r\nX-T: t\r\n\r\n";
+		for (int split = 0; split < all.length(); split += 97) {
+			ResponseParser p = new ResponseParser();
+			HttpResponse r = new HttpResponse(HttpRequest.get("http://a/"));
+			p.reset(r);
+			ByteBuffer b = ByteBuffer.allocate(all.length());
+			b.put(all.substring(0, split).getBytes("ISO-8859-1"));
+			b.flip();
+			assertFalse(p.parse(b));
+			b.compact();
+			b.put(all.substring(split).getBytes("ISO-8859-1"));
+			b.flip();
+			assertTrue(p.parse(b));
+			assertFalse(p.isKeepAlive());
+			assertEquals(200, r.getStatus());
+			assertEquals("hello" + big, r.getBodyAsString());
+			r.release();
+		}
+	}
+
+	@Test
+	public void testBodyUntilClose() throws Exception {
+		ResponseParser p = new ResponseParser();
+		HttpResponse r = new HttpResponse(HttpRequest.get("http://a/"));
+		p.reset(r);
+		assertFalse(p.parse(buf("HTTP/1.0 200 OK\r\n\r\nsome")));
+		assertFalse(p.parse(buf(" body")));
+		assertTrue(p.finishOnEof());
+		assertFalse(p.isKeepAlive());
+		assertEquals("some body", r.getBodyAsString());
+	}
+
+	@Test
+	public void testBadContentLength() throws Exception {
+		String[] bad = new String[] {"abc", "-1", "3, 5", "99999999999999999999"};
+		for (String cl : bad) {
+			ResponseParser p = new ResponseParser();
+			p.reset(new HttpResponse(HttpRequest.get("http://a/")));
+			try {
+				p.parse(buf("HTTP/1.1 200 OK\r\nContent-Length: " + cl + "\r\n\r\nabc"));
+				fail("no exception for " + cl);
+			}catch(IOException e) {
+				assertEquals("bad content-length", e.getMessage());
+			}
+		}
+		ResponseParser p = new ResponseParser();
+		p.reset(new HttpResponse(HttpRequest.get("http://a/")));
+		try {
+			p.parse(buf("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n-5\r\n"));
+			fail("no exception for a negative chunk size");
+		}catch(IOException e) {
+			assertTrue(e.getMessage().startsWith("bad chunk size"));
+		}
+	}
+
+}
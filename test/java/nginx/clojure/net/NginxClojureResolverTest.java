@@ -0,0 +1,119 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure.net;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import nginx.clojure.NginxClojureRT;
+import nginx.clojure.logger.TinyLogService;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class NginxClojureResolverTest {
+
+	@Before
+	public void setUp() {
+		if (NginxClojureRT.log == null) {
+			NginxClojureRT.log = TinyLogService.createDefaultTinyLogService();
+		}
+		NginxClojureResolver.clear();
+	}
+
+	@Test
+	public void testNeedResolve() {
+		assertTrue(NginxClojureResolver.needResolve("localhost"));
+		assertTrue(NginxClojureResolver.needResolve("www.bing.com"));
+		assertTrue(NginxClojureResolver.needResolve("1host"));
+		assertFalse(NginxClojureResolver.needResolve("127.0.0.1"));
+		assertFalse(NginxClojureResolver.needResolve("::1"));
+		assertFalse(NginxClojureResolver.needResolve("[::1]"));
+		assertFalse(NginxClojureResolver.needResolve("unix:/tmp/my.sock"));
+	}
+
+	@Test
+	public void testResolveByListenerAndCache() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final AtomicReference<InetAddress[]> result = new AtomicReference<InetAddress[]>();
+		NginxClojureResolver.ResolveListener listener = new NginxClojureResolver.ResolveListener() {
+			@Override
+			public void onResolved(String host, InetAddress[] addrs, UnknownHostException error) {
+				result.set(addrs);
+				latch.countDown();
+			}
+		};
+		NginxClojureResolver.resolve("localhost", listener);
+		assertTrue(latch.await(10, TimeUnit.SECONDS));
+		assertNotNull(result.get());
+		assertTrue(result.get().length > 0);
+
+		//cached, so it will be invoked at once
+		result.set(null);
+		NginxClojureResolver.resolve("localhost", listener);
+		assertNotNull(result.get());
+	}
+
+	@Test
+	public void testNegativeCache() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final AtomicReference<UnknownHostException> result = new AtomicReference<UnknownHostException>();
+		NginxClojureResolver.ResolveListener listener = new NginxClojureResolver.ResolveListener() {
+			@Override
+			public void onResolved(String host, InetAddress[] addrs, UnknownHostException error) {
+				result.set(error);
+				latch.countDown();
+			}
+		};
+		NginxClojureResolver.resolve("no-such-host.invalid", listener);
+		assertTrue(latch.await(30, TimeUnit.SECONDS));
+		assertNotNull(result.get());
+		result.set(null);
+		NginxClojureResolver.resolve("no-such-host.invalid", listener);
+		assertNotNull(result.get());
+	}
+
+	private static void putEntry(String host, long expires, boolean resolving) {
+		NginxClojureResolver.Entry e = new NginxClojureResolver.Entry(host);
+		e.expires = expires;
+		e.resolving = resolving;
+		synchronized (NginxClojureResolver.class) {
+			NginxClojureResolver.cache.put(host, e);
+		}
+	}
+
+	@Test
+	public void testEvict() {
+		long now = System.currentTimeMillis();
+		NginxClojureResolver.setMaxEntries(3);
+		try {
+			putEntry("expired.test", now - 1, false);
+			putEntry("resolving.test", 0, true);
+			putEntry("a.test", now + 60000, false);
+			putEntry("b.test", now + 60000, false);
+			NginxClojureResolver.evict(now);
+			//the expired one and then the eldest fresh one are dropped to make room for a new one
+			assertEquals(2, NginxClojureResolver.cache.size());
+			assertFalse(NginxClojureResolver.cache.containsKey("expired.test"));
+			assertFalse(NginxClojureResolver.cache.containsKey("a.test"));
+			putEntry("c.test", now + 60000, false);
+			NginxClojureResolver.evict(now);
+			//the one being resolved is always kept
+			assertTrue(NginxClojureResolver.cache.containsKey("resolving.test"));
+			assertFalse(NginxClojureResolver.cache.containsKey("b.test"));
+			assertTrue(NginxClojureResolver.cache.containsKey("c.test"));
+		}finally {
+			NginxClojureResolver.setMaxEntries(1024);
+			synchronized (NginxClojureResolver.class) {
+				NginxClojureResolver.cache.clear();
+			}
+		}
+	}
+}
@@ -0,0 +1,63 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure.net;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import nginx.clojure.net.NginxClojureRespClient.RespError;
+
+import org.junit.Test;
+
+public class NginxClojureRespClientTest {
+
+	protected static ByteBuffer buf(String s) throws Exception {
+		return ByteBuffer.wrap(s.getBytes("UTF-8"));
+	}
+
+	@Test
+	public void testEncode() throws Exception {
+		ByteBuffer out = ByteBuffer.allocate(4);
+		out = NginxClojureRespClient.encode(out, new Object[] {"SET", "k", 12, "\u503c".getBytes("UTF-8")});
+		out = NginxClojureRespClient.encode(out, new Object[] {"GET", "k"});
+		out.flip();
+		byte[] bs = new byte[out.remaining()];
+		out.get(bs);
+		assertEquals("*4\r\n$3\r\nSET\r\n$1\r\nk\r\n$2\r\n12\r\n$3\r\n\u503c\r\n*2\r\n$3\r\nGET\r\n$1\r\nk\r\n", new String(bs, "UTF-8"));
+	}
+
+	@Test
+	public void testParse() throws Exception {
+		ByteBuffer b = buf("+OK\r\n-ERR wrong\r\n:-42\r\n$5\r\nhello\r\n$-1\r\n*3\r\n:1\r\n*1\r\n+x\r\n$0\r\n\r\n*-1\r\n");
+		assertEquals("OK", NginxClojureRespClient.parse(b));
+		Object e = NginxClojureRespClient.parse(b);
+		assertTrue(e instanceof RespError);
+		assertEquals("ERR wrong", ((RespError)e).getMessage());
+		assertEquals(-42L, NginxClojureRespClient.parse(b));
+		assertArrayEquals("hello".getBytes(), (byte[])NginxClojureRespClient.parse(b));
+		assertNull(NginxClojureRespClient.parse(b));
+		Object[] a = (Object[]) NginxClojureRespClient.parse(b);
+		assertEquals(1L, a[0]);
+		assertEquals("x", ((Object[])a[1])[0]);
+		assertEquals(0, ((byte[])a[2]).length);
+		assertNull(NginxClojureRespClient.parse(b));
+		assertSame(NginxClojureRespClient.INCOMPLETE, NginxClojureRespClient.parse(b));
+	}
+
+	@Test
+	public void testParseIncomplete() throws Exception {
+		String all = "*2\r\n$5\r\nhello\r\n:7\r\n";
+		for (int i = 0; i < all.length(); i++) {
+			ByteBuffer b = buf(all.substring(0, i));
+			assertSame(NginxClojureRespClient.INCOMPLETE, NginxClojureRespClient.parse(b));
+			assertEquals(0, b.position());
+		}
+		Object[] a = (Object[]) NginxClojureRespClient.parse(buf(all));
+		assertEquals(2, a.length);
+		assertEquals(7L, a[1]);
+	}
+
+}
@@ -0,0 +1,24 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure.net;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.Test;
+
+public class NginxClojureSSLSocketFactoryTest {
+
+	@Test
+	public void testSuppliedHostName() throws UnknownHostException {
+		byte[] ip = new byte[] {10, 0, 0, 1};
+		assertEquals("www.example.com", NginxClojureSSLSocketFactory.suppliedHostName(InetAddress.getByAddress("www.example.com", ip)));
+		//no reverse lookup for an address made from a literal IP
+		assertEquals("", NginxClojureSSLSocketFactory.suppliedHostName(InetAddress.getByAddress(ip)));
+		assertEquals("", NginxClojureSSLSocketFactory.suppliedHostName(InetAddress.getByName("10.0.0.1")));
+	}
+}
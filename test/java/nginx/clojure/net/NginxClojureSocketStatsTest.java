@@ -0,0 +1,76 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure.net;
+
+import static org.junit.Assert.*;
+
+import nginx.clojure.net.NginxClojureSocketStats.Histogram;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class NginxClojureSocketStatsTest {
+
+	@After
+	public void tearDown() {
+		NginxClojureSocketStats.clear();
+	}
+
+	@Test
+	public void testHistogramBuckets() {
+		for (long v = 0; v < 100000; v++) {
+			int i = Histogram.index(v);
+			assertTrue(Histogram.lowerBound(i) <= v);
+			assertTrue(v < Histogram.lowerBound(i + 1));
+		}
+		assertEquals(Histogram.MAX_VALUE + 1, Histogram.lowerBound(Histogram.index(Histogram.MAX_VALUE) + 1));
+	}
+
+	@Test
+	public void testPercentile() {
+		Histogram h = new Histogram();
+		assertEquals(0, h.getValueAtPercentile(99));
+		for (int i = 1; i <= 1000; i++) {
+			h.record(i);
+		}
+		assertEquals(1000, h.getCount());
+		assertEquals(1000, h.getMax());
+		assertEquals(500.5, h.getMean(), 0.001);
+		long p50 = h.getValueAtPercentile(50);
+		assertTrue(Math.abs(p50 - 500) <= 500 / Histogram.SUB_COUNT);
+		long p99 = h.getValueAtPercentile(99);
+		assertTrue(Math.abs(p99 - 990) <= 990 / Histogram.SUB_COUNT);
+		assertEquals(1000, h.getValueAtPercentile(100));
+		h.record(Long.MAX_VALUE);
+		assertEquals(Histogram.MAX_VALUE, h.getMax());
+	}
+
+	@Test
+	public void testErrors() {
+		NginxClojureSocketStats st = NginxClojureSocketStats.of("a:80");
+		assertSame(st, NginxClojureSocketStats.of("a:80"));
+		st.recordError(NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_RESOLVE);
+		st.recordError(NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_READ_TIMEOUT);
+		st.recordError(NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_CONNECT_TIMEOUT);
+		st.recordError(NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_RESET);
+		st.recordError(NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_ERR_AGAIN);
+		st.recordError(NginxClojureAsynSocket.NGX_HTTP_CLOJURE_SOCKET_OK);
+		assertEquals(1, st.getDnsFailures());
+		assertEquals(2, st.getTimeouts());
+		assertEquals(1, st.getResets());
+		assertEquals(0, st.getErrors());
+	}
+
+	@Test
+	public void testMaxDestinations() {
+		for (int i = 0; i < NginxClojureSocketStats.MAX_DESTINATIONS + 10; i++) {
+			NginxClojureSocketStats.of("h" + i + ":80").recordConnect(1000000);
+		}
+		assertEquals(NginxClojureSocketStats.MAX_DESTINATIONS + 1, NginxClojureSocketStats.getAll().size());
+		assertEquals(10, NginxClojureSocketStats.get(NginxClojureSocketStats.OTHERS).getConnectTime().getCount());
+		assertEquals(1000, NginxClojureSocketStats.get("h0:80").getConnectTime().getMax());
+	}
+
+}
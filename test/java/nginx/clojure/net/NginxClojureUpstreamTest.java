@@ -0,0 +1,121 @@
+/**
+ *  Copyright (C) Zhang,Yuexiang (xfeep)
+ *
+ */
+package nginx.clojure.net;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import nginx.clojure.NginxClojureRT;
+import nginx.clojure.logger.TinyLogService;
+import nginx.clojure.net.NginxClojureUpstream.Peer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class NginxClojureUpstreamTest {
+
+	@Before
+	public void setUp() {
+		if (NginxClojureRT.log == null) {
+			NginxClojureRT.log = TinyLogService.createDefaultTinyLogService();
+		}
+	}
+
+	protected static String sequence(NginxClojureUpstream u, int n, long now) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < n; i++) {
+			Peer p = u.select(null, null, now);
+			sb.append(p.getUrl().charAt(0));
+			u.free(p, false, now);
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void testParseServers() {
+		List<Peer> peers = NginxClojureUpstream.parseServers("a:80 weight=5 max_fails=3 fail_timeout=500ms;\n b:80 backup; c:80 down fail_timeout=2");
+		assertEquals(3, peers.size());
+		assertEquals("a:80", peers.get(0).getUrl());
+		assertEquals(5, peers.get(0).getWeight());
+		assertEquals(3, peers.get(0).maxFails);
+		assertEquals(500, peers.get(0).failTimeout);
+		assertTrue(peers.get(1).isBackup());
+		assertTrue(peers.get(2).isDown());
+		assertEquals(2000, peers.get(2).failTimeout);
+		try {
+			NginxClojureUpstream.parseServers("a:80 wight=2");
+			fail("should be invalid");
+		}catch(IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void testSmoothWeightedRoundRobin() {
+		NginxClojureUpstream u = new NginxClojureUpstream("t", NginxClojureUpstream.ROUND_ROBIN,
+				NginxClojureUpstream.parseServers("a:80 weight=5; b:80; c:80"), 0);
+		//the same sequence as nginx
+		assertEquals("aabacaa", sequence(u, 7, 1000));
+	}
+
+	@Test
+	public void testLeastConn() {
+		NginxClojureUpstream u = new NginxClojureUpstream("t", NginxClojureUpstream.LEAST_CONN,
+				NginxClojureUpstream.parseServers("a:80; b:80; c:80"), 0);
+		Peer p1 = u.select(null, null, 1000);
+		Peer p2 = u.select(null, null, 1000);
+		Peer p3 = u.select(null, null, 1000);
+		assertEquals(3, new HashSet<Peer>(java.util.Arrays.asList(p1, p2, p3)).size());
+		u.free(p2, false, 1000);
+		assertSame(p2, u.select(null, null, 1000));
+		assertEquals(1, p2.getActive());
+	}
+
+	@Test
+	public void testHash() {
+		NginxClojureUpstream u = new NginxClojureUpstream("t", NginxClojureUpstream.HASH,
+				NginxClojureUpstream.parseServers("a:80; b:80; c:80"), 0);
+		Set<String> seen = new HashSet<String>();
+		for (int i = 0; i < 100; i++) {
+			String key = "user" + i;
+			Peer p = u.select(key, null, 1000);
+			u.free(p, false, 1000);
+			assertSame(p, u.select(key, null, 1000));
+			u.free(p, false, 1000);
+			seen.add(p.getUrl());
+		}
+		assertEquals(3, seen.size());
+		//without key it falls back to round-robin
+		assertNotNull(u.select(null, null, 1000));
+	}
+
+	@Test
+	public void testPassiveHealthCheckAndBackup() {
+		NginxClojureUpstream u = new NginxClojureUpstream("t", NginxClojureUpstream.ROUND_ROBIN,
+				NginxClojureUpstream.parseServers("a:80 max_fails=2 fail_timeout=10s; b:80 backup"), 0);
+		assertEquals(2, u.getTries());
+		Peer a = u.select(null, null, 1000);
+		assertEquals("a:80", a.getUrl());
+		u.free(a, true, 1000);
+		assertSame(a, u.select(null, null, 1001));
+		u.free(a, true, 1001);
+		//a is disabled for fail_timeout so the backup is used
+		Peer b = u.select(null, null, 1002);
+		assertEquals("b:80", b.getUrl());
+		u.free(b, false, 1002);
+		//the tried one is skipped
+		Set<Peer> tried = new HashSet<Peer>();
+		tried.add(b);
+		assertNull(u.select(null, tried, 1003));
+		//after fail_timeout one probe is allowed and a success resets fails
+		Peer probe = u.select(null, null, 12000);
+		assertSame(a, probe);
+		u.free(probe, false, 12000);
+		assertEquals(0, a.getFails());
+	}
+
+}